@@ -37,20 +37,23 @@ import java.nio.ByteOrder;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
 import java.security.PrivilegedExceptionAction;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.LinkedBlockingQueue;
 import com.sun.management.HotSpotDiagnosticMXBean;
 import com.sun.btrace.aggregation.Aggregation;
 import com.sun.btrace.aggregation.AggregationKey;
 import com.sun.btrace.aggregation.AggregationFunction;
+import com.sun.btrace.annotations.BTrace;
 import com.sun.btrace.annotations.OnError;
 import com.sun.btrace.annotations.OnExit;
 import com.sun.btrace.annotations.OnTimer;
 import com.sun.btrace.annotations.OnEvent;
 import com.sun.btrace.annotations.OnLowMemory;
+import com.sun.btrace.annotations.Sampler;
 import com.sun.btrace.comm.Command;
 import com.sun.btrace.comm.ErrorCommand;
 import com.sun.btrace.comm.EventCommand;
@@ -60,7 +63,9 @@ import com.sun.btrace.comm.NumberDataCommand;
 import com.sun.btrace.comm.NumberMapDataCommand;
 import com.sun.btrace.comm.StringMapDataCommand;
 import com.sun.btrace.comm.GridDataCommand;
+import com.sun.btrace.comm.QueueOverflowNotification;
 import com.sun.btrace.profiling.MethodInvocationProfiler;
+import com.sun.btrace.recording.Recording;
 
 import java.lang.management.GarbageCollectorMXBean;
 
@@ -85,6 +90,7 @@ import java.lang.management.ThreadInfo;
 import java.lang.management.ThreadMXBean;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Deque;
@@ -94,10 +100,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.WeakHashMap;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ThreadFactory;
 import javax.management.ListenerNotFoundException;
 import javax.management.MBeanServer;
@@ -126,6 +129,17 @@ public final class BTraceRuntime {
     // we need Unsafe to load BTrace class bytes as
     // bootstrap class
     private static final Unsafe unsafe = Unsafe.getUnsafe();
+    // offset of java.nio.Buffer.address, the base address of the
+    // direct buffers jvmstat hands out for the perf counters
+    private static final long BUFFER_ADDRESS_OFFSET;
+    static {
+        try {
+            BUFFER_ADDRESS_OFFSET = unsafe.objectFieldOffset(
+                java.nio.Buffer.class.getDeclaredField("address"));
+        } catch (NoSuchFieldException exp) {
+            throw new ExceptionInInitializerError(exp);
+        }
+    }
 
     private static Properties dotWriterProps;
 
@@ -139,40 +153,22 @@ public final class BTraceRuntime {
     private static final boolean messageTimestamp = false;
     private static final String LINE_SEPARATOR;
 
-    final private static Thread samplerThread;
-    volatile public static long TIMESTAMP = 0L;
+    /**
+     * Name of the constant field of a preprocessed BTrace class listing
+     * its probe handlers, comma separated, in the order of their indexes
+     */
+    public static final String PROBES_FIELD_NAME = "probes";
 
     static {
         dummy = new BTraceRuntime();
         NULL = new BTraceRuntime();
         LINE_SEPARATOR = System.getProperty("line.separator");
-
-        if (Boolean.getBoolean("btrace.timer.sampled")) {
-            final long interval = Long.parseLong(System.getProperty("btrace.timer.sampled.interval", "500"));
-            long time = System.nanoTime();
-            for(int i=0;i<1000;i++) {
-                unsafe.park(false, interval);
-            }
-            time = System.nanoTime() - time;
-            final long step = (long)(time / 1000);
-
-            samplerThread = new Thread(new Runnable() {
-
-                public void run() {
-                    while (true) {
-                        unsafe.park(false, interval);
-                        TIMESTAMP+=step;
-                    }
-                }
-            }, "BTrace Sampled Timer");
-            samplerThread.setDaemon(true);
-            samplerThread.start();
-        } else {
-            samplerThread = null;
-        }
     }
 
     private static ThreadEnteredMap map = new ThreadEnteredMap(NULL);
+    // set once any BTrace program has a sampled probe; until then the
+    // aggregations need not look up the weight of the current probe
+    private static volatile boolean sampling;
 
     // BTraceRuntime against BTrace class name
     private static Map<String, BTraceRuntime> runtimes =
@@ -185,7 +181,12 @@ public final class BTraceRuntime {
     private static volatile PerfReader perfReader;
     // performance counters created by this client
     private static Map<String, ByteBuffer> counters =
-        new HashMap<String, ByteBuffer>();
+        new ConcurrentHashMap<String, ByteBuffer>();
+    // addresses of the numeric perf counters created above, indexed by
+    // the handles given out by getPerfCounterHandle; only ever appended to
+    private static volatile long[] counterAddresses = new long[0];
+    private static final Map<String, Integer> counterHandles =
+        new ConcurrentHashMap<String, Integer>();
 
     // Few MBeans used to implement certain built-in functions
     private static volatile HotSpotDiagnosticMXBean hotspotMBean;
@@ -230,8 +231,8 @@ public final class BTraceRuntime {
     // low memory handlers
     private Map<String, Method> lowMemHandlers;
 
-    // timer to run profile provider actions
-    private volatile Timer timer;
+    // scheduled timer handlers of this BTrace program
+    private volatile TimerScheduler.Group timerGroup;
 
     // executer to run low memory handlers
     private volatile ExecutorService threadPool;
@@ -239,91 +240,269 @@ public final class BTraceRuntime {
     private volatile NotificationListener memoryListener;
 
     // Command queue for the client
-    private volatile LinkedBlockingQueue<Command> queue;
+    private volatile CommandQueue queue;
+
+    // invocation counts and timings of the probe handlers; set up by init(Class)
+    private ProbeMetrics metrics;
+    // periodic sending of the metrics to the client, if requested
+    private TimerScheduler.Group metricsGroup;
+    // periodic check of the overhead budget, if there is one
+    private TimerScheduler.Group governorGroup;
+    // lazy message templates of this BTrace program; released on exit
+    private volatile int[] lazyTemplates;
+    // samplers of the sampled probe handlers, by handler index
+    private volatile ProbeSampler[] samplers = new ProbeSampler[0];
+
+    // binary recordings created by this BTrace program; closed on exit
+    private final List<Recording> recordings = new CopyOnWriteArrayList<Recording>();
+    // stack samplers created by this BTrace program; released on exit
+    private final List<StackSampler> stackSamplers = new CopyOnWriteArrayList<StackSampler>();
+
+    // max. number of commands handed over to the CommandListener at once
+    private static final int COMMAND_BATCH_SIZE = 256;
+    // how often the command thread checks for dropped commands when idle
+    private static final long COMMAND_POLL_NANOS = 500L * 1000 * 1000;
 
     private static class SpeculativeQueueManager {
-        // maximum number of speculative buffers
+        // maximum number of speculative buffers in use at the same time
         private static final int MAX_SPECULATIVE_BUFFERS = Short.MAX_VALUE;
         // per buffer message limit
         private static final int MAX_SPECULATIVE_MSG_LIMIT = Short.MAX_VALUE;
-        // next speculative buffer id
-        private int nextSpeculationId;
-        // speculative buffers map
-        private ConcurrentHashMap<Integer, LinkedBlockingQueue<Command>> speculativeQueues;
-        // per thread current speculative buffer id
-        private ThreadLocal<Integer> currentSpeculationId;
+        /*
+         * A speculation id is made of the buffer slot (low 15 bits) and
+         * the generation of the slot (next 16 bits). The generation is
+         * bumped on every commit/discard, so that the slot can be reused
+         * right away while the old ids become stale.
+         */
+        private static final int SLOT_BITS = 15;
+        private static final int SLOT_MASK = (1 << SLOT_BITS) - 1;
+        private static final int GENERATION_MASK = 0xFFFF;
+        // buffers are created in chunks of 256
+        private static final int CHUNK_BITS = 8;
+        private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+        private static final int NO_SPECULATION = -1;
+
+        private static final class Buffer {
+            final int slot;
+            // guarded by this
+            int generation;
+            Command[] commands;
+            int size;
+            // next free slot + 1; guarded by the free list
+            int nextFree;
+
+            Buffer(int slot) {
+                this.slot = slot;
+            }
+
+            int id() {
+                return ((generation & GENERATION_MASK) << SLOT_BITS) | slot;
+            }
+        }
 
-        SpeculativeQueueManager() {
-            speculativeQueues = new ConcurrentHashMap<Integer, LinkedBlockingQueue<Command>>();
-            currentSpeculationId = new ThreadLocal<Integer>();
+        private static final class ThreadState {
+            int id = NO_SPECULATION;
+            Buffer buffer;
         }
 
+        // buffers created so far, published chunk by chunk
+        private volatile Buffer[][] chunks = new Buffer[0][];
+        // number of slots handed out at least once
+        private final AtomicInteger usedSlots = new AtomicInteger();
+        // free list of released buffers: (stamp << 32) | (slot + 1)
+        private final AtomicLong freeHead = new AtomicLong();
+        // number of threads with a current speculation
+        private final AtomicInteger speculatingThreads = new AtomicInteger();
+        private final ThreadLocal<ThreadState> threadStates = new ThreadLocal<ThreadState>() {
+            @Override
+            protected ThreadState initialValue() {
+                return new ThreadState();
+            }
+        };
+
         void clear() {
-            speculativeQueues.clear();
-            speculativeQueues = null;
-            currentSpeculationId.remove();
-            currentSpeculationId = null;
+            Buffer[][] c = chunks;
+            chunks = new Buffer[0][];
+            for (Buffer[] buffers : c) {
+                for (Buffer b : buffers) {
+                    synchronized (b) {
+                        discardCommands(b);
+                    }
+                }
+            }
+            threadStates.remove();
         }
 
         int speculation() {
-            int nextId = getNextSpeculationId();
-            if (nextId != -1) {
-                speculativeQueues.put(nextId,
-                        new LinkedBlockingQueue<Command>(MAX_SPECULATIVE_MSG_LIMIT));
+            Buffer b = popFree();
+            if (b == null) {
+                int slot;
+                do {
+                    slot = usedSlots.get();
+                    if (slot == MAX_SPECULATIVE_BUFFERS) {
+                        return -1;
+                    }
+                } while (!usedSlots.compareAndSet(slot, slot + 1));
+                b = buffer(slot, true);
+            }
+            synchronized (b) {
+                return b.id();
             }
-            return nextId;
         }
 
         boolean send(Command cmd) {
-            Integer curId = currentSpeculationId.get();
-            if ((curId != null) && (cmd.getType() != Command.EXIT)) {
-                LinkedBlockingQueue<Command> sb = speculativeQueues.get(curId);
-                if (sb != null) {
-                    try {
-                        sb.add(cmd);
-                    } catch (IllegalStateException ise) {
-                        sb.clear();
-                        sb.add(new MessageCommand("speculative buffer overflow: " + curId));
-                    }
+            if (speculatingThreads.get() == 0 || cmd.getType() == Command.EXIT) {
+                return false;
+            }
+            ThreadState state = threadStates.get();
+            if (state.id == NO_SPECULATION) {
+                return false;
+            }
+            Buffer b = state.buffer;
+            synchronized (b) {
+                if (b.id() != state.id) {
+                    // the speculation was committed or discarded already
+                    LazyMessage.discarded(cmd);
                     return true;
                 }
+                if (b.commands == null) {
+                    b.commands = new Command[16];
+                } else if (b.size == b.commands.length) {
+                    if (b.size == MAX_SPECULATIVE_MSG_LIMIT) {
+                        discardCommands(b);
+                        LazyMessage.discarded(cmd);
+                        cmd = new MessageCommand("speculative buffer overflow: " + state.id);
+                    } else {
+                        b.commands = Arrays.copyOf(b.commands,
+                                Math.min(b.size * 2, MAX_SPECULATIVE_MSG_LIMIT));
+                    }
+                }
+                b.commands[b.size++] = cmd;
             }
-            return false;
+            return true;
         }
 
         void speculate(int id) {
-            validateId(id);
-            currentSpeculationId.set(id);
+            ThreadState state = threadStates.get();
+            Buffer b = validateId(id);
+            if (state.id == NO_SPECULATION) {
+                speculatingThreads.incrementAndGet();
+            }
+            state.id = id;
+            state.buffer = b;
         }
 
-        void commit(int id, LinkedBlockingQueue<Command> result) {
-            validateId(id);
-            currentSpeculationId.set(null);
-            LinkedBlockingQueue<Command> sb = speculativeQueues.get(id);
-            if (sb != null) {
-                result.addAll(sb);
-                sb.clear();
+        void commit(int id, CommandQueue result) {
+            Buffer b = validateId(id);
+            endSpeculation();
+            synchronized (b) {
+                if (b.id() != id) {
+                    return;
+                }
+                // the whole buffer goes to the output queue at once
+                result.offerAll(b.commands, b.size);
+                if (b.size > 0) {
+                    Arrays.fill(b.commands, 0, b.size, null);
+                }
+                b.size = 0;
+                b.generation++;
             }
+            pushFree(b);
         }
 
         void discard(int id) {
-            validateId(id);
-            currentSpeculationId.set(null);
-            speculativeQueues.get(id).clear();
+            Buffer b = validateId(id);
+            endSpeculation();
+            synchronized (b) {
+                if (b.id() != id) {
+                    return;
+                }
+                discardCommands(b);
+                b.generation++;
+            }
+            pushFree(b);
         }
 
         // -- Internals only below this point
-        private synchronized int getNextSpeculationId() {
-            if (nextSpeculationId == MAX_SPECULATIVE_BUFFERS) {
-                return -1;
+        // called with the lock of b held
+        private static void discardCommands(Buffer b) {
+            for (int i = 0; i < b.size; i++) {
+                LazyMessage.discarded(b.commands[i]);
+                b.commands[i] = null;
             }
-            return nextSpeculationId++;
+            b.size = 0;
         }
 
-        private void validateId(int id) {
-            if (! speculativeQueues.containsKey(id)) {
+        private void endSpeculation() {
+            ThreadState state = threadStates.get();
+            if (state.id != NO_SPECULATION) {
+                state.id = NO_SPECULATION;
+                state.buffer = null;
+                speculatingThreads.decrementAndGet();
+            }
+        }
+
+        private Buffer validateId(int id) {
+            Buffer b = id < 0? null : buffer(id & SLOT_MASK, false);
+            if (b == null) {
                 throw new RuntimeException("invalid speculative buffer id: " + id);
             }
+            return b;
+        }
+
+        private Buffer buffer(int slot, boolean create) {
+            int chunk = slot >>> CHUNK_BITS;
+            Buffer[][] c = chunks;
+            if (chunk >= c.length) {
+                if (!create) {
+                    return null;
+                }
+                synchronized (this) {
+                    c = chunks;
+                    if (chunk >= c.length) {
+                        Buffer[][] grown = Arrays.copyOf(c, chunk + 1);
+                        for (int i = c.length; i < grown.length; i++) {
+                            Buffer[] buffers = new Buffer[CHUNK_SIZE];
+                            for (int j = 0; j < CHUNK_SIZE; j++) {
+                                buffers[j] = new Buffer((i << CHUNK_BITS) | j);
+                            }
+                            grown[i] = buffers;
+                        }
+                        chunks = grown;
+                        c = grown;
+                    }
+                }
+            }
+            return c[chunk][slot & (CHUNK_SIZE - 1)];
+        }
+
+        private Buffer popFree() {
+            while (true) {
+                long head = freeHead.get();
+                int slot = (int)head - 1;
+                if (slot < 0) {
+                    return null;
+                }
+                Buffer b = buffer(slot, false);
+                if (b == null) {
+                    return null;
+                }
+                long next = ((head >>> 32) + 1) << 32 | (b.nextFree & 0xFFFFFFFFL);
+                if (freeHead.compareAndSet(head, next)) {
+                    return b;
+                }
+            }
+        }
+
+        private void pushFree(Buffer b) {
+            while (true) {
+                long head = freeHead.get();
+                b.nextFree = (int)head;
+                long next = ((head >>> 32) + 1) << 32 | (b.slot + 1);
+                if (freeHead.compareAndSet(head, next)) {
+                    return;
+                }
+            }
         }
     }
     // per client speculative buffer manager
@@ -341,7 +520,7 @@ public final class BTraceRuntime {
                          final CommandListener cmdListener,
                          Instrumentation inst) {
         this.args = args;
-        this.queue = new LinkedBlockingQueue<Command>();
+        this.queue = new CommandQueue();
         this.specQueueManager = new SpeculativeQueueManager();
         this.cmdListener = cmdListener;
         this.className = className;
@@ -349,12 +528,48 @@ public final class BTraceRuntime {
         runtimes.put(className, this);
         this.cmdThread = new Thread(new Runnable() {
             public void run() {
+                Command[] batch = new Command[COMMAND_BATCH_SIZE];
+                long reportedDrops = 0L;
                 try {
                     BTraceRuntime.enter();
                     while (true) {
-                        Command cmd = queue.take();
-                        cmdListener.onCommand(cmd);
-                        if (cmd.getType() == Command.EXIT) {
+                        int count = queue.drainTo(batch, COMMAND_POLL_NANOS);
+                        long drops = queue.getDroppedCount();
+                        if (drops != reportedDrops) {
+                            cmdListener.onCommand(
+                                new QueueOverflowNotification(drops - reportedDrops, drops));
+                            reportedDrops = drops;
+                        }
+                        if (count == 0) {
+                            continue;
+                        }
+                        boolean exit = false;
+                        for (int i = 0; i < count; i++) {
+                            if (batch[i].getType() == Command.EXIT) {
+                                // nothing after the exit command gets delivered
+                                for (int j = i + 1; j < count; j++) {
+                                    LazyMessage.discarded(batch[j]);
+                                    batch[j] = null;
+                                }
+                                count = i + 1;
+                                exit = true;
+                                break;
+                            }
+                        }
+                        for (int i = 0; i < count; i++) {
+                            if (batch[i] instanceof LazyMessage) {
+                                batch[i] = ((LazyMessage)batch[i]).render();
+                            }
+                        }
+                        if (cmdListener instanceof BatchCommandListener) {
+                            ((BatchCommandListener)cmdListener).onCommands(batch, count);
+                        } else {
+                            for (int i = 0; i < count; i++) {
+                                cmdListener.onCommand(batch[i]);
+                            }
+                        }
+                        Arrays.fill(batch, 0, count, null);
+                        if (exit) {
                             return;
                         }
                     }
@@ -364,6 +579,11 @@ public final class BTraceRuntime {
                     runtimes.put(className, NULL);
                     queue.clear();
                     specQueueManager.clear();
+                    closeRecordings();
+                    releaseStackSamplers();
+                    stopMetrics();
+                    // nothing is rendered anymore
+                    LazyMessage.releaseTemplates(lazyTemplates);
                     BTraceRuntime.leave();
                     disabled = true;
                 }
@@ -444,6 +664,31 @@ public final class BTraceRuntime {
         return enter(dummy);
     }
 
+    /**
+     * Enter method called by the probe handlers; counts the invocation
+     * of the handler with the given index and, every N-th time, starts
+     * timing it. Returns false for the invocations a throttled handler
+     * is not to run for.
+     */
+    public static boolean enter(BTraceRuntime current, int probe) {
+        if (current.disabled) return false;
+        ProbeMetrics m = current.metrics;
+        int fire = m.fire(probe);
+        if (fire == ProbeMetrics.SKIP) {
+            if (sampling) {
+                // drop the weight the sampler may have given this call
+                map.sampled(1L);
+            }
+            return false;
+        }
+        long start = fire == ProbeMetrics.RUN_TIMED ? System.nanoTime() : 0L;
+        if (map.enter(current, start)) {
+            return true;
+        }
+        m.skip(probe);
+        return false;
+    }
+
     /**
      * Leave method is called by every probed method just
      * before the probe actions end (and actual probed
@@ -454,6 +699,17 @@ public final class BTraceRuntime {
 //        tls.remove();
     }
 
+    /**
+     * Leave method called by the probe handlers; ends the timing
+     * started by {@linkplain #enter(BTraceRuntime, int)}.
+     */
+    public static void leave(BTraceRuntime current, int probe) {
+        long start = map.exit();
+        if (start != 0L) {
+            current.metrics.time(probe, System.nanoTime() - start);
+        }
+    }
+
     /**
      * start method is called by every BTrace (preprocesed) class
      * just at the end of it's class initializer.
@@ -501,35 +757,12 @@ public final class BTraceRuntime {
     }
 
     /**
-     * Utility to create a new ThreadLocal object. Called
-     * by preprocessed BTrace class to create ThreadLocal
-     * for each @TLS variable.
-     * @param initValue Initial value.
-     *                  This value must be either a boxed primitive or {@linkplain Cloneable}.
-     *                  In case a {@linkplain Cloneable} value is provided the value is never used directly
-     *                  - instead, a new clone of the value is created per thread.
+     * Utility to create the storage for @TLS variables. Called
+     * by preprocessed BTrace class with the number of primitive
+     * and reference @TLS variables.
      */
-    public static ThreadLocal newThreadLocal(
-                final Object initValue) {
-        return new ThreadLocal() {
-            @Override
-            protected Object initialValue() {
-                if (initValue == null) return initValue;
-
-                if (initValue instanceof Cloneable) {
-                    try {
-                        Class clz = initValue.getClass();
-                        Method m = clz.getDeclaredMethod("clone");
-                        m.setAccessible(true);
-                        return m.invoke(initValue);
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                        return null;
-                    }
-                }
-                return initValue;
-            }
-        };
+    public static ThreadLocalSlots newThreadLocalSlots(int values, int objects) {
+        return new ThreadLocalSlots(values, objects);
     }
 
     // The following constants are copied from VM code
@@ -586,26 +819,96 @@ public final class BTraceRuntime {
         }
     }
 
+    /**
+     * Return the handle of the numeric perf. counter of given name.
+     * Called by preprocessed BTrace class to bind each numeric @Export
+     * variable to its counter once, in the class initializer. The
+     * accessors taking a handle only ever touch the counters created
+     * by {@linkplain #newPerfCounter(String, String, Object)}.
+     */
+    public static int getPerfCounterHandle(String name) {
+        ByteBuffer b = counters.get(name);
+        if (b == null) {
+            throw new IllegalArgumentException("no perf counter " + name);
+        }
+        long address = unsafe.getLong(b, BUFFER_ADDRESS_OFFSET);
+        Integer handle = counterHandles.get(name);
+        if (handle != null && counterAddresses[handle] == address) {
+            return handle;
+        }
+        synchronized (counterHandles) {
+            handle = counterHandles.get(name);
+            long[] addresses = counterAddresses;
+            if (handle != null && addresses[handle] == address) {
+                return handle;
+            }
+            long[] updated = new long[addresses.length + 1];
+            System.arraycopy(addresses, 0, updated, 0, addresses.length);
+            updated[addresses.length] = address;
+            counterAddresses = updated;
+            counterHandles.put(name, addresses.length);
+            return addresses.length;
+        }
+    }
+
+    // the address of the counter with the given handle; an index
+    // out of bounds for any other value
+    private static long perfCounterAddress(int handle) {
+        return counterAddresses[handle];
+    }
+
     /**
      * Return the value of integer perf. counter of given name.
      */
     public static int getPerfInt(String name) {
-        return (int) getPerfLong(name);
+        return getPerfInt(getPerfCounterHandle(name));
+    }
+
+    /**
+     * Return the value of integer perf. counter with given handle.
+     */
+    public static int getPerfInt(int handle) {
+        return (int) getPerfLong(handle);
     }
 
     /**
      * Write the value of integer perf. counter of given name.
      */
     public static void putPerfInt(int value, String name) {
-        long l = (long)value;
-        putPerfLong(l, name);
+        putPerfInt(value, getPerfCounterHandle(name));
+    }
+
+    /**
+     * Write the value of integer perf. counter with given handle.
+     */
+    public static void putPerfInt(int value, int handle) {
+        putPerfLong((long)value, handle);
+    }
+
+    /**
+     * Atomically add to the value of integer perf. counter with given
+     * handle. The sum wraps around like an int.
+     */
+    public static void addPerfInt(int handle, int delta) {
+        long address = perfCounterAddress(handle);
+        long old;
+        do {
+            old = unsafe.getLongVolatile(null, address);
+        } while (!unsafe.compareAndSwapLong(null, address, old, (long)((int)old + delta)));
     }
 
     /**
      * Return the value of float perf. counter of given name.
      */
     public static float getPerfFloat(String name) {
-        int val = getPerfInt(name);
+        return getPerfFloat(getPerfCounterHandle(name));
+    }
+
+    /**
+     * Return the value of float perf. counter with given handle.
+     */
+    public static float getPerfFloat(int handle) {
+        int val = getPerfInt(handle);
         return Float.intBitsToFloat(val);
     }
 
@@ -613,38 +916,69 @@ public final class BTraceRuntime {
      * Write the value of float perf. counter of given name.
      */
     public static void putPerfFloat(float value, String name) {
+        putPerfFloat(value, getPerfCounterHandle(name));
+    }
+
+    /**
+     * Write the value of float perf. counter with given handle.
+     */
+    public static void putPerfFloat(float value, int handle) {
         int i = Float.floatToRawIntBits(value);
-        putPerfInt(i, name);
+        putPerfInt(i, handle);
     }
 
     /**
      * Return the value of long perf. counter of given name.
      */
     public static long getPerfLong(String name) {
-        ByteBuffer b = counters.get(name);
-        synchronized(b) {
-            long l = b.getLong();
-            b.rewind();
-            return l;
-        }
+        return getPerfLong(getPerfCounterHandle(name));
     }
 
     /**
-     * Write the value of float perf. counter of given name.
+     * Return the value of long perf. counter with given handle.
+     */
+    public static long getPerfLong(int handle) {
+        return unsafe.getLongVolatile(null, perfCounterAddress(handle));
+    }
+
+    /**
+     * Write the value of long perf. counter of given name.
      */
     public static void putPerfLong(long value, String name) {
-        ByteBuffer b = counters.get(name);
-        synchronized (b) {
-            b.putLong(value);
-            b.rewind();
-        }
+        putPerfLong(value, getPerfCounterHandle(name));
+    }
+
+    /**
+     * Write the value of long perf. counter with given handle. The
+     * write is ordered but does not wait for other processors to see it.
+     */
+    public static void putPerfLong(long value, int handle) {
+        unsafe.putOrderedLong(null, perfCounterAddress(handle), value);
+    }
+
+    /**
+     * Atomically add to the value of long perf. counter with given handle.
+     */
+    public static void addPerfLong(int handle, long delta) {
+        long address = perfCounterAddress(handle);
+        long old;
+        do {
+            old = unsafe.getLongVolatile(null, address);
+        } while (!unsafe.compareAndSwapLong(null, address, old, old + delta));
     }
 
     /**
      * Return the value of double perf. counter of given name.
      */
     public static double getPerfDouble(String name) {
-        long val = getPerfLong(name);
+        return getPerfDouble(getPerfCounterHandle(name));
+    }
+
+    /**
+     * Return the value of double perf. counter with given handle.
+     */
+    public static double getPerfDouble(int handle) {
+        long val = getPerfLong(handle);
         return Double.longBitsToDouble(val);
     }
 
@@ -652,8 +986,15 @@ public final class BTraceRuntime {
      * write the value of double perf. counter of given name.
      */
     public static void putPerfDouble(double value, String name) {
+        putPerfDouble(value, getPerfCounterHandle(name));
+    }
+
+    /**
+     * write the value of double perf. counter with given handle.
+     */
+    public static void putPerfDouble(double value, int handle) {
         long l = Double.doubleToRawLongBits(value);
-        putPerfLong(l, name);
+        putPerfLong(l, handle);
     }
 
     /**
@@ -695,14 +1036,121 @@ public final class BTraceRuntime {
      * Handles exception from BTrace probe actions.
      */
     public static void handleException(Throwable th) {
+        handleException(th, -1);
+    }
+
+    /**
+     * Handles an exception thrown by the probe handler with the given index
+     */
+    public static void handleException(Throwable th, int probe) {
         BTraceRuntime current = getCurrent();
         if (current != null) {
+            if (current.metrics != null && !(th instanceof ExitException)) {
+                current.metrics.exception(probe);
+            }
             current.handleExceptionImpl(th);
         } else {
             th.printStackTrace();
         }
     }
 
+    /**
+     * Called by the instrumented code ahead of a sampled probe: tells
+     * whether the handler with the given index is to run for this call
+     * and, if so, passes the number of calls it stands for on to the
+     * aggregations the handler adds to.
+     */
+    public static boolean sample(BTraceRuntime current, int probe) {
+        return sampled(current.samplers[probe].sample());
+    }
+
+    /**
+     * Draws the sample of a probe taken later in the call, eg. on method
+     * return with the duration since the entry: returns the number of calls
+     * it stands for, 0 if the call is not sampled. The instrumented code
+     * keeps the value in a local until the probe hands it to
+     * {@linkplain #sampled(long)}.
+     */
+    public static long nextSample(BTraceRuntime current, int probe) {
+        return current.samplers[probe].sample();
+    }
+
+    /**
+     * Tells whether the sample drawn by {@linkplain #nextSample(BTraceRuntime, int)}
+     * is to run the probe handler, passing its weight on if so.
+     */
+    public static boolean sampled(long weight) {
+        if (weight == 0L) {
+            return false;
+        }
+        map.sampled(weight);
+        return true;
+    }
+
+    /**
+     * Sets the ids of the lazy message templates registered for this
+     * BTrace program; they are released when the program exits.
+     */
+    public void setLazyTemplates(int[] templateIds) {
+        this.lazyTemplates = templateIds;
+    }
+
+    /**
+     * Sets up the sampling of the probe handler with the given index.
+     * Called by the agent before the BTrace class is defined.
+     */
+    public synchronized void setSampler(int probe, Sampler kind, int mean, int rate) {
+        ProbeSampler[] s = samplers;
+        if (probe >= s.length) {
+            ProbeSampler[] ns = new ProbeSampler[probe + 1];
+            System.arraycopy(s, 0, ns, 0, s.length);
+            s = ns;
+        }
+        s[probe] = new ProbeSampler(kind, mean, rate);
+        samplers = s;
+        sampling = true;
+    }
+
+    /**
+     * Returns the metrics of the probe handlers, null until the BTrace
+     * class is initialized.
+     */
+    public ProbeMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sends the metrics to the client once (period 0), every
+     * <i>period</i> milliseconds or stops sending them (negative period).
+     */
+    public synchronized void handleMetrics(long period) {
+        if (metricsGroup != null) {
+            metricsGroup.cancel();
+            metricsGroup = null;
+        }
+        if (period == 0) {
+            sendMetrics();
+        } else if (period > 0 && !disabled) {
+            metricsGroup = TimerScheduler.getInstance().newGroup(this);
+            metricsGroup.schedule("metrics", new Runnable() {
+                public void run() {
+                    sendMetrics();
+                }
+            }, period, false);
+        }
+    }
+
+    private void sendMetrics() {
+        ProbeMetrics m = metrics;
+        if (m != null && !disabled) {
+            send(m.toCommand());
+        }
+    }
+
+    int getQueueDepth() {
+        return queue.size();
+    }
+
     // package-private interface to BTraceUtils class.
 
     static int speculation() {
@@ -995,6 +1443,28 @@ public final class BTraceRuntime {
         getCurrent().send(new NumberDataCommand(name, value));
     }
 
+    static void printTimerStatistics() {
+        BTraceRuntime runtime = getCurrent();
+        TimerScheduler.Group group = runtime.timerGroup;
+        if (group == null) {
+            return;
+        }
+        StringBuilder buf = new StringBuilder();
+        buf.append("handler\tperiod [ms]\tmode\truns\tavg [us]\tmax [us]\tmax jitter [us]\toverruns\n");
+        for (TimerScheduler.Task t : group.getTasks()) {
+            long runs = t.getRuns();
+            buf.append(t.getName()).append('\t');
+            buf.append(t.getPeriodMillis()).append('\t');
+            buf.append(t.isFixedRate()? "rate" : "delay").append('\t');
+            buf.append(runs).append('\t');
+            buf.append(runs != 0? t.getTotalNanos() / runs / 1000 : 0).append('\t');
+            buf.append(t.getMaxNanos() / 1000).append('\t');
+            buf.append(t.getMaxLatenessNanos() / 1000).append('\t');
+            buf.append(t.getOverruns()).append('\n');
+        }
+        runtime.send(buf.toString());
+    }
+
     static void printNumberMap(String name, Map<String, ? extends Number> data) {
         getCurrent().send(new NumberMapDataCommand(name, data));
     }
@@ -1349,6 +1819,150 @@ public final class BTraceRuntime {
         getCurrent().send(stackTraceStr(prefix, st, strip, numFrames, true));
     }
 
+    /**
+     * @see BTraceUtils.Threads#newStackSampler(int)
+     */
+    static StackSampler newStackSampler(int depth) {
+        StackSampler sampler = new StackSampler(depth);
+        getCurrent().stackSamplers.add(sampler);
+        return sampler;
+    }
+
+    /**
+     * @see BTraceUtils.Threads#newStackSampler(int, int)
+     */
+    static StackSampler newStackSampler(int depth, int maxStacks) {
+        StackSampler sampler = new StackSampler(depth, maxStacks);
+        getCurrent().stackSamplers.add(sampler);
+        return sampler;
+    }
+
+    static void sampleStack(StackSampler sampler) {
+        // skip this frame, the BTraceUtils one and the action method
+        sampler.record(3);
+    }
+
+    static void printStackSamples(StackSampler sampler) {
+        getCurrent().send(sampler.toFolded(false));
+    }
+
+    static void printAndClearStackSamples(StackSampler sampler) {
+        getCurrent().send(sampler.toFolded(true));
+    }
+
+    static void clearStackSamples(StackSampler sampler) {
+        sampler.clear();
+    }
+
+    /**
+     * @see BTraceUtils.Recordings#newRecording(String)
+     */
+    static Recording newRecording(String name) {
+        Recording recording;
+        try {
+            recording = new Recording(name);
+        } catch (IOException exp) {
+            throw new RuntimeException(exp);
+        }
+        getCurrent().recordings.add(recording);
+        return recording;
+    }
+
+    static void record(Recording recording, String probe) {
+        recording.record(probe);
+    }
+
+    static void record(Recording recording, String probe, long a0) {
+        recording.record(probe, a0);
+    }
+
+    static void record(Recording recording, String probe, double a0) {
+        recording.record(probe, a0);
+    }
+
+    static void record(Recording recording, String probe, String a0) {
+        recording.record(probe, a0);
+    }
+
+    static void record(Recording recording, String probe, long a0, long a1) {
+        recording.record(probe, a0, a1);
+    }
+
+    static void record(Recording recording, String probe, String a0, long a1) {
+        recording.record(probe, a0, a1);
+    }
+
+    static void record(Recording recording, String probe, String a0, double a1) {
+        recording.record(probe, a0, a1);
+    }
+
+    static void record(Recording recording, String probe, String a0, String a1) {
+        recording.record(probe, a0, a1);
+    }
+
+    static void record(Recording recording, String probe, String a0, long a1, long a2) {
+        recording.record(probe, a0, a1, a2);
+    }
+
+    static void record(Recording recording, String probe, String a0, String a1, long a2) {
+        recording.record(probe, a0, a1, a2);
+    }
+
+    /**
+     * Handles an exception escaping a timer task of this runtime; it is
+     * reported like one thrown by a probe handler.
+     */
+    void handleTaskException(Throwable th) {
+        if (metrics != null && !(th instanceof ExitException)) {
+            metrics.exception(-1);
+        }
+        handleExceptionImpl(th);
+    }
+
+    static void record(Recording recording, String probe, String a0, long a1, long a2, long a3) {
+        recording.record(probe, a0, a1, a2, a3);
+    }
+
+    static void closeRecording(Recording recording) {
+        recording.close();
+        getCurrent().recordings.remove(recording);
+    }
+
+    private synchronized void startGovernor(long cpuBudget, long eventBudget) {
+        governorGroup = TimerScheduler.getInstance().newGroup(this);
+        governorGroup.schedule("governor",
+                               new ProbeGovernor(this, metrics, cpuBudget, eventBudget),
+                               ProbeGovernor.getPeriod(), false);
+    }
+
+    private synchronized void stopMetrics() {
+        if (metricsGroup != null) {
+            metricsGroup.cancel();
+            metricsGroup = null;
+        }
+        if (governorGroup != null) {
+            governorGroup.cancel();
+            governorGroup = null;
+        }
+        if (metrics != null) {
+            metrics.unregisterMBean();
+        }
+    }
+
+    private void closeRecordings() {
+        for (Recording recording : recordings) {
+            recording.close();
+        }
+        recordings.clear();
+    }
+
+    private void releaseStackSamplers() {
+        for (StackSampler sampler : stackSamplers) {
+            sampler.release();
+        }
+        stackSamplers.clear();
+    }
+
     // print/println functions
     static void print(String str) {
         getCurrent().send(str);
@@ -1362,6 +1976,11 @@ public final class BTraceRuntime {
         getCurrent().send(LINE_SEPARATOR);
     }
 
+    // message captured by LazyMessage; rendered by the command thread
+    static void print(LazyMessage msg) {
+        getCurrent().send(msg);
+    }
+
     static String property(String name) {
         return AccessController.doPrivileged(
             new GetPropertyAction(name));
@@ -1663,16 +2282,73 @@ public final class BTraceRuntime {
         return new Aggregation(type);
     }
 
+    static Aggregation newAggregation(AggregationFunction type, int significantDigits) {
+        return new Aggregation(type, significantDigits);
+    }
+
+    static long percentile(Aggregation aggregation, double percentile) {
+        return aggregation.getValueAtPercentile(percentile);
+    }
+
+    static long percentile(Aggregation aggregation, AggregationKey key, double percentile) {
+        return aggregation.getValueAtPercentile(key, percentile);
+    }
+
     static AggregationKey newAggregationKey(Object... elements) {
         return new AggregationKey(elements);
     }
 
+    // the number of calls the running probe handler stands for
+    private static long currentWeight() {
+        return sampling ? map.weight() : 1L;
+    }
+
     static void addToAggregation(Aggregation aggregation, long value) {
-        aggregation.add(value);
+        aggregation.addWeighted(value, currentWeight());
     }
 
     static void addToAggregation(Aggregation aggregation, AggregationKey key, long value) {
-        aggregation.add(key, value);
+        aggregation.addWeighted(key, value, currentWeight());
+    }
+
+    static void addToAggregation(Aggregation aggregation, Object element1, long value) {
+        aggregation.addWeighted(element1, value, currentWeight());
+    }
+
+    static void addToAggregation(Aggregation aggregation, long element1, long value) {
+        aggregation.addWeighted(element1, value, currentWeight());
+    }
+
+    static void addToAggregation(Aggregation aggregation, Object element1, Object element2, long value) {
+        aggregation.addWeighted(element1, element2, value, currentWeight());
+    }
+
+    static void addToAggregation(Aggregation aggregation, Object element1, long element2, long value) {
+        aggregation.addWeighted(element1, element2, value, currentWeight());
+    }
+
+    static void addToAggregation(Aggregation aggregation, long element1, Object element2, long value) {
+        aggregation.addWeighted(element1, element2, value, currentWeight());
+    }
+
+    static void addToAggregation(Aggregation aggregation, long element1, long element2, long value) {
+        aggregation.addWeighted(element1, element2, value, currentWeight());
+    }
+
+    static void addToAggregation(Aggregation aggregation, Object element1, Object element2, Object element3, long value) {
+        aggregation.addWeighted(element1, element2, element3, value, currentWeight());
+    }
+
+    static void addToAggregation(Aggregation aggregation, long element1, long element2, long element3, long value) {
+        aggregation.addWeighted(element1, element2, element3, value, currentWeight());
+    }
+
+    static void addToAggregation(Aggregation aggregation, Object element1, Object element2, Object element3, Object element4, long value) {
+        aggregation.addWeighted(element1, element2, element3, element4, value, currentWeight());
+    }
+
+    static void addToAggregation(Aggregation aggregation, long element1, long element2, long element3, long element4, long value) {
+        aggregation.addWeighted(element1, element2, element3, element4, value, currentWeight());
     }
 
     static void clearAggregation(Aggregation aggregation) {
@@ -1687,6 +2363,14 @@ public final class BTraceRuntime {
         getCurrent().send(new GridDataCommand(name, aggregation.getData()));
     }
 
+    static void printAndClearAggregation(String name, Aggregation aggregation) {
+        getCurrent().send(new GridDataCommand(name, aggregation.getData(true)));
+    }
+
+    static void printAndClearAggregation(String name, Aggregation aggregation, String format) {
+        getCurrent().send(new GridDataCommand(name, aggregation.getData(true), format));
+    }
+
     static void printSnapshot(String name, Profiler.Snapshot snapshot) {
         getCurrent().send(new GridDataCommand(name, snapshot.getGridData()));
     }
@@ -2018,6 +2702,9 @@ public final class BTraceRuntime {
     }
 
     private static RunnableGenerator getRunnableGenerator() {
+        if (runnableGenerator == null) {
+            throw new UnsupportedOperationException();
+        }
         return runnableGenerator;
     }
 
@@ -2027,16 +2714,20 @@ public final class BTraceRuntime {
     }
 
     public void send(Command cmd) {
-        try {
-            boolean speculated = specQueueManager.send(cmd);
-            if (! speculated) {
-                queue.put(cmd);
-            }
-        } catch (InterruptedException ie) {
-            ie.printStackTrace();
+        boolean speculated = specQueueManager.send(cmd);
+        if (! speculated) {
+            queue.offer(cmd);
         }
     }
 
+    /**
+     * Returns the number of output commands dropped so far
+     * because the client could not keep up.
+     */
+    public long getDroppedCommands() {
+        return queue.getDroppedCount();
+    }
+
     private void handleExceptionImpl(Throwable th) {
         if (currentException.get() != null) {
             return;
@@ -2053,13 +2744,9 @@ public final class BTraceRuntime {
                     } catch (Throwable ignored) {
                     }
                 } else {
-                    try {
-                        // Do not call send(Command). Exception messages should not
-                        // go to speculative buffers!
-                        queue.put(new ErrorCommand(th));
-                    } catch (InterruptedException ie) {
-                        ie.printStackTrace();
-                    }
+                    // Do not call send(Command). Exception messages should not
+                    // go to speculative buffers!
+                    queue.put(new ErrorCommand(th));
                 }
             }
         } finally {
@@ -2069,23 +2756,15 @@ public final class BTraceRuntime {
 
     private void startImpl() {
         if (timerHandlers != null && timerHandlers.length != 0) {
-            timer = new Timer(true);
-            RunnableGenerator gen = getRunnableGenerator();
             Runnable[] runnables = new Runnable[timerHandlers.length];
-            if (gen != null) {
-                generateRunnables(gen, runnables);
-            } else {
-                wrapToRunnables(runnables);
-            }
+            generateRunnables(getRunnableGenerator(), runnables);
+            TimerScheduler.Group group = TimerScheduler.getInstance().newGroup(this);
             for (int index = 0; index < timerHandlers.length; index++) {
                 Method m = timerHandlers[index];
                 OnTimer tp = m.getAnnotation(OnTimer.class);
-                long period = tp.value();
-                final Runnable r = runnables[index];
-                timer.schedule(new TimerTask() {
-                    public void run() { r.run(); }
-                }, period, period);
+                group.schedule(m.getName(), runnables[index], tp.value(), tp.fixedRate());
             }
+            timerGroup = group;
         }
 
         if (! lowMemHandlers.isEmpty()) {
@@ -2126,20 +2805,6 @@ public final class BTraceRuntime {
         }
     }
 
-    private void wrapToRunnables(Runnable[] runnables) {
-        for (int index = 0; index < timerHandlers.length; index++) {
-            final Method m = timerHandlers[index];
-            runnables[index] = new Runnable() {
-                public void run() {
-                    try {
-                        m.invoke(null, (Object[])null);
-                    } catch (Throwable th) {
-                    }
-                }
-            };
-        }
-    }
-
     private synchronized void exitImpl(int exitCode) {
         if (exitHandler != null) {
             try {
@@ -2148,8 +2813,8 @@ public final class BTraceRuntime {
             }
         }
         disabled = true;
-        if (timer != null) {
-            timer.cancel();
+        if (timerGroup != null) {
+            timerGroup.cancel();
         }
 
         if (memoryListener != null && memoryMBean != null) {
@@ -2163,6 +2828,8 @@ public final class BTraceRuntime {
             threadPool.shutdownNow();
         }
 
+        closeRecordings();
+        stopMetrics();
         send(new ExitCommand(exitCode));
     }
 
@@ -2268,9 +2935,27 @@ public final class BTraceRuntime {
         timerHandlers = new Method[timersList.size()];
         timersList.toArray(timerHandlers);
 
+        metrics = new ProbeMetrics(this, className, probeNames(clazz));
+        metrics.registerMBean();
+        BTrace bt = (BTrace) clazz.getAnnotation(BTrace.class);
+        long cpuBudget = ProbeGovernor.cpuBudget(bt);
+        long eventBudget = ProbeGovernor.eventBudget(bt);
+        if ((cpuBudget > 0 || eventBudget > 0) && metrics.getProbeCount() > 0) {
+            startGovernor(cpuBudget, eventBudget);
+        }
         BTraceMBean.registerMBean(clazz);
     }
 
+    private static String[] probeNames(Class cl) {
+        try {
+            String names = (String) cl.getField(PROBES_FIELD_NAME).get(null);
+            return names.length() > 0 ? names.split(",") : new String[0];
+        } catch (Exception exp) {
+            // not preprocessed
+            return new String[0];
+        }
+    }
+
     private static String resolveFileName(String name) {
         if (name.indexOf(File.separatorChar) != -1) {
             throw new IllegalArgumentException("directories are not allowed");
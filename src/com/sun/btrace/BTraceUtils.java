@@ -38,6 +38,7 @@ import sun.reflect.Reflection;
 import com.sun.btrace.aggregation.Aggregation;
 import com.sun.btrace.aggregation.AggregationFunction;
 import com.sun.btrace.aggregation.AggregationKey;
+import com.sun.btrace.recording.Recording;
 import java.io.Serializable;
 import java.lang.management.MemoryUsage;
 import java.lang.ref.Reference;
@@ -100,6 +101,15 @@ public class BTraceUtils {
         Threads.jstack(2, numFrames);
     }
 
+    /**
+     * Records the stack of the current thread in the given sampler.
+     *
+     * @param sampler the sampler created by {@linkplain Threads#newStackSampler(int)}
+     */
+    public static void sampleStack(StackSampler sampler) {
+        BTraceRuntime.sampleStack(sampler);
+    }
+
     /**
      * Prints Java stack traces of all the Java threads.
      */
@@ -928,6 +938,16 @@ public class BTraceUtils {
         BTraceRuntime.printNumber(name, value);
     }
 
+    /**
+     * Prints the statistics of the timer handlers of this BTrace
+     * program: the number of runs, the average and maximal execution
+     * time, the maximal delay of a run after its scheduled start
+     * (jitter) and the number of skipped runs (overruns).
+     */
+    public static void printTimerStatistics() {
+        BTraceRuntime.printTimerStatistics();
+    }
+
     /**
      * Prints the elements of the given array as comma
      * separated line bounded by '[' and ']'.
@@ -3178,6 +3198,101 @@ public class BTraceUtils {
         Aggregations.addToAggregation(aggregation, key, value);
     }
 
+    /**
+     * Adds a value to the aggregation grouped by a key of the given elements without creating an
+     * {@linkplain AggregationKey}. There are overloads for keys of one to four elements, each a String,
+     * a Number or, for the overloads taking <code>long</code> elements, a primitive value. Adding to an
+     * existing key does not allocate when all the elements are Strings or primitive values.
+     *
+     * @param aggregation the aggregation to which the value should be added
+     * @param element1 the value of the aggregation key
+     * @param value the value to be added
+     */
+    public static void addToAggregation(Aggregation aggregation, Object element1, long value) {
+        Aggregations.addToAggregation(aggregation, element1, value);
+    }
+
+    /**
+     * Adds a value to the aggregation grouped by a single element key.
+     *
+     * @see #addToAggregation(Aggregation, Object, long)
+     */
+    public static void addToAggregation(Aggregation aggregation, long element1, long value) {
+        Aggregations.addToAggregation(aggregation, element1, value);
+    }
+
+    /**
+     * Adds a value to the aggregation grouped by a composite key of 2 elements.
+     *
+     * @see #addToAggregation(Aggregation, Object, long)
+     */
+    public static void addToAggregation(Aggregation aggregation, Object element1, Object element2, long value) {
+        Aggregations.addToAggregation(aggregation, element1, element2, value);
+    }
+
+    /**
+     * Adds a value to the aggregation grouped by a composite key of 2 elements.
+     *
+     * @see #addToAggregation(Aggregation, Object, long)
+     */
+    public static void addToAggregation(Aggregation aggregation, Object element1, long element2, long value) {
+        Aggregations.addToAggregation(aggregation, element1, element2, value);
+    }
+
+    /**
+     * Adds a value to the aggregation grouped by a composite key of 2 elements.
+     *
+     * @see #addToAggregation(Aggregation, Object, long)
+     */
+    public static void addToAggregation(Aggregation aggregation, long element1, Object element2, long value) {
+        Aggregations.addToAggregation(aggregation, element1, element2, value);
+    }
+
+    /**
+     * Adds a value to the aggregation grouped by a composite key of 2 elements.
+     *
+     * @see #addToAggregation(Aggregation, Object, long)
+     */
+    public static void addToAggregation(Aggregation aggregation, long element1, long element2, long value) {
+        Aggregations.addToAggregation(aggregation, element1, element2, value);
+    }
+
+    /**
+     * Adds a value to the aggregation grouped by a composite key of 3 elements.
+     *
+     * @see #addToAggregation(Aggregation, Object, long)
+     */
+    public static void addToAggregation(Aggregation aggregation, Object element1, Object element2, Object element3, long value) {
+        Aggregations.addToAggregation(aggregation, element1, element2, element3, value);
+    }
+
+    /**
+     * Adds a value to the aggregation grouped by a composite key of 3 elements.
+     *
+     * @see #addToAggregation(Aggregation, Object, long)
+     */
+    public static void addToAggregation(Aggregation aggregation, long element1, long element2, long element3, long value) {
+        Aggregations.addToAggregation(aggregation, element1, element2, element3, value);
+    }
+
+    /**
+     * Adds a value to the aggregation grouped by a composite key of 4 elements.
+     *
+     * @see #addToAggregation(Aggregation, Object, long)
+     */
+    public static void addToAggregation(Aggregation aggregation, Object element1, Object element2, Object element3, Object element4, long value) {
+        Aggregations.addToAggregation(aggregation, element1, element2, element3, element4, value);
+    }
+
+    /**
+     * Adds a value to the aggregation grouped by a composite key of 4 elements.
+     *
+     * @see #addToAggregation(Aggregation, Object, long)
+     */
+    public static void addToAggregation(Aggregation aggregation, long element1, long element2, long element3, long element4, long value) {
+        Aggregations.addToAggregation(aggregation, element1, element2, element3, element4, value);
+    }
+
     /**
      * Resets values within the aggregation to the default. This will affect all values within the aggregation
      * when multiple aggregation keys have been used.
@@ -3328,6 +3443,74 @@ public class BTraceUtils {
             return BTraceRuntime.stackTraceStr(st, strip + 2, numFrames);
         }
 
+        /**
+         * Creates a new stack sampler. The sampler keeps the distinct stacks
+         * of its callers, at most 4096 of them, with the number of times
+         * each one was seen.
+         *
+         * @param depth the maximum number of frames kept per stack,
+         *        counted from the traced method
+         * @return a new stack sampler
+         */
+        public static StackSampler newStackSampler(int depth) {
+            return BTraceRuntime.newStackSampler(depth);
+        }
+
+        /**
+         * Creates a new stack sampler keeping at most the given number
+         * of distinct stacks; further stacks are counted as dropped.
+         *
+         * @param depth the maximum number of frames kept per stack
+         * @param maxStacks the maximum number of distinct stacks
+         * @return a new stack sampler
+         */
+        public static StackSampler newStackSampler(int depth, int maxStacks) {
+            return BTraceRuntime.newStackSampler(depth, maxStacks);
+        }
+
+        /**
+         * Records the stack of the current thread in the given sampler.
+         * Unlike {@linkplain #jstackStr()} this does not format the stack;
+         * only the top frames are captured and identical stacks are
+         * counted instead of being stored again.
+         *
+         * @param sampler the sampler to record the stack in
+         */
+        public static void sampleStack(StackSampler sampler) {
+            BTraceRuntime.sampleStack(sampler);
+        }
+
+        /**
+         * Prints the collected stacks in the folded format, one line
+         * per distinct stack: the frames from the outermost one separated
+         * by ';', a space and the number of samples. The output can be fed
+         * directly to the flame graph tools.
+         *
+         * @param sampler the sampler to print
+         */
+        public static void printStackSamples(StackSampler sampler) {
+            BTraceRuntime.printStackSamples(sampler);
+        }
+
+        /**
+         * Prints the collected stacks like {@linkplain #printStackSamples(StackSampler)}
+         * and clears the sampler.
+         *
+         * @param sampler the sampler to print
+         */
+        public static void printAndClearStackSamples(StackSampler sampler) {
+            BTraceRuntime.printAndClearStackSamples(sampler);
+        }
+
+        /**
+         * Drops all the stacks collected by the sampler.
+         *
+         * @param sampler the sampler to clear
+         */
+        public static void clearStackSamples(StackSampler sampler) {
+            BTraceRuntime.clearStackSamples(sampler);
+        }
+
         /**
          * Returns the stack traces of all Java threads as a String.
          *
@@ -4947,6 +5130,18 @@ public class BTraceUtils {
             return BTraceRuntime.newAggregation(type);
         }
 
+        /**
+         * Creates a new aggregation based on the given aggregation function type, keeping the given
+         * number of significant decimal digits of the added values. The precision is only used by
+         * the {@linkplain AggregationFunction#HISTOGRAM} aggregations and must be between 1 and 3.
+         *
+         * @param type the aggregating function to be performed on the data being added to the aggregation.
+         * @param significantDigits the precision of the recorded values
+         */
+        public static Aggregation newAggregation(AggregationFunction type, int significantDigits) {
+            return BTraceRuntime.newAggregation(type, significantDigits);
+        }
+
         /**
          * Creates a grouping aggregation key with the provided value. The value must be a String or Number type.
          *
@@ -5011,6 +5206,101 @@ public class BTraceUtils {
             BTraceRuntime.addToAggregation(aggregation, key, value);
         }
 
+        /**
+         * Adds a value to the aggregation grouped by a key of the given elements without creating an
+         * {@linkplain AggregationKey}. There are overloads for keys of one to four elements, each a String,
+         * a Number or, for the overloads taking <code>long</code> elements, a primitive value. Adding to an
+         * existing key does not allocate when all the elements are Strings or primitive values.
+         *
+         * @param aggregation the aggregation to which the value should be added
+         * @param element1 the value of the aggregation key
+         * @param value the value to be added
+         */
+        public static void addToAggregation(Aggregation aggregation, Object element1, long value) {
+            BTraceRuntime.addToAggregation(aggregation, element1, value);
+        }
+
+        /**
+         * Adds a value to the aggregation grouped by a single element key.
+         *
+         * @see #addToAggregation(Aggregation, Object, long)
+         */
+        public static void addToAggregation(Aggregation aggregation, long element1, long value) {
+            BTraceRuntime.addToAggregation(aggregation, element1, value);
+        }
+
+        /**
+         * Adds a value to the aggregation grouped by a composite key of 2 elements.
+         *
+         * @see #addToAggregation(Aggregation, Object, long)
+         */
+        public static void addToAggregation(Aggregation aggregation, Object element1, Object element2, long value) {
+            BTraceRuntime.addToAggregation(aggregation, element1, element2, value);
+        }
+
+        /**
+         * Adds a value to the aggregation grouped by a composite key of 2 elements.
+         *
+         * @see #addToAggregation(Aggregation, Object, long)
+         */
+        public static void addToAggregation(Aggregation aggregation, Object element1, long element2, long value) {
+            BTraceRuntime.addToAggregation(aggregation, element1, element2, value);
+        }
+
+        /**
+         * Adds a value to the aggregation grouped by a composite key of 2 elements.
+         *
+         * @see #addToAggregation(Aggregation, Object, long)
+         */
+        public static void addToAggregation(Aggregation aggregation, long element1, Object element2, long value) {
+            BTraceRuntime.addToAggregation(aggregation, element1, element2, value);
+        }
+
+        /**
+         * Adds a value to the aggregation grouped by a composite key of 2 elements.
+         *
+         * @see #addToAggregation(Aggregation, Object, long)
+         */
+        public static void addToAggregation(Aggregation aggregation, long element1, long element2, long value) {
+            BTraceRuntime.addToAggregation(aggregation, element1, element2, value);
+        }
+
+        /**
+         * Adds a value to the aggregation grouped by a composite key of 3 elements.
+         *
+         * @see #addToAggregation(Aggregation, Object, long)
+         */
+        public static void addToAggregation(Aggregation aggregation, Object element1, Object element2, Object element3, long value) {
+            BTraceRuntime.addToAggregation(aggregation, element1, element2, element3, value);
+        }
+
+        /**
+         * Adds a value to the aggregation grouped by a composite key of 3 elements.
+         *
+         * @see #addToAggregation(Aggregation, Object, long)
+         */
+        public static void addToAggregation(Aggregation aggregation, long element1, long element2, long element3, long value) {
+            BTraceRuntime.addToAggregation(aggregation, element1, element2, element3, value);
+        }
+
+        /**
+         * Adds a value to the aggregation grouped by a composite key of 4 elements.
+         *
+         * @see #addToAggregation(Aggregation, Object, long)
+         */
+        public static void addToAggregation(Aggregation aggregation, Object element1, Object element2, Object element3, Object element4, long value) {
+            BTraceRuntime.addToAggregation(aggregation, element1, element2, element3, element4, value);
+        }
+
+        /**
+         * Adds a value to the aggregation grouped by a composite key of 4 elements.
+         *
+         * @see #addToAggregation(Aggregation, Object, long)
+         */
+        public static void addToAggregation(Aggregation aggregation, long element1, long element2, long element3, long element4, long value) {
+            BTraceRuntime.addToAggregation(aggregation, element1, element2, element3, element4, value);
+        }
+
         /**
          * Resets values within the aggregation to the default. This will affect all values within the aggregation
          * when multiple aggregation keys have been used.
@@ -5046,6 +5336,59 @@ public class BTraceUtils {
             BTraceRuntime.printAggregation(name, aggregation, format);
         }
 
+        /**
+         * Prints the aggregation and resets its values in one step. Unlike calling
+         * {@linkplain #printAggregation(java.lang.String, com.sun.btrace.aggregation.Aggregation) }
+         * followed by {@linkplain #clearAggregation(com.sun.btrace.aggregation.Aggregation) } no value
+         * added concurrently gets lost, which makes it suitable for printing per-interval data from
+         * an {@linkplain com.sun.btrace.annotations.OnTimer} handler.
+         *
+         * @param name the name to print the aggregation under
+         * @param aggregation the aggregation to print and reset
+         */
+        public static void printAndClearAggregation(String name, Aggregation aggregation) {
+            BTraceRuntime.printAndClearAggregation(name, aggregation);
+        }
+
+        /**
+         * Prints the aggregation using the provided format and resets its values in one step.
+         *
+         * @param name the name to print the aggregation under
+         * @param aggregation the aggregation to print and reset
+         * @param format the format to use
+         * @see #printAndClearAggregation(java.lang.String, com.sun.btrace.aggregation.Aggregation)
+         */
+        public static void printAndClearAggregation(String name, Aggregation aggregation, String format) {
+            BTraceRuntime.printAndClearAggregation(name, aggregation, format);
+        }
+
+        /**
+         * Returns the value at the given percentile of a {@linkplain AggregationFunction#HISTOGRAM}
+         * aggregation with no grouping key, eg. 50, 90, 99 or 99.9. The value is exact within the
+         * precision of the aggregation; the 100th percentile is the exact maximum.
+         *
+         * @param aggregation the histogram aggregation
+         * @param percentile the percentile, between 0 and 100
+         * @return the value at the percentile or zero if no data has been added
+         */
+        public static long percentile(Aggregation aggregation, double percentile) {
+            return BTraceRuntime.percentile(aggregation, percentile);
+        }
+
+        /**
+         * Returns the value at the given percentile of a {@linkplain AggregationFunction#HISTOGRAM}
+         * aggregation for the given grouping key.
+         *
+         * @param aggregation the histogram aggregation
+         * @param key the grouping aggregation key
+         * @param percentile the percentile, between 0 and 100
+         * @return the value at the percentile or zero if no data has been added for the key
+         * @see #percentile(com.sun.btrace.aggregation.Aggregation, double)
+         */
+        public static long percentile(Aggregation aggregation, AggregationKey key, double percentile) {
+            return BTraceRuntime.percentile(aggregation, key, percentile);
+        }
+
         public static void printAggregation(String name, String format, Collection<Aggregation> aggregationList) {
             Aggregation[] aggregationArray = new Aggregation[aggregationList.size()];
             int index = 0;
@@ -5057,6 +5400,90 @@ public class BTraceUtils {
         }
     }
 
+    /**
+     * Binary trace recordings. Instead of formatting messages for the
+     * client the events are appended as fixed size records to memory-mapped
+     * segment files of the recording directory (the "recordingDir" agent
+     * argument). The recordings are converted to text, CSV or an aggregated
+     * report afterwards with {@linkplain com.sun.btrace.recording.RecordingReader}.
+     * An event has up to four arguments; <code>long</code> and
+     * <code>double</code> values are stored as they are and strings are
+     * interned into the dictionary of the recording.
+     */
+    public static class Recordings {
+        /**
+         * Creates a new recording and opens its first segment file. The
+         * recording is closed when the BTrace program exits.
+         *
+         * @param name the name of the recording, used in its file names
+         * @return a new recording
+         */
+        public static Recording newRecording(String name) {
+            return BTraceRuntime.newRecording(name);
+        }
+
+        /**
+         * Appends an event without arguments to the recording. The event
+         * keeps the current time and the id of the current thread; the
+         * probe name and string arguments are stored as dictionary ids.
+         *
+         * @param recording the recording created by {@linkplain #newRecording(String)}
+         * @param probe the name of the event
+         */
+        public static void record(Recording recording, String probe) {
+            BTraceRuntime.record(recording, probe);
+        }
+
+        public static void record(Recording recording, String probe, long a0) {
+            BTraceRuntime.record(recording, probe, a0);
+        }
+
+        public static void record(Recording recording, String probe, double a0) {
+            BTraceRuntime.record(recording, probe, a0);
+        }
+
+        public static void record(Recording recording, String probe, String a0) {
+            BTraceRuntime.record(recording, probe, a0);
+        }
+
+        public static void record(Recording recording, String probe, long a0, long a1) {
+            BTraceRuntime.record(recording, probe, a0, a1);
+        }
+
+        public static void record(Recording recording, String probe, String a0, long a1) {
+            BTraceRuntime.record(recording, probe, a0, a1);
+        }
+
+        public static void record(Recording recording, String probe, String a0, double a1) {
+            BTraceRuntime.record(recording, probe, a0, a1);
+        }
+
+        public static void record(Recording recording, String probe, String a0, String a1) {
+            BTraceRuntime.record(recording, probe, a0, a1);
+        }
+
+        public static void record(Recording recording, String probe, String a0, long a1, long a2) {
+            BTraceRuntime.record(recording, probe, a0, a1, a2);
+        }
+
+        public static void record(Recording recording, String probe, String a0, String a1, long a2) {
+            BTraceRuntime.record(recording, probe, a0, a1, a2);
+        }
+
+        public static void record(Recording recording, String probe, String a0, long a1, long a2, long a3) {
+            BTraceRuntime.record(recording, probe, a0, a1, a2, a3);
+        }
+
+        /**
+         * Closes the recording; the events recorded afterwards are ignored.
+         *
+         * @param recording the recording to close
+         */
+        public static void closeRecording(Recording recording) {
+            BTraceRuntime.closeRecording(recording);
+        }
+    }
+
     /**
      * Profiling support. It is a highly specialized aggregation (therefore not
      * included in the generic aggregations support) which is able to calculate
@@ -5158,6 +5585,8 @@ public class BTraceUtils {
 
         /**
          * Commits the speculative buffer associated with id.
+         * The buffer is recycled; messages sent later under the same
+         * id are dropped and committing it again has no effect.
          *
          * @param id the speculative buffer id
          */
@@ -5167,6 +5596,7 @@ public class BTraceUtils {
 
         /**
          * Discards the speculative buffer associated with id.
+         * The buffer is recycled, as with {@linkplain #commit(int)}.
          *
          * @param id the speculative buffer id
          */
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2008-2010 Sun Microsystems, Inc.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Sun designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Sun in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Sun Microsystems, Inc., 4150 Network Circle, Santa Clara,
+ * CA 95054 USA or visit www.sun.com if you need additional information or
+ * have any questions.
+ */
+
+package com.sun.btrace;
+
+import com.sun.btrace.annotations.ClockSource;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Time stamp sources for the @Duration parameters of BTrace probes.
+ * The instrumented code takes its time stamps from one of these,
+ * depending on the {@linkplain ClockSource} of the BTrace program:
+ * <ul>
+ * <li>PRECISE - <code>System.nanoTime()</code>, called through a
+ * generated method of the instrumented class</li>
+ * <li>COARSE - {@linkplain #coarseTime()}, a value refreshed from
+ * <code>System.nanoTime()</code> by a daemon thread that runs only
+ * while some BTrace program uses it. Each refresh resynchronizes
+ * with <code>System.nanoTime()</code>, so the clock never drifts.</li>
+ * <li>BATCHED - {@linkplain #batchedTime()}, a per-thread time stamp
+ * refreshed from <code>System.nanoTime()</code> once every batch of
+ * reads by the thread and never behind the coarse clock. It reads no
+ * CPU time stamp counter directly.</li>
+ * </ul>
+ */
+public final class Clocks {
+    private static final long COARSE_RESOLUTION = Math.max(10000L,
+        Long.getLong("btrace.clock.coarse.resolution", 1000L) * 1000L);
+    private static final int BATCH = Math.max(2, Integer.getInteger("btrace.clock.batch", 16));
+
+    private static volatile long coarseTime = System.nanoTime();
+    // number of BTrace programs using the coarse or batched clock; guarded by Clocks.class
+    private static int coarseUsers;
+    private static Thread refresher;
+
+    // per-thread state of the batched clock
+    private static final int LAST = 0, COUNTDOWN = 1;
+    private static final ThreadLocalSlots batchState = new ThreadLocalSlots(2, 0);
+
+    private Clocks() {}
+
+    /**
+     * Resolves {@linkplain ClockSource#DEFAULT} to the agent wide
+     * default clock source.
+     */
+    public static ClockSource resolve(ClockSource source) {
+        if (source != null && source != ClockSource.DEFAULT) {
+            return source;
+        }
+        String name = System.getProperty("btrace.clock");
+        if (name != null) {
+            try {
+                return ClockSource.valueOf(name.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("unknown btrace.clock value '" + name +
+                    "', expecting precise, coarse or batched");
+            }
+        } else if (Boolean.getBoolean("btrace.timer.sampled")) {
+            // the former sampled timer
+            return ClockSource.COARSE;
+        }
+        return ClockSource.PRECISE;
+    }
+
+    /**
+     * Registers a BTrace program using the given clock source; starts
+     * the refresher thread for the first user of the coarse clock.
+     */
+    public static synchronized void acquire(ClockSource source) {
+        if (!usesRefresher(source) || coarseUsers++ > 0) {
+            return;
+        }
+        coarseTime = System.nanoTime();
+        refresher = new Thread(new Runnable() {
+            public void run() {
+                Thread self = Thread.currentThread();
+                while (refresher == self) {
+                    LockSupport.parkNanos(COARSE_RESOLUTION);
+                    long now = System.nanoTime();
+                    // never go back in time
+                    if (now > coarseTime) {
+                        coarseTime = now;
+                    }
+                }
+            }
+        }, "BTrace Coarse Clock");
+        refresher.setDaemon(true);
+        refresher.start();
+    }
+
+    /**
+     * Unregisters a BTrace program using the given clock source; the
+     * refresher thread stops with the last user of the coarse clock.
+     */
+    public static synchronized void release(ClockSource source) {
+        if (!usesRefresher(source) || coarseUsers == 0 || --coarseUsers > 0) {
+            return;
+        }
+        Thread t = refresher;
+        refresher = null;
+        LockSupport.unpark(t);
+    }
+
+    private static boolean usesRefresher(ClockSource source) {
+        return source == ClockSource.COARSE || source == ClockSource.BATCHED;
+    }
+
+    /**
+     * The coarse clock - the value of <code>System.nanoTime()</code>
+     * at the latest refresh.
+     */
+    public static long coarseTime() {
+        return coarseTime;
+    }
+
+    /**
+     * The batched clock. Calls <code>System.nanoTime()</code> once in
+     * every batch of calls made by the current thread and returns the
+     * time stamp of the thread in between - moved up to the coarse
+     * clock when that is ahead, so a thread that was idle for long does
+     * not go on with a stale value. The values returned to a thread
+     * never decrease.
+     */
+    public static long batchedTime() {
+        long[] state = batchState.get().values;
+        if (--state[COUNTDOWN] > 0) {
+            long coarse = coarseTime;
+            if (coarse > state[LAST]) {
+                state[LAST] = coarse;
+            }
+            return state[LAST];
+        }
+        state[COUNTDOWN] = BATCH;
+        long now = System.nanoTime();
+        if (now > state[LAST]) {
+            state[LAST] = now;
+        }
+        return state[LAST];
+    }
+}
@@ -0,0 +1,433 @@
+/*
+ * Copyright 2008-2010 Sun Microsystems, Inc.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Sun designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Sun in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Sun Microsystems, Inc., 4150 Network Circle, Santa Clara,
+ * CA 95054 USA or visit www.sun.com if you need additional information or
+ * have any questions.
+ */
+
+package com.sun.btrace;
+
+import com.sun.btrace.comm.Command;
+import com.sun.btrace.comm.DataCommand;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded, lock-free command queue sitting between the probe threads
+ * and the command sender thread of a {@linkplain BTraceRuntime}.
+ * <p>
+ * The queue is a ring buffer with per-slot sequence numbers; producers
+ * claim slots by CAS on the tail counter and never block on a slow client.
+ * What happens to a {@linkplain DataCommand} when the queue is full is
+ * controlled by the {@linkplain OverflowPolicy}. Control commands (exit,
+ * error, notifications) are never dropped and never wait: making room
+ * for a command only ever takes out a queued {@linkplain DataCommand},
+ * and a control command which does not fit into the full queue goes to
+ * an unbounded side lane drained after the queue.
+ * <p>
+ * The sender thread takes the queued commands out in batches via
+ * {@linkplain #drainTo(com.sun.btrace.comm.Command[], long)}.
+ */
+public final class CommandQueue {
+    /**
+     * What to do with an output command which does not fit into the queue
+     */
+    public static enum OverflowPolicy {
+        /** the command being sent is dropped */
+        DROP_NEWEST,
+        /** the oldest queued command is dropped to make room */
+        DROP_OLDEST,
+        /**
+         * once the queue is half full only every N-th command is accepted;
+         * the rest is dropped
+         */
+        SAMPLE,
+        /**
+         * the sending thread waits for a free slot up to a timeout;
+         * then the command is dropped
+         */
+        BLOCK;
+
+        public static OverflowPolicy parse(String value) {
+            if (value != null) {
+                String v = value.trim().replace("-", "").replace("_", "");
+                for (OverflowPolicy p : values()) {
+                    if (p.name().replace("_", "").equalsIgnoreCase(v)) {
+                        return p;
+                    }
+                }
+            }
+            return DROP_NEWEST;
+        }
+    }
+
+    public static final int DEFAULT_CAPACITY = 16384;
+    public static final int DEFAULT_SAMPLE_RATE = 10;
+    public static final long DEFAULT_TIMEOUT = 100;
+
+    // the longest time the consumer sleeps before re-checking the queue
+    private static final long CONSUMER_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final int capacity;
+    private final int mask;
+    private final AtomicReferenceArray<Command> buffer;
+    private final AtomicLongArray sequences;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    // control commands put while the queue was full, in order
+    private final ConcurrentLinkedQueue<Command> controlLane = new ConcurrentLinkedQueue<Command>();
+
+    private final OverflowPolicy policy;
+    private final int sampleRate;
+    private final long timeoutNanos;
+
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong sampleCounter = new AtomicLong();
+
+    private volatile Thread consumer;
+    private volatile boolean consumerWaiting;
+
+    public CommandQueue() {
+        this(Integer.getInteger("btrace.queue.size", DEFAULT_CAPACITY),
+             OverflowPolicy.parse(System.getProperty("btrace.queue.overflow")),
+             Integer.getInteger("btrace.queue.sampleRate", DEFAULT_SAMPLE_RATE),
+             Long.getLong("btrace.queue.timeout", DEFAULT_TIMEOUT),
+             TimeUnit.MILLISECONDS);
+    }
+
+    public CommandQueue(int capacity, OverflowPolicy policy, int sampleRate,
+                        long timeout, TimeUnit unit) {
+        int cap = 2;
+        while (cap < capacity) {
+            cap <<= 1;
+        }
+        this.capacity = cap;
+        this.mask = cap - 1;
+        this.buffer = new AtomicReferenceArray<Command>(cap);
+        this.sequences = new AtomicLongArray(cap);
+        for (int i = 0; i < cap; i++) {
+            sequences.set(i, i);
+        }
+        this.policy = policy;
+        this.sampleRate = Math.max(1, sampleRate);
+        this.timeoutNanos = unit.toNanos(timeout);
+    }
+
+    /**
+     * Enqueues the given command following the overflow policy.
+     * Only {@linkplain DataCommand}s may be dropped; other commands
+     * are always enqueued (see {@linkplain #put(com.sun.btrace.comm.Command)}).
+     * @return <code>false</code> if the command was dropped
+     */
+    public boolean offer(Command cmd) {
+        if (!(cmd instanceof DataCommand)) {
+            put(cmd);
+            return true;
+        }
+        switch (policy) {
+            case SAMPLE: {
+                if (size() > (capacity >> 1) &&
+                    sampleCounter.incrementAndGet() % sampleRate != 0) {
+                    drop(cmd);
+                    return false;
+                }
+                break;
+            }
+            case DROP_OLDEST: {
+                // bounded number of attempts; the consumer competes for the same slots
+                for (int i = 0; i < 8; i++) {
+                    if (tryOffer(cmd)) {
+                        return true;
+                    }
+                    if (!dropOldestData()) {
+                        // the head is a control command; drop the new one instead
+                        break;
+                    }
+                }
+                drop(cmd);
+                return false;
+            }
+            case BLOCK: {
+                if (tryOffer(cmd)) {
+                    return true;
+                }
+                long deadline = System.nanoTime() + timeoutNanos;
+                do {
+                    LockSupport.parkNanos(this, 50000);
+                    if (tryOffer(cmd)) {
+                        return true;
+                    }
+                } while (System.nanoTime() - deadline < 0);
+                drop(cmd);
+                return false;
+            }
+            default:
+                break;
+        }
+        if (tryOffer(cmd)) {
+            return true;
+        }
+        drop(cmd);
+        return false;
+    }
+
+    /**
+     * Enqueues the first <code>count</code> commands of the given array.
+     * When there is room for all of them they are published with a single
+     * claim on the queue, keeping them together; otherwise every command
+     * is offered separately following the overflow policy.
+     * @return the number of commands dropped
+     */
+    public int offerAll(Command[] cmds, int count) {
+        if (count <= 0) {
+            return 0;
+        }
+        if (count <= (capacity >> 1) && tryOfferAll(cmds, count)) {
+            return 0;
+        }
+        int drops = 0;
+        for (int i = 0; i < count; i++) {
+            if (!offer(cmds[i])) {
+                drops++;
+            }
+        }
+        return drops;
+    }
+
+    /**
+     * Enqueues the given control command without ever waiting or dropping
+     * it; when the queue is full it goes to the side lane. A
+     * {@linkplain DataCommand} is offered following the overflow policy.
+     */
+    public void put(Command cmd) {
+        if (cmd instanceof DataCommand) {
+            offer(cmd);
+            return;
+        }
+        // once the lane is in use it keeps the control commands in order
+        if (controlLane.isEmpty() && tryOffer(cmd)) {
+            return;
+        }
+        controlLane.offer(cmd);
+        if (consumerWaiting) {
+            Thread t = consumer;
+            if (t != null) {
+                LockSupport.unpark(t);
+            }
+        }
+    }
+
+    /**
+     * Moves the queued commands into the given array, waiting up to
+     * the given time for at least one command to arrive. Must be called
+     * from one consumer thread only.
+     * @return the number of commands copied; 0 if the wait timed out
+     * @throws InterruptedException if the consumer thread was interrupted
+     */
+    public int drainTo(Command[] batch, long timeoutNanos) throws InterruptedException {
+        if (consumer == null) {
+            consumer = Thread.currentThread();
+        }
+        long deadline = System.nanoTime() + timeoutNanos;
+        while (true) {
+            int n = drainTo(batch);
+            if (n > 0) {
+                return n;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return 0;
+            }
+            consumerWaiting = true;
+            try {
+                // re-check after announcing ourselves to avoid a lost wake-up
+                n = drainTo(batch);
+                if (n > 0) {
+                    return n;
+                }
+                LockSupport.parkNanos(this, Math.min(remaining, CONSUMER_PARK_NANOS));
+            } finally {
+                consumerWaiting = false;
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    /**
+     * Moves the queued commands into the given array without waiting.
+     * @return the number of commands copied
+     */
+    public int drainTo(Command[] batch) {
+        int n = 0;
+        Command cmd;
+        while (n < batch.length && (cmd = poll()) != null) {
+            batch[n++] = cmd;
+        }
+        while (n < batch.length && (cmd = controlLane.poll()) != null) {
+            batch[n++] = cmd;
+        }
+        return n;
+    }
+
+    /**
+     * Removes all the queued commands
+     */
+    public void clear() {
+        Command cmd;
+        while ((cmd = poll()) != null) {
+            LazyMessage.discarded(cmd);
+        }
+        controlLane.clear();
+    }
+
+    public int size() {
+        long size = tail.get() - head.get();
+        return size < 0 ? 0 : (int)Math.min(size, capacity);
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return policy;
+    }
+
+    /**
+     * @return the number of commands dropped so far
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    private void drop(Command cmd) {
+        dropped.incrementAndGet();
+        LazyMessage.discarded(cmd);
+    }
+
+    private boolean tryOffer(Command cmd) {
+        while (true) {
+            long pos = tail.get();
+            int idx = (int)pos & mask;
+            long dif = sequences.get(idx) - pos;
+            if (dif == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    buffer.lazySet(idx, cmd);
+                    sequences.set(idx, pos + 1);
+                    if (consumerWaiting) {
+                        Thread t = consumer;
+                        if (t != null) {
+                            LockSupport.unpark(t);
+                        }
+                    }
+                    return true;
+                }
+            } else if (dif < 0) {
+                // full
+                return false;
+            }
+        }
+    }
+
+    private boolean tryOfferAll(Command[] cmds, int count) {
+        while (true) {
+            long pos = tail.get();
+            for (int i = 0; i < count; i++) {
+                if (sequences.get((int)(pos + i) & mask) != pos + i) {
+                    if (tail.get() == pos) {
+                        // not enough free slots
+                        return false;
+                    }
+                    pos = -1;
+                    break;
+                }
+            }
+            if (pos != -1 && tail.compareAndSet(pos, pos + count)) {
+                for (int i = 0; i < count; i++) {
+                    int idx = (int)(pos + i) & mask;
+                    buffer.lazySet(idx, cmds[i]);
+                    sequences.set(idx, pos + i + 1);
+                }
+                if (consumerWaiting) {
+                    Thread t = consumer;
+                    if (t != null) {
+                        LockSupport.unpark(t);
+                    }
+                }
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Takes the oldest queued command out if it is a {@linkplain DataCommand}.
+     * @return <code>false</code> if the queue is empty or its head is a
+     *         control command, which must not be dropped
+     */
+    private boolean dropOldestData() {
+        while (true) {
+            long pos = head.get();
+            int idx = (int)pos & mask;
+            long dif = sequences.get(idx) - (pos + 1);
+            if (dif == 0) {
+                // the slot is published and can not change until the head moves
+                Command cmd = buffer.get(idx);
+                if (!(cmd instanceof DataCommand)) {
+                    return false;
+                }
+                if (head.compareAndSet(pos, pos + 1)) {
+                    buffer.lazySet(idx, null);
+                    sequences.set(idx, pos + capacity);
+                    drop(cmd);
+                    return true;
+                }
+            } else if (dif < 0) {
+                // empty
+                return false;
+            }
+        }
+    }
+
+    private Command poll() {
+        while (true) {
+            long pos = head.get();
+            int idx = (int)pos & mask;
+            long dif = sequences.get(idx) - (pos + 1);
+            if (dif == 0) {
+                if (head.compareAndSet(pos, pos + 1)) {
+                    Command cmd = buffer.get(idx);
+                    buffer.lazySet(idx, null);
+                    sequences.set(idx, pos + capacity);
+                    return cmd;
+                }
+            } else if (dif < 0) {
+                // empty
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,348 @@
+/*
+ * Copyright 2008-2010 Sun Microsystems, Inc.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Sun designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Sun in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Sun Microsystems, Inc., 4150 Network Circle, Santa Clara,
+ * CA 95054 USA or visit www.sun.com if you need additional information or
+ * have any questions.
+ */
+
+package com.sun.btrace;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import com.sun.btrace.comm.Command;
+import com.sun.btrace.comm.DataCommand;
+import com.sun.btrace.comm.MessageCommand;
+
+/**
+ * A message whose text is not built in the traced thread.
+ * Calls such as <code>println(strcat("took ", str(time)))</code>
+ * are rewritten (see <code>com.sun.btrace.runtime.LazyMessageRewriter</code>)
+ * into a sequence of <code>arg(..)</code> calls followed by
+ * <code>end(templateId)</code>. The arguments are captured raw into a
+ * per-thread, reusable record and the literal parts of the message are
+ * kept in a template registered once, at class load time. The text is
+ * rendered on the command thread, just before the message is handed
+ * to the client, as a regular {@link MessageCommand}. Like any other
+ * output it may be dropped when the client does not keep up.
+ * <p>
+ * A record goes back to the ring of its thread on every path a queued
+ * message can end: rendered, dropped by the output queue or thrown
+ * away with a discarded speculation (see {@link #discarded(Command)}).
+ * <p>
+ * The templates of a BTrace program are released when it is unloaded
+ * (see {@link #releaseTemplates(int[])}) and their ids are reused.
+ */
+public final class LazyMessage extends DataCommand {
+    private static final long serialVersionUID = 1L;
+
+    private static final byte BOOLEAN = 0;
+    private static final byte CHAR = 1;
+    private static final byte INT = 2;
+    private static final byte LONG = 3;
+    private static final byte FLOAT = 4;
+    private static final byte DOUBLE = 5;
+    private static final byte OBJECT = 6;
+
+    // records per thread that may be in flight at the same time
+    private static final int RING_SIZE = 64;
+    private static final int INITIAL_ARGS = 8;
+
+    // records created so far, by all threads
+    private static final AtomicLong allocated = new AtomicLong();
+
+    private static final Object templateLock = new Object();
+    private static volatile String[][] templates = new String[0][];
+
+    private static final ThreadLocal<Recorder> recorders =
+        new ThreadLocal<Recorder>() {
+            @Override
+            protected Recorder initialValue() {
+                return new Recorder();
+            }
+        };
+
+    // set while the record is being filled or waits in the queue
+    private volatile boolean inUse;
+    private int template;
+    private int count;
+    private byte[] kinds = new byte[INITIAL_ARGS];
+    private long[] prims = new long[INITIAL_ARGS];
+    private Object[] refs = new Object[INITIAL_ARGS];
+
+    private LazyMessage() {
+        super(MESSAGE, null);
+        allocated.incrementAndGet();
+    }
+
+    /**
+     * @return the number of message records created so far; stays
+     *         within the ring size per thread as long as the records
+     *         are released
+     */
+    public static long getAllocatedRecords() {
+        return allocated.get();
+    }
+
+    /**
+     * Makes the record of the given command, if it is a lazy message,
+     * available for reuse. To be called for every queued command which
+     * is dropped or thrown away without being rendered.
+     */
+    static void discarded(Command cmd) {
+        if (cmd instanceof LazyMessage) {
+            ((LazyMessage) cmd).release();
+        }
+    }
+
+    /**
+     * Registers the literal parts of a message. A message with
+     * <i>n</i> arguments has <i>n + 1</i> literals; literal <i>i</i>
+     * is printed before argument <i>i</i> and the last literal is
+     * printed after the last argument.
+     *
+     * @return the template id to be passed to {@link #end(int)}
+     */
+    public static int registerTemplate(String[] literals) {
+        if (literals == null || literals.length == 0) {
+            throw new IllegalArgumentException();
+        }
+        synchronized (templateLock) {
+            String[][] old = templates;
+            for (int i = 0; i < old.length; i++) {
+                if (old[i] == null) {
+                    String[][] updated = old.clone();
+                    updated[i] = literals.clone();
+                    templates = updated;
+                    return i;
+                }
+            }
+            String[][] updated = new String[old.length + 1][];
+            System.arraycopy(old, 0, updated, 0, old.length);
+            updated[old.length] = literals.clone();
+            templates = updated;
+            return old.length;
+        }
+    }
+
+    /**
+     * Releases the templates of an unloaded BTrace program so that their
+     * ids can be reused. Must not be called while any of its messages
+     * may still be rendered.
+     */
+    public static void releaseTemplates(int[] templateIds) {
+        if (templateIds == null || templateIds.length == 0) {
+            return;
+        }
+        synchronized (templateLock) {
+            String[][] updated = templates.clone();
+            for (int id : templateIds) {
+                if (id >= 0 && id < updated.length) {
+                    updated[id] = null;
+                }
+            }
+            templates = updated;
+        }
+    }
+
+    // argument capture methods called from rewritten BTrace code
+    public static void arg(boolean b) {
+        recorders.get().current().add(BOOLEAN, b? 1L : 0L, null);
+    }
+
+    public static void arg(char c) {
+        recorders.get().current().add(CHAR, c, null);
+    }
+
+    public static void arg(int i) {
+        recorders.get().current().add(INT, i, null);
+    }
+
+    public static void arg(long l) {
+        recorders.get().current().add(LONG, l, null);
+    }
+
+    public static void arg(float f) {
+        recorders.get().current().add(FLOAT, Float.floatToRawIntBits(f), null);
+    }
+
+    public static void arg(double d) {
+        recorders.get().current().add(DOUBLE, Double.doubleToRawLongBits(d), null);
+    }
+
+    public static void arg(Object obj) {
+        recorders.get().current().add(OBJECT, 0L, obj);
+    }
+
+    /**
+     * Completes the message being captured by the current thread
+     * and sends it to the client.
+     */
+    public static void end(int templateId) {
+        Recorder recorder = recorders.get();
+        LazyMessage msg = recorder.current();
+        recorder.current = null;
+        msg.template = templateId;
+        BTraceRuntime.print(msg);
+    }
+
+    /**
+     * Renders the message text and makes this record available
+     * for reuse by the thread that captured it.
+     */
+    public MessageCommand render() {
+        String text = format();
+        release();
+        return new MessageCommand(0L, text);
+    }
+
+    private void release() {
+        for (int i = 0; i < count; i++) {
+            refs[i] = null;
+        }
+        count = 0;
+        inUse = false;
+    }
+
+    public void print(PrintWriter out) {
+        out.print(format());
+    }
+
+    protected void write(ObjectOutput out) throws IOException {
+        out.writeLong(0L);
+        out.writeUTF(format());
+    }
+
+    protected void read(ObjectInput in)
+                   throws IOException, ClassNotFoundException {
+        throw new IOException("lazy messages are rendered before transfer");
+    }
+
+    private void add(byte kind, long prim, Object ref) {
+        if (count == kinds.length) {
+            int size = count * 2;
+            byte[] k = new byte[size];
+            long[] p = new long[size];
+            Object[] r = new Object[size];
+            System.arraycopy(kinds, 0, k, 0, count);
+            System.arraycopy(prims, 0, p, 0, count);
+            System.arraycopy(refs, 0, r, 0, count);
+            kinds = k;
+            prims = p;
+            refs = r;
+        }
+        kinds[count] = kind;
+        prims[count] = prim;
+        refs[count] = ref;
+        count++;
+    }
+
+    private String format() {
+        String[] literals = templates[template];
+        if (literals == null) {
+            // a straggler of a program which has been unloaded
+            return "";
+        }
+        int argCount = literals.length - 1;
+        // a message aborted by an exception leaves its arguments
+        // behind; only the trailing ones belong to this template
+        int first = count - argCount;
+        StringBuilder buf = new StringBuilder();
+        buf.append(literals[0]);
+        for (int i = 0; i < argCount; i++) {
+            int j = first + i;
+            if (j >= 0) {
+                append(buf, j);
+            }
+            buf.append(literals[i + 1]);
+        }
+        return buf.toString();
+    }
+
+    private void append(StringBuilder buf, int i) {
+        long prim = prims[i];
+        switch (kinds[i]) {
+            case BOOLEAN:
+                buf.append(prim != 0L);
+                break;
+            case CHAR:
+                buf.append((char) prim);
+                break;
+            case INT:
+                buf.append((int) prim);
+                break;
+            case LONG:
+                buf.append(prim);
+                break;
+            case FLOAT:
+                buf.append(Float.intBitsToFloat((int) prim));
+                break;
+            case DOUBLE:
+                buf.append(Double.longBitsToDouble(prim));
+                break;
+            default:
+                buf.append(BTraceUtils.Strings.str(refs[i]));
+                break;
+        }
+    }
+
+    private static final class Recorder {
+        private final LazyMessage[] ring = new LazyMessage[RING_SIZE];
+        private int cursor;
+        private LazyMessage current;
+
+        LazyMessage current() {
+            LazyMessage msg = current;
+            if (msg == null) {
+                msg = acquire();
+                current = msg;
+            }
+            return msg;
+        }
+
+        private LazyMessage acquire() {
+            for (int i = 0; i < RING_SIZE; i++) {
+                int slot = (cursor + i) % RING_SIZE;
+                LazyMessage msg = ring[slot];
+                if (msg == null || !msg.inUse) {
+                    if (msg == null) {
+                        msg = new LazyMessage();
+                        ring[slot] = msg;
+                    }
+                    cursor = (slot + 1) % RING_SIZE;
+                    msg.count = 0;
+                    msg.inUse = true;
+                    return msg;
+                }
+            }
+            // every record is still queued (or was dropped without
+            // being rendered); the slot gets a fresh record and the
+            // old one is left to the garbage collector
+            LazyMessage msg = new LazyMessage();
+            msg.inUse = true;
+            ring[cursor] = msg;
+            cursor = (cursor + 1) % RING_SIZE;
+            return msg;
+        }
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright 2008-2010 Sun Microsystems, Inc.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Sun designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Sun in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Sun Microsystems, Inc., 4150 Network Circle, Santa Clara,
+ * CA 95054 USA or visit www.sun.com if you need additional information or
+ * have any questions.
+ */
+
+package com.sun.btrace;
+
+import com.sun.btrace.annotations.BTrace;
+import com.sun.btrace.comm.ProbeThrottleNotification;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the probe handlers of a BTrace program within an overhead
+ * budget: handler time per second of wall clock time and/or handler
+ * runs per second. Every period it looks at the {@linkplain ProbeMetrics}
+ * of the program; when the program went over the budget the most
+ * expensive handlers are throttled to run for 1 in N invocations only,
+ * N a power of two growing as long as the program stays over the budget.
+ * A handler that would have to be throttled beyond the maximum interval
+ * is disabled for good. When the program has been well within the budget
+ * for a few periods the throttled handlers run twice as often again.
+ * Every change is reported to the client with a
+ * {@linkplain ProbeThrottleNotification}.
+ * <p>
+ * The budget is given by the {@linkplain BTrace} annotation of the
+ * program; the agent wide one set by {@linkplain #setDefaults} applies
+ * where the annotation leaves it out.
+ * <p>
+ * The handler time is estimated from the timed invocations, so the
+ * time budget needs the timing of {@linkplain ProbeMetrics} enabled.
+ */
+public final class ProbeGovernor implements Runnable {
+    public static final long DEFAULT_PERIOD = 1000L;
+    public static final int DEFAULT_MAX_INTERVAL = 1024;
+    // below this fraction of the budget the program is within it
+    private static final double RELAX_LOAD = 0.25;
+    // periods to be within the budget before the throttles are relaxed
+    private static final int RELAX_PERIODS = 3;
+
+    private static volatile long defaultCpuBudget;
+    private static volatile long defaultEventBudget;
+    private static volatile long defaultPeriod = DEFAULT_PERIOD;
+    private static volatile int defaultMaxInterval = DEFAULT_MAX_INTERVAL;
+
+    private final BTraceRuntime runtime;
+    private final ProbeMetrics metrics;
+    // nanoseconds of handler time per second
+    private final long cpuBudget;
+    // handler runs per second
+    private final long eventBudget;
+    private final long maxInterval;
+
+    private long lastNanos;
+    private final long[] lastRuns;
+    private final long[] lastTimed;
+    private final long[] lastTimedNanos;
+    private int calmPeriods;
+
+    /**
+     * Sets the overhead budget of the BTrace programs loaded from now on
+     * which do not give one of their own.
+     * Called by the agent from its command line arguments.
+     *
+     * @param cpuBudget handler time in nanoseconds per second, 0 for none
+     * @param eventBudget handler runs per second, 0 for none
+     * @param period how often the budget is checked, in milliseconds
+     * @param maxInterval the highest N a handler is throttled to before
+     *        it is disabled
+     */
+    public static void setDefaults(long cpuBudget, long eventBudget, long period, int maxInterval) {
+        defaultCpuBudget = Math.max(cpuBudget, 0L);
+        defaultEventBudget = Math.max(eventBudget, 0L);
+        defaultPeriod = period > 0 ? period : DEFAULT_PERIOD;
+        defaultMaxInterval = maxInterval > 1 ? maxInterval : DEFAULT_MAX_INTERVAL;
+    }
+
+    /**
+     * Returns the handler time budget in nanoseconds per second of a
+     * program with the given annotation; 0 for none.
+     */
+    static long cpuBudget(BTrace bt) {
+        long budget = bt != null? bt.probeCpuBudget() : -1L;
+        return budget >= 0? TimeUnit.MILLISECONDS.toNanos(budget) : defaultCpuBudget;
+    }
+
+    /**
+     * Returns the handler runs per second budget of a program with
+     * the given annotation; 0 for none.
+     */
+    static long eventBudget(BTrace bt) {
+        long budget = bt != null? bt.probeEventBudget() : -1L;
+        return budget >= 0? budget : defaultEventBudget;
+    }
+
+    static long getPeriod() {
+        return defaultPeriod;
+    }
+
+    ProbeGovernor(BTraceRuntime runtime, ProbeMetrics metrics, long cpuBudget, long eventBudget) {
+        this.runtime = runtime;
+        this.metrics = metrics;
+        this.cpuBudget = cpuBudget;
+        this.eventBudget = eventBudget;
+        this.maxInterval = defaultMaxInterval;
+        int n = metrics.getProbeCount();
+        lastRuns = new long[n];
+        lastTimed = new long[n];
+        lastTimedNanos = new long[n];
+        lastNanos = System.nanoTime();
+    }
+
+    public void run() {
+        try {
+            check();
+        } catch (RuntimeException re) {
+            // the scheduler drops it silently; the throttles would stay as they are
+            System.err.println("btrace ERROR: probe governor of " +
+                               metrics.getScriptName() + " failed");
+            re.printStackTrace();
+        }
+    }
+
+    private void check() {
+        long now = System.nanoTime();
+        long elapsed = now - lastNanos;
+        if (elapsed <= 0) {
+            return;
+        }
+        lastNanos = now;
+
+        int n = metrics.getProbeCount();
+        // the load of every handler, as a fraction of the budget
+        double[] loads = new double[n];
+        double cpu = 0;
+        double events = 0;
+        for (int i = 0; i < n; i++) {
+            long runs = metrics.runs(i);
+            long timed = metrics.timed(i);
+            long timedNanos = metrics.timedNanos(i);
+            long executed = Math.max(runs - lastRuns[i], 0L);
+            long newlyTimed = timed - lastTimed[i];
+            double average = newlyTimed > 0 ?
+                (double) (timedNanos - lastTimedNanos[i]) / newlyTimed :
+                (timed > 0 ? (double) timedNanos / timed : 0);
+            lastRuns[i] = runs;
+            lastTimed[i] = timed;
+            lastTimedNanos[i] = timedNanos;
+
+            double probeEvents = executed * 1e9 / elapsed;
+            double probeCpu = probeEvents * average;
+            events += probeEvents;
+            cpu += probeCpu;
+            loads[i] = load(probeCpu, probeEvents);
+        }
+
+        double load = load(cpu, events);
+        if (load > 1) {
+            calmPeriods = 0;
+            throttle(loads, load, (long) cpu, (long) events);
+        } else if (load < RELAX_LOAD) {
+            if (++calmPeriods >= RELAX_PERIODS) {
+                calmPeriods = 0;
+                relax((long) cpu, (long) events);
+            }
+        } else {
+            calmPeriods = 0;
+        }
+    }
+
+    private double load(double cpu, double events) {
+        double load = 0;
+        if (cpuBudget > 0) {
+            load = cpu / cpuBudget;
+        }
+        if (eventBudget > 0) {
+            load = Math.max(load, events / eventBudget);
+        }
+        return load;
+    }
+
+    /*
+     * Throttles the most expensive handlers until the program is
+     * expected to be within the budget again.
+     */
+    private void throttle(double[] loads, double load, long cpu, long events) {
+        // at least halve the runs, more the further over the budget
+        long over = (long) Math.ceil(load);
+        long factor = Long.highestOneBit(over);
+        if (factor < over) {
+            factor <<= 1;
+        }
+        factor = Math.max(factor, 2L);
+        boolean[] done = new boolean[loads.length];
+        while (load > 1) {
+            int probe = -1;
+            for (int i = 0; i < loads.length; i++) {
+                if (!done[i] && loads[i] > 0 && (probe == -1 || loads[i] > loads[probe])) {
+                    probe = i;
+                }
+            }
+            if (probe == -1) {
+                break;
+            }
+            done[probe] = true;
+            long interval = metrics.throttleInterval(probe);
+            if (interval == 0) {
+                continue;
+            }
+            interval *= factor;
+            if (interval > maxInterval) {
+                interval = 0;
+                load -= loads[probe];
+            } else {
+                load -= loads[probe] * (1 - 1.0 / factor);
+            }
+            metrics.throttle(probe, interval);
+            notify(probe, interval, cpu, events);
+        }
+    }
+
+    /*
+     * Lets the throttled handlers run twice as often; disabled
+     * ones stay disabled.
+     */
+    private void relax(long cpu, long events) {
+        for (int i = 0; i < metrics.getProbeCount(); i++) {
+            long interval = metrics.throttleInterval(i);
+            if (interval > 1) {
+                interval >>= 1;
+                metrics.throttle(i, interval);
+                notify(i, interval, cpu, events);
+            }
+        }
+    }
+
+    private void notify(int probe, long interval, long cpu, long events) {
+        runtime.send(new ProbeThrottleNotification(metrics.getProbeName(probe),
+            interval, cpu, events, cpuBudget, eventBudget));
+    }
+}
@@ -0,0 +1,444 @@
+/*
+ * Copyright 2008-2010 Sun Microsystems, Inc.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Sun designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Sun in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Sun Microsystems, Inc., 4150 Network Circle, Santa Clara,
+ * CA 95054 USA or visit www.sun.com if you need additional information or
+ * have any questions.
+ */
+package com.sun.btrace;
+
+import com.sun.btrace.comm.MetricsCommand;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counts what the probe handlers of a BTrace program cost: how many
+ * times each handler was invoked, how many invocations were skipped
+ * because the thread was already in a BTrace handler, how many of them
+ * threw an exception and how long they took. Besides that it keeps the
+ * number of classes transformed for the program and the time spent
+ * transforming them.
+ * <p>
+ * The counters are striped by thread, the counters of a stripe on their
+ * own cache line, so that hot probes fired from many threads do not
+ * contend on one counter. A handler that runs costs a single increment;
+ * the throttled and re-entrant invocations are counted apart and the
+ * runs derived from them. Only every N-th invocation of a stripe is
+ * timed (see
+ * {@linkplain #setDefaultSampleInterval(int)}); the total time of a
+ * handler is estimated from the average of the timed ones.
+ * <p>
+ * A handler may be throttled by the {@linkplain ProbeGovernor}: then it
+ * only runs for every N-th invocation of a stripe, or for none at all.
+ * The check reuses the stripe counter, so it costs next to nothing.
+ * <p>
+ * The metrics are registered as the MBean
+ * <code>btrace:type=ProbeMetrics,name=&lt;BTrace class&gt;</code> and can be
+ * sent to the client as a {@linkplain MetricsCommand}.
+ */
+public final class ProbeMetrics implements ProbeMetricsMBean {
+    public static final int DEFAULT_SAMPLE_INTERVAL = 64;
+    // what enter does with an invocation of a probe handler
+    static final int SKIP = 0;
+    static final int RUN = 1;
+    static final int RUN_TIMED = 2;
+    // the throttle of a disabled handler; no positive count matches it
+    static final long DISABLED = -1L;
+    private static final int MAX_STRIPES = 32;
+    // one stripe per cache line of 8 longs holding these counters
+    private static final int PAD_SHIFT = 3;
+    private static final int INVOCATIONS = 0;
+    private static final int THROTTLED = 1;
+    private static final int SKIPS = 2;
+    private static final int EXCEPTIONS = 3;
+    private static final int TIMED = 4;
+    private static final int TIMED_NANOS = 5;
+    private static final int STRIPES;
+    private static final int STRIPE_SHIFT;
+    static {
+        int stripes = 1;
+        int cpus = Runtime.getRuntime().availableProcessors();
+        while (stripes < cpus && stripes < MAX_STRIPES) {
+            stripes <<= 1;
+        }
+        STRIPES = stripes;
+        STRIPE_SHIFT = Integer.numberOfTrailingZeros(stripes);
+    }
+
+    private static volatile int defaultSampleInterval = DEFAULT_SAMPLE_INTERVAL;
+
+    private final BTraceRuntime runtime;
+    private final String scriptName;
+    private final String[] probes;
+    private final int sampleInterval;
+    // mask of the stripe counter values at which an invocation is timed;
+    // -1 never matches a positive count
+    private final long sampleMask;
+
+    // the counters of every handler and stripe
+    private final AtomicLongArray counters;
+    // per handler mask of the stripe counter values at which it runs:
+    // 0 for all of them, N - 1 for every N-th one or DISABLED
+    private final AtomicLongArray throttles;
+    private final AtomicLongArray maxNanos;
+    // exceptions thrown outside of the probe handlers
+    private final AtomicLong otherExceptions = new AtomicLong();
+    private final AtomicLong transformedClasses = new AtomicLong();
+    private final AtomicLong transformNanos = new AtomicLong();
+
+    /**
+     * Sets every how many invocations a probe handler is timed; the value
+     * is rounded up to a power of two and 0 turns the timing off.
+     * Called by the agent from its command line arguments.
+     */
+    public static void setDefaultSampleInterval(int interval) {
+        defaultSampleInterval = interval;
+    }
+
+    ProbeMetrics(BTraceRuntime runtime, String scriptName, String[] probes) {
+        this.runtime = runtime;
+        this.scriptName = scriptName;
+        this.probes = probes;
+        int interval = defaultSampleInterval;
+        if (interval > 0) {
+            interval = Integer.highestOneBit(interval);
+            if (interval < defaultSampleInterval) {
+                interval <<= 1;
+            }
+            sampleMask = interval - 1;
+        } else {
+            interval = 0;
+            sampleMask = -1L;
+        }
+        this.sampleInterval = interval;
+        int n = probes.length;
+        counters = new AtomicLongArray((n << STRIPE_SHIFT) << PAD_SHIFT);
+        throttles = new AtomicLongArray(n);
+        maxNanos = new AtomicLongArray(n);
+    }
+
+    /**
+     * Counts an invocation of the probe handler and tells whether the
+     * handler is to run ({@linkplain #RUN}), to run timed
+     * ({@linkplain #RUN_TIMED}) or to be skipped by the throttle
+     * ({@linkplain #SKIP}).
+     */
+    int fire(int probe) {
+        int index = stripe(probe);
+        long count = counters.incrementAndGet(index + INVOCATIONS);
+        if ((count & throttles.get(probe)) != 0L) {
+            counters.incrementAndGet(index + THROTTLED);
+            return SKIP;
+        }
+        return (count & sampleMask) == 0 ? RUN_TIMED : RUN;
+    }
+
+    /**
+     * Lets the probe handler run for every <i>interval</i>-th
+     * invocation only, a power of two; 1 lets all of them run and
+     * 0 none.
+     */
+    void throttle(int probe, long interval) {
+        throttles.set(probe, interval > 0 ? interval - 1 : DISABLED);
+    }
+
+    /**
+     * Returns every how many invocations the probe handler runs;
+     * 0 if it is disabled.
+     */
+    long throttleInterval(int probe) {
+        long throttle = throttles.get(probe);
+        return throttle != DISABLED ? throttle + 1 : 0L;
+    }
+
+    int getProbeCount() {
+        return probes.length;
+    }
+
+    String getProbeName(int probe) {
+        return probes[probe];
+    }
+
+    /**
+     * Returns how many times the probe handler actually ran: the
+     * invocations neither throttled nor skipped as re-entrant.
+     */
+    long runs(int probe) {
+        long runs = sum(probe, INVOCATIONS) - sum(probe, THROTTLED) - sum(probe, SKIPS);
+        // the stripes are read one by one, not as a snapshot
+        return Math.max(runs, 0L);
+    }
+
+    long timed(int probe) {
+        return sum(probe, TIMED);
+    }
+
+    long timedNanos(int probe) {
+        return sum(probe, TIMED_NANOS);
+    }
+
+    /**
+     * Counts an invocation let through by {@linkplain #fire(int)} that
+     * was skipped because the thread was already in a BTrace handler.
+     */
+    void skip(int probe) {
+        counters.incrementAndGet(stripe(probe) + SKIPS);
+    }
+
+    void exception(int probe) {
+        if (probe >= 0) {
+            counters.incrementAndGet(stripe(probe) + EXCEPTIONS);
+        } else {
+            otherExceptions.incrementAndGet();
+        }
+    }
+
+    void time(int probe, long nanos) {
+        int index = stripe(probe);
+        counters.incrementAndGet(index + TIMED);
+        counters.addAndGet(index + TIMED_NANOS, nanos);
+        long max;
+        while (nanos > (max = maxNanos.get(probe))) {
+            if (maxNanos.compareAndSet(probe, max, nanos)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Adds a class transformed for the BTrace program
+     */
+    public void classTransformed(long nanos) {
+        transformedClasses.incrementAndGet();
+        transformNanos.addAndGet(nanos);
+    }
+
+    public String getScriptName() {
+        return scriptName;
+    }
+
+    public int getSampleInterval() {
+        return sampleInterval;
+    }
+
+    public String[] getProbeNames() {
+        return probes.clone();
+    }
+
+    public long[] getInvocations() {
+        long[] values = new long[probes.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = invocations(i);
+        }
+        return values;
+    }
+
+    public long[] getThrottleIntervals() {
+        long[] values = new long[probes.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = throttleInterval(i);
+        }
+        return values;
+    }
+
+    public long[] getThrottledInvocations() {
+        long[] values = new long[probes.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = sum(i, THROTTLED);
+        }
+        return values;
+    }
+
+    public long[] getReentrantSkips() {
+        return sums(SKIPS);
+    }
+
+    public long[] getExceptions() {
+        return sums(EXCEPTIONS);
+    }
+
+    public long[] getTimedInvocations() {
+        return sums(TIMED);
+    }
+
+    public long[] getAverageNanos() {
+        long[] values = new long[probes.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = averageNanos(i);
+        }
+        return values;
+    }
+
+    public long[] getMaxNanos() {
+        return toArray(maxNanos);
+    }
+
+    public long[] getEstimatedNanos() {
+        long[] values = new long[probes.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = estimatedNanos(i);
+        }
+        return values;
+    }
+
+    public long getTotalInvocations() {
+        long total = 0;
+        for (int i = 0; i < probes.length; i++) {
+            total += invocations(i);
+        }
+        return total;
+    }
+
+    public long getTotalExceptions() {
+        long total = otherExceptions.get();
+        for (int i = 0; i < probes.length; i++) {
+            total += sum(i, EXCEPTIONS);
+        }
+        return total;
+    }
+
+    public long getTotalEstimatedNanos() {
+        long total = 0;
+        for (int i = 0; i < probes.length; i++) {
+            total += estimatedNanos(i);
+        }
+        return total;
+    }
+
+    public int getCommandQueueDepth() {
+        return runtime.getQueueDepth();
+    }
+
+    public long getDroppedCommands() {
+        return runtime.getDroppedCommands();
+    }
+
+    public long getTransformedClasses() {
+        return transformedClasses.get();
+    }
+
+    public long getTransformNanos() {
+        return transformNanos.get();
+    }
+
+    /**
+     * Takes a snapshot of the metrics to be sent to the client
+     */
+    public MetricsCommand toCommand() {
+        long[][] probeStats = new long[probes.length][MetricsCommand.PROBE_STATS];
+        for (int i = 0; i < probes.length; i++) {
+            long[] stats = probeStats[i];
+            stats[MetricsCommand.INVOCATIONS] = invocations(i);
+            stats[MetricsCommand.SKIPS] = sum(i, SKIPS);
+            stats[MetricsCommand.EXCEPTIONS] = sum(i, EXCEPTIONS);
+            stats[MetricsCommand.TIMED] = timed(i);
+            stats[MetricsCommand.AVERAGE_NANOS] = averageNanos(i);
+            stats[MetricsCommand.MAX_NANOS] = maxNanos.get(i);
+            stats[MetricsCommand.ESTIMATED_NANOS] = estimatedNanos(i);
+            stats[MetricsCommand.THROTTLE_INTERVAL] = throttleInterval(i);
+            stats[MetricsCommand.THROTTLED] = sum(i, THROTTLED);
+        }
+        long[] scriptStats = new long[MetricsCommand.SCRIPT_STATS];
+        scriptStats[MetricsCommand.SAMPLE_INTERVAL] = sampleInterval;
+        scriptStats[MetricsCommand.QUEUE_DEPTH] = getCommandQueueDepth();
+        scriptStats[MetricsCommand.DROPPED_COMMANDS] = getDroppedCommands();
+        scriptStats[MetricsCommand.TRANSFORMED_CLASSES] = transformedClasses.get();
+        scriptStats[MetricsCommand.TRANSFORM_NANOS] = transformNanos.get();
+        scriptStats[MetricsCommand.SCRIPT_EXCEPTIONS] = getTotalExceptions();
+        return new MetricsCommand(scriptName, probes.clone(), probeStats, scriptStats);
+    }
+
+    void registerMBean() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName on = objectName();
+            if (server.isRegistered(on)) {
+                server.unregisterMBean(on);
+            }
+            server.registerMBean(this, on);
+        } catch (RuntimeException re) {
+            throw re;
+        } catch (Exception exp) {
+            throw new RuntimeException(exp);
+        }
+    }
+
+    void unregisterMBean() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName on = objectName();
+            if (server.isRegistered(on)) {
+                server.unregisterMBean(on);
+            }
+        } catch (Exception ignored) {
+        }
+    }
+
+    private ObjectName objectName() throws Exception {
+        return new ObjectName("btrace:type=ProbeMetrics,name=" + ObjectName.quote(scriptName));
+    }
+
+    private long invocations(int probe) {
+        return sum(probe, INVOCATIONS);
+    }
+
+    // the index of the counters of the current thread's stripe
+    private static int stripe(int probe) {
+        int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+        return ((probe << STRIPE_SHIFT) + stripe) << PAD_SHIFT;
+    }
+
+    private long sum(int probe, int counter) {
+        long total = 0;
+        int base = probe << STRIPE_SHIFT;
+        for (int s = 0; s < STRIPES; s++) {
+            total += counters.get(((base + s) << PAD_SHIFT) + counter);
+        }
+        return total;
+    }
+
+    private long[] sums(int counter) {
+        long[] values = new long[probes.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = sum(i, counter);
+        }
+        return values;
+    }
+
+    private long averageNanos(int probe) {
+        long count = timed(probe);
+        return count != 0 ? timedNanos(probe) / count : 0L;
+    }
+
+    private long estimatedNanos(int probe) {
+        return averageNanos(probe) * runs(probe);
+    }
+
+    private static long[] toArray(AtomicLongArray array) {
+        long[] values = new long[array.length()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = array.get(i);
+        }
+        return values;
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2008-2010 Sun Microsystems, Inc.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Sun designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Sun in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Sun Microsystems, Inc., 4150 Network Circle, Santa Clara,
+ * CA 95054 USA or visit www.sun.com if you need additional information or
+ * have any questions.
+ */
+package com.sun.btrace;
+
+/**
+ * The self-metrics of a BTrace program as seen over JMX. The array
+ * attributes are indexed like {@linkplain #getProbeNames()}; the times are
+ * in nanoseconds.
+ *
+ * @see ProbeMetrics
+ */
+public interface ProbeMetricsMBean {
+    String getScriptName();
+
+    /**
+     * Every how many invocations of a probe handler one is timed;
+     * 0 if the handlers are not timed at all.
+     */
+    int getSampleInterval();
+
+    String[] getProbeNames();
+
+    long[] getInvocations();
+
+    /**
+     * The invocations skipped because the thread was already running
+     * a BTrace handler.
+     */
+    long[] getReentrantSkips();
+
+    /**
+     * Every how many invocations the handlers run, 1 unless throttled
+     * by the overhead budget, 0 if disabled by it.
+     */
+    long[] getThrottleIntervals();
+
+    /**
+     * The invocations skipped because the handler was throttled.
+     */
+    long[] getThrottledInvocations();
+
+    long[] getExceptions();
+
+    long[] getTimedInvocations();
+
+    long[] getAverageNanos();
+
+    long[] getMaxNanos();
+
+    /**
+     * The average time of the timed invocations times the number of
+     * the invocations run.
+     */
+    long[] getEstimatedNanos();
+
+    long getTotalInvocations();
+
+    /**
+     * The exceptions thrown by all the handlers, the static initializer
+     * included.
+     */
+    long getTotalExceptions();
+
+    long getTotalEstimatedNanos();
+
+    int getCommandQueueDepth();
+
+    long getDroppedCommands();
+
+    long getTransformedClasses();
+
+    long getTransformNanos();
+}
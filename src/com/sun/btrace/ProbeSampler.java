@@ -0,0 +1,137 @@
+/*
+ * Copyright 2008-2010 Sun Microsystems, Inc.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Sun designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Sun in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Sun Microsystems, Inc., 4150 Network Circle, Santa Clara,
+ * CA 95054 USA or visit www.sun.com if you need additional information or
+ * have any questions.
+ */
+
+package com.sun.btrace;
+
+import com.sun.btrace.annotations.Sampler;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which calls of a sampled probe location run the probe handler
+ * (see {@linkplain com.sun.btrace.annotations.Sampled}). Each thread stripe
+ * counts down the calls to its next sample; the sampled call stands for
+ * all the calls of the stripe since the previous one, which is the weight
+ * the handler adds its aggregation data with.
+ * <ul>
+ * <li>{@linkplain Sampler#CONST}: every <i>mean</i>-th call</li>
+ * <li>{@linkplain Sampler#RANDOM}: intervals drawn uniformly from
+ * [1, 2 * <i>mean</i> - 1], so that periodic call patterns are not
+ * sampled at the same phase</li>
+ * <li>{@linkplain Sampler#ADAPTIVE}: the interval is doubled or halved to
+ * keep close to <i>rate</i> samples per second</li>
+ * </ul>
+ * The countdowns are plain array slots, one cache line per stripe; threads
+ * sharing a stripe may lose a decrement now and then, which only perturbs
+ * the sampling.
+ */
+final class ProbeSampler {
+    private static final int MAX_STRIPES = 32;
+    // one stripe per cache line of 8 longs: the countdown, the interval
+    // it started from and the random state
+    private static final int PAD_SHIFT = 3;
+    private static final int COUNTDOWN = 0;
+    private static final int INTERVAL = 1;
+    private static final int SEED = 2;
+    private static final int STRIPES;
+    static {
+        int stripes = 1;
+        int cpus = Runtime.getRuntime().availableProcessors();
+        while (stripes < cpus && stripes < MAX_STRIPES) {
+            stripes <<= 1;
+        }
+        STRIPES = stripes;
+    }
+    // bounds of the adaptive interval
+    private static final long MAX_ADAPTIVE_INTERVAL = 1L << 20;
+
+    private final Sampler kind;
+    private final long mean;
+    // nanoseconds between two samples at the requested rate
+    private final long period;
+    private final long[] stripes = new long[STRIPES << PAD_SHIFT];
+    private volatile long adaptiveInterval;
+    private final AtomicLong lastSample = new AtomicLong(System.nanoTime());
+
+    ProbeSampler(Sampler kind, int mean, int rate) {
+        this.kind = kind;
+        this.mean = Math.max(mean, 1);
+        this.period = 1000000000L / Math.max(rate, 1);
+        this.adaptiveInterval = this.mean;
+    }
+
+    /**
+     * Counts a call of the sampled location.
+     * @return 0 if the handler is not to run for this call, otherwise the
+     *         number of calls the sample stands for
+     */
+    long sample() {
+        long[] s = stripes;
+        int base = ((int) Thread.currentThread().getId() & (STRIPES - 1)) << PAD_SHIFT;
+        long countdown = s[base + COUNTDOWN] - 1;
+        if (countdown > 0) {
+            s[base + COUNTDOWN] = countdown;
+            return 0L;
+        }
+        // the very first call of a stripe stands for itself only
+        long weight = Math.max(s[base + INTERVAL], 1L);
+        long next = nextInterval(s, base);
+        s[base + COUNTDOWN] = next;
+        s[base + INTERVAL] = next;
+        return weight;
+    }
+
+    private long nextInterval(long[] s, int base) {
+        switch (kind) {
+            case RANDOM: {
+                long x = s[base + SEED];
+                if (x == 0L) {
+                    x = System.nanoTime() ^ ((base + 1) * 0x9E3779B97F4A7C15L);
+                    if (x == 0L) {
+                        x = 1L;
+                    }
+                }
+                // xorshift
+                x ^= x << 13;
+                x ^= x >>> 7;
+                x ^= x << 17;
+                s[base + SEED] = x;
+                return 1L + (x >>> 1) % (2 * mean - 1);
+            }
+            case ADAPTIVE: {
+                long now = System.nanoTime();
+                long gap = now - lastSample.getAndSet(now);
+                long interval = adaptiveInterval;
+                if (gap < period / 2 && interval < MAX_ADAPTIVE_INTERVAL) {
+                    adaptiveInterval = interval = interval << 1;
+                } else if (gap > period * 2 && interval > 1L) {
+                    adaptiveInterval = interval = interval >> 1;
+                }
+                return interval;
+            }
+            default:
+                return mean;
+        }
+    }
+}
@@ -0,0 +1,413 @@
+/*
+ * Copyright 2008-2010 Sun Microsystems, Inc.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Sun designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Sun in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Sun Microsystems, Inc., 4150 Network Circle, Santa Clara,
+ * CA 95054 USA or visit www.sun.com if you need additional information or
+ * have any questions.
+ */
+package com.sun.btrace;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import sun.misc.JavaLangAccess;
+import sun.misc.SharedSecrets;
+
+/**
+ * Collects the stack traces of the current thread into a table of
+ * distinct stacks and their hit counts.
+ * <p>
+ * Only the top <i>depth</i> frames are captured. Every frame is interned
+ * once into the frame table of the sampler and a stack is kept as an
+ * <code>int[]</code> of frame ids; identical stacks share one entry and
+ * just bump its counter. Clearing the sampler drops the frames as well.
+ * Nothing is formatted in the traced thread - the frame names are built
+ * the first time the samples are printed, and cached afterwards.
+ * <p>
+ * The number of distinct stacks is bounded, and so is the number of
+ * distinct frames (by <i>depth</i> times the number of stacks); once the
+ * table is full new stacks are only counted as dropped. The output format of
+ * {@linkplain #toFolded(boolean) } is the "folded" format understood by the
+ * usual flame graph tools.
+ */
+public final class StackSampler {
+    private static final int DEFAULT_MAX_STACKS = 4096;
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+    // frame and frame id scratch buffers of the current thread
+    private static final class Scratch {
+        StackTraceElement[] frames = new StackTraceElement[32];
+        int[] ids = new int[32];
+    }
+    private static final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    // access to single frames of a Throwable, without creating them all
+    private static final JavaLangAccess jla;
+    static {
+        JavaLangAccess access = null;
+        try {
+            access = SharedSecrets.getJavaLangAccess();
+            Throwable t = new Throwable();
+            if (access.getStackTraceDepth(t) > 0) {
+                access.getStackTraceElement(t, 0);
+            }
+        } catch (Throwable th) {
+            // not available in this JDK, fall back to getStackTrace()
+            access = null;
+        }
+        jla = access;
+    }
+
+    private static final class Entry {
+        private static final AtomicLongFieldUpdater<Entry> COUNT =
+            AtomicLongFieldUpdater.newUpdater(Entry.class, "count");
+
+        final int hash;
+        final int[] frames;
+        volatile long count;
+
+        Entry(int hash, int[] frames) {
+            this.hash = hash;
+            this.frames = frames;
+        }
+    }
+
+    private static final class Table {
+        final AtomicReferenceArray<Entry> entries;
+        final AtomicInteger size = new AtomicInteger();
+        final AtomicLong dropped = new AtomicLong();
+
+        // interned stack frames of the stacks in this table
+        final ConcurrentHashMap<StackTraceElement, Integer> frameIds =
+            new ConcurrentHashMap<StackTraceElement, Integer>();
+        // frame id -> frame; grown under the table lock
+        volatile StackTraceElement[] frames = new StackTraceElement[64];
+        // frame id -> printable name; filled lazily
+        volatile String[] frameNames = new String[64];
+        int frameCount;
+
+        Table(int capacity) {
+            entries = new AtomicReferenceArray<Entry>(capacity);
+        }
+    }
+
+    private final int depth;
+    private final int maxStacks;
+    private final int capacity;
+    private final int maxFrames;
+    private volatile Table table;
+    private volatile boolean released;
+
+    StackSampler(int depth) {
+        this(depth, DEFAULT_MAX_STACKS);
+    }
+
+    StackSampler(int depth, int maxStacks) {
+        if (depth <= 0 || maxStacks <= 0) {
+            throw new IllegalArgumentException();
+        }
+        this.depth = depth;
+        this.maxStacks = maxStacks;
+        int cap = 16;
+        // keep the table at most half full
+        while (cap < maxStacks * 2) {
+            cap <<= 1;
+        }
+        this.capacity = cap;
+        long frameLimit = (long) depth * maxStacks;
+        this.maxFrames = (int) Math.min(frameLimit, Integer.MAX_VALUE);
+        this.table = new Table(cap);
+    }
+
+    /**
+     * @return the maximum number of frames captured per stack
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * @return the number of distinct stacks collected so far
+     */
+    public int getStackCount() {
+        return table.size.get();
+    }
+
+    /**
+     * @return the number of samples dropped because the table was full
+     */
+    public long getDroppedCount() {
+        return table.dropped.get();
+    }
+
+    /**
+     * Records the stack of the current thread.
+     *
+     * @param strip the number of frames of the caller's own to leave out;
+     *        the frame of this method is always left out
+     */
+    void record(int strip) {
+        if (released) {
+            return;
+        }
+        strip++;
+        Scratch s = scratch.get();
+        if (s.ids.length < depth) {
+            s.frames = new StackTraceElement[depth];
+            s.ids = new int[depth];
+        }
+        StackTraceElement[] fr = s.frames;
+        int[] ids = s.ids;
+        Throwable th = new Throwable();
+        int n = 0;
+        if (jla != null) {
+            int limit = Math.min(jla.getStackTraceDepth(th), strip + depth);
+            for (int i = strip; i < limit; i++) {
+                fr[n++] = jla.getStackTraceElement(th, i);
+            }
+        } else {
+            StackTraceElement[] st = th.getStackTrace();
+            int limit = Math.min(st.length, strip + depth);
+            for (int i = strip; i < limit; i++) {
+                fr[n++] = st[i];
+            }
+        }
+
+        Table t = table;
+        int missing = 0;
+        for (int i = 0; i < n; i++) {
+            Integer id = t.frameIds.get(fr[i]);
+            if (id != null) {
+                ids[i] = id.intValue();
+            } else {
+                ids[i] = -1;
+                missing++;
+            }
+        }
+        boolean fits = missing == 0 || internFrames(t, fr, ids, n);
+        Arrays.fill(fr, 0, n, null);
+        if (fits) {
+            add(t, ids, n);
+        } else {
+            t.dropped.incrementAndGet();
+        }
+    }
+
+    private void add(Table t, int[] ids, int n) {
+        int hash = n;
+        for (int i = 0; i < n; i++) {
+            hash = hash * 31 + ids[i];
+        }
+        hash ^= (hash >>> 16);
+
+        AtomicReferenceArray<Entry> entries = t.entries;
+        int mask = capacity - 1;
+        int idx = hash & mask;
+        Entry created = null;
+        while (true) {
+            Entry e = entries.get(idx);
+            if (e == null) {
+                if (created == null) {
+                    if (t.size.incrementAndGet() > maxStacks) {
+                        t.size.decrementAndGet();
+                        t.dropped.incrementAndGet();
+                        return;
+                    }
+                    int[] copy = new int[n];
+                    System.arraycopy(ids, 0, copy, 0, n);
+                    created = new Entry(hash, copy);
+                }
+                if (entries.compareAndSet(idx, null, created)) {
+                    Entry.COUNT.incrementAndGet(created);
+                    return;
+                }
+                continue;
+            }
+            if (e.hash == hash && sameFrames(e.frames, ids, n)) {
+                if (created != null) {
+                    // lost a race for the same stack
+                    t.size.decrementAndGet();
+                }
+                Entry.COUNT.incrementAndGet(e);
+                return;
+            }
+            idx = (idx + 1) & mask;
+        }
+    }
+
+    private static boolean sameFrames(int[] frames, int[] ids, int n) {
+        if (frames.length != n) {
+            return false;
+        }
+        for (int i = 0; i < n; i++) {
+            if (frames[i] != ids[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Interns the frames of a stack with no id yet (-1 in ids). Either all
+     * of them fit into the frame table of t or none is added.
+     * Returns false when they do not fit.
+     */
+    private boolean internFrames(Table t, StackTraceElement[] frames, int[] ids, int n) {
+        synchronized (t) {
+            int missing = 0;
+            for (int i = 0; i < n; i++) {
+                if (ids[i] < 0) {
+                    Integer id = t.frameIds.get(frames[i]);
+                    if (id != null) {
+                        ids[i] = id.intValue();
+                    } else {
+                        missing++;
+                    }
+                }
+            }
+            if (missing > maxFrames - t.frameCount) {
+                return false;
+            }
+            for (int i = 0; i < n; i++) {
+                if (ids[i] < 0) {
+                    // a recursive stack may repeat a frame
+                    Integer id = t.frameIds.get(frames[i]);
+                    ids[i] = id != null ? id.intValue() : newFrameId(t, frames[i]);
+                }
+            }
+            return true;
+        }
+    }
+
+    // called with the lock of t held and room for one more frame
+    private int newFrameId(Table t, StackTraceElement frame) {
+        int newId = t.frameCount;
+        StackTraceElement[] fr = t.frames;
+        if (newId == fr.length) {
+            int len = (int) Math.min(newId * 2L, maxFrames);
+            StackTraceElement[] grown = new StackTraceElement[len];
+            System.arraycopy(fr, 0, grown, 0, newId);
+            String[] names = new String[len];
+            System.arraycopy(t.frameNames, 0, names, 0, newId);
+            t.frameNames = names;
+            fr = grown;
+        }
+        fr[newId] = frame;
+        t.frames = fr;
+        t.frameCount = newId + 1;
+        t.frameIds.put(frame, Integer.valueOf(newId));
+        return newId;
+    }
+
+    private static String frameName(Table t, int id) {
+        String[] names = t.frameNames;
+        String name = names[id];
+        if (name == null) {
+            StackTraceElement frame = t.frames[id];
+            StringBuilder buf = new StringBuilder();
+            buf.append(frame.getClassName()).append('.').append(frame.getMethodName());
+            if (frame.getLineNumber() >= 0) {
+                buf.append(':').append(frame.getLineNumber());
+            }
+            name = buf.toString();
+            // racy, but all threads compute the same name
+            names[id] = name;
+        }
+        return name;
+    }
+
+    /**
+     * Drops all the collected stacks
+     */
+    public void clear() {
+        if (! released) {
+            table = new Table(capacity);
+        }
+    }
+
+    /**
+     * Drops all the collected stacks and stops recording new ones.
+     * Called when the BTrace program that created the sampler goes away.
+     */
+    void release() {
+        released = true;
+        table = new Table(1);
+    }
+
+    /**
+     * Returns the collected stacks in the folded format - one line per
+     * distinct stack with the frames listed from the outermost one, separated
+     * by ';', followed by the number of samples. The most frequent stacks
+     * come first.
+     *
+     * @param reset whether to drop the collected stacks afterwards
+     */
+    public String toFolded(boolean reset) {
+        Table t = table;
+        if (reset) {
+            clear();
+        }
+        List<Entry> list = new ArrayList<Entry>();
+        AtomicReferenceArray<Entry> entries = t.entries;
+        for (int i = 0; i < entries.length(); i++) {
+            Entry e = entries.get(i);
+            if (e != null) {
+                list.add(e);
+            }
+        }
+        Collections.sort(list, new Comparator<Entry>() {
+            public int compare(Entry e1, Entry e2) {
+                long c1 = e1.count;
+                long c2 = e2.count;
+                return c1 < c2 ? 1 : (c1 == c2 ? 0 : -1);
+            }
+        });
+        StringBuilder buf = new StringBuilder();
+        for (Entry e : list) {
+            int[] fr = e.frames;
+            for (int i = fr.length - 1; i >= 0; i--) {
+                buf.append(frameName(t, fr[i]));
+                if (i > 0) {
+                    buf.append(';');
+                }
+            }
+            buf.append(' ').append(e.count);
+            buf.append(LINE_SEPARATOR);
+        }
+        long dropped = t.dropped.get();
+        if (dropped > 0) {
+            buf.append("[dropped] ").append(dropped);
+            buf.append(LINE_SEPARATOR);
+        }
+        return buf.toString();
+    }
+}
@@ -41,159 +41,207 @@
 
 package com.sun.btrace;
 
-import java.io.IOException;
-import java.lang.ref.WeakReference;
+import java.util.concurrent.CountDownLatch;
 
 /**
+ * Keeps track of the {@linkplain BTraceRuntime} a thread has entered.
+ * <p>
+ * Each thread gets its own {@linkplain Slot} the first time it enters;
+ * the slots live in a {@linkplain ThreadSlotTable} indexed by the thread id.
+ * Looking up a slot is a plain array probe and the slot value is only
+ * ever read and written by its owner thread, so once a thread has been
+ * registered {@linkplain #enter(java.lang.Object)}, {@linkplain #exit()}
+ * and {@linkplain #get()} neither lock nor allocate.
+ * <p>
+ * Registering a new thread takes the table lock; the slots of terminated
+ * threads are dropped by the table.
  *
  * @author Jaroslav Bachorik <jaroslav.bachorik@sun.com>
  */
 final public class ThreadEnteredMap {
-    final private static int SECTIONS = 13;
-    final private static int BUCKETS = 27;
-    final private static int DEFAULT_BUCKET_SIZE = 4;
+    /**
+     * Per-thread entry state. Padded so that the value written on each
+     * enter/exit does not share a cache line with another thread's slot.
+     */
+    final private static class Slot extends ThreadSlotTable.Entry {
+        Object value;
+        // set on enter, handed back on exit
+        long mark;
+        // calls the current probe stands for, and the weight given by
+        // the sampler for the next enter
+        long weight = 1L, pending = 1L;
+        // padding against false sharing
+        long p1, p2, p3, p4;
 
-    final private Object[][][] map = new Object[SECTIONS][BUCKETS][];
-    final private int[][] mapPtr = new int[SECTIONS][BUCKETS];
+        Slot(Thread thread, Object value, long mark) {
+            super(thread);
+            this.value = value;
+            this.mark = mark;
+        }
+    }
+
+    private final ThreadSlotTable<Slot> slots = new ThreadSlotTable<Slot>();
 
-    private Object nullValue;
+    final private Object nullValue;
 
     public ThreadEnteredMap(Object nullValue) {
         this.nullValue = nullValue;
     }
 
-    public static void main(String[] args) throws IOException {
-        ThreadEnteredMap instance = new ThreadEnteredMap("null");
-        long cnt = 0;
-        long start = System.nanoTime();
-        for(int i=0;i<4000000;i++) {
-            cnt += i;
+    /**
+     * Simple multi-threaded harness measuring the enter/exit round trip.
+     * Usage: <code>ThreadEnteredMap [iterations] [threads...]</code>; by default
+     * it runs 10M iterations per thread with 1, 4, 16 and 64 threads.
+     */
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 10000000;
+        int[] threadCounts = new int[]{1, 4, 16, 64};
+        if (args.length > 1) {
+            threadCounts = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++) {
+                threadCounts[i - 1] = Integer.parseInt(args[i]);
+            }
         }
-        long dur = System.nanoTime() - start;
-        System.err.println("#" + cnt + " in " + dur + "ns");
-        System.err.println(dur / 4000000);
 
-        for(int i=0;i<400000;i++) {
-            instance.enter("in");
-            instance.exit();
+        // warm up the enter/exit paths
+        runBenchmark(4, iterations / 10);
+
+        System.out.println("threads\ttotal ops\ttime [ms]\tns/op per thread\tMops/s");
+        for (int threads : threadCounts) {
+            long ops = (long)threads * iterations;
+            long dur = runBenchmark(threads, iterations);
+            System.out.println(threads + "\t" + ops + "\t" + (dur / 1000000) + "\t" +
+                               ((double)dur * threads / ops) + "\t" +
+                               ((double)ops * 1000 / dur));
         }
+    }
 
+    private static long runBenchmark(int threads, final int iterations) throws InterruptedException {
         final ThreadEnteredMap tem = new ThreadEnteredMap("null");
-        cnt = 0;
-        System.err.println("Ready?");
-        System.in.read();
-        Thread[] thrd = new Thread[200];
-        for(int i=0;i<4;i++) {
-            final int idx = i;
-            thrd[i] = new Thread(new Runnable() {
-
+        final CountDownLatch ready = new CountDownLatch(threads);
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final Object rt = new Object();
+        for (int i = 0; i < threads; i++) {
+            Thread t = new Thread(new Runnable() {
                 public void run() {
-                    long cnt = 0;
-                    long start = System.nanoTime();
-                    for(int i=0;i<4000000;i++) {
-                        tem.enter("in");
-
-                        cnt += i;
-                        tem.exit();
+                    try {
+                        ready.countDown();
+                        start.await();
+                        for (int i = 0; i < iterations; i++) {
+                            if (tem.enter(rt)) {
+                                tem.exit();
+                            } else {
+                                throw new IllegalStateException("unexpected re-entry");
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
                     }
-                    long dur = System.nanoTime() - start;
-                    System.out.println("Thread #" + idx);
-                    System.err.println("#" + cnt + " in " + dur + "ns");
-                    System.err.println(dur / 4000000);
                 }
-            }, "Thread#" + i);
+            }, "ThreadEnteredMap#" + i);
+            t.setDaemon(true);
+            t.start();
         }
-        for(int i=0;i<4;i++) {
-            thrd[i].start();
-        }
-        
+        ready.await();
+        long time = System.nanoTime();
+        start.countDown();
+        done.await();
+        return System.nanoTime() - time;
     }
 
     public Object get() {
-        Thread thrd = Thread.currentThread();
-        long thrdId = thrd.getId();
-        int sectionId = (int)(((thrdId << 1) - (thrdId << 8)) & (SECTIONS - 1));
-        Object[][] section = map[sectionId];
-        int[] sectionPtr = mapPtr[sectionId];
-        int bucketId = (int)(int)(((thrdId << 1) - (thrdId << 8)) & (BUCKETS - 1));
-        synchronized(section) {
-            Object[] bucket = section[bucketId];
-            if (bucket != null && bucket.length > 0) {
-                int ptr = sectionPtr[bucketId];
-                for(int i=0;i<ptr;i+=2) {
-                    Thread bThread = ((WeakReference<Thread>)bucket[i]).get();
-                    if (bThread == thrd) {
-                        return bucket[i+1] == nullValue ? null : bucket[i+1];
-                    }
-                }
-            }
-            return null;
+        Slot slot = findSlot(Thread.currentThread());
+        if (slot != null) {
+            Object value = slot.value;
+            return value == nullValue ? null : value;
         }
+        return null;
     }
 
     public boolean enter(Object rt) {
+        return enter(rt, 0L);
+    }
+
+    /**
+     * Enters like {@linkplain #enter(java.lang.Object)} and keeps the given
+     * mark (eg. a time stamp) until the matching {@linkplain #exit()}.
+     */
+    public boolean enter(Object rt, long mark) {
         Thread thrd = Thread.currentThread();
-        long thrdId = thrd.getId();
-        int sectionId = (int)(((thrdId << 1) - (thrdId << 8)) & (SECTIONS - 1));
-        Object[][] section = map[sectionId];
-        int[] sectionPtr = mapPtr[sectionId];
-        int bucketId = (int)(int)(((thrdId << 1) - (thrdId << 8)) & (BUCKETS - 1));
-        synchronized(section) {
-            Object[] bucket = section[bucketId];
-            int ptr = sectionPtr[bucketId];
-            if (bucket != null && bucket.length > 0) {
-                for(int i=0;i<ptr;i+=2) {
-                    Thread bThread = ((WeakReference<Thread>)bucket[i]).get();
-                    if (bThread == null) {
-                        // the previous thread with the same ID has already been GCd
-                        bucket[i] = new WeakReference<Thread>(thrd);
-                        bucket[i+1] = rt;
-                        return true;
-                    } else if (bThread == thrd) {
-                        if (bucket[i+1] == nullValue) {
-                            bucket[i+1] = rt;
-                            return true;
-                        }
-                        return false;
-                    }
-                }
-            }
-            if (bucket == null || bucket.length == 0) {
-                bucket = new Object[DEFAULT_BUCKET_SIZE * 2];
-                section[bucketId] = bucket;
-            } else {
-                if (ptr >= bucket.length) {
-                    Object[] newBucket = new Object[bucket.length * 2];
-                    System.arraycopy(bucket, 0, newBucket, 0, bucket.length);
-                    bucket = newBucket;
-                    section[bucketId] = bucket;
-                }
-            }
-            bucket[ptr++] = new WeakReference<Thread>(thrd);
-            bucket[ptr++] = rt;
-            mapPtr[sectionId][bucketId] = ptr;
+        Slot slot = findSlot(thrd);
+        if (slot == null) {
+            return register(thrd, rt, mark);
+        }
+        if (slot.value == nullValue) {
+            slot.value = rt;
+            slot.mark = mark;
+            slot.weight = slot.pending;
+            slot.pending = 1L;
             return true;
         }
+        slot.pending = 1L;
+        return false;
     }
 
-    public void exit() {
+    /**
+     * Sets the weight of the next {@linkplain #enter(java.lang.Object, long)}
+     * of the current thread: the number of calls a sampled probe stands for.
+     * A weight which is not consumed by an enter is dropped by the next one.
+     */
+    public void sampled(long weight) {
         Thread thrd = Thread.currentThread();
-        long thrdId = thrd.getId();
-        int sectionId = (int)(((thrdId << 1) - (thrdId << 8)) & (SECTIONS - 1));
-        Object[][] section = map[sectionId];
-        int[] sectionPtr = mapPtr[sectionId];
-        int bucketId = (int)(int)(((thrdId << 1) - (thrdId << 8)) & (BUCKETS - 1));
-        synchronized(section) {
-            Object[] bucket = section[bucketId];
-            if (bucket != null && bucket.length > 0) {
-                int ptr = sectionPtr[bucketId];
-                for(int i=0;i<ptr;i+=2) {
-                    Thread bThread = ((WeakReference<Thread>)bucket[i]).get();
-                    if (bThread == thrd) {
-                        bucket[i+1] = nullValue;
-                    }
-                }
+        Slot slot = findSlot(thrd);
+        if (slot == null) {
+            slot = slots.add(new Slot(thrd, nullValue, 0L));
+        }
+        slot.pending = weight;
+    }
+
+    /**
+     * Returns the weight of the probe the current thread has entered;
+     * 1 unless it is a sampled one.
+     */
+    public long weight() {
+        Slot slot = findSlot(Thread.currentThread());
+        return slot != null ? slot.weight : 1L;
+    }
+
+    /**
+     * Exits and returns the mark given on enter
+     */
+    public long exit() {
+        Slot slot = findSlot(Thread.currentThread());
+        if (slot != null) {
+            slot.value = nullValue;
+            long mark = slot.mark;
+            slot.mark = 0L;
+            return mark;
+        }
+        return 0L;
+    }
+
+    private Slot findSlot(Thread thrd) {
+        return slots.find(thrd);
+    }
+
+    private boolean register(Thread thrd, Object rt, long mark) {
+        Slot added = new Slot(thrd, rt, mark);
+        Slot slot = slots.add(added);
+        if (slot != added) {
+            // can only happen if we re-entered from the table maintenance code
+            if (slot.value == nullValue) {
+                slot.value = rt;
+                slot.mark = mark;
+                slot.weight = slot.pending;
+                slot.pending = 1L;
+                return true;
             }
+            slot.pending = 1L;
+            return false;
         }
+        return true;
     }
 }
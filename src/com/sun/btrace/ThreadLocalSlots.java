@@ -0,0 +1,179 @@
+/*
+ * Copyright 2008-2010 Sun Microsystems, Inc.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Sun designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Sun in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Sun Microsystems, Inc., 4150 Network Circle, Santa Clara,
+ * CA 95054 USA or visit www.sun.com if you need additional information or
+ * have any questions.
+ */
+
+package com.sun.btrace;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+
+/**
+ * Storage for the @TLS fields of a BTrace program.
+ * <p>
+ * Each @TLS field gets a fixed slot number when the program is
+ * preprocessed: primitive fields get a slot in a <code>long[]</code>
+ * (float and double values are stored as their raw bits) and reference
+ * fields a slot in an <code>Object[]</code>. Every thread gets its own
+ * {@linkplain Slots} the first time it touches the fields; a preprocessed
+ * action method looks them up once on entry and then reads and writes the
+ * fields as plain array elements - no ThreadLocal hash probes and no
+ * boxing of primitives.
+ * <p>
+ * The per-thread slots live in a {@linkplain ThreadSlotTable}, just like
+ * the entered state in {@linkplain ThreadEnteredMap}; the slots of
+ * terminated threads are dropped by the table.
+ */
+public final class ThreadLocalSlots {
+    /**
+     * The @TLS field values of one thread
+     */
+    public static final class Slots extends ThreadSlotTable.Entry {
+        final long[] values;
+        final Object[] objects;
+
+        Slots(Thread thread, long[] values, Object[] objects) {
+            super(thread);
+            this.values = values;
+            this.objects = objects;
+        }
+    }
+
+    // initial values given to every new thread
+    private final long[] initValues;
+    private final Object[] initObjects;
+
+    private final ThreadSlotTable<Slots> table = new ThreadSlotTable<Slots>();
+
+    ThreadLocalSlots(int values, int objects) {
+        initValues = new long[values];
+        initObjects = new Object[objects];
+    }
+
+    // initial values, set by the preprocessed <clinit> only
+
+    public void initInt(int slot, int value) {
+        initValues[slot] = value;
+    }
+
+    public void initLong(int slot, long value) {
+        initValues[slot] = value;
+    }
+
+    public void initFloat(int slot, float value) {
+        initValues[slot] = Float.floatToRawIntBits(value);
+    }
+
+    public void initDouble(int slot, double value) {
+        initValues[slot] = Double.doubleToRawLongBits(value);
+    }
+
+    /**
+     * Sets the initial value of a reference slot. The value must be
+     * immutable or {@linkplain Cloneable} - in the latter case each
+     * thread gets its own clone.
+     */
+    public void initObject(int slot, Object value) {
+        initObjects[slot] = value;
+    }
+
+    /**
+     * Returns the slots of the current thread, creating them on first use.
+     */
+    public Slots get() {
+        Thread thrd = Thread.currentThread();
+        Slots slots = table.find(thrd);
+        return slots != null ? slots : register(thrd);
+    }
+
+    // accessors called by preprocessed BTrace code
+
+    public static int getInt(Slots slots, int slot) {
+        return (int) slots.values[slot];
+    }
+
+    public static void putInt(int value, Slots slots, int slot) {
+        slots.values[slot] = value;
+    }
+
+    public static long getLong(Slots slots, int slot) {
+        return slots.values[slot];
+    }
+
+    public static void putLong(long value, Slots slots, int slot) {
+        slots.values[slot] = value;
+    }
+
+    public static float getFloat(Slots slots, int slot) {
+        return Float.intBitsToFloat((int) slots.values[slot]);
+    }
+
+    public static void putFloat(float value, Slots slots, int slot) {
+        slots.values[slot] = Float.floatToRawIntBits(value);
+    }
+
+    public static double getDouble(Slots slots, int slot) {
+        return Double.longBitsToDouble(slots.values[slot]);
+    }
+
+    public static void putDouble(double value, Slots slots, int slot) {
+        slots.values[slot] = Double.doubleToRawLongBits(value);
+    }
+
+    public static Object getObject(Slots slots, int slot) {
+        return slots.objects[slot];
+    }
+
+    public static void putObject(Object value, Slots slots, int slot) {
+        slots.objects[slot] = value;
+    }
+
+    private Slots register(Thread thrd) {
+        Object[] objects = new Object[initObjects.length];
+        for (int i = 0; i < objects.length; i++) {
+            objects[i] = initialValue(initObjects[i]);
+        }
+        return table.add(new Slots(thrd, initValues.clone(), objects));
+    }
+
+    private static Object initialValue(Object value) {
+        if (value != null && value.getClass().isArray()) {
+            // arrays have no accessible clone() method to look up
+            int len = Array.getLength(value);
+            Object copy = Array.newInstance(value.getClass().getComponentType(), len);
+            System.arraycopy(value, 0, copy, 0, len);
+            return copy;
+        }
+        if (value instanceof Cloneable) {
+            try {
+                Method m = value.getClass().getDeclaredMethod("clone");
+                m.setAccessible(true);
+                return m.invoke(value);
+            } catch (Exception e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+        return value;
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2008-2010 Sun Microsystems, Inc.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Sun designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Sun in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Sun Microsystems, Inc., 4150 Network Circle, Santa Clara,
+ * CA 95054 USA or visit www.sun.com if you need additional information or
+ * have any questions.
+ */
+
+package com.sun.btrace;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+
+/**
+ * An open-addressed table of per-thread entries indexed by the thread id,
+ * shared by {@linkplain ThreadEnteredMap} and {@linkplain ThreadLocalSlots}.
+ * <p>
+ * Looking up the entry of a thread is a plain array probe without locking.
+ * Adding an entry takes the table lock; the table is kept at most half full
+ * and is rebuilt and republished when it gets crowded.
+ * <p>
+ * Each added thread also gets a per-table thread local marker. Once the
+ * thread has terminated and the marker has been collected its entry is
+ * queued, and the queued entries are dropped the next time an entry is
+ * added - so the entries of terminated threads do not pile up until the
+ * table happens to grow.
+ */
+final class ThreadSlotTable<E extends ThreadSlotTable.Entry> {
+    private static final int INITIAL_CAPACITY = 64;
+
+    /**
+     * Base class of the table entries
+     */
+    static class Entry {
+        final Thread thread;
+        // set when the thread is known to have terminated; guarded by the table
+        boolean terminated;
+        // keeps the termination reference reachable until it is queued
+        Termination termination;
+
+        Entry(Thread thread) {
+            this.thread = thread;
+        }
+    }
+
+    // cleared once the thread is gone and its marker has been collected
+    private static final class Termination extends WeakReference<Object> {
+        final Entry entry;
+
+        Termination(Object marker, Entry entry, ReferenceQueue<Object> queue) {
+            super(marker, queue);
+            this.entry = entry;
+        }
+    }
+
+    private volatile Entry[] table = new Entry[INITIAL_CAPACITY];
+    // number of occupied entries; guarded by "this"
+    private int size;
+
+    private final ThreadLocal<Object> markers = new ThreadLocal<Object>();
+    private final ReferenceQueue<Object> terminated = new ReferenceQueue<Object>();
+
+    /**
+     * Returns the entry of the given thread or null if there is none yet.
+     */
+    @SuppressWarnings("unchecked")
+    E find(Thread thrd) {
+        Entry[] tab = table;
+        int mask = tab.length - 1;
+        int idx = hash(thrd.getId()) & mask;
+        Entry entry;
+        while ((entry = tab[idx]) != null) {
+            if (entry.thread == thrd) {
+                return (E) entry;
+            }
+            idx = (idx + 1) & mask;
+        }
+        return null;
+    }
+
+    /**
+     * Adds the entry of its thread and returns it, or returns the entry
+     * already added for the thread.
+     */
+    synchronized E add(E entry) {
+        E current = find(entry.thread);
+        if (current != null) {
+            return current;
+        }
+        Object marker = new Object();
+        entry.termination = new Termination(marker, entry, terminated);
+        insert(table, entry);
+        size++;
+        // the entry is in place at this point; any probe fired from the
+        // code below finds it and is rejected as re-entrant
+        markers.set(marker);
+        boolean expunged = false;
+        Termination t;
+        while ((t = (Termination) terminated.poll()) != null) {
+            t.entry.terminated = true;
+            expunged = true;
+        }
+        Entry[] tab = table;
+        if (expunged || size * 2 > tab.length) {
+            rebuild(tab);
+        }
+        return entry;
+    }
+
+    /**
+     * Drops the entries of terminated threads and republishes the table,
+     * doubling its capacity if it is still too crowded.
+     */
+    private void rebuild(Entry[] tab) {
+        int live = 0;
+        for (Entry entry : tab) {
+            if (isLive(entry)) {
+                live++;
+            }
+        }
+        int capacity = tab.length;
+        while (live * 4 > capacity) {
+            capacity <<= 1;
+        }
+        Entry[] newTab = new Entry[capacity];
+        for (Entry entry : tab) {
+            if (isLive(entry)) {
+                insert(newTab, entry);
+            }
+        }
+        size = live;
+        table = newTab;
+    }
+
+    private static boolean isLive(Entry entry) {
+        return entry != null && !entry.terminated && entry.thread.isAlive();
+    }
+
+    private static void insert(Entry[] tab, Entry entry) {
+        int mask = tab.length - 1;
+        int idx = hash(entry.thread.getId()) & mask;
+        while (tab[idx] != null) {
+            idx = (idx + 1) & mask;
+        }
+        tab[idx] = entry;
+    }
+
+    private static int hash(long thrdId) {
+        // thread ids are sequential; spread them over the table
+        int h = (int)(thrdId ^ (thrdId >>> 32)) * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright 2008-2010 Sun Microsystems, Inc.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Sun designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Sun in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Sun Microsystems, Inc., 4150 Network Circle, Santa Clara,
+ * CA 95054 USA or visit www.sun.com if you need additional information or
+ * have any questions.
+ */
+
+package com.sun.btrace;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Agent wide scheduler for the @OnTimer handlers of all the BTrace
+ * programs. The handlers run on a small pool of daemon threads (the
+ * size is set by the "btrace.timer.threads" system property, 2 by
+ * default). The handlers of one BTrace program form a {@linkplain Group}
+ * and never run concurrently, but a slow handler of one program does
+ * not delay the handlers of the others.
+ * <p>
+ * A timer firing while the previous run of the same handler is still
+ * waiting or running is skipped and counted as an overrun. The delay
+ * between the ideal and the actual start of a run (the jitter) and
+ * the execution time are recorded per handler. An exception escaping
+ * a handler is reported through the {@linkplain BTraceRuntime} of its
+ * program, like the exceptions of the probe handlers.
+ */
+final class TimerScheduler {
+    private static final int DEFAULT_THREADS = 2;
+    private static TimerScheduler instance;
+
+    private final ScheduledThreadPoolExecutor executor;
+
+    private TimerScheduler(int threads) {
+        final AtomicInteger counter = new AtomicInteger();
+        executor = new ScheduledThreadPoolExecutor(threads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread th = new Thread(r, "BTrace Timer #" + counter.incrementAndGet());
+                th.setDaemon(true);
+                return th;
+            }
+        });
+    }
+
+    static synchronized TimerScheduler getInstance() {
+        if (instance == null) {
+            instance = new TimerScheduler(
+                Math.max(1, Integer.getInteger("btrace.timer.threads", DEFAULT_THREADS)));
+        }
+        return instance;
+    }
+
+    Group newGroup(BTraceRuntime runtime) {
+        return new Group(runtime);
+    }
+
+    /**
+     * The timer handlers of one BTrace program
+     */
+    final class Group {
+        private final BTraceRuntime runtime;
+        private final ConcurrentLinkedQueue<Task> ready = new ConcurrentLinkedQueue<Task>();
+        private final AtomicBoolean running = new AtomicBoolean();
+        private final List<Task> tasks = new ArrayList<Task>();
+        private final List<ScheduledFuture<?>> futures = new ArrayList<ScheduledFuture<?>>();
+        private volatile boolean cancelled;
+
+        private Group(BTraceRuntime runtime) {
+            this.runtime = runtime;
+        }
+
+        /**
+         * Schedules the given handler with the given period in milliseconds.
+         * With a fixed rate the runs start at multiples of the period from
+         * the first run; otherwise each run starts one period after the
+         * previous one ended.
+         */
+        synchronized void schedule(String name, Runnable handler, long period, boolean fixedRate) {
+            if (cancelled) {
+                return;
+            }
+            Task task = new Task(this, name, handler, TimeUnit.MILLISECONDS.toNanos(period), fixedRate);
+            tasks.add(task);
+            futures.add(fixedRate?
+                executor.scheduleAtFixedRate(task, period, period, TimeUnit.MILLISECONDS) :
+                executor.scheduleWithFixedDelay(task, period, period, TimeUnit.MILLISECONDS));
+        }
+
+        synchronized void cancel() {
+            cancelled = true;
+            for (ScheduledFuture<?> f : futures) {
+                f.cancel(false);
+            }
+            futures.clear();
+            executor.purge();
+        }
+
+        synchronized Task[] getTasks() {
+            return tasks.toArray(new Task[tasks.size()]);
+        }
+
+        private void submit(Task task) {
+            ready.offer(task);
+            while (running.compareAndSet(false, true)) {
+                try {
+                    Task t;
+                    while ((t = ready.poll()) != null) {
+                        t.execute();
+                    }
+                } finally {
+                    running.set(false);
+                }
+                if (ready.isEmpty()) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * One scheduled timer handler and its statistics. For a fixed rate
+     * handler the overruns are the periods in which it did not run; for
+     * a fixed delay handler they are the firings skipped because the
+     * previous run was still waiting or running.
+     */
+    static final class Task implements Runnable {
+        private final Group group;
+        private final String name;
+        private final Runnable handler;
+        private final long periodNanos;
+        private final boolean fixedRate;
+        // set from the firing until the end of the run
+        private final AtomicBoolean pending = new AtomicBoolean();
+        private final long created = System.nanoTime();
+        // end of the previous run; only touched by the run itself
+        private long lastEnd;
+        // index of the period the latest fixed rate run started in
+        private volatile long lastTick = -1;
+
+        private final AtomicLong runs = new AtomicLong();
+        private final AtomicLong overruns = new AtomicLong();
+        private volatile long totalNanos;
+        private volatile long maxNanos;
+        private volatile long maxLatenessNanos;
+
+        Task(Group group, String name, Runnable handler, long periodNanos, boolean fixedRate) {
+            this.group = group;
+            this.name = name;
+            this.handler = handler;
+            this.periodNanos = periodNanos;
+            this.fixedRate = fixedRate;
+            this.lastEnd = created;
+        }
+
+        // called by the executor when the timer fires
+        public void run() {
+            if (group.cancelled) {
+                return;
+            }
+            if (fixedRate) {
+                // the executor fires the ticks missed by a long run back to
+                // back; skip those instead of running them in a burst. The
+                // missed ticks are counted by the next run.
+                if (tick(System.nanoTime()) <= lastTick ||
+                    !pending.compareAndSet(false, true)) {
+                    return;
+                }
+            } else if (!pending.compareAndSet(false, true)) {
+                overruns.incrementAndGet();
+                return;
+            }
+            group.submit(this);
+        }
+
+        private void execute() {
+            if (group.cancelled) {
+                pending.set(false);
+                return;
+            }
+            long start = System.nanoTime();
+            long lateness;
+            if (fixedRate) {
+                long tick = tick(start);
+                if (lastTick >= 0 && tick - lastTick > 1) {
+                    overruns.addAndGet(tick - lastTick - 1);
+                }
+                lastTick = tick;
+                // time since the latest multiple of the period
+                lateness = periodNanos > 0? (start - created) % periodNanos : 0L;
+            } else {
+                lateness = start - lastEnd - periodNanos;
+            }
+            try {
+                handler.run();
+            } catch (Throwable th) {
+                // thrown on, it would cancel the periodic execution
+                group.runtime.handleTaskException(th);
+            } finally {
+                long end = System.nanoTime();
+                long duration = end - start;
+                runs.incrementAndGet();
+                totalNanos += duration;
+                if (duration > maxNanos) {
+                    maxNanos = duration;
+                }
+                if (lateness > maxLatenessNanos) {
+                    maxLatenessNanos = lateness;
+                }
+                lastEnd = end;
+                pending.set(false);
+            }
+        }
+
+        private long tick(long time) {
+            return periodNanos > 0? (time - created) / periodNanos : 0L;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        long getPeriodMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(periodNanos);
+        }
+
+        boolean isFixedRate() {
+            return fixedRate;
+        }
+
+        long getRuns() {
+            return runs.get();
+        }
+
+        long getOverruns() {
+            return overruns.get();
+        }
+
+        long getTotalNanos() {
+            return totalNanos;
+        }
+
+        long getMaxNanos() {
+            return maxNanos;
+        }
+
+        long getMaxLatenessNanos() {
+            return maxLatenessNanos;
+        }
+    }
+}
@@ -26,13 +26,21 @@
 package com.sun.btrace.agent;
 
 import java.io.IOException;
-import java.security.ProtectionDomain;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 import com.sun.btrace.org.objectweb.asm.ClassReader;
 import com.sun.btrace.org.objectweb.asm.ClassWriter;
 import com.sun.btrace.org.objectweb.asm.ClassVisitor;
 import com.sun.btrace.BTraceRuntime;
-import com.sun.btrace.CommandListener;
+import com.sun.btrace.Clocks;
+import com.sun.btrace.LazyMessage;
+import com.sun.btrace.annotations.ClockSource;
+import com.sun.btrace.BatchCommandListener;
+import com.sun.btrace.comm.Command;
 import com.sun.btrace.comm.ErrorCommand;
 import com.sun.btrace.comm.ExitCommand;
 import com.sun.btrace.comm.InstrumentCommand;
@@ -41,12 +49,17 @@ import com.sun.btrace.comm.RenameCommand;
 import com.sun.btrace.PerfReader;
 import com.sun.btrace.comm.RetransformClassNotification;
 import com.sun.btrace.comm.RetransformationStartNotification;
+import com.sun.btrace.comm.RetransformationEndNotification;
+import com.sun.btrace.comm.RetransformationProgressNotification;
 import com.sun.btrace.org.objectweb.asm.Opcodes;
 import com.sun.btrace.runtime.ClassFilter;
+import com.sun.btrace.runtime.ClassHierarchy;
+import com.sun.btrace.runtime.OnMethodMatchers;
 import com.sun.btrace.runtime.ClassRenamer;
 import com.sun.btrace.runtime.ClinitInjector;
 import com.sun.btrace.runtime.Instrumentor;
 import com.sun.btrace.runtime.InstrumentUtils;
+import com.sun.btrace.runtime.LazyMessageRewriter;
 import com.sun.btrace.runtime.MethodRemover;
 import com.sun.btrace.runtime.NullPerfReaderImpl;
 import com.sun.btrace.runtime.Preprocessor;
@@ -55,8 +68,6 @@ import com.sun.btrace.runtime.OnMethod;
 import com.sun.btrace.runtime.OnProbe;
 import com.sun.btrace.runtime.RunnableGeneratorImpl;
 import java.lang.annotation.Annotation;
-import java.lang.instrument.ClassFileTransformer;
-import java.lang.instrument.IllegalClassFormatException;
 import java.lang.instrument.Instrumentation;
 import sun.reflect.annotation.AnnotationParser;
 import sun.reflect.annotation.AnnotationType;
@@ -67,7 +78,7 @@ import sun.reflect.annotation.AnnotationType;
  *agent˴һbtrace client
  * @author A. Sundararajan
  */
-abstract class Client implements ClassFileTransformer, CommandListener {
+abstract class Client implements BatchCommandListener {
     protected final Instrumentation inst;
     private volatile BTraceRuntime runtime;
     private volatile String className;
@@ -75,9 +86,27 @@ abstract class Client implements ClassFileTransformer, CommandListener {
     private volatile byte[] btraceCode;
     private volatile List<OnMethod> onMethods;
     private volatile List<OnProbe> onProbes;
+    // the probes compiled once, shared by the filter and the instrumentors
+    private volatile OnMethodMatchers matchers;
+    // identifies the instrumentation done by this client in the transform cache
+    private volatile byte[] scriptDigest;
+    // internal name of the BTrace class as submitted, before any renaming
+    private volatile String scriptName;
+    // clock source of the @Duration time stamps
+    private volatile ClockSource clock = ClockSource.PRECISE;
     private volatile ClassFilter filter;
     private volatile boolean skipRetransforms;
     private volatile boolean hasSubclassChecks;    
+    // super type matches cached while the loaded classes are scanned
+    private volatile ConcurrentMap<Class, Boolean> superTypeCache;
+    // classes already found to be candidates by the scan
+    private volatile Set<Class> scannedCandidates;
+    private final AtomicLong transformNanos = new AtomicLong();
+    // methods copied verbatim / rewritten by the transformations and
+    // the estimated time saved by not rewriting the copied ones
+    private final AtomicLong copiedMethods = new AtomicLong();
+    private final AtomicLong rewrittenMethods = new AtomicLong();
+    private final AtomicLong copySavedNanos = new AtomicLong();
     protected final boolean debug = Main.isDebug();
     protected final boolean trackRetransforms = Main.isRetransformTracking();
 
@@ -94,31 +123,6 @@ abstract class Client implements ClassFileTransformer, CommandListener {
         BTraceRuntime.init(createPerfReaderImpl(), new RunnableGeneratorImpl());
     }
 
-    //תļ
-    final private ClassFileTransformer clInitTransformer = new ClassFileTransformer() {
-
-        @Override
-        public byte[] transform(ClassLoader loader, final String cname, Class<?> classBeingRedefined, ProtectionDomain protectionDomain, byte[] classfileBuffer) throws IllegalClassFormatException {
-            if (!hasSubclassChecks || classBeingRedefined != null || isBTraceClass(cname) || isSensitiveClass(cname)) return null;
-            
-            if (!skipRetransforms) {
-                if (debug) Main.debugPrint("injecting <clinit> for " + cname); // NOI18N
-                ClassReader cr = new ClassReader(classfileBuffer);
-                ClassWriter cw = new ClassWriter(cr, ClassWriter.COMPUTE_FRAMES);
-                ClinitInjector injector = new ClinitInjector(cw, className, cname);
-                InstrumentUtils.accept(cr, injector);
-                if (injector.isTransformed()) {
-                    byte[] instrumentedCode = cw.toByteArray();
-                    Main.dumpClass(className, cname + "_clinit", instrumentedCode); // NOI18N
-                    return instrumentedCode;
-                }
-            } else {
-                if (debug) Main.debugPrint("client " + className + ": skipping transform for " + cname); // NOI18N
-            }
-            return null;
-        }
-    };
-    
     private static PerfReader createPerfReaderImpl() {
         // see if we can access any jvmstat class
         try {
@@ -134,77 +138,113 @@ abstract class Client implements ClassFileTransformer, CommandListener {
         this.inst = inst;
     }  
 
-    @Override
-    public byte[] transform(
-                ClassLoader loader,
-                String cname,
-                Class<?> classBeingRedefined,
-                ProtectionDomain protectionDomain,
-                byte[] classfileBuffer)
-        throws IllegalClassFormatException {
-        boolean entered = BTraceRuntime.enter();
-        try {
-            //btraceڲjdkе࣬
-            if (isBTraceClass(cname) || isSensitiveClass(cname)) {
-                if (debug) Main.debugPrint("skipping transform for BTrace class " + cname); // NOI18N
-                return null;
-            }
-
-                if (classBeingRedefined != null) {
-                    // class already defined; retransforming
-                    //Ѿ壬ʼת
-                    if (!skipRetransforms && filter.isCandidate(classBeingRedefined)) {
-                        return doTransform(classBeingRedefined, cname, classfileBuffer);
-                    } else {
-                        if (debug) Main.debugPrint("client " + className + ": skipping transform for " + cname); // NOi18N
-                    }
-                } else {
-                    // class not yet defined
-                    //ûж
-                    if (!hasSubclassChecks) {
-                        if (filter.isCandidate(classfileBuffer)) {
-                            return doTransform(classBeingRedefined, cname, classfileBuffer);
-                        } else {
-                            if (debug) Main.debugPrint("client " + className + ": skipping transform for " + cname); // NOI18N
-                        }
-                    }
-                }
-            
-            return null; // ignore
-        } catch (Exception e) {
-            e.printStackTrace();
-            if (e instanceof IllegalClassFormatException) {
-                throw (IllegalClassFormatException)e;
-            }
-            return null;
-        } finally {
-            if (entered) {
-                BTraceRuntime.leave();
-            }
-        }
-    }
-    
     void registerTransformer() {
-        inst.addTransformer(clInitTransformer, false);
-        inst.addTransformer(this, true);
+        Clocks.acquire(clock);
+        Main.getTransformer().add(this);
     }
     
     void unregisterTransformer() {
-        inst.removeTransformer(this);
-        inst.removeTransformer(clInitTransformer);
+        Main.getTransformer().remove(this);
+        Clocks.release(clock);
     }
 
-    private byte[] doTransform(Class<?> classBeingRedefined, String cname, byte[] classfileBuffer) {
+    /*
+     * Returns whether this client instruments the given class;
+     * the reader is shared by all the clients checking the class.
+     */
+    final boolean isTransformCandidate(String cname, Class<?> classBeingRedefined,
+                                       ClassReader reader) {
+        boolean candidate;
+        if (classBeingRedefined != null) {
+            // class already defined; retransforming
+            candidate = !skipRetransforms && isRetransformCandidate(classBeingRedefined);
+        } else {
+            // class not yet defined
+            candidate = !hasSubclassChecks && filter.isCandidate(reader);
+        }
+        if (!candidate) {
+            if (debug) Main.debugPrint("client " + className + ": skipping transform for " + cname); // NOI18N
+        }
+        return candidate;
+    }
+
+    /*
+     * Returns the adapter instrumenting the given class with the probes
+     * of this client, delegating to the given visitor.
+     */
+    final Instrumentor newInstrumentor(String cname, Class<?> classBeingRedefined, ClassVisitor cv) {
         if (debug) Main.debugPrint("client " + className + ": instrumenting " + cname);
+        notifyInstrumented(cname);
+        return new Instrumentor(classBeingRedefined, className, btraceCode, matchers, cv, clock);
+    }
+
+    /*
+     * Called when the class was instrumented from the transform cache
+     */
+    final void onCachedInstrument(String cname) {
+        if (debug) Main.debugPrint("client " + className + ": instrumented " + cname + " from cache");
+        notifyInstrumented(cname);
+    }
+
+    private void notifyInstrumented(String cname) {
         if (trackRetransforms) {
             try {
-                //֪ͨͻ˿ʼת
                 onCommand(new RetransformClassNotification(cname));
             } catch (IOException e) {
                 Main.debugPrint(e);
             }
         }
-        return instrument(classBeingRedefined, cname, classfileBuffer);
+    }
+
+    final byte[] getScriptDigest() {
+        return scriptDigest;
+    }
+
+    /*
+     * Returns the internal name the BTrace class was submitted with
+     */
+    final String getScriptName() {
+        return scriptName;
+    }
+
+    final boolean hasSubclassChecks() {
+        return hasSubclassChecks;
+    }
+
+    /*
+     * Returns whether freshly loaded classes need to call back for
+     * retransformation from their static initializer; the +foo
+     * super type checks can not be done before the class is defined.
+     */
+    final boolean needsClinitInjection() {
+        return hasSubclassChecks && !skipRetransforms;
+    }
+
+    final ClinitInjector newClinitInjector(String cname, ClassVisitor cv) {
+        if (debug) Main.debugPrint("injecting <clinit> for " + cname); // NOI18N
+        return new ClinitInjector(cv, className, cname);
+    }
+
+    final void addTransformNanos(long nanos) {
+        transformNanos.addAndGet(nanos);
+        BTraceRuntime rt = runtime;
+        if (rt != null && rt.getMetrics() != null) {
+            rt.getMetrics().classTransformed(nanos);
+        }
+    }
+
+    final void addMethodCopies(int copied, int rewritten, long savedNanos) {
+        copiedMethods.addAndGet(copied);
+        rewrittenMethods.addAndGet(rewritten);
+        copySavedNanos.addAndGet(savedNanos);
+    }
+
+    private boolean isRetransformCandidate(Class<?> clazz) {
+        Set<Class> scanned = scannedCandidates;
+        if (scanned != null && scanned.contains(clazz)) {
+            return true;
+        }
+        return filter.isCandidate(clazz, superTypeCache);
     }
 
     protected synchronized void onExit(int exitCode) {
@@ -228,6 +268,7 @@ abstract class Client implements ClassFileTransformer, CommandListener {
         String[] args = instr.getArguments();
         //ȡűֽ
         this.btraceCode = instr.getCode();
+        byte[] submittedCode = btraceCode;
         try {
             //űУ
             verify(btraceCode);
@@ -237,13 +278,20 @@ abstract class Client implements ClassFileTransformer, CommandListener {
             return null;
         }
         //
-        this.filter = new ClassFilter(onMethods);
+        this.filter = new ClassFilter(matchers);
         if (debug) Main.debugPrint("created class filter");
         
         ClassWriter writer = InstrumentUtils.newClassWriter(btraceCode);
         ClassReader reader = new ClassReader(btraceCode);
-        ClassVisitor visitor = new Preprocessor(writer);
+        Preprocessor preprocessor = new Preprocessor(writer, reader);
+        ClassVisitor visitor = preprocessor;
+        LazyMessageRewriter lazyRewriter = null;
+        if (Main.isLazyMessages()) {
+            lazyRewriter = new LazyMessageRewriter(visitor);
+            visitor = lazyRewriter;
+        }
 		Main.dumpClass(className + "_orig", className + "_orig", btraceCode);
+        scriptName = className.replace('.', '/');
         if (BTraceRuntime.classNameExists(className)) {
             className += "$" + getCount();
             if (debug) Main.debugPrint("class renamed to " + className);
@@ -257,13 +305,36 @@ abstract class Client implements ClassFileTransformer, CommandListener {
             btraceCode = writer.toByteArray();
         } catch (Throwable th) {
             if (debug) Main.debugPrint(th);
+            if (lazyRewriter != null) {
+                LazyMessage.releaseTemplates(lazyRewriter.getTemplateIds());
+            }
             errorExit(th);
             return null;
         }
         Main.dumpClass(className, className, btraceCode);
+        if (Main.getTransformCache() != null) {
+            // taken before the renaming so that the same script attached
+            // again hits the classes it instrumented before - the cached
+            // classes refer to the BTrace class by the submitted name
+            StringBuilder options = new StringBuilder(clock.name());
+            if (lazyRewriter != null) {
+                options.append(";templates=").append(Arrays.toString(lazyRewriter.getTemplateIds()));
+            }
+            scriptDigest = TransformCache.scriptDigest(submittedCode, options.toString());
+        }
         if (debug) Main.debugPrint("creating BTraceRuntime instance for " + className);
         this.runtime = new BTraceRuntime(className, args, this, inst);
         if (debug) Main.debugPrint("created BTraceRuntime instance for " + className);
+        if (lazyRewriter != null) {
+            runtime.setLazyTemplates(lazyRewriter.getTemplateIds());
+        }
+        for (OnMethod om : onMethods) {
+            om.setProbeIndex(preprocessor.getProbeIndex(om.getTargetName(), om.getTargetDescriptor()));
+            if (om.isSampled()) {
+                runtime.setSampler(om.getProbeIndex(), om.getSampler(), om.getSamplerMean(), om.getSamplerRate());
+                if (debug) Main.debugPrint("sampling probe " + om.getTargetName() + " with " + om.getSampler());
+            }
+        }
         if (debug) Main.debugPrint("removing @OnMethod, @OnProbe methods");
         byte[] codeBuf = removeMethods(btraceCode);
         if (debug) Main.debugPrint("removed @OnMethod, @OnProbe methods");
@@ -296,6 +367,12 @@ abstract class Client implements ClassFileTransformer, CommandListener {
         return this.btraceClazz;
     }
 
+    public void onCommands(Command[] cmds, int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            onCommand(cmds[i]);
+        }
+    }
+
     protected abstract void closeAll() throws IOException;
 
     protected void errorExit(Throwable th) throws IOException {
@@ -330,10 +407,51 @@ abstract class Client implements ClassFileTransformer, CommandListener {
         if (isBTraceClass(cname)) {
             return false;
         } else {
-            return filter.isCandidate(c);
+            return filter.isCandidate(c, superTypeCache);
         }
     }
 
+    /**
+     * Starts a scan of the loaded classes. Until {@link #endCandidateScan()}
+     * the type hierarchy checks done by {@link #isCandidate(Class)} are
+     * cached; it may be called from several threads.
+     */
+    final void startCandidateScan() {
+        superTypeCache = new ConcurrentHashMap<Class, Boolean>();
+    }
+
+    /**
+     * Remembers the candidates found by the scan, so that
+     * retransforming them does not filter them again.
+     */
+    final void setScannedCandidates(Set<Class> candidates) {
+        scannedCandidates = candidates;
+    }
+
+    final void endCandidateScan() {
+        superTypeCache = null;
+        scannedCandidates = null;
+    }
+
+    /**
+     * Returns the total time spent instrumenting classes so far.
+     */
+    final long getTransformNanos() {
+        return transformNanos.get();
+    }
+
+    final long getCopiedMethods() {
+        return copiedMethods.get();
+    }
+
+    final long getRewrittenMethods() {
+        return rewrittenMethods.get();
+    }
+
+    final long getCopySavedNanos() {
+        return copySavedNanos.get();
+    }
+
     //жǷתonMethod鲻Ϊʱ
     final boolean shouldAddTransformer() {
         return onMethods != null && onMethods.size() > 0;
@@ -353,6 +471,29 @@ abstract class Client implements ClassFileTransformer, CommandListener {
         }
     }
 
+    final void retransformedClasses(int numClasses, long filterNanos,
+                                    long transformNanos, long redefineNanos) {
+        RetransformationEndNotification stats = new RetransformationEndNotification(
+            numClasses, filterNanos, transformNanos, redefineNanos);
+        try {
+            onCommand(stats);
+            if (Main.isDebug()) Main.debugPrint(stats.toString());
+        } catch (IOException e) {
+            Main.debugPrint(e);
+        }
+    }
+
+    final void retransformProgress(int doneClasses, int numClasses, long elapsedNanos) {
+        RetransformationProgressNotification progress =
+            new RetransformationProgressNotification(doneClasses, numClasses, elapsedNanos);
+        try {
+            onCommand(progress);
+            if (Main.isDebug()) Main.debugPrint(progress.toString());
+        } catch (IOException e) {
+            Main.debugPrint(e);
+        }
+    }
+
     final void endRetransformClasses() {
         try {
             onCommand(new OkayCommand());
@@ -363,7 +504,7 @@ abstract class Client implements ClassFileTransformer, CommandListener {
     }
 
     // Internals only below this point
-    private static boolean isBTraceClass(String name) {
+    static boolean isBTraceClass(String name) {
         return name.startsWith("com/sun/btrace/");
     }
 
@@ -376,7 +517,7 @@ abstract class Client implements ClassFileTransformer, CommandListener {
      * if BTrace instruments java.lang.ThreadLocal for example.
      * For now, we avoid such classes till we find a solution.
      */     
-    private static boolean isSensitiveClass(String name) {
+    static boolean isSensitiveClass(String name) {
         return name.equals("java/lang/Object") || // NOI18N
                name.startsWith("java/lang/ThreadLocal") || // NOI18N
                name.startsWith("sun/reflect") || // NOI18N
@@ -385,16 +526,16 @@ abstract class Client implements ClassFileTransformer, CommandListener {
                name.equals("java/lang/VerifyError"); // NOI18N
     }
 
-    private byte[] instrument(Class clazz, String cname, byte[] target) {
+    final byte[] instrument(Class clazz, String cname, byte[] target, ClassHierarchy hierarchy) {
         //תĴ
         byte[] instrumentedCode;
         try {
-            //һASM ClassWriter
-            ClassWriter writer = InstrumentUtils.newClassWriter(target);
             //ClassReaderֽ
             ClassReader reader = new ClassReader(target);
+            //һASM ClassWriter
+            ClassWriter writer = InstrumentUtils.newClassWriter(reader, target, hierarchy);
             //ֽת
-            Instrumentor i = new Instrumentor(clazz, className,  btraceCode, onMethods, writer);
+            Instrumentor i = new Instrumentor(clazz, className,  btraceCode, matchers, writer, clock);
             //ʼ벢ת
             InstrumentUtils.accept(reader, i);
             if (Main.isDebug() && !i.hasMatch()) {
@@ -423,6 +564,8 @@ abstract class Client implements ClassFileTransformer, CommandListener {
         if (debug) Main.debugPrint("verified '" + className + "' successfully");
         onMethods = verifier.getOnMethods();
         onProbes = verifier.getOnProbes();
+        clock = Clocks.resolve(verifier.getClockSource());
+        if (debug) Main.debugPrint("using the " + clock + " clock for @Duration");
         if (onProbes != null && !onProbes.isEmpty()) {
             // map @OnProbe's to @OnMethod's and store
             onMethods.addAll(Main.mapOnProbes(onProbes));
@@ -433,6 +576,7 @@ abstract class Client implements ClassFileTransformer, CommandListener {
                 break;
             }
         }
+        matchers = new OnMethodMatchers(onMethods);
     }
 
     private static byte[] removeMethods(byte[] buf) {
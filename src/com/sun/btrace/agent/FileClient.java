@@ -64,6 +64,27 @@ class FileClient extends Client {
         if (out == null) {
             throw new IOException("no output stream");
         }
+        if (print(cmd)) {
+            out.flush();
+        }
+    }
+
+    @Override
+    public void onCommands(Command[] cmds, int count) throws IOException {
+        if (out == null) {
+            throw new IOException("no output stream");
+        }
+        boolean printed = false;
+        for (int i = 0; i < count; i++) {
+            printed |= print(cmds[i]);
+        }
+        if (printed) {
+            out.flush();
+        }
+    }
+
+    // returns true if anything was written to the output
+    private boolean print(Command cmd) throws IOException {
         if (debug) {
             
             Main.debugPrint("client " + getClassName() + ": got " + cmd);
@@ -71,22 +92,29 @@ class FileClient extends Client {
         switch (cmd.getType()) {
             case Command.EXIT:
                 onExit(((ExitCommand) cmd).getExitCode());
-                break;
+                return false;
             case Command.ERROR: {
                 ErrorCommand ecmd = (ErrorCommand) cmd;
                 Throwable cause = ecmd.getCause();
                 if (cause != null) {
                     cause.printStackTrace(out);
-                    out.flush();
+                    return true;
                 }
-                break;
+                return false;
             }
+            case Command.QUEUE_OVERFLOW:
+                // mark the gap in the output
+                out.println("btrace WARNING: " + cmd);
+                return true;
+            case Command.PROBE_THROTTLE:
+                out.println("btrace WARNING: " + cmd);
+                return true;
             default:
                 if (cmd instanceof DataCommand) {
                     ((DataCommand) cmd).print(out);
-                    out.flush();
+                    return true;
                 }
-                break;
+                return false;
         }
     }
 
@@ -33,16 +33,21 @@ import java.lang.instrument.UnmodifiableClassException;
 import java.net.Socket;
 import java.net.ServerSocket;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.StringTokenizer;
 import java.util.jar.JarFile;
 import com.sun.btrace.BTraceRuntime;
+import com.sun.btrace.ProbeGovernor;
+import com.sun.btrace.ProbeMetrics;
 import com.sun.btrace.comm.ErrorCommand;
 import com.sun.btrace.comm.ExitCommand;
 import com.sun.btrace.comm.OkayCommand;
+import com.sun.btrace.recording.Recording;
 import com.sun.btrace.runtime.OnProbe;
 import com.sun.btrace.runtime.OnMethod;
 import com.sun.btrace.runtime.ProbeDescriptor;
@@ -51,8 +56,11 @@ import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.PrintWriter;
 import java.util.Date;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
@@ -63,16 +71,28 @@ import java.util.concurrent.TimeUnit;
  * @authos Joachim Skeie (rolling output)
  */
 public final class Main {
+    // classes passed to one Instrumentation.retransformClasses call
+    private static final int DEFAULT_RETRANSFORM_BATCH_SIZE = 500;
+    // loaded classes are scanned in parallel above this count
+    private static final int PARALLEL_SCAN_THRESHOLD = 4096;
+
     private static volatile Map<String, String> argMap;
     private static volatile Instrumentation inst;
+    private static volatile SharedTransformer transformer;
     private static volatile boolean debugMode;
     private static volatile boolean trackRetransforms;
     private static volatile boolean unsafeMode;
     private static volatile boolean dumpClasses;
+    private static volatile boolean lazyMessages;
+    private static volatile int retransformBatchSize = DEFAULT_RETRANSFORM_BATCH_SIZE;
     private static volatile String dumpDir;
+    private static volatile TransformCache transformCache;
     private static volatile String probeDescPath;
     private static volatile String scriptOutputFile;
     private static volatile Long fileRollMilliseconds;;
+    private static volatile long fileRollSize;
+    private static volatile boolean fileRollCompress;
+    private static volatile long metricsPeriod;
 
     // #BTRACE-42: Non-daemon thread prevents traced application from exiting
     private static final ThreadFactory daemonizedThreadFactory = new ThreadFactory() {
@@ -111,6 +131,7 @@ public final class Main {
             return;
         } else {
             Main.inst = inst;
+            Main.transformer = new SharedTransformer(inst);
         }
 
 
@@ -236,9 +257,72 @@ public final class Main {
                 if (isDebug()) debugPrint("fileRollMilliseconds is " + fileRollMilliseconds);
             }
         }
+        fileRollSize = parseMegabytes("fileRollSize", 0);
+        if (fileRollSize > 0) {
+            if (isDebug()) debugPrint("fileRollSize is " + (fileRollSize >> 20) + "MB");
+        }
+        p = argMap.get("fileRollCompress");
+        fileRollCompress = p != null && !"false".equals(p);
+        if (isDebug()) debugPrint("fileRollCompress is " + fileRollCompress);
+        p = argMap.get("recordingDir");
+        File recordingDir = new File(p != null && p.length() > 0 ? p : ".");
+        long recordingSegmentSize = parseMegabytes("recordingSegmentSize", 16);
+        int recordingMaxSegments = 0;
+        p = argMap.get("recordingMaxSegments");
+        if (p != null && p.length() > 0) {
+            try {
+                recordingMaxSegments = Math.max(Integer.parseInt(p), 0);
+            } catch (NumberFormatException nfe) {
+                error("invalid recordingMaxSegments assuming default..");
+            }
+        }
+        Recording.setDefaults(recordingDir, recordingSegmentSize, recordingMaxSegments);
+        if (isDebug()) debugPrint("recordingDir is " + recordingDir + ", segment size " +
+                                  (recordingSegmentSize >> 20) + "MB, max segments " + recordingMaxSegments);
+        p = argMap.get("probeSampleInterval");
+        if (p != null && p.length() > 0) {
+            try {
+                ProbeMetrics.setDefaultSampleInterval(Integer.parseInt(p));
+            } catch (NumberFormatException nfe) {
+                error("invalid probeSampleInterval assuming default..");
+            }
+            if (isDebug()) debugPrint("probeSampleInterval is " + p);
+        }
+        long cpuBudget = parseLong("probeCpuBudget", 0L);
+        long eventBudget = parseLong("probeEventBudget", 0L);
+        long budgetPeriod = parseLong("probeBudgetPeriod", ProbeGovernor.DEFAULT_PERIOD);
+        int maxThrottle = (int) parseLong("probeMaxThrottle", ProbeGovernor.DEFAULT_MAX_INTERVAL);
+        ProbeGovernor.setDefaults(TimeUnit.MILLISECONDS.toNanos(cpuBudget), eventBudget,
+                                  budgetPeriod, maxThrottle);
+        if (isDebug()) debugPrint("probe budget is " + cpuBudget + " ms/s, " + eventBudget +
+                                  " runs/s, checked every " + budgetPeriod + " ms, max throttle " + maxThrottle);
+        p = argMap.get("metricsPeriod");
+        if (p != null && p.length() > 0) {
+            try {
+                metricsPeriod = Math.max(Long.parseLong(p), 0);
+            } catch (NumberFormatException nfe) {
+                error("invalid metricsPeriod assuming default..");
+            }
+            if (isDebug()) debugPrint("metricsPeriod is " + metricsPeriod);
+        }
+        p = argMap.get("retransformBatchSize");
+        if (p != null && p.length() > 0) {
+            try {
+                int size = Integer.parseInt(p);
+                if (size > 0) {
+                    retransformBatchSize = size;
+                }
+            } catch (NumberFormatException nfe) {
+                error("invalid retransformBatchSize assuming default..");
+            }
+            if (isDebug()) debugPrint("retransformBatchSize is " + retransformBatchSize);
+        }
         p = argMap.get("unsafe");
         unsafeMode = "true".equals(p);
         if (isDebug()) debugPrint("unsafeMode is " + unsafeMode);
+        p = argMap.get("lazyMessages");
+        lazyMessages = "true".equals(p);
+        if (isDebug()) debugPrint("lazyMessages is " + lazyMessages);
         p = argMap.get("dumpClasses");
         dumpClasses = p != null && !"false".equals(p);
         if (isDebug()) debugPrint("dumpClasses is " + dumpClasses);
@@ -249,6 +333,19 @@ public final class Main {
             }
             if (isDebug()) debugPrint("dumpDir is " + dumpDir);
         }
+        p = argMap.get("transformCache");
+        if (p != null && !"false".equals(p)) {
+            long memSize = parseMegabytes("transformCacheSize", 32);
+            long diskSize = parseMegabytes("transformCacheDiskSize", 0);
+            File cacheDir = null;
+            if (diskSize > 0) {
+                String dir = argMap.get("dumpDir");
+                cacheDir = new File(dir != null ? dir : ".");
+            }
+            transformCache = new TransformCache(memSize, cacheDir, diskSize);
+            if (isDebug()) debugPrint("transform cache enabled, " + (memSize >> 20) + "MB in memory, " +
+                                      (diskSize >> 20) + "MB on disk");
+        }
 
         p = argMap.get("stdout");
         boolean traceToStdOut = p != null && !"false".equals(p);
@@ -332,8 +429,9 @@ public final class Main {
                     currentBtraceScriptOutput = filename + (agentName != null ? "." + agentName  : "") + ".btrace";
                     if (isDebug()) debugPrint("scriptOutputFile not specified. defaulting to " + currentBtraceScriptOutput);
                 }
-                if (fileRollMilliseconds != null && fileRollMilliseconds.longValue() > 0) {
-                    traceWriter = new PrintWriter(new BufferedWriter(TraceOutputWriter.rollingFileWriter(new File(currentBtraceScriptOutput), 100, fileRollMilliseconds, TimeUnit.MILLISECONDS)));
+                long rollMillis = fileRollMilliseconds != null ? fileRollMilliseconds.longValue() : 0L;
+                if (rollMillis > 0 || fileRollSize > 0) {
+                    traceWriter = new PrintWriter(new BufferedWriter(TraceOutputWriter.rollingFileWriter(new File(currentBtraceScriptOutput), 100, fileRollSize, Math.max(rollMillis, 0L), TimeUnit.MILLISECONDS, fileRollCompress)));
                 } else {
                     traceWriter = new PrintWriter(new BufferedWriter(TraceOutputWriter.fileWriter(new File(currentBtraceScriptOutput))));
                 }
@@ -342,6 +440,9 @@ public final class Main {
             Client client = new FileClient(inst, traceScript, traceWriter);
 
             handleNewClient(client);
+            if (metricsPeriod > 0) {
+                client.getRuntime().handleMetrics(metricsPeriod);
+            }
         } catch (RuntimeException re) {
             if (isDebug()) debugPrint(re);
         } catch (IOException ioexp) {
@@ -419,37 +520,35 @@ public final class Main {
                         client.registerTransformer();
                         //ȡJVMмصclasses
                         Class[] classes = inst.getAllLoadedClasses();
-                        ArrayList<Class> list = new ArrayList<Class>();
                         if (isDebug()) debugPrint("filtering loaded classes");
-                        for (Class c : classes) {
-                            //
-                            if (inst.isModifiableClass(c) &&
-                                client.isCandidate(c)) {
-                                if (isDebug()) debugPrint("candidate " + c + " added");
-                                list.add(c);
-                            }
-                        }
-                        list.trimToSize();
-                        int size = list.size();
-                        if (isDebug()) debugPrint("added as ClassFileTransformer");
-                        if (size > 0) {
-                            classes = new Class[size];
-                            list.toArray(classes);
-                            //֪ͨ
-                            client.startRetransformClasses(size);
-                            if (isDebug()) {
-                                for(Class c : classes) {
-                                    try {
-                                        //תclassתΪעClient
-                                        inst.retransformClasses(c);
-                                    } catch (VerifyError e) {
-                                        debugPrint("verification error: " + c.getName());
-                                    }
+                        client.startCandidateScan();
+                        try {
+                            long start = System.nanoTime();
+                            classes = findCandidates(client, classes);
+                            long filterNanos = System.nanoTime() - start;
+                            if (isDebug()) debugPrint("added as ClassFileTransformer");
+                            if (classes.length > 0) {
+                                //֪ͨ
+                                client.startRetransformClasses(classes.length);
+                                client.setScannedCandidates(new HashSet<Class>(Arrays.asList(classes)));
+                                long transformNanos = client.getTransformNanos();
+                                start = System.nanoTime();
+                                retransform(client, classes);
+                                long redefineNanos = System.nanoTime() - start;
+                                transformNanos = client.getTransformNanos() - transformNanos;
+                                redefineNanos -= transformNanos;
+                                client.skipRetransforms();
+                                client.retransformedClasses(classes.length, filterNanos,
+                                                            transformNanos, redefineNanos);
+                                if (isDebug()) {
+                                    debugPrint("methods rewritten " + client.getRewrittenMethods() +
+                                               ", copied " + client.getCopiedMethods() + " (~" +
+                                               TimeUnit.NANOSECONDS.toMillis(client.getCopySavedNanos()) +
+                                               " ms saved)");
                                 }
-                            } else {
-                                inst.retransformClasses(classes);
                             }
-                            client.skipRetransforms();
+                        } finally {
+                            client.endCandidateScan();
                         }
                     }
                     //תɣok
@@ -465,6 +564,96 @@ public final class Main {
         
     }
 
+    /*
+     * Returns the modifiable candidate classes among the given ones.
+     * Large class sets are split into chunks checked in parallel.
+     */
+    private static Class[] findCandidates(final Client client, final Class[] classes) {
+        int threads = Runtime.getRuntime().availableProcessors();
+        if (threads < 2 || classes.length < PARALLEL_SCAN_THRESHOLD) {
+            return scan(client, classes, 0, classes.length);
+        }
+        ExecutorService scanners = Executors.newFixedThreadPool(threads, daemonizedThreadFactory);
+        try {
+            int chunkSize = (classes.length + threads * 4 - 1) / (threads * 4);
+            List<Future<Class[]>> results = new ArrayList<Future<Class[]>>();
+            for (int from = 0; from < classes.length; from += chunkSize) {
+                final int start = from;
+                final int end = Math.min(from + chunkSize, classes.length);
+                results.add(scanners.submit(new Callable<Class[]>() {
+                    public Class[] call() {
+                        return scan(client, classes, start, end);
+                    }
+                }));
+            }
+            List<Class> list = new ArrayList<Class>();
+            for (Future<Class[]> result : results) {
+                list.addAll(Arrays.asList(result.get()));
+            }
+            return list.toArray(new Class[list.size()]);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ie);
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            } else if (cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw new RuntimeException(cause);
+        } finally {
+            scanners.shutdown();
+        }
+    }
+
+    private static Class[] scan(Client client, Class[] classes, int from, int to) {
+        List<Class> list = new ArrayList<Class>();
+        for (int i = from; i < to; i++) {
+            Class c = classes[i];
+            if (inst.isModifiableClass(c) && client.isCandidate(c)) {
+                if (isDebug()) debugPrint("candidate " + c + " added");
+                list.add(c);
+            }
+        }
+        return list.toArray(new Class[list.size()]);
+    }
+
+    /*
+     * Retransforms the given classes in batches of retransformBatchSize.
+     * A batch is all or nothing, so a batch failing verification is
+     * retried one class at a time. The client is notified of the
+     * progress after each batch.
+     */
+    private static void retransform(Client client, Class[] classes) throws UnmodifiableClassException {
+        int batchSize = isDebug()? 1 : retransformBatchSize;
+        long start = System.nanoTime();
+        for (int from = 0; from < classes.length; from += batchSize) {
+            int to = Math.min(from + batchSize, classes.length);
+            Class[] batch = Arrays.copyOfRange(classes, from, to);
+            retransformBatch(batch);
+            client.retransformProgress(to, classes.length, System.nanoTime() - start);
+        }
+    }
+
+    private static void retransformBatch(Class[] batch) throws UnmodifiableClassException {
+        try {
+            inst.retransformClasses(batch);
+        } catch (VerifyError e) {
+            if (batch.length == 1) {
+                debugPrint("verification error: " + batch[0].getName());
+                return;
+            }
+            for (Class c : batch) {
+                try {
+                    inst.retransformClasses(c);
+                } catch (VerifyError ve) {
+                    debugPrint("verification error: " + c.getName());
+                }
+            }
+        }
+    }
+
     private static void error(String msg) {
         System.err.println(msg);
     }
@@ -544,6 +733,10 @@ public final class Main {
         return res;
     }
 
+    static SharedTransformer getTransformer() {
+        return transformer;
+    }
+
     static boolean isDebug() {
         return debugMode;
     }
@@ -556,6 +749,33 @@ public final class Main {
         return unsafeMode;
     }
 
+    static TransformCache getTransformCache() {
+        return transformCache;
+    }
+
+    // reads a size argument given in megabytes
+    private static long parseMegabytes(String name, long defaultValue) {
+        return parseLong(name, defaultValue) << 20;
+    }
+
+    // reads a numeric argument
+    private static long parseLong(String name, long defaultValue) {
+        long value = defaultValue;
+        String p = argMap.get(name);
+        if (p != null && p.length() > 0) {
+            try {
+                value = Long.parseLong(p);
+            } catch (NumberFormatException nfe) {
+                error("invalid " + name + " assuming default..");
+            }
+        }
+        return value;
+    }
+
+    static boolean isLazyMessages() {
+        return lazyMessages;
+    }
+
     static void debugPrint(String msg) {
         System.out.println("btrace DEBUG: " + msg);
     }
@@ -32,10 +32,13 @@ import java.io.ObjectOutputStream;
 import java.net.Socket;
 import com.sun.btrace.BTraceRuntime;
 import com.sun.btrace.BTraceUtils;
+import com.sun.btrace.comm.BinaryWireWriter;
 import com.sun.btrace.comm.Command;
 import com.sun.btrace.comm.EventCommand;
 import com.sun.btrace.comm.ExitCommand;
 import com.sun.btrace.comm.InstrumentCommand;
+import com.sun.btrace.comm.MetricsCommand;
+import com.sun.btrace.comm.ProtocolCommand;
 import com.sun.btrace.comm.WireIO;
 
 /**
@@ -47,6 +50,10 @@ class RemoteClient extends Client {
     private volatile Socket sock;
     private volatile ObjectInputStream ois;
     private volatile ObjectOutputStream oos;
+    // set when the client negotiated the binary wire protocol
+    private volatile BinaryWireWriter binaryOut;
+    // commands are sent from the command thread as well as from the agent threads
+    private final Object writeLock = new Object();
 
     RemoteClient(Instrumentation inst, Socket sock) throws IOException {
         super(inst);
@@ -55,6 +62,15 @@ class RemoteClient extends Client {
         this.oos = new ObjectOutputStream(sock.getOutputStream());
         //ȡͻύ
         Command cmd = WireIO.read(ois);
+        if (cmd.getType() == Command.PROTOCOL) {
+            int version = Math.min(((ProtocolCommand)cmd).getVersion(), ProtocolCommand.LATEST);
+            if (debug) Main.debugPrint("using wire protocol version " + version);
+            WireIO.write(oos, new ProtocolCommand(version));
+            if (version >= ProtocolCommand.BINARY_V1) {
+                binaryOut = new BinaryWireWriter(oos);
+            }
+            cmd = WireIO.read(ois);
+        }
         //ΪInstrument
         if (cmd.getType() == Command.INSTRUMENT) {
             if (debug) Main.debugPrint("got instrument command");
@@ -93,6 +109,10 @@ class RemoteClient extends Client {
                             getRuntime().handleEvent((EventCommand)cmd);
                             break;
                         }
+                        case Command.METRICS: {
+                            getRuntime().handleMetrics(((MetricsCommand)cmd).getPeriod());
+                            break;
+                        }
                         default: 
                             if (debug) Main.debugPrint("received " + cmd);
                             // ignore any other command
@@ -110,19 +130,53 @@ class RemoteClient extends Client {
     }
 
     public void onCommand(Command cmd) throws IOException {
-        if (oos == null) {
-            throw new IOException("no output stream");
+        synchronized (writeLock) {
+            if (oos == null) {
+                throw new IOException("no output stream");
+            }
+            oos.reset();
+            write(cmd);
+            flush();
+            if (cmd.getType() == Command.EXIT) {
+                onExit(((ExitCommand)cmd).getExitCode());
+            }
         }
-        oos.reset();
-        switch (cmd.getType()) {
-        case Command.EXIT:
-            if (debug) Main.debugPrint("client " + getClassName() + ": got " + cmd);
-            WireIO.write(oos, cmd);
-            onExit(((ExitCommand)cmd).getExitCode());
-            break;
-        default:
-            if (debug) Main.debugPrint("client " + getClassName() + ": got " + cmd);
-            WireIO.write(oos, cmd);
+    }
+
+    @Override
+    public void onCommands(Command[] cmds, int count) throws IOException {
+        synchronized (writeLock) {
+            if (oos == null) {
+                throw new IOException("no output stream");
+            }
+            oos.reset();
+            for (int i = 0; i < count; i++) {
+                Command cmd = cmds[i];
+                write(cmd);
+                if (cmd.getType() == Command.EXIT) {
+                    flush();
+                    onExit(((ExitCommand)cmd).getExitCode());
+                    return;
+                }
+            }
+            flush();
+        }
+    }
+
+    private void write(Command cmd) throws IOException {
+        if (debug) Main.debugPrint("client " + getClassName() + ": got " + cmd);
+        if (binaryOut != null) {
+            binaryOut.write(cmd);
+        } else {
+            WireIO.write(oos, cmd, false);
+        }
+    }
+
+    private void flush() throws IOException {
+        if (binaryOut != null) {
+            binaryOut.flush();
+        } else {
+            oos.flush();
         }
     }
 
@@ -0,0 +1,358 @@
+/*
+ * Copyright 2008-2010 Sun Microsystems, Inc.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Sun designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Sun in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Sun Microsystems, Inc., 4150 Network Circle, Santa Clara,
+ * CA 95054 USA or visit www.sun.com if you need additional information or
+ * have any questions.
+ */
+
+package com.sun.btrace.agent;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import com.sun.btrace.BTraceRuntime;
+import com.sun.btrace.org.objectweb.asm.ClassReader;
+import com.sun.btrace.org.objectweb.asm.ClassVisitor;
+import com.sun.btrace.org.objectweb.asm.ClassWriter;
+import com.sun.btrace.runtime.ClassHierarchy;
+import com.sun.btrace.runtime.ClinitInjector;
+import com.sun.btrace.runtime.InstrumentUtils;
+import com.sun.btrace.runtime.Instrumentor;
+import com.sun.btrace.runtime.MethodCopyCounter;
+import com.sun.btrace.runtime.ScriptReferenceRenamer;
+
+/**
+ * The class file transformers of the agent, shared by all the
+ * clients with @OnMethod probes. Each loaded or retransformed class
+ * is parsed once; the adapters of all the clients instrumenting it
+ * are chained behind a single ClassReader and write into a single
+ * ClassWriter. Clients are added and removed independently; the
+ * transformers are registered only while there is some client.
+ */
+final class SharedTransformer {
+    private final Instrumentation inst;
+    private volatile Client[] clients = new Client[0];
+
+    // injects <clinit> callbacks for +foo super type checks
+    private final ClassFileTransformer clinitTransformer = new ClassFileTransformer() {
+        public byte[] transform(ClassLoader loader, String cname,
+                                Class<?> classBeingRedefined, ProtectionDomain protectionDomain,
+                                byte[] classfileBuffer) {
+            if (classBeingRedefined != null || !isTransformable(cname)) {
+                return null;
+            }
+            boolean entered = BTraceRuntime.enter();
+            try {
+                return injectClinit(loader, cname, classfileBuffer);
+            } catch (Exception e) {
+                e.printStackTrace();
+                return null;
+            } finally {
+                if (entered) {
+                    BTraceRuntime.leave();
+                }
+            }
+        }
+    };
+
+    private final ClassFileTransformer instrumentingTransformer = new ClassFileTransformer() {
+        public byte[] transform(ClassLoader loader, String cname,
+                                Class<?> classBeingRedefined, ProtectionDomain protectionDomain,
+                                byte[] classfileBuffer) {
+            if (!isTransformable(cname)) {
+                if (Main.isDebug()) Main.debugPrint("skipping transform for BTrace class " + cname); // NOI18N
+                return null;
+            }
+            boolean entered = BTraceRuntime.enter();
+            try {
+                return instrument(loader, cname, classBeingRedefined, classfileBuffer);
+            } catch (Exception e) {
+                e.printStackTrace();
+                return null;
+            } finally {
+                if (entered) {
+                    BTraceRuntime.leave();
+                }
+            }
+        }
+    };
+
+    SharedTransformer(Instrumentation inst) {
+        this.inst = inst;
+    }
+
+    synchronized void add(Client client) {
+        Client[] old = clients;
+        Client[] updated = new Client[old.length + 1];
+        System.arraycopy(old, 0, updated, 0, old.length);
+        updated[old.length] = client;
+        clients = updated;
+        if (old.length == 0) {
+            inst.addTransformer(clinitTransformer, false);
+            inst.addTransformer(instrumentingTransformer, true);
+        }
+    }
+
+    synchronized void remove(Client client) {
+        Client[] old = clients;
+        List<Client> list = new ArrayList<Client>(old.length);
+        for (Client c : old) {
+            if (c != client) {
+                list.add(c);
+            }
+        }
+        if (list.size() == old.length) {
+            return;
+        }
+        clients = list.toArray(new Client[list.size()]);
+        if (list.isEmpty()) {
+            inst.removeTransformer(instrumentingTransformer);
+            inst.removeTransformer(clinitTransformer);
+        }
+        TransformCache cache = Main.getTransformCache();
+        if (cache != null && Main.isDebug()) {
+            Main.debugPrint(cache.getStatistics());
+        }
+    }
+
+    private static boolean isTransformable(String cname) {
+        return cname != null && !Client.isBTraceClass(cname) && !Client.isSensitiveClass(cname);
+    }
+
+    private byte[] injectClinit(ClassLoader loader, String cname, byte[] classfileBuffer) {
+        List<Client> injecting = null;
+        for (Client c : clients) {
+            if (c.needsClinitInjection()) {
+                if (injecting == null) {
+                    injecting = new ArrayList<Client>(2);
+                }
+                injecting.add(c);
+            }
+        }
+        if (injecting == null) {
+            return null;
+        }
+        ClassReader cr = new ClassReader(classfileBuffer);
+        ClassWriter cw = InstrumentUtils.newClassWriter(cr, ClassWriter.COMPUTE_FRAMES,
+                                                        hierarchyOf(loader, classfileBuffer));
+        ClassVisitor chain = cw;
+        ClinitInjector first = null;
+        for (int i = injecting.size() - 1; i >= 0; i--) {
+            first = injecting.get(i).newClinitInjector(cname, chain);
+            chain = first;
+        }
+        InstrumentUtils.accept(cr, chain);
+        // all the injectors take the same decision for a class
+        if (!first.isTransformed()) {
+            return null;
+        }
+        byte[] instrumentedCode = cw.toByteArray();
+        for (Client c : injecting) {
+            Main.dumpClass(c.getClassName(), cname + "_clinit", instrumentedCode); // NOI18N
+        }
+        return instrumentedCode;
+    }
+
+    private byte[] instrument(ClassLoader loader, String cname, Class<?> classBeingRedefined,
+                              byte[] classfileBuffer) {
+        Client[] current = clients;
+        if (current.length == 0) {
+            return null;
+        }
+        ClassReader reader = new ClassReader(classfileBuffer);
+        List<Client> matching = null;
+        for (Client c : current) {
+            if (c.isTransformCandidate(cname, classBeingRedefined, reader)) {
+                if (matching == null) {
+                    matching = new ArrayList<Client>(2);
+                }
+                matching.add(c);
+            }
+        }
+        if (matching == null) {
+            return null;
+        }
+
+        long start = System.nanoTime();
+        ClassHierarchy hierarchy = hierarchyOf(loader, classfileBuffer);
+        TransformCache cache = Main.getTransformCache();
+        TransformCache.Key key = null;
+        if (cache != null) {
+            key = cacheKey(cache, matching, classBeingRedefined, classfileBuffer);
+            if (key != null) {
+                byte[] cached = cache.get(key, hierarchy);
+                if (cached != null) {
+                    // the cached class calls the BTrace classes by their submitted names
+                    cached = ScriptReferenceRenamer.rename(cached, renamedScripts(matching, false));
+                    long elapsed = System.nanoTime() - start;
+                    for (Client c : matching) {
+                        c.onCachedInstrument(cname);
+                        c.addTransformNanos(elapsed);
+                    }
+                    return cached;
+                }
+            }
+        }
+        byte[] instrumentedCode;
+        MethodCopyCounter copies = null;
+        // the common super classes the stack frames depend on
+        List<String> resolved = key != null ? new ArrayList<String>() : null;
+        try {
+            // the methods not touched by any client are copied verbatim
+            ClassWriter writer = InstrumentUtils.newClassWriter(reader, classfileBuffer, hierarchy, resolved);
+            copies = new MethodCopyCounter(writer);
+            ClassVisitor chain = copies;
+            Instrumentor[] instrumentors = new Instrumentor[matching.size()];
+            for (int i = instrumentors.length - 1; i >= 0; i--) {
+                instrumentors[i] = matching.get(i).newInstrumentor(cname, classBeingRedefined, chain);
+                chain = instrumentors[i];
+            }
+            InstrumentUtils.accept(reader, copies.top(chain));
+            instrumentedCode = writer.toByteArray();
+            for (int i = 0; i < instrumentors.length; i++) {
+                if (Main.isDebug() && !instrumentors[i].hasMatch()) {
+                    Main.debugPrint("*WARNING* No method was matched for class " + cname); // NOI18N
+                }
+                Main.dumpClass(matching.get(i).getClassName(), cname, instrumentedCode);
+            }
+            // a class whose frames needed the reflective fallback can not be checked on a hit
+            if (key != null && !resolved.contains(null)) {
+                cache.put(key, ScriptReferenceRenamer.rename(instrumentedCode, renamedScripts(matching, true)),
+                          resolved);
+            }
+        } catch (Throwable th) {
+            Main.debugPrint(th);
+            // apply the clients one after the other, leaving out the failing ones
+            instrumentedCode = matching.size() > 1?
+                instrumentSeparately(matching, cname, classBeingRedefined, classfileBuffer, hierarchy) : null;
+            copies = null;
+        }
+        long elapsed = System.nanoTime() - start;
+        long saved = 0L;
+        if (copies != null) {
+            saved = estimateSavedNanos(elapsed, copies.getCopiedMethods(), copies.getRewrittenMethods());
+            if (Main.isDebug()) {
+                Main.debugPrint(cname + ": " + copies.getRewrittenMethods() + " methods rewritten, " +
+                                copies.getCopiedMethods() + " copied; ~" +
+                                TimeUnit.NANOSECONDS.toMicros(saved) + " us saved"); // NOI18N
+            }
+        }
+        for (Client c : matching) {
+            c.addTransformNanos(elapsed);
+            if (copies != null) {
+                c.addMethodCopies(copies.getCopiedMethods(), copies.getRewrittenMethods(), saved);
+            }
+        }
+        return instrumentedCode;
+    }
+
+    /*
+     * Estimates the time saved by copying the methods no probe touched
+     * instead of rewriting them and recomputing their stack frames - each
+     * of them is taken to cost as much as a rewritten method on average.
+     */
+    private static long estimateSavedNanos(long elapsed, int copied, int rewritten) {
+        if (copied == 0) {
+            return 0L;
+        }
+        return elapsed * copied / Math.max(rewritten, 1);
+    }
+
+    /*
+     * Returns the type hierarchy used to compute the stack frames of a class
+     * defined by the given loader. The class being transformed is not
+     * necessarily available as a resource (eg. a generated class) - its
+     * header is taken from the bytes at hand.
+     */
+    private static ClassHierarchy hierarchyOf(ClassLoader loader, byte[] classfileBuffer) {
+        ClassHierarchy hierarchy = ClassHierarchy.forLoader(loader);
+        hierarchy.register(classfileBuffer);
+        return hierarchy;
+    }
+
+    /*
+     * Returns the transform cache key of the class instrumented by the
+     * given clients or null if the result can not be cached.
+     */
+    private static TransformCache.Key cacheKey(TransformCache cache, List<Client> matching,
+                                               Class<?> classBeingRedefined, byte[] classfileBuffer) {
+        byte[][] digests = new byte[matching.size()][];
+        for (int i = 0; i < digests.length; i++) {
+            Client c = matching.get(i);
+            // +foo probes of a redefined class depend on the whole
+            // class hierarchy, not only on the class bytes
+            if (classBeingRedefined != null && c.hasSubclassChecks()) {
+                return null;
+            }
+            digests[i] = c.getScriptDigest();
+            if (digests[i] == null) {
+                return null;
+            }
+            // the same script attached twice can not be told apart by its submitted name
+            for (int j = 0; j < i; j++) {
+                if (c.getScriptName().equals(matching.get(j).getScriptName())) {
+                    return null;
+                }
+            }
+        }
+        return cache.key(classfileBuffer, digests, classBeingRedefined != null);
+    }
+
+    /*
+     * Returns the actual names of the renamed BTrace classes keyed by the
+     * submitted ones, or the other way round.
+     */
+    private static Map<String, String> renamedScripts(List<Client> matching, boolean toSubmitted) {
+        Map<String, String> names = new HashMap<String, String>(4);
+        for (Client c : matching) {
+            String submitted = c.getScriptName();
+            String actual = c.getClassName().replace('.', '/');
+            if (!submitted.equals(actual)) {
+                if (toSubmitted) {
+                    names.put(actual, submitted);
+                } else {
+                    names.put(submitted, actual);
+                }
+            }
+        }
+        return names;
+    }
+
+    private static byte[] instrumentSeparately(List<Client> matching, String cname,
+                                               Class<?> classBeingRedefined, byte[] classfileBuffer,
+                                               ClassHierarchy hierarchy) {
+        byte[] code = classfileBuffer;
+        boolean changed = false;
+        for (Client c : matching) {
+            byte[] instrumented = c.instrument(classBeingRedefined, cname, code, hierarchy);
+            if (instrumented != null) {
+                code = instrumented;
+                changed = true;
+            }
+        }
+        return changed? code : null;
+    }
+}
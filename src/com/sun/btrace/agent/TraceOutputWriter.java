@@ -26,152 +26,430 @@
 package com.sun.btrace.agent;
 
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * This class represents various strategies available for dumping BTrace
  * output to a file.
+ * <p>
+ * The output is written asynchronously: the writing threads only encode
+ * the characters into buffers which are handed over to a dedicated writer
+ * thread through a bounded ring. The writer thread copies them to a large
+ * direct buffer and writes it to a {@linkplain FileChannel} in one go
+ * (group commit) - once enough data is pending, once the oldest pending
+ * data is 200 ms old or when the writer is closed
+ * (at the latest on JVM exit). {@linkplain #flush()} does not wait for the
+ * data to be written, which keeps it cheap enough to be called after every
+ * message. The writing threads block only when the writer thread lags
+ * behind by the whole ring.
+ * <p>
+ * The rolling writers switch to a new file when the current one reaches
+ * the maximum size (at a line boundary where possible) and/or when the
+ * rolling interval has elapsed; the rolled chunks may be gzipped in the
+ * background.
  *
  * @author Jaroslav Bachorik
  */
 abstract public class TraceOutputWriter extends Writer {
-    static private class SimpleFileOutput extends TraceOutputWriter {
-        final private FileWriter delegate;
+    // the buffers filled by the writing threads
+    private static final int CHUNK_SIZE = 64 * 1024;
+    // filled buffers the writer thread may lag behind
+    private static final int RING_SIZE = 64;
+    // the buffer written to the file channel at once
+    private static final int DIRECT_BUFFER_SIZE = 1024 * 1024;
+    // the pending data written without waiting for the flush interval
+    private static final int COMMIT_SIZE = DIRECT_BUFFER_SIZE / 4;
+    private static final long FLUSH_MILLISECONDS = 200;
+    private static final int DEFAULT_MAX_ROLLS = 100;
 
-        public SimpleFileOutput(File output) throws IOException {
-            output.getParentFile().mkdirs();
-            delegate = new FileWriter(output);
-        }
-        @Override
-        public void close() throws IOException {
-            delegate.close();
+    private static final ThreadFactory daemonThreadFactory = new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "BTrace Output Compressor");
+            t.setDaemon(true);
+            return t;
         }
+    };
+    // gzips the rolled chunks off the writer thread
+    private static ExecutorService compressor;
 
-        @Override
-        public void flush() throws IOException {
-            delegate.flush();
-        }
-
-        @Override
-        public void write(char[] cbuf, int off, int len) throws IOException {
-            delegate.write(cbuf, off, len);
-        }
-    }
+    static private class AsyncFileOutput extends TraceOutputWriter {
+        final private ReentrantLock lock = new ReentrantLock();
+        final private Condition dataAvailable = lock.newCondition();
+        final private Condition spaceAvailable = lock.newCondition();
+        // @GuardedBy lock
+        final private CharsetEncoder encoder;
+        final private ByteBuffer[] ring = new ByteBuffer[RING_SIZE];
+        private int head, count;
+        private final ArrayDeque<ByteBuffer> free = new ArrayDeque<ByteBuffer>();
+        private ByteBuffer current = ByteBuffer.allocate(CHUNK_SIZE);
+        private int pendingBytes;
+        // System.nanoTime() of the oldest data not yet handed to the writer thread
+        private long pendingSince;
+        private boolean closing;
+        private volatile IOException failure;
 
-    static abstract private class RollingFileWriter extends TraceOutputWriter {
-        final private ReentrantReadWriteLock writerLock = new ReentrantReadWriteLock();
-        // @GuardedBy writerLock
-        private FileWriter currentFileWriter;
-        private String path, baseName;
+        // used by the writer thread only
+        final private File file;
+        final private int maxRolls;
+        final private long maxSize;
+        final private long interval;
+        final private boolean compress;
+        private final ByteBuffer direct = ByteBuffer.allocateDirect(DIRECT_BUFFER_SIZE);
+        private FileChannel channel;
+        private long fileSize;
+        private long nextRoll;
         private int counter = 1;
-        private int maxRolls;
 
-        public RollingFileWriter(File output) throws IOException {
-            this(output, 5);
-        }
-        
-        public RollingFileWriter(File output, int maxRolls) throws IOException {
-            output.getParentFile().mkdirs();
-            currentFileWriter = new FileWriter(output);
-            path = output.getParentFile().getAbsolutePath();
-            baseName = output.getName();
+        final private Thread writerThread;
+        final private Thread exitHook;
+
+        AsyncFileOutput(File output, int maxRolls, long maxSize, long interval,
+                        boolean compress) throws IOException {
+            this.file = output.getAbsoluteFile();
             this.maxRolls = maxRolls;
+            this.maxSize = maxSize;
+            this.interval = interval;
+            this.compress = compress;
+            this.encoder = Charset.defaultCharset().newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            file.getParentFile().mkdirs();
+            open();
+            writerThread = new Thread(new Runnable() {
+                public void run() {
+                    writeLoop();
+                }
+            }, "BTrace Output Writer");
+            writerThread.setDaemon(true);
+            writerThread.start();
+            exitHook = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        drain();
+                    } catch (IOException e) {
+                        // nobody to report to anymore
+                    }
+                }
+            });
+            Runtime.getRuntime().addShutdownHook(exitHook);
         }
 
         @Override
-        final public void close() throws IOException {
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            lock.lock();
             try {
-                writerLock.readLock().lock();
-                currentFileWriter.close();
+                ensureOpen();
+                if (pendingSince == 0L) {
+                    // starts the flush interval
+                    pendingSince = System.nanoTime();
+                    dataAvailable.signal();
+                }
+                CharBuffer in = CharBuffer.wrap(cbuf, off, len);
+                while (encoder.encode(in, current, false).isOverflow()) {
+                    publish();
+                }
             } finally {
-                writerLock.readLock().unlock();
+                lock.unlock();
             }
         }
 
+        /**
+         * The data written so far is committed by the writer thread
+         * within the flush interval; this does not wait for it.
+         */
         @Override
-        final public void flush() throws IOException {        	
-        	try {
-                writerLock.readLock().lock();
-                currentFileWriter.flush();
+        public void flush() throws IOException {
+            lock.lock();
+            try {
+                ensureOpen();
             } finally {
-                writerLock.readLock().unlock();
-            }
-            
-            if (needsRoll()) {
-                nextWriter();
+                lock.unlock();
             }
         }
 
         @Override
-        final public void write(char[] cbuf, int off, int len) throws IOException {
+        public void close() throws IOException {
+            drain();
             try {
-                writerLock.readLock().lock();
-                currentFileWriter.write(cbuf, off, len);
-            } finally {
-                writerLock.readLock().unlock();
+                Runtime.getRuntime().removeShutdownHook(exitHook);
+            } catch (IllegalStateException e) {
+                // already shutting down
             }
         }
 
-        private void nextWriter() {
+        // hands all the data over to the writer thread and waits for it to finish
+        private void drain() throws IOException {
+            lock.lock();
             try {
-                writerLock.writeLock().lock();
-                currentFileWriter = getNextWriter();
-            } catch (IOException e) {
-                Main.debugPrint(e);
+                if (closing) {
+                    return;
+                }
+                encoder.encode(CharBuffer.allocate(0), current, true);
+                encoder.flush(current);
+                closing = true;
+                dataAvailable.signal();
             } finally {
-                writerLock.writeLock().unlock();
+                lock.unlock();
+            }
+            try {
+                writerThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (failure != null) {
+                throw failure;
             }
         }
 
-        private FileWriter getNextWriter() throws IOException {
-        	currentFileWriter.close();
-        	File scriptOutputFile_renameFrom = new File(path + File.separator + baseName);
-        	File scriptOutputFile_renameTo = new File(path + File.separator + baseName + "." + (counter++));
-        	
-            if (scriptOutputFile_renameTo.exists()) {
-            	scriptOutputFile_renameTo.delete();
+        // @GuardedBy lock
+        private void ensureOpen() throws IOException {
+            if (closing) {
+                throw new IOException("stream closed");
             }
-            scriptOutputFile_renameFrom.renameTo(scriptOutputFile_renameTo);
-            scriptOutputFile_renameFrom = new File(path + File.separator + baseName);
-            if (counter > maxRolls) {
-                counter = 1;
+            if (failure != null) {
+                throw failure;
             }
-            return new FileWriter(scriptOutputFile_renameFrom);
         }
 
-        abstract protected boolean needsRoll();
-    }
+        // @GuardedBy lock; passes the current buffer to the writer thread
+        private void publish() throws IOException {
+            while (count == ring.length) {
+                ensureOpen();
+                spaceAvailable.awaitUninterruptibly();
+            }
+            pendingBytes += current.position();
+            ring[(head + count++) % ring.length] = current;
+            current = free.isEmpty() ? ByteBuffer.allocate(CHUNK_SIZE) : free.pop();
+            if (pendingBytes >= COMMIT_SIZE) {
+                dataAvailable.signal();
+            }
+        }
 
-    static private class TimeBasedRollingFileWriter extends RollingFileWriter {
-        private long lastTimeStamp = System.currentTimeMillis();
-        private long interval;
-        private TimeUnit unit;
+        private void writeLoop() {
+            ByteBuffer[] batch = new ByteBuffer[ring.length + 1];
+            for (;;) {
+                int size = 0;
+                boolean last;
+                lock.lock();
+                try {
+                    long flushNanos = TimeUnit.MILLISECONDS.toNanos(FLUSH_MILLISECONDS);
+                    for (;;) {
+                        if (closing || pendingBytes >= COMMIT_SIZE) {
+                            break;
+                        }
+                        if (pendingSince == 0L) {
+                            dataAvailable.awaitUninterruptibly();
+                            continue;
+                        }
+                        long wait = pendingSince + flushNanos - System.nanoTime();
+                        if (wait <= 0L) {
+                            break;
+                        }
+                        try {
+                            dataAvailable.awaitNanos(wait);
+                        } catch (InterruptedException e) {
+                            // the writer thread is not interrupted by BTrace
+                        }
+                    }
+                    while (count > 0) {
+                        batch[size++] = ring[head];
+                        ring[head] = null;
+                        head = (head + 1) % ring.length;
+                        count--;
+                    }
+                    if (current.position() > 0) {
+                        batch[size++] = current;
+                        current = free.isEmpty() ? ByteBuffer.allocate(CHUNK_SIZE) : free.pop();
+                    }
+                    pendingBytes = 0;
+                    pendingSince = 0L;
+                    last = closing;
+                    spaceAvailable.signalAll();
+                } finally {
+                    lock.unlock();
+                }
 
-        public TimeBasedRollingFileWriter(File output, int maxRolls, long interval, TimeUnit unit) throws IOException {
-            super(output, maxRolls);
-            this.interval = interval;
-            this.unit = unit;
+                try {
+                    if (failure == null) {
+                        commit(batch, size);
+                    }
+                } catch (IOException e) {
+                    if (Main.isDebug()) Main.debugPrint(e);
+                    failure = e;
+                }
+
+                lock.lock();
+                try {
+                    for (int i = 0; i < size; i++) {
+                        batch[i].clear();
+                        free.push(batch[i]);
+                        batch[i] = null;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                if (last) {
+                    try {
+                        channel.close();
+                    } catch (IOException e) {
+                        if (failure == null) {
+                            failure = e;
+                        }
+                    }
+                    return;
+                }
+            }
         }
 
-        public TimeBasedRollingFileWriter(File output, long interval, TimeUnit unit) throws IOException {
-            super(output);
-            this.interval = interval;
-            this.unit = unit;
+        private void commit(ByteBuffer[] batch, int size) throws IOException {
+            if (size == 0) {
+                return;
+            }
+            if (interval > 0 && System.currentTimeMillis() >= nextRoll) {
+                if (fileSize > 0) {
+                    roll();
+                } else {
+                    nextRoll = System.currentTimeMillis() + interval;
+                }
+            }
+            for (int i = 0; i < size; i++) {
+                ByteBuffer chunk = batch[i];
+                chunk.flip();
+                while (chunk.hasRemaining()) {
+                    if (!direct.hasRemaining()) {
+                        writeOut();
+                    }
+                    int n = Math.min(chunk.remaining(), direct.remaining());
+                    int limit = chunk.limit();
+                    chunk.limit(chunk.position() + n);
+                    direct.put(chunk);
+                    chunk.limit(limit);
+                }
+            }
+            writeOut();
         }
 
-        protected boolean needsRoll() {
-            long currTime = System.currentTimeMillis();
-            long myInterval =  currTime- lastTimeStamp;
-            if (unit.convert(myInterval, TimeUnit.MILLISECONDS) >= interval) {
-                lastTimeStamp = currTime;
-                return true;
+        // writes the direct buffer, rolling the file as needed
+        private void writeOut() throws IOException {
+            direct.flip();
+            while (direct.hasRemaining()) {
+                int end = direct.limit();
+                if (maxSize > 0 && fileSize + direct.remaining() > maxSize) {
+                    int room = (int) Math.max(0L, maxSize - fileSize);
+                    int cut = lineEnd(direct, direct.position() + room);
+                    if (cut < 0) {
+                        if (fileSize > 0) {
+                            roll();
+                            continue;
+                        }
+                        // a line longer than the maximum size
+                        cut = direct.position() + room;
+                    }
+                    end = cut;
+                }
+                int limit = direct.limit();
+                direct.limit(end);
+                while (direct.hasRemaining()) {
+                    fileSize += channel.write(direct);
+                }
+                direct.limit(limit);
+                if (maxSize > 0 && direct.hasRemaining()) {
+                    roll();
+                }
             }
-            return false;
+            direct.clear();
+        }
+
+        // the position after the last line separator before the given one or -1
+        private static int lineEnd(ByteBuffer buf, int before) {
+            for (int i = before - 1; i >= buf.position(); i--) {
+                if (buf.get(i) == '\n') {
+                    return i + 1;
+                }
+            }
+            return -1;
+        }
+
+        private void open() throws IOException {
+            channel = new FileOutputStream(file).getChannel();
+            fileSize = 0;
+            nextRoll = System.currentTimeMillis() + interval;
+        }
+
+        private void roll() throws IOException {
+            channel.close();
+            String base = file.getName();
+            File rolled = new File(file.getParentFile(), base + "." + (counter++));
+            if (counter > maxRolls) {
+                counter = 1;
+            }
+            if (rolled.exists()) {
+                rolled.delete();
+            }
+            file.renameTo(rolled);
+            if (compress) {
+                compress(rolled);
+            }
+            open();
+        }
+    }
+
+    private static synchronized void compress(final File rolled) {
+        if (compressor == null) {
+            compressor = Executors.newSingleThreadExecutor(daemonThreadFactory);
+        }
+        final File gz = new File(rolled.getPath() + ".gz");
+        // moved aside so that rolling to the same name again can not
+        // overwrite the chunk while it is being compressed
+        final File source = new File(rolled.getPath() + ".tmp");
+        source.delete();
+        if (!rolled.renameTo(source)) {
+            return;
         }
+        compressor.submit(new Runnable() {
+            public void run() {
+                try {
+                    InputStream in = new FileInputStream(source);
+                    try {
+                        OutputStream out = new GZIPOutputStream(new FileOutputStream(gz), 64 * 1024);
+                        try {
+                            byte[] buf = new byte[64 * 1024];
+                            int read;
+                            while ((read = in.read(buf)) > 0) {
+                                out.write(buf, 0, read);
+                            }
+                        } finally {
+                            out.close();
+                        }
+                    } finally {
+                        in.close();
+                    }
+                    source.delete();
+                } catch (IOException e) {
+                    if (Main.isDebug()) Main.debugPrint(e);
+                }
+            }
+        });
     }
 
     /**
@@ -182,7 +460,7 @@ abstract public class TraceOutputWriter extends Writer {
     public static TraceOutputWriter fileWriter(File output) {
         TraceOutputWriter instance = null;
         try {
-            instance = new SimpleFileOutput(output);
+            instance = new AsyncFileOutput(output, DEFAULT_MAX_ROLLS, 0, 0, false);
         } catch (IOException e) {
             Main.debugPrint(e);
         }
@@ -197,13 +475,7 @@ abstract public class TraceOutputWriter extends Writer {
      * @return Returns an appropriate {@linkplain  TraceOutputWriter} instance or NULL
      */
     public static TraceOutputWriter rollingFileWriter(File output, long interval, TimeUnit unit) {
-        TraceOutputWriter instance = null;
-        try {
-            instance = new TimeBasedRollingFileWriter(null, interval, unit);
-        } catch (IOException e) {
-            Main.debugPrint(e);
-        }
-        return instance;
+        return rollingFileWriter(output, DEFAULT_MAX_ROLLS, interval, unit);
     }
 
     /**
@@ -215,9 +487,24 @@ abstract public class TraceOutputWriter extends Writer {
      * @return Returns an appropriate {@linkplain  TraceOutputWriter} instance or NULL
      */
     public static TraceOutputWriter rollingFileWriter(File output, int maxRolls, long interval, TimeUnit unit) {
+        return rollingFileWriter(output, maxRolls, 0, interval, unit, false);
+    }
+
+    /**
+     * Size and/or time based rolling file writer.
+     * @param output The file to put the output to
+     * @param maxRolls Maximum number of roll chunks
+     * @param maxSize The size in bytes the output file is rolled at or 0
+     * @param interval The interval between rolling the output file or 0
+     * @param unit The {@linkplain TimeUnit} value the interval is represented in
+     * @param compress Whether the rolled chunks are gzipped
+     * @return Returns an appropriate {@linkplain  TraceOutputWriter} instance or NULL
+     */
+    public static TraceOutputWriter rollingFileWriter(File output, int maxRolls, long maxSize,
+                                                      long interval, TimeUnit unit, boolean compress) {
         TraceOutputWriter instance = null;
         try {
-            instance = new TimeBasedRollingFileWriter(output, maxRolls, interval, unit);
+            instance = new AsyncFileOutput(output, maxRolls, maxSize, unit.toMillis(interval), compress);
         } catch (IOException e) {
             Main.debugPrint(e);
         }
@@ -0,0 +1,511 @@
+/*
+ * Copyright 2008-2010 Sun Microsystems, Inc.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Sun designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Sun in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Sun Microsystems, Inc., 4150 Network Circle, Santa Clara,
+ * CA 95054 USA or visit www.sun.com if you need additional information or
+ * have any questions.
+ */
+package com.sun.btrace.agent;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import com.sun.btrace.runtime.ClassHierarchy;
+
+/**
+ * Content addressed cache of instrumented class files.
+ * <p>
+ * The key is the SHA-1 digest of the original class bytes together
+ * with the digests of the BTrace classes instrumenting it (see
+ * {@linkplain #scriptDigest(byte[], String)}); the same script applied
+ * to the same class always produces the same bytes, so a hit skips the
+ * whole ASM read/instrument/write pipeline.
+ * <p>
+ * The stack frames of the instrumented class also depend on the common
+ * super classes of the types merged in the rewritten methods, which
+ * are not part of the class bytes. They are kept with the entry and
+ * resolved again on a hit; an entry whose hierarchy changed (eg. the
+ * same class defined by another loader next to different libraries)
+ * is treated as a miss.
+ * <p>
+ * The entries are kept in memory, least recently used ones evicted once
+ * the configured size is exceeded. Optionally the entries are also
+ * written to a store of two memory mapped files under the dump
+ * directory, surviving agent restarts. The store is written as a log:
+ * when the current file is full the other, older one is cleared and
+ * becomes the current one - that is, the disk store evicts half of
+ * its content at a time, oldest first.
+ */
+final class TransformCache {
+    private static final int DIGEST_SIZE = 20;
+
+    private static final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException e) {
+                throw new InternalError(e.toString());
+            }
+        }
+    };
+
+    /**
+     * Cache key; the digest of the class and of the scripts
+     */
+    static final class Key {
+        final byte[] digest;
+        private final int hash;
+
+        Key(byte[] digest) {
+            this.digest = digest;
+            this.hash = Arrays.hashCode(digest);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Key && Arrays.equals(digest, ((Key) obj).digest);
+        }
+    }
+
+    private final long maxMemory;
+    // guarded by "this"
+    private long memoryUsed;
+    private final LinkedHashMap<Key, Entry> entries =
+        new LinkedHashMap<Key, Entry>(256, 0.75f, true);
+    private final DiskStore disk;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong stale = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param maxMemory the maximum size of the cached classes kept in memory
+     * @param dir the directory of the disk store or null
+     * @param maxDisk the maximum size of the disk store
+     */
+    TransformCache(long maxMemory, File dir, long maxDisk) {
+        this.maxMemory = maxMemory;
+        DiskStore store = null;
+        if (dir != null && maxDisk > 0) {
+            try {
+                store = new DiskStore(dir, maxDisk);
+            } catch (IOException e) {
+                if (Main.isDebug()) Main.debugPrint("transform cache: disk store not available - " + e);
+            }
+        }
+        this.disk = store;
+    }
+
+    /**
+     * Returns the digest identifying a BTrace class, as submitted, and
+     * anything else, besides the class bytes, the instrumentation output
+     * depends on.
+     */
+    static byte[] scriptDigest(byte[] btraceCode, String options) {
+        MessageDigest md = digests.get();
+        md.reset();
+        md.update(btraceCode);
+        try {
+            md.update(options.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new InternalError(e.toString());
+        }
+        return md.digest();
+    }
+
+    /**
+     * Returns the key of the given class instrumented by the scripts
+     * with the given digests, in the given order.
+     */
+    Key key(byte[] classBytes, byte[][] scriptDigests, boolean redefining) {
+        MessageDigest md = digests.get();
+        md.reset();
+        md.update(classBytes);
+        for (byte[] d : scriptDigests) {
+            md.update(d);
+        }
+        md.update((byte) (redefining ? 1 : 0));
+        return new Key(md.digest());
+    }
+
+    /**
+     * Returns a copy of the cached instrumented class or null. The
+     * common super classes the entry was computed with are checked
+     * against the given hierarchy.
+     */
+    byte[] get(Key key, ClassHierarchy hierarchy) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+        }
+        boolean fromDisk = false;
+        if (entry == null && disk != null) {
+            entry = disk.get(key);
+            fromDisk = entry != null;
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        if (!entry.isValid(hierarchy)) {
+            stale.incrementAndGet();
+            return null;
+        }
+        if (fromDisk) {
+            diskHits.incrementAndGet();
+            putInMemory(key, entry);
+        } else {
+            hits.incrementAndGet();
+        }
+        return entry.code.clone();
+    }
+
+    /**
+     * Caches the instrumented class together with the common super
+     * classes resolved while computing its stack frames - triples of
+     * the two types and their common super class.
+     */
+    void put(Key key, byte[] code, List<String> resolved) {
+        Entry entry = new Entry(code.clone(), resolved.toArray(new String[resolved.size()]));
+        putInMemory(key, entry);
+        if (disk != null) {
+            disk.put(key, entry);
+        }
+    }
+
+    private synchronized void putInMemory(Key key, Entry entry) {
+        if (entry.size() > maxMemory) {
+            return;
+        }
+        Entry old = entries.put(key, entry);
+        if (old != null) {
+            memoryUsed -= old.size();
+        }
+        memoryUsed += entry.size();
+        Iterator<Entry> iter = entries.values().iterator();
+        while (memoryUsed > maxMemory && iter.hasNext()) {
+            memoryUsed -= iter.next().size();
+            iter.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    String getStatistics() {
+        int count;
+        long used;
+        synchronized (this) {
+            count = entries.size();
+            used = memoryUsed;
+        }
+        StringBuilder buf = new StringBuilder();
+        buf.append("transform cache: hits=").append(hits.get());
+        buf.append(" diskHits=").append(diskHits.get());
+        buf.append(" misses=").append(misses.get());
+        buf.append(" stale=").append(stale.get());
+        buf.append(" entries=").append(count);
+        buf.append(" bytes=").append(used);
+        buf.append(" evictions=").append(evictions.get());
+        if (disk != null) {
+            buf.append(" diskEntries=").append(disk.size());
+        }
+        return buf.toString();
+    }
+
+    /**
+     * A cached class and the common super classes it was computed with
+     */
+    private static final class Entry {
+        final byte[] code;
+        final String[] resolved;
+
+        Entry(byte[] code, String[] resolved) {
+            this.code = code;
+            this.resolved = resolved;
+        }
+
+        boolean isValid(ClassHierarchy hierarchy) {
+            for (int i = 0; i < resolved.length; i += 3) {
+                String common = hierarchy.getCommonSuperClass(resolved[i], resolved[i + 1]);
+                if (!resolved[i + 2].equals(common)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // approximate memory footprint
+        long size() {
+            long size = code.length;
+            for (String s : resolved) {
+                size += 2 * s.length();
+            }
+            return size;
+        }
+
+        byte[] toBytes() {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(code.length + 64 * resolved.length);
+            DataOutputStream out = new DataOutputStream(bytes);
+            try {
+                out.writeInt(code.length);
+                out.write(code);
+                out.writeInt(resolved.length);
+                for (String s : resolved) {
+                    out.writeUTF(s);
+                }
+                out.flush();
+            } catch (IOException e) {
+                throw new InternalError(e.toString());
+            }
+            return bytes.toByteArray();
+        }
+
+        static Entry fromBytes(byte[] data) {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            try {
+                byte[] code = new byte[in.readInt()];
+                in.readFully(code);
+                String[] resolved = new String[in.readInt()];
+                for (int i = 0; i < resolved.length; i++) {
+                    resolved[i] = in.readUTF();
+                }
+                return new Entry(code, resolved);
+            } catch (IOException e) {
+                return null;
+            } catch (RuntimeException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * The on-disk part of the cache: two memory mapped files, each
+     * holding a header followed by records of
+     * <code>magic, length, key, crc32, entry</code>, the entry being
+     * the class bytes followed by the resolved common super classes.
+     * A record with a bad magic or checksum ends the file; a
+     * partially written record is simply dropped on the next start.
+     * A key written again replaces the older record.
+     */
+    private static final class DiskStore {
+        private static final int FILE_MAGIC = 0xB7AC0CAC;
+        private static final int RECORD_MAGIC = 0xB7AC0DEC;
+        private static final int VERSION = 2;
+        // magic, version, generation
+        private static final int HEADER_SIZE = 16;
+        // magic, length, key, crc32
+        private static final int RECORD_HEADER_SIZE = 12 + DIGEST_SIZE;
+
+        private static final class Location {
+            final int file;
+            final int offset;
+            final int length;
+
+            Location(int file, int offset, int length) {
+                this.file = file;
+                this.offset = offset;
+                this.length = length;
+            }
+        }
+
+        private final MappedByteBuffer[] buffers = new MappedByteBuffer[2];
+        private final long[] generations = new long[2];
+        private final Map<Key, Location> index = new HashMap<Key, Location>();
+        private final int fileSize;
+        // keeps other agents away from the files; never released
+        private final FileLock lock;
+        private int current;
+        private int position;
+
+        DiskStore(File dir, long maxSize) throws IOException {
+            fileSize = (int) Math.min(Integer.MAX_VALUE, maxSize / 2);
+            if (fileSize < HEADER_SIZE + RECORD_HEADER_SIZE + 4) {
+                throw new IOException("disk store too small");
+            }
+            dir.mkdirs();
+            FileLock l = null;
+            for (int i = 0; i < 2; i++) {
+                File file = new File(dir, "btrace-transform-cache." + i);
+                RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                try {
+                    FileChannel ch = raf.getChannel();
+                    if (i == 0) {
+                        try {
+                            l = ch.tryLock();
+                        } catch (OverlappingFileLockException e) {
+                            l = null;
+                        }
+                        if (l == null) {
+                            raf.close();
+                            throw new IOException(file + " is used by another agent");
+                        }
+                    }
+                    if (raf.length() != fileSize) {
+                        raf.setLength(fileSize);
+                    }
+                    // the mapping stays valid after the file is closed
+                    buffers[i] = ch.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+                } finally {
+                    if (i != 0) {
+                        raf.close();
+                    }
+                }
+                readHeader(i);
+            }
+            lock = l;
+            current = generations[0] >= generations[1] ? 0 : 1;
+            // the newer records replace the older ones of the same key
+            load(1 - current);
+            position = load(current);
+        }
+
+        private void readHeader(int file) {
+            MappedByteBuffer buf = buffers[file];
+            if (buf.getInt(0) != FILE_MAGIC || buf.getInt(4) != VERSION) {
+                initHeader(file, 0L);
+            } else {
+                generations[file] = buf.getLong(8);
+            }
+        }
+
+        // indexes the records of the given file
+        private int load(int file) {
+            MappedByteBuffer buf = buffers[file];
+            int pos = HEADER_SIZE;
+            CRC32 crc = new CRC32();
+            while (pos + RECORD_HEADER_SIZE <= fileSize && buf.getInt(pos) == RECORD_MAGIC) {
+                int length = buf.getInt(pos + 4);
+                int data = pos + RECORD_HEADER_SIZE;
+                if (length < 0 || data + length > fileSize) {
+                    break;
+                }
+                byte[] digest = new byte[DIGEST_SIZE];
+                byte[] code = new byte[length];
+                ByteBuffer dup = buf.duplicate();
+                dup.position(pos + 8);
+                dup.get(digest);
+                int checksum = dup.getInt();
+                dup.get(code);
+                crc.reset();
+                crc.update(code);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                index.put(new Key(digest), new Location(file, data, length));
+                pos = data + length;
+            }
+            terminate(file, pos);
+            return pos;
+        }
+
+        private void initHeader(int file, long generation) {
+            MappedByteBuffer buf = buffers[file];
+            buf.putInt(0, FILE_MAGIC);
+            buf.putInt(4, VERSION);
+            buf.putLong(8, generation);
+            generations[file] = generation;
+            terminate(file, HEADER_SIZE);
+        }
+
+        // marks the end of the records
+        private void terminate(int file, int pos) {
+            if (pos + 4 <= fileSize) {
+                buffers[file].putInt(pos, 0);
+            }
+        }
+
+        synchronized int size() {
+            return index.size();
+        }
+
+        synchronized Entry get(Key key) {
+            Location loc = index.get(key);
+            if (loc == null) {
+                return null;
+            }
+            byte[] data = new byte[loc.length];
+            ByteBuffer dup = buffers[loc.file].duplicate();
+            dup.position(loc.offset);
+            dup.get(data);
+            return Entry.fromBytes(data);
+        }
+
+        synchronized void put(Key key, Entry entry) {
+            byte[] data = entry.toBytes();
+            int size = RECORD_HEADER_SIZE + data.length;
+            if (HEADER_SIZE + size > fileSize) {
+                return;
+            }
+            if (position + size > fileSize) {
+                // drop the older file and continue there
+                int other = 1 - current;
+                Iterator<Location> iter = index.values().iterator();
+                while (iter.hasNext()) {
+                    if (iter.next().file == other) {
+                        iter.remove();
+                    }
+                }
+                initHeader(other, generations[current] + 1);
+                current = other;
+                position = HEADER_SIZE;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            ByteBuffer dup = buffers[current].duplicate();
+            dup.position(position + 4);
+            dup.putInt(data.length);
+            dup.put(key.digest);
+            dup.putInt((int) crc.getValue());
+            dup.put(data);
+            terminate(current, position + size);
+            // the magic goes last; the record is complete now
+            buffers[current].putInt(position, RECORD_MAGIC);
+            index.put(key, new Location(current, position + RECORD_HEADER_SIZE, data.length));
+            position += size;
+        }
+    }
+}
@@ -25,25 +25,100 @@
 package com.sun.btrace.aggregation;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * BTrace stores the results of aggregating functions in an Aggregation. The aggregated values may be grouped using a
  * composite {@link AggregationKey}.
  * <p>
+ * Keys of up to four elements may also be passed directly to the <code>add</code> methods, either as objects or as
+ * primitive <code>long</code> values. The entries live in an open-addressed table which is probed with the key
+ * elements themselves, so adding to an existing key allocates neither an {@link AggregationKey} nor boxed values.
+ * Looking up an entry is lock-free; only inserting a new key takes the aggregation lock.
+ * <p>
  *
  * @author Christian Glencross
  */
 public class Aggregation implements Cloneable {
 
-    private static final AggregationKey NULL_AGGREGATION_KEY = new AggregationKey(new Object[0]);
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * An aggregated value together with its key. The key elements are held either as objects (<code>r0..r3</code>)
+     * or, when the corresponding bit of <code>prims</code> is set, as primitive longs (<code>p0..p3</code>).
+     * Keys with more than four elements keep all of them in <code>extra</code>.
+     */
+    private static final class Entry {
+        final int hash;
+        final int arity;
+        final int prims;
+        final Object r0, r1, r2, r3;
+        final long p0, p1, p2, p3;
+        final Object[] extra;
+        final AggregationValue value;
+
+        Entry(int hash, int arity, int prims, Object r0, long p0, Object r1, long p1, Object r2, long p2, Object r3,
+                long p3, Object[] extra, AggregationValue value) {
+            this.hash = hash;
+            this.arity = arity;
+            this.prims = prims;
+            this.r0 = r0;
+            this.r1 = r1;
+            this.r2 = r2;
+            this.r3 = r3;
+            this.p0 = p0;
+            this.p1 = p1;
+            this.p2 = p2;
+            this.p3 = p3;
+            this.extra = extra;
+            this.value = value;
+        }
+
+        boolean matches(int arity, int prims, Object r0, long p0, Object r1, long p1, Object r2, long p2, Object r3,
+                long p3, Object[] extra) {
+            if (this.arity != arity || this.prims != prims) {
+                return false;
+            }
+            if (extra != null) {
+                return Arrays.equals(this.extra, extra);
+            }
+            return p0 == this.p0 && p1 == this.p1 && p2 == this.p2 && p3 == this.p3 && eq(r0, this.r0)
+                    && eq(r1, this.r1) && eq(r2, this.r2) && eq(r3, this.r3);
+        }
+
+        Object[] getElements() {
+            if (extra != null) {
+                return extra.clone();
+            }
+            Object[] elements = new Object[arity];
+            for (int i = 0; i < arity; i++) {
+                Object r;
+                long p;
+                switch (i) {
+                    case 0: r = r0; p = p0; break;
+                    case 1: r = r1; p = p1; break;
+                    case 2: r = r2; p = p2; break;
+                    default: r = r3; p = p3;
+                }
+                elements[i] = (prims & (1 << i)) != 0 ? Long.valueOf(p) : r;
+            }
+            return elements;
+        }
+
+        private static boolean eq(Object o1, Object o2) {
+            return o1 == o2 || (o1 != null && o1.equals(o2));
+        }
+    }
+
     private final AggregationFunction type;
-    private final ConcurrentHashMap<AggregationKey, AggregationValue> values = new ConcurrentHashMap<AggregationKey, AggregationValue>();
+    private final int significantDigits;
+    // open-addressed, at most half full; slots are only ever filled under the aggregation lock
+    private volatile Entry[] table = new Entry[INITIAL_CAPACITY];
+    // guarded by "this"
+    private int size = 0;
 
     /**
      * Creates an aggregation.
@@ -53,8 +128,26 @@ public class Aggregation implements Cloneable {
      *
      */
     public Aggregation(AggregationFunction type) {
+        this(type, Histogram.DEFAULT_DIGITS);
+    }
+
+    /**
+     * Creates an aggregation with the given precision.
+     *
+     * @param type
+     *            the type of aggregation function to use
+     * @param significantDigits
+     *            number of significant decimal digits to keep; only used by {@link AggregationFunction#HISTOGRAM}
+     *
+     */
+    public Aggregation(AggregationFunction type, int significantDigits) {
         super();
+        if (type == AggregationFunction.HISTOGRAM) {
+            // fail early on invalid precision
+            HistogramLayout.forDigits(significantDigits);
+        }
         this.type = type;
+        this.significantDigits = significantDigits;
     }
 
     /**
@@ -65,7 +158,7 @@ public class Aggregation implements Cloneable {
      *            the value to be added
      */
     public void add(long data) {
-        add(NULL_AGGREGATION_KEY, data);
+        value(0, 0, null, 0, null, 0, null, 0, null, 0, null, true).add(data);
     }
 
     /**
@@ -77,23 +170,181 @@ public class Aggregation implements Cloneable {
      *            the value to be added
      */
     public void add(AggregationKey key, long data) {
-        AggregationValue aggregationValue = values.get(key);
-        if (aggregationValue == null) {
-            aggregationValue = type.newValue();
-            AggregationValue existing = values.putIfAbsent(key, aggregationValue);
-            if (existing != null) {
-                aggregationValue = existing;
-            }
-        }
-        aggregationValue.add(data);
+        valueFor(key, true).add(data);
+    }
+
+    /**
+     * Adds an item of data to the aggregation with a single element grouping key.
+     *
+     * @param e1
+     *            the key element
+     * @param data
+     *            the value to be added
+     */
+    public void add(Object e1, long data) {
+        value(1, 0, e1, 0, null, 0, null, 0, null, 0, null, true).add(data);
+    }
+
+    /**
+     * Adds an item of data to the aggregation with a single primitive element grouping key.
+     *
+     * @param e1
+     *            the key element
+     * @param data
+     *            the value to be added
+     */
+    public void add(long e1, long data) {
+        value(1, 0x1, null, e1, null, 0, null, 0, null, 0, null, true).add(data);
+    }
+
+    /**
+     * Adds an item of data to the aggregation with a two element grouping key.
+     */
+    public void add(Object e1, Object e2, long data) {
+        value(2, 0, e1, 0, e2, 0, null, 0, null, 0, null, true).add(data);
+    }
+
+    /**
+     * Adds an item of data to the aggregation with a two element grouping key.
+     */
+    public void add(Object e1, long e2, long data) {
+        value(2, 0x2, e1, 0, null, e2, null, 0, null, 0, null, true).add(data);
+    }
+
+    /**
+     * Adds an item of data to the aggregation with a two element grouping key.
+     */
+    public void add(long e1, Object e2, long data) {
+        value(2, 0x1, null, e1, e2, 0, null, 0, null, 0, null, true).add(data);
+    }
+
+    /**
+     * Adds an item of data to the aggregation with a two element primitive grouping key.
+     */
+    public void add(long e1, long e2, long data) {
+        value(2, 0x3, null, e1, null, e2, null, 0, null, 0, null, true).add(data);
+    }
+
+    /**
+     * Adds an item of data to the aggregation with a three element grouping key.
+     */
+    public void add(Object e1, Object e2, Object e3, long data) {
+        value(3, 0, e1, 0, e2, 0, e3, 0, null, 0, null, true).add(data);
+    }
+
+    /**
+     * Adds an item of data to the aggregation with a three element primitive grouping key.
+     */
+    public void add(long e1, long e2, long e3, long data) {
+        value(3, 0x7, null, e1, null, e2, null, e3, null, 0, null, true).add(data);
+    }
+
+    /**
+     * Adds an item of data to the aggregation with a four element grouping key.
+     */
+    public void add(Object e1, Object e2, Object e3, Object e4, long data) {
+        value(4, 0, e1, 0, e2, 0, e3, 0, e4, 0, null, true).add(data);
+    }
+
+    /**
+     * Adds an item of data to the aggregation with a four element primitive grouping key.
+     */
+    public void add(long e1, long e2, long e3, long e4, long data) {
+        value(4, 0xf, null, e1, null, e2, null, e3, null, e4, null, true).add(data);
+    }
+
+    /**
+     * Adds an item of data standing for <code>weight</code> items, see {@link #add(long)}.
+     */
+    public void addWeighted(long data, long weight) {
+        value(0, 0, null, 0, null, 0, null, 0, null, 0, null, true).add(data, weight);
+    }
+
+    /**
+     * Adds an item of data standing for <code>weight</code> items, see {@link #add(AggregationKey,long)}.
+     */
+    public void addWeighted(AggregationKey key, long data, long weight) {
+        valueFor(key, true).add(data, weight);
+    }
+
+    /**
+     * Adds an item of data standing for <code>weight</code> items, see {@link #add(Object,long)}.
+     */
+    public void addWeighted(Object e1, long data, long weight) {
+        value(1, 0, e1, 0, null, 0, null, 0, null, 0, null, true).add(data, weight);
+    }
+
+    /**
+     * Adds an item of data standing for <code>weight</code> items, see {@link #add(long,long)}.
+     */
+    public void addWeighted(long e1, long data, long weight) {
+        value(1, 0x1, null, e1, null, 0, null, 0, null, 0, null, true).add(data, weight);
+    }
+
+    /**
+     * Adds an item of data standing for <code>weight</code> items, see {@link #add(Object,Object,long)}.
+     */
+    public void addWeighted(Object e1, Object e2, long data, long weight) {
+        value(2, 0, e1, 0, e2, 0, null, 0, null, 0, null, true).add(data, weight);
+    }
+
+    /**
+     * Adds an item of data standing for <code>weight</code> items, see {@link #add(Object,long,long)}.
+     */
+    public void addWeighted(Object e1, long e2, long data, long weight) {
+        value(2, 0x2, e1, 0, null, e2, null, 0, null, 0, null, true).add(data, weight);
+    }
+
+    /**
+     * Adds an item of data standing for <code>weight</code> items, see {@link #add(long,Object,long)}.
+     */
+    public void addWeighted(long e1, Object e2, long data, long weight) {
+        value(2, 0x1, null, e1, e2, 0, null, 0, null, 0, null, true).add(data, weight);
+    }
+
+    /**
+     * Adds an item of data standing for <code>weight</code> items, see {@link #add(long,long,long)}.
+     */
+    public void addWeighted(long e1, long e2, long data, long weight) {
+        value(2, 0x3, null, e1, null, e2, null, 0, null, 0, null, true).add(data, weight);
+    }
+
+    /**
+     * Adds an item of data standing for <code>weight</code> items, see {@link #add(Object,Object,Object,long)}.
+     */
+    public void addWeighted(Object e1, Object e2, Object e3, long data, long weight) {
+        value(3, 0, e1, 0, e2, 0, e3, 0, null, 0, null, true).add(data, weight);
+    }
+
+    /**
+     * Adds an item of data standing for <code>weight</code> items, see {@link #add(long,long,long,long)}.
+     */
+    public void addWeighted(long e1, long e2, long e3, long data, long weight) {
+        value(3, 0x7, null, e1, null, e2, null, e3, null, 0, null, true).add(data, weight);
+    }
+
+    /**
+     * Adds an item of data standing for <code>weight</code> items, see {@link #add(Object,Object,Object,Object,long)}.
+     */
+    public void addWeighted(Object e1, Object e2, Object e3, Object e4, long data, long weight) {
+        value(4, 0, e1, 0, e2, 0, e3, 0, e4, 0, null, true).add(data, weight);
+    }
+
+    /**
+     * Adds an item of data standing for <code>weight</code> items, see {@link #add(long,long,long,long,long)}.
+     */
+    public void addWeighted(long e1, long e2, long e3, long e4, long data, long weight) {
+        value(4, 0xf, null, e1, null, e2, null, e3, null, e4, null, true).add(data, weight);
     }
 
     /**
      * Resets all values in the aggregation to their default.
      */
     public void clear() {
-        for (AggregationValue value : values.values()) {
-            value.clear();
+        for (Entry e : table) {
+            if (e != null) {
+                e.value.clear();
+            }
         }
     }
 
@@ -105,27 +356,34 @@ public class Aggregation implements Cloneable {
      * @param count
      *            the absolute number indicates the number of aggregated values to preserve.
      */
-    public void truncate(int count) {
+    public synchronized void truncate(int count) {
         if (count == 0) {
-            values.clear();
+            table = new Entry[INITIAL_CAPACITY];
+            size = 0;
         } else {
-            List<Map.Entry<AggregationKey, AggregationValue>> sortedContents = sort();
+            List<Entry> sortedContents = sort();
 
             int collectionSize = sortedContents.size();
             int numberToRemove = collectionSize - Math.abs(count);
             if (numberToRemove < 0) {
                 return;
             }
-            List<Map.Entry<AggregationKey, AggregationValue>> removeContents;
+            List<Entry> keepContents;
             if (count > 0) {
                 // Remove from the start of the list
-                removeContents = sortedContents.subList(0, numberToRemove);
+                keepContents = sortedContents.subList(numberToRemove, collectionSize);
             } else {
-                removeContents = sortedContents.subList(collectionSize - numberToRemove, collectionSize);
+                keepContents = sortedContents.subList(0, collectionSize - numberToRemove);
+            }
+            Entry[] newTable = new Entry[INITIAL_CAPACITY];
+            while (keepContents.size() * 2 > newTable.length) {
+                newTable = new Entry[newTable.length << 1];
             }
-            for (int i = 0; i < removeContents.size(); i++) {
-                values.remove(removeContents.get(i).getKey());
+            for (Entry e : keepContents) {
+                insert(newTable, e);
             }
+            size = keepContents.size();
+            table = newTable;
         }
     }
 
@@ -137,17 +395,38 @@ public class Aggregation implements Cloneable {
      * @return details of the aggregation in a tabular format.
      */
     public List<Object[]> getData() {
-        List<Entry<AggregationKey, AggregationValue>> sortedContents = sort();
+        return getData(false);
+    }
+
+    /**
+     * Returns details of the aggregation in a tabular format, see {@link #getData()}, optionally resetting the
+     * values. Each value is reset as a part of reading it so no concurrently added data item is lost; it is
+     * accounted for either in the returned data or in the next read.
+     *
+     * @param reset
+     *            whether to reset the values
+     * @return details of the aggregation in a tabular format.
+     */
+    public List<Object[]> getData(boolean reset) {
+        List<Entry> sortedContents = sort();
         List<Object[]> result = new ArrayList<Object[]>(sortedContents.size());
 
-        for (Entry<AggregationKey, AggregationValue> item : sortedContents) {
+        for (Entry item : sortedContents) {
 
-            Object[] keyElements = item.getKey().getElements();
+            Object[] keyElements = item.getElements();
             int rowSize = keyElements.length + 1;
 
             Object[] row = new Object[rowSize];
             System.arraycopy(keyElements, 0, row, 0, keyElements.length);
-            row[rowSize - 1] = item.getValue().getData();
+            AggregationValue value = item.value;
+            if (value instanceof Striped) {
+                row[rowSize - 1] = ((Striped) value).getData(reset);
+            } else {
+                row[rowSize - 1] = value.getData();
+                if (reset) {
+                    value.clear();
+                }
+            }
             result.add(row);
         }
 
@@ -161,9 +440,9 @@ public class Aggregation implements Cloneable {
      */
     public List<AggregationKey> getKeyData() {
     	List<AggregationKey> keyList = new ArrayList<AggregationKey>();
-    	List<Entry<AggregationKey, AggregationValue>> sortedContents = sort();
-    	for (Entry<AggregationKey, AggregationValue> item : sortedContents) {
-    		keyList.add(item.getKey());
+    	List<Entry> sortedContents = sort();
+    	for (Entry item : sortedContents) {
+    		keyList.add(new AggregationKey(item.getElements()));
     	}
     	
     	return keyList;
@@ -176,24 +455,186 @@ public class Aggregation implements Cloneable {
      * @return the value for the given key, or zero. 
      */
     public Long getValueForKey(AggregationKey key) {
-    	AggregationValue aggregationValue = values.get(key);
+    	AggregationValue aggregationValue = valueFor(key, false);
     	if (aggregationValue != null) {
     		return aggregationValue.getValue();
     	} else {
     		return 0l;
     	}
     }
+
     /**
-     * @return a list of key/value pairs contained in this aggregation by sorted by ascending value.
+     * Returns the value at the given percentile of the distribution recorded with an empty key.
+     *
+     * @param percentile
+     *            the percentile, between 0 and 100
+     * @return the value at the percentile, or zero if no data has been added
+     * @throws UnsupportedOperationException if this is not a {@link AggregationFunction#HISTOGRAM} aggregation
      */
-    private List<Map.Entry<AggregationKey, AggregationValue>> sort() {
-        ArrayList<Map.Entry<AggregationKey, AggregationValue>> result = new ArrayList<Entry<AggregationKey, AggregationValue>>(
-                values.entrySet());
-        Collections.sort(result, new Comparator<Map.Entry<AggregationKey, AggregationValue>>() {
+    public long getValueAtPercentile(double percentile) {
+        return getValueAtPercentile(value(0, 0, null, 0, null, 0, null, 0, null, 0, null, false), percentile);
+    }
+
+    /**
+     * Returns the value at the given percentile of the distribution recorded for the given key.
+     *
+     * @param key
+     *            the aggregation key
+     * @param percentile
+     *            the percentile, between 0 and 100
+     * @return the value at the percentile, or zero if the key is not valid for this aggregation
+     * @throws UnsupportedOperationException if this is not a {@link AggregationFunction#HISTOGRAM} aggregation
+     */
+    public long getValueAtPercentile(AggregationKey key, double percentile) {
+        return getValueAtPercentile(valueFor(key, false), percentile);
+    }
+
+    private long getValueAtPercentile(AggregationValue value, double percentile) {
+        if (type != AggregationFunction.HISTOGRAM) {
+            throw new UnsupportedOperationException("Percentiles are only available for " + AggregationFunction.HISTOGRAM + " aggregations");
+        }
+        return value != null ? ((Histogram) value).getData().getValueAtPercentile(percentile) : 0;
+    }
+
+    private AggregationValue valueFor(AggregationKey key, boolean create) {
+        Object[] elements = key.getElements();
+        switch (elements.length) {
+            case 0:
+                return value(0, 0, null, 0, null, 0, null, 0, null, 0, null, create);
+            case 1:
+                return value(1, 0, elements[0], 0, null, 0, null, 0, null, 0, null, create);
+            case 2:
+                return value(2, 0, elements[0], 0, elements[1], 0, null, 0, null, 0, null, create);
+            case 3:
+                return value(3, 0, elements[0], 0, elements[1], 0, elements[2], 0, null, 0, null, create);
+            case 4:
+                return value(4, 0, elements[0], 0, elements[1], 0, elements[2], 0, elements[3], 0, null, create);
+            default:
+                return value(elements.length, 0, null, 0, null, 0, null, 0, null, 0, elements, create);
+        }
+    }
+
+    /**
+     * Looks up the value for the given key elements, creating it if requested. A {@link Long} object element is
+     * treated as the equivalent primitive element so that keys returned by {@link #getKeyData()} find their entries.
+     */
+    private AggregationValue value(int arity, int prims, Object r0, long p0, Object r1, long p1, Object r2, long p2,
+            Object r3, long p3, Object[] extra, boolean create) {
+        if (r0 instanceof Long) { p0 = ((Long) r0).longValue(); r0 = null; prims |= 0x1; }
+        if (r1 instanceof Long) { p1 = ((Long) r1).longValue(); r1 = null; prims |= 0x2; }
+        if (r2 instanceof Long) { p2 = ((Long) r2).longValue(); r2 = null; prims |= 0x4; }
+        if (r3 instanceof Long) { p3 = ((Long) r3).longValue(); r3 = null; prims |= 0x8; }
+
+        int h = arity;
+        if (extra != null) {
+            h = 31 * h + Arrays.hashCode(extra);
+        } else {
+            h = 31 * h + (r0 != null ? r0.hashCode() : (int) (p0 ^ (p0 >>> 32)));
+            h = 31 * h + (r1 != null ? r1.hashCode() : (int) (p1 ^ (p1 >>> 32)));
+            h = 31 * h + (r2 != null ? r2.hashCode() : (int) (p2 ^ (p2 >>> 32)));
+            h = 31 * h + (r3 != null ? r3.hashCode() : (int) (p3 ^ (p3 >>> 32)));
+        }
+        h *= 0x9E3779B9;
+        h ^= h >>> 16;
+
+        Entry[] tab = table;
+        int mask = tab.length - 1;
+        Entry e;
+        for (int i = h & mask; (e = tab[i]) != null; i = (i + 1) & mask) {
+            if (e.hash == h && e.matches(arity, prims, r0, p0, r1, p1, r2, p2, r3, p3, extra)) {
+                return e.value;
+            }
+        }
+        if (!create) {
+            // the entry might have been added after the table read above
+            synchronized (this) {
+                e = find(table, h, arity, prims, r0, p0, r1, p1, r2, p2, r3, p3, extra);
+            }
+            return e != null ? e.value : null;
+        }
+        return insert(h, arity, prims, r0, p0, r1, p1, r2, p2, r3, p3, extra);
+    }
+
+    private synchronized AggregationValue insert(int h, int arity, int prims, Object r0, long p0, Object r1, long p1,
+            Object r2, long p2, Object r3, long p3, Object[] extra) {
+        Entry[] tab = table;
+        Entry e = find(tab, h, arity, prims, r0, p0, r1, p1, r2, p2, r3, p3, extra);
+        if (e != null) {
+            return e.value;
+        }
+        // Validate that no unusual datatypes are in the key. These
+        // values may end up getting serialized to the client so we do not want
+        // anything unusual.
+        if (extra != null) {
+            new AggregationKey(extra);
+        } else {
+            validate(r0);
+            validate(r1);
+            validate(r2);
+            validate(r3);
+        }
+        e = new Entry(h, arity, prims, r0, p0, r1, p1, r2, p2, r3, p3, extra != null ? extra.clone() : null,
+                type.newValue(significantDigits));
+        if ((size + 1) * 2 > tab.length) {
+            Entry[] newTab = new Entry[tab.length << 1];
+            for (Entry old : tab) {
+                if (old != null) {
+                    insert(newTab, old);
+                }
+            }
+            insert(newTab, e);
+            table = newTab;
+        } else {
+            // Entry fields are final so racing readers see it fully initialized
+            insert(tab, e);
+        }
+        size++;
+        return e.value;
+    }
+
+    private static Entry find(Entry[] tab, int h, int arity, int prims, Object r0, long p0, Object r1, long p1,
+            Object r2, long p2, Object r3, long p3, Object[] extra) {
+        int mask = tab.length - 1;
+        Entry e;
+        for (int i = h & mask; (e = tab[i]) != null; i = (i + 1) & mask) {
+            if (e.hash == h && e.matches(arity, prims, r0, p0, r1, p1, r2, p2, r3, p3, extra)) {
+                return e;
+            }
+        }
+        return null;
+    }
+
+    private static void insert(Entry[] tab, Entry e) {
+        int mask = tab.length - 1;
+        int i = e.hash & mask;
+        while (tab[i] != null) {
+            i = (i + 1) & mask;
+        }
+        tab[i] = e;
+    }
+
+    private static void validate(Object element) {
+        if (element != null && (element.getClass() != String.class) && (element.getClass() != Boolean.class) && (element.getClass() != Byte.class) && (element.getClass() != Character.class) && (element.getClass() != Short.class) && (element.getClass() != Integer.class)) {
+            throw new IllegalArgumentException("Aggregation key element type '" + element.getClass().getName() + "' is not supported");
+        }
+    }
+
+    /**
+     * @return a list of entries contained in this aggregation by sorted by ascending value.
+     */
+    private List<Entry> sort() {
+        Entry[] tab = table;
+        ArrayList<Entry> result = new ArrayList<Entry>(tab.length / 2);
+        for (Entry e : tab) {
+            if (e != null) {
+                result.add(e);
+            }
+        }
+        Collections.sort(result, new Comparator<Entry>() {
 
-            public int compare(Entry<AggregationKey, AggregationValue> o1, Entry<AggregationKey, AggregationValue> o2) {
-                long i1 = o1.getValue().getValue();
-                long i2 = o2.getValue().getValue();
+            public int compare(Entry o1, Entry o2) {
+                long i1 = o1.value.getValue();
+                long i2 = o2.value.getValue();
                 if (i1 < i2) {
                     return -1;
                 } else if (i1 == i2) {
@@ -208,7 +649,7 @@ public class Aggregation implements Cloneable {
 
     @Override
     protected Object clone() throws CloneNotSupportedException {
-        return new Aggregation(type);
+        return new Aggregation(type, significantDigits);
     }
 
 }
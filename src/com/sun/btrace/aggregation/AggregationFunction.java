@@ -67,7 +67,29 @@ public enum AggregationFunction {
         public Quantize newValue() {
             return new Quantize();
         }
+    },
+    /**
+     * High resolution value distribution supporting percentile queries,
+     * with 2 significant digits unless specified otherwise
+     */
+    HISTOGRAM {
+
+        public Histogram newValue() {
+            return new Histogram(Histogram.DEFAULT_DIGITS);
+        }
+
+        @Override
+        public Histogram newValue(int significantDigits) {
+            return new Histogram(significantDigits);
+        }
     };
 
     public abstract AggregationValue newValue();
+
+    /**
+     * @param significantDigits the precision of the value; only used by {@linkplain #HISTOGRAM}
+     */
+    public AggregationValue newValue(int significantDigits) {
+        return newValue();
+    }
 }
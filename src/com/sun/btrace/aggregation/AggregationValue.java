@@ -42,6 +42,17 @@ public interface AggregationValue {
      */
     void add(long data);
 
+    /**
+     * Adds a data item standing for <code>weight</code> equal items, as
+     * recorded by a sampled probe for each of the calls it skipped.
+     * 
+     * @param data
+     *            the data value
+     * @param weight
+     *            the number of data items represented, at least one
+     */
+    void add(long data, long weight);
+
     /**
      * Removes all data items previously added.
      */
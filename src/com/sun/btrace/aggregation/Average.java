@@ -30,31 +30,45 @@ package com.sun.btrace.aggregation;
  * 
  * @author Christian Glencross
  */
-class Average implements AggregationValue {
+class Average extends Striped {
 
-    long sum = 0;
-    int count = 0;
+    private static final int SUM = 0;
+    private static final int COUNT = 1;
+
+    Average() {
+        super(0L, 0L);
+    }
 
     @Override
-    public synchronized void clear() {
-        sum = 0;
-        count = 0;
+    public void add(long delta) {
+        addTo(SUM, delta);
+        addTo(COUNT, 1);
     }
 
     @Override
-    public synchronized void add(long delta) {
-        sum += delta;
-        count++;
+    public void add(long delta, long weight) {
+        addTo(SUM, delta * weight);
+        addTo(COUNT, weight);
+    }
+
+    public long getValue() {
+        return average(false);
+    }
+
+    public Object getData() {
+        return getData(false);
+    }
+
+    Object getData(boolean reset) {
+        return Long.valueOf(average(reset));
     }
 
-    public synchronized long getValue() {
+    private long average(boolean reset) {
+        long count = sum(COUNT, reset);
+        long sum = sum(SUM, reset);
         if (count == 0) {
             return 0; // Avoid division by zero
         }
         return (int) (sum / count);
     }
-
-    public Object getData() {
-        return Long.valueOf(getValue());
-    }
 }
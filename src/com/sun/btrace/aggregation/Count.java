@@ -24,41 +24,45 @@
  */
 package com.sun.btrace.aggregation;
 
-import java.util.concurrent.atomic.AtomicInteger;
-
 /**
  * Aggregation function for counting the number of values.
  * <p>
  * 
  * @author Christian Glencross
  */
-class Count implements AggregationValue {
-
-    AtomicInteger value = new AtomicInteger();
+class Count extends Striped {
 
-    @Override
-    public void clear() {
-        value.set(0);
+    Count() {
+        super(0L);
     }
 
     public void add() {
-        value.incrementAndGet();
+        addTo(0, 1);
     }
 
     @Override
     public void add(long delta) {
     	if (delta >= 0) {
-    		value.incrementAndGet();
+    		addTo(0, 1);
     	} else {
-    		value.decrementAndGet();
+    		addTo(0, -1);
     	}
     }
 
+    @Override
+    public void add(long delta, long weight) {
+        addTo(0, delta >= 0 ? weight : -weight);
+    }
+
     public long getValue() {
-        return value.get();
+        return sum(0);
     }
 
     public Object getData() {
-        return Long.valueOf(getValue());
+        return getData(false);
+    }
+
+    Object getData(boolean reset) {
+        return Long.valueOf(sum(0, reset));
     }
 }
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2008-2010 Sun Microsystems, Inc.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Sun designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Sun in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Sun Microsystems, Inc., 4150 Network Circle, Santa Clara,
+ * CA 95054 USA or visit www.sun.com if you need additional information or
+ * have any questions.
+ */
+package com.sun.btrace.aggregation;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Aggregation function recording a high resolution distribution of the
+ * values, see {@linkplain HistogramLayout}. Negative values are counted
+ * as zero.
+ * <p>
+ * Recording a value is a fixed sequence of array updates, allocation free
+ * once the buckets in use are allocated and without a lock. Only the
+ * minimum and the maximum are kept in {@linkplain Striped} columns; a
+ * striped copy of a layout of several thousand buckets for every stripe
+ * would cost tens of kilobytes per stripe. The counts are kept in one
+ * shared array instead, allocated a page at a time when a bucket of the
+ * page is first counted. A writer losing a race on a count takes it to
+ * the counts of its stripe, which are likewise allocated only for the
+ * stripes and the pages actually contended.
+ * <p>
+ */
+class Histogram extends Striped {
+
+    static final int DEFAULT_DIGITS = 2;
+
+    private static final int MIN = 0;
+    private static final int MAX = 1;
+
+    private static final int PAGE_SHIFT = 7;
+    private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    private final HistogramLayout layout;
+    private final Counts counts;
+    // created on the first contended update of a stripe
+    private final AtomicReferenceArray<Counts> stripes;
+
+    /**
+     * Bucket counts allocated a page at a time
+     */
+    private static final class Counts {
+        private final AtomicReferenceArray<AtomicLongArray> pages;
+
+        Counts(int length) {
+            pages = new AtomicReferenceArray<AtomicLongArray>((length + PAGE_MASK) >>> PAGE_SHIFT);
+        }
+
+        AtomicLongArray page(int index) {
+            int p = index >>> PAGE_SHIFT;
+            AtomicLongArray page = pages.get(p);
+            if (page == null) {
+                pages.compareAndSet(p, null, new AtomicLongArray(PAGE_SIZE));
+                page = pages.get(p);
+            }
+            return page;
+        }
+
+        void addTo(long[] into, boolean reset) {
+            for (int p = 0; p < pages.length(); p++) {
+                AtomicLongArray page = pages.get(p);
+                if (page == null) {
+                    continue;
+                }
+                int base = p << PAGE_SHIFT;
+                int n = Math.min(PAGE_SIZE, into.length - base);
+                for (int i = 0; i < n; i++) {
+                    into[base + i] += reset ? page.getAndSet(i, 0) : page.get(i);
+                }
+            }
+        }
+
+        void clear() {
+            for (int p = 0; p < pages.length(); p++) {
+                AtomicLongArray page = pages.get(p);
+                if (page != null) {
+                    for (int i = 0; i < PAGE_SIZE; i++) {
+                        page.set(i, 0);
+                    }
+                }
+            }
+        }
+    }
+
+    Histogram(int digits) {
+        this(HistogramLayout.forDigits(digits));
+    }
+
+    private Histogram(HistogramLayout layout) {
+        super(Long.MAX_VALUE, Long.MIN_VALUE);
+        this.layout = layout;
+        this.counts = new Counts(layout.length);
+        this.stripes = new AtomicReferenceArray<Counts>(MAX_STRIPES);
+    }
+
+    @Override
+    public void add(long value) {
+        add(value, 1);
+    }
+
+    @Override
+    public void add(long value, long weight) {
+        if (value < 0) {
+            value = 0;
+        }
+        count(layout.index(value), weight);
+        minTo(MIN, value);
+        maxTo(MAX, value);
+    }
+
+    private void count(int index, long weight) {
+        AtomicLongArray page = counts.page(index);
+        int i = index & PAGE_MASK;
+        long v = page.get(i);
+        if (!page.compareAndSet(i, v, v + weight)) {
+            int s = index(MAX_STRIPES);
+            Counts stripe = stripes.get(s);
+            if (stripe == null) {
+                stripes.compareAndSet(s, null, new Counts(layout.length));
+                stripe = stripes.get(s);
+            }
+            stripe.page(index).addAndGet(i, weight);
+        }
+    }
+
+    /**
+     * Returns the largest recorded value, which is used by the
+     * {@link Aggregation#truncate(int)} method to sort values in the aggregation.
+     */
+    public long getValue() {
+        long max = highest(MAX);
+        return max == Long.MIN_VALUE ? 0 : max;
+    }
+
+    public PercentileData getData() {
+        return getData(false);
+    }
+
+    PercentileData getData(boolean reset) {
+        long[] values = new long[layout.length];
+        counts.addTo(values, reset);
+        for (int s = 0; s < stripes.length(); s++) {
+            Counts stripe = stripes.get(s);
+            if (stripe != null) {
+                stripe.addTo(values, reset);
+            }
+        }
+        int nonEmpty = 0;
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != 0) {
+                nonEmpty++;
+            }
+        }
+        long min = lowest(MIN, reset);
+        long max = highest(MAX, reset);
+
+        int[] sparseIndexes = new int[nonEmpty];
+        long[] sparseCounts = new long[nonEmpty];
+        for (int i = 0, n = 0; n < nonEmpty; i++) {
+            if (values[i] != 0) {
+                sparseIndexes[n] = i;
+                sparseCounts[n++] = values[i];
+            }
+        }
+        return new PercentileData(layout.digits, min, max, sparseIndexes, sparseCounts);
+    }
+
+    @Override
+    public void clear() {
+        super.clear();
+        counts.clear();
+        for (int s = 0; s < stripes.length(); s++) {
+            Counts stripe = stripes.get(s);
+            if (stripe != null) {
+                stripe.clear();
+            }
+        }
+    }
+}
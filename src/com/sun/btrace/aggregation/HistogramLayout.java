@@ -0,0 +1,122 @@
+/*
+ * Copyright 2008-2010 Sun Microsystems, Inc.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Sun designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Sun in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Sun Microsystems, Inc., 4150 Network Circle, Santa Clara,
+ * CA 95054 USA or visit www.sun.com if you need additional information or
+ * have any questions.
+ */
+package com.sun.btrace.aggregation;
+
+/**
+ * Bucket layout of a {@linkplain Histogram} with a given number of
+ * significant decimal digits, following the HdrHistogram scheme: each
+ * power-of-two range is split into linear sub-buckets fine enough to
+ * tell apart values differing in the last significant digit. The layout
+ * covers the whole range of non-negative <code>long</code> values.
+ * <p>
+ */
+final class HistogramLayout {
+    static final int MIN_DIGITS = 1;
+    static final int MAX_DIGITS = 3;
+
+    private static final HistogramLayout[] layouts = new HistogramLayout[MAX_DIGITS + 1];
+
+    static {
+        for (int i = MIN_DIGITS; i <= MAX_DIGITS; i++) {
+            layouts[i] = new HistogramLayout(i);
+        }
+    }
+
+    final int digits;
+    // number of counts in the layout
+    final int length;
+
+    private final int subBucketHalfCountMagnitude;
+    private final int subBucketHalfCount;
+    private final long subBucketMask;
+    private final int leadingZeroCountBase;
+
+    private HistogramLayout(int digits) {
+        this.digits = digits;
+        long largestValueWithSingleUnitResolution = 2;
+        for (int i = 0; i < digits; i++) {
+            largestValueWithSingleUnitResolution *= 10;
+        }
+        int subBucketCountMagnitude = 64 - Long.numberOfLeadingZeros(largestValueWithSingleUnitResolution - 1);
+        subBucketHalfCountMagnitude = subBucketCountMagnitude - 1;
+        int subBucketCount = 1 << subBucketCountMagnitude;
+        subBucketHalfCount = subBucketCount / 2;
+        subBucketMask = subBucketCount - 1;
+        leadingZeroCountBase = 64 - subBucketHalfCountMagnitude - 1;
+
+        int bucketCount = 1;
+        long smallestUntrackableValue = subBucketCount;
+        while (smallestUntrackableValue > 0) {
+            // shifts out of the positive range once all the values are covered
+            smallestUntrackableValue <<= 1;
+            bucketCount++;
+        }
+        length = (bucketCount + 1) * subBucketHalfCount;
+    }
+
+    /**
+     * @param digits number of significant decimal digits, between
+     *               {@linkplain #MIN_DIGITS} and {@linkplain #MAX_DIGITS}
+     */
+    static HistogramLayout forDigits(int digits) {
+        if (digits < MIN_DIGITS || digits > MAX_DIGITS) {
+            throw new IllegalArgumentException("Histogram precision must be between " + MIN_DIGITS +
+                                               " and " + MAX_DIGITS + " significant digits");
+        }
+        return layouts[digits];
+    }
+
+    /**
+     * @param value a non-negative value
+     * @return the index of the count the value belongs to
+     */
+    int index(long value) {
+        int bucketIndex = leadingZeroCountBase - Long.numberOfLeadingZeros(value | subBucketMask);
+        int subBucketIndex = (int)(value >>> bucketIndex);
+        return ((bucketIndex + 1) << subBucketHalfCountMagnitude) + (subBucketIndex - subBucketHalfCount);
+    }
+
+    /**
+     * @return the lowest value counted at the given index
+     */
+    long lowestValue(int index) {
+        int bucketIndex = (index >> subBucketHalfCountMagnitude) - 1;
+        int subBucketIndex = (index & (subBucketHalfCount - 1)) + subBucketHalfCount;
+        if (bucketIndex < 0) {
+            subBucketIndex -= subBucketHalfCount;
+            bucketIndex = 0;
+        }
+        return (long)subBucketIndex << bucketIndex;
+    }
+
+    /**
+     * @return the highest value counted at the given index
+     */
+    long highestValue(int index) {
+        int bucketIndex = Math.max((index >> subBucketHalfCountMagnitude) - 1, 0);
+        long highest = lowestValue(index) + (1L << bucketIndex) - 1;
+        return highest < 0 ? Long.MAX_VALUE : highest;
+    }
+}
@@ -30,27 +30,31 @@ package com.sun.btrace.aggregation;
  * 
  * @author Christian Glencross
  */
-class Maximum implements AggregationValue {
+class Maximum extends Striped {
 
-    long max = Long.MIN_VALUE;
+    Maximum() {
+        super(Long.MIN_VALUE);
+    }
 
     @Override
-    public synchronized void clear() {
-        max = Integer.MIN_VALUE;
+    public void add(long value) {
+        maxTo(0, value);
     }
 
     @Override
-    public synchronized void add(long value) {
-        if (value > max) {
-            max = value;
-        }
+    public void add(long value, long weight) {
+        maxTo(0, value);
     }
 
-    public synchronized long getValue() {
-        return max;
+    public long getValue() {
+        return highest(0);
     }
 
     public Object getData() {
-        return Long.valueOf(getValue());
+        return getData(false);
+    }
+
+    Object getData(boolean reset) {
+        return Long.valueOf(highest(0, reset));
     }
 }
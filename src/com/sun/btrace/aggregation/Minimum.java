@@ -30,27 +30,31 @@ package com.sun.btrace.aggregation;
  * 
  * @author Christian Glencross
  */
-class Minimum implements AggregationValue {
+class Minimum extends Striped {
 
-    long min = Long.MAX_VALUE;
+    Minimum() {
+        super(Long.MAX_VALUE);
+    }
 
     @Override
-    public synchronized void clear() {
-        min = Integer.MAX_VALUE;
+    public void add(long value) {
+        minTo(0, value);
     }
 
     @Override
-    public synchronized void add(long value) {
-        if (value < min) {
-            min = value;
-        }
+    public void add(long value, long weight) {
+        minTo(0, value);
     }
 
-    public synchronized long getValue() {
-        return min;
+    public long getValue() {
+        return lowest(0);
     }
 
     public Object getData() {
-        return Long.valueOf(getValue());
+        return getData(false);
+    }
+
+    Object getData(boolean reset) {
+        return Long.valueOf(lowest(0, reset));
     }
 }
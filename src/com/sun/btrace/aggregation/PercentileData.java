@@ -0,0 +1,174 @@
+/*
+ * Copyright 2008-2010 Sun Microsystems, Inc.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Sun designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Sun in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Sun Microsystems, Inc., 4150 Network Circle, Santa Clara,
+ * CA 95054 USA or visit www.sun.com if you need additional information or
+ * have any questions.
+ */
+package com.sun.btrace.aggregation;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * A wire data structure describing the value distribution recorded by a
+ * {@linkplain AggregationFunction#HISTOGRAM} aggregation.
+ * <p>
+ * Only the non-empty counts are kept, together with their position in the
+ * histogram layout, which keeps the structure compact even for the high
+ * resolution layouts. Two instances with the same precision can be merged,
+ * eg. to combine the per-interval snapshots taken on a timer.
+ * <p>
+ */
+public class PercentileData implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private static final int[] NO_INDEXES = new int[0];
+    private static final long[] NO_COUNTS = new long[0];
+
+    private final int digits;
+    private final long min;
+    private final long max;
+    private final long totalCount;
+    private final int[] indexes;
+    private final long[] counts;
+
+    /**
+     * @param digits number of significant decimal digits of the histogram
+     * @param min the smallest recorded value
+     * @param max the largest recorded value
+     * @param indexes ascending positions of the non-empty counts in the histogram layout
+     * @param counts the non-empty counts
+     */
+    public PercentileData(int digits, long min, long max, int[] indexes, long[] counts) {
+        if (indexes.length != counts.length) {
+            throw new IllegalArgumentException("indexes and counts are different lengths");
+        }
+        HistogramLayout.forDigits(digits);
+        long total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            total += counts[i];
+        }
+        this.digits = digits;
+        this.min = total > 0 ? min : 0;
+        this.max = total > 0 ? max : 0;
+        this.totalCount = total;
+        this.indexes = indexes;
+        this.counts = counts;
+    }
+
+    /**
+     * Creates an empty instance
+     */
+    public PercentileData(int digits) {
+        this(digits, 0, 0, NO_INDEXES, NO_COUNTS);
+    }
+
+    public int getSignificantDigits() {
+        return digits;
+    }
+
+    public long getMin() {
+        return min;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    public int[] getIndexes() {
+        return indexes;
+    }
+
+    public long[] getCounts() {
+        return counts;
+    }
+
+    /**
+     * @param percentile the percentile to compute, between 0 and 100
+     * @return the highest value equivalent (within the histogram precision) to
+     *         the value at the given percentile; the exact maximum for 100
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (totalCount == 0) {
+            return 0;
+        }
+        if (percentile >= 100) {
+            return max;
+        }
+        double p = Math.max(percentile, 0);
+        long countAtPercentile = Math.max((long) Math.ceil(p / 100 * totalCount), 1);
+        HistogramLayout layout = HistogramLayout.forDigits(digits);
+        long running = 0;
+        for (int i = 0; i < counts.length; i++) {
+            running += counts[i];
+            if (running >= countAtPercentile) {
+                return Math.max(Math.min(layout.highestValue(indexes[i]), max), min);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Merges this instance with another one recorded with the same precision.
+     *
+     * @param other the data to merge; may be null
+     * @return a new instance holding the counts of both
+     */
+    public PercentileData merge(PercentileData other) {
+        if (other == null || other.totalCount == 0) {
+            return this;
+        }
+        if (totalCount == 0) {
+            return other;
+        }
+        if (other.digits != digits) {
+            throw new IllegalArgumentException("Can not merge histograms of different precision");
+        }
+        int[] mIndexes = new int[indexes.length + other.indexes.length];
+        long[] mCounts = new long[mIndexes.length];
+        int i = 0, j = 0, n = 0;
+        while (i < indexes.length || j < other.indexes.length) {
+            if (j == other.indexes.length || (i < indexes.length && indexes[i] < other.indexes[j])) {
+                mIndexes[n] = indexes[i];
+                mCounts[n++] = counts[i++];
+            } else if (i == indexes.length || other.indexes[j] < indexes[i]) {
+                mIndexes[n] = other.indexes[j];
+                mCounts[n++] = other.counts[j++];
+            } else {
+                mIndexes[n] = indexes[i];
+                mCounts[n++] = counts[i++] + other.counts[j++];
+            }
+        }
+        return new PercentileData(digits, Math.min(min, other.min), Math.max(max, other.max),
+                                  Arrays.copyOf(mIndexes, n), Arrays.copyOf(mCounts, n));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count %d  min %d  p50 %d  p90 %d  p99 %d  p99.9 %d  max %d",
+                             totalCount, min, getValueAtPercentile(50), getValueAtPercentile(90),
+                             getValueAtPercentile(99), getValueAtPercentile(99.9), max);
+    }
+}
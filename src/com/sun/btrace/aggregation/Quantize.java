@@ -24,36 +24,31 @@
  */
 package com.sun.btrace.aggregation;
 
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
-
 /**
  * Aggregation function that calculates a power-of-two frequency distribution of the values.
  * <p>
  * 
  * @author Christian Glencross
  */
-class Quantize implements AggregationValue {
+class Quantize extends Striped {
 
-    private static final int ZERO_INDEX = 32;
+    private static final int ZERO_INDEX = 64;
+    private static final int BUCKETS = 128;
 
-    // Array of buckets, where each bucket contains a count of the number of
+    // Columns of buckets, where each bucket contains a count of the number of
     // occurrences in a certain range determined by a base 2 logarithmic function.
     // For example:
-    // buckets[30] counts numbers in the range -4 to -7 inclusive
-    // buckets[31] counts -2s and -3s,
-    // buckets[33] counts the number of -1s
-    // buckets[32] (the mid point of the array) counts the number of zeroes
-    // buckets[33] counts the number of 1s
-    // buckets[34] counts 2s and 3s,
-    // buckets[35] counts numbers in the range 4 to 7
-    private AtomicLong[] buckets = new AtomicLong[64];
-
+    // buckets[0] counts Long.MIN_VALUE
+    // buckets[61] counts numbers in the range -4 to -7 inclusive
+    // buckets[62] counts -2s and -3s,
+    // buckets[63] counts the number of -1s
+    // buckets[64] (the mid point of the array) counts the number of zeroes
+    // buckets[65] counts the number of 1s
+    // buckets[66] counts 2s and 3s,
+    // buckets[67] counts numbers in the range 4 to 7
+    // buckets[127] counts numbers in the range 2^62 to Long.MAX_VALUE
     public Quantize() {
-        super();
-        for (int i = 0; i < buckets.length; i++) {
-            buckets[i] = new AtomicLong();
-        }
+        super(new long[BUCKETS]);
     }
 
     /*
@@ -64,7 +59,12 @@ class Quantize implements AggregationValue {
     @Override
     public void add(long data) {
         int pos = getBucketIndex(data);
-        buckets[pos].incrementAndGet();
+        addTo(pos, 1);
+    }
+
+    @Override
+    public void add(long data, long weight) {
+        addTo(getBucketIndex(data), weight);
     }
 
     /**
@@ -75,6 +75,10 @@ class Quantize implements AggregationValue {
      */
     private static int logBase2(long value) {
         int pos = 0;
+        if (value >= 1L << 32) {
+            value >>= 32;
+            pos += 32;
+        }
         if (value >= 1 << 16) {
             value >>= 16;
             pos += 16;
@@ -104,8 +108,8 @@ class Quantize implements AggregationValue {
      */
     @Override
     public long getValue() {
-        for (int i = buckets.length - 1; i >= 0; i--) {
-            long value = buckets[i].get();
+        for (int i = BUCKETS - 1; i >= 0; i--) {
+            long value = sum(i);
             if (value > 0) {
                 return getBucketLabel(i);
             }
@@ -113,23 +117,19 @@ class Quantize implements AggregationValue {
         return 0;
     }
 
-    /*
-     * (non-Javadoc)
-     * 
-     * @see com.sun.btrace.aggregation.Aggregation#clear()
-     */
-    @Override
-    public void clear() {
-        for (int i = 0; i < buckets.length; i++) {
-            buckets[i].set(0);
-        }
+    public HistogramData getData() {
+        return getData(false);
     }
 
-    public HistogramData getData() {
+    HistogramData getData(boolean reset) {
+        long[] buckets = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = sum(i, reset);
+        }
         int minIndex = buckets.length;
         int maxIndex = -1;
         for (int i = 0; i < buckets.length; i++) {
-            if (buckets[i].get() != 0) {
+            if (buckets[i] != 0) {
                 minIndex = Math.min(i, minIndex);
                 maxIndex = Math.max(i, maxIndex);
             }
@@ -149,7 +149,7 @@ class Quantize implements AggregationValue {
         long[] counts = new long[rows];
         for (int i = 0; i < rows; i++) {
             values[i] = getBucketLabel(minIndex + i);
-            counts[i] = buckets[minIndex + i].get();
+            counts[i] = buckets[minIndex + i];
         }
         return new HistogramData(values, counts);
     }
@@ -159,7 +159,7 @@ class Quantize implements AggregationValue {
             return ZERO_INDEX;
         } else if (data > 0) {
             return ZERO_INDEX + 1 + logBase2(data);
-        } else if (data == Integer.MIN_VALUE) {
+        } else if (data == Long.MIN_VALUE) {
             // Special case since 0 - MIN_VALUE overflows
             return 0;
         } else {
@@ -174,10 +174,10 @@ class Quantize implements AggregationValue {
             return Long.MIN_VALUE;
         } else if (index > ZERO_INDEX) {
             index = index - ZERO_INDEX - 1;
-            return 1 << index;
+            return 1L << index;
         } else {
             index = ZERO_INDEX - index - 1;
-            return 0 - (1 << index);
+            return 0 - (1L << index);
         }
     }
 }
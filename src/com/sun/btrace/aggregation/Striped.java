@@ -0,0 +1,240 @@
+/*
+ * Copyright 2008-2010 Sun Microsystems, Inc.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Sun designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Sun in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Sun Microsystems, Inc., 4150 Network Circle, Santa Clara,
+ * CA 95054 USA or visit www.sun.com if you need additional information or
+ * have any questions.
+ */
+
+package com.sun.btrace.aggregation;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Base for the aggregation values which keep their state in one or more
+ * <code>long</code> columns striped over several cells, in the spirit of
+ * <code>LongAdder</code>.
+ * <p>
+ * A value starts with a single unpadded stripe. Whenever an update loses
+ * a CAS race another set of padded stripes is added, up to the number of
+ * available processors, and threads are spread over the stripes by their
+ * id. The columns are folded together only when the value is read.
+ */
+abstract class Striped implements AggregationValue {
+    static final int MAX_STRIPES;
+    // longs to skip at the start and the end of a contended stripe
+    private static final int PAD = 8;
+
+    static {
+        int ncpu = Runtime.getRuntime().availableProcessors();
+        int n = 1;
+        while (n < ncpu) {
+            n <<= 1;
+        }
+        MAX_STRIPES = n;
+    }
+
+    private static final AtomicIntegerFieldUpdater<Striped> BUSY =
+            AtomicIntegerFieldUpdater.newUpdater(Striped.class, "busy");
+
+    private final long[] identity;
+    private volatile AtomicLongArray[] stripes;
+    private volatile int busy = 0;
+
+    /**
+     * @param identity the initial (cleared) value of each column
+     */
+    Striped(long ... identity) {
+        this.identity = identity;
+        this.stripes = new AtomicLongArray[]{newStripe(false)};
+    }
+
+    /**
+     * Adds <code>delta</code> to the given column.
+     */
+    protected final void addTo(int column, long delta) {
+        AtomicLongArray[] s = stripes;
+        AtomicLongArray stripe = s[index(s.length)];
+        int i = offset(stripe) + column;
+        long v = stripe.get(i);
+        if (!stripe.compareAndSet(i, v, v + delta)) {
+            contended(s);
+            s = stripes;
+            stripe = s[index(s.length)];
+            stripe.addAndGet(offset(stripe) + column, delta);
+        }
+    }
+
+    /**
+     * Lowers the given column to <code>value</code> if it is smaller.
+     */
+    protected final void minTo(int column, long value) {
+        AtomicLongArray[] s = stripes;
+        AtomicLongArray stripe = s[index(s.length)];
+        int i = offset(stripe) + column;
+        long v;
+        boolean retried = false;
+        while (value < (v = stripe.get(i)) && !stripe.compareAndSet(i, v, value)) {
+            if (!retried) {
+                retried = true;
+                contended(s);
+                s = stripes;
+                stripe = s[index(s.length)];
+                i = offset(stripe) + column;
+            }
+        }
+    }
+
+    /**
+     * Raises the given column to <code>value</code> if it is greater.
+     */
+    protected final void maxTo(int column, long value) {
+        AtomicLongArray[] s = stripes;
+        AtomicLongArray stripe = s[index(s.length)];
+        int i = offset(stripe) + column;
+        long v;
+        boolean retried = false;
+        while (value > (v = stripe.get(i)) && !stripe.compareAndSet(i, v, value)) {
+            if (!retried) {
+                retried = true;
+                contended(s);
+                s = stripes;
+                stripe = s[index(s.length)];
+                i = offset(stripe) + column;
+            }
+        }
+    }
+
+    /**
+     * @return the sum of the column over all the stripes
+     */
+    protected final long sum(int column) {
+        return sum(column, false);
+    }
+
+    /**
+     * @param reset if true each stripe is atomically reset to the column identity while being read, so that
+     *              every update is accounted for either in this or in the next read
+     * @return the sum of the column over all the stripes
+     */
+    protected final long sum(int column, boolean reset) {
+        long sum = 0;
+        for (AtomicLongArray stripe : stripes) {
+            sum += read(stripe, column, reset);
+        }
+        return sum;
+    }
+
+    /**
+     * @return the smallest value of the column over all the stripes
+     */
+    protected final long lowest(int column) {
+        return lowest(column, false);
+    }
+
+    /**
+     * @param reset see {@linkplain #sum(int, boolean)}
+     * @return the smallest value of the column over all the stripes
+     */
+    protected final long lowest(int column, boolean reset) {
+        long min = Long.MAX_VALUE;
+        for (AtomicLongArray stripe : stripes) {
+            min = Math.min(min, read(stripe, column, reset));
+        }
+        return min;
+    }
+
+    /**
+     * @return the greatest value of the column over all the stripes
+     */
+    protected final long highest(int column) {
+        return highest(column, false);
+    }
+
+    /**
+     * @param reset see {@linkplain #sum(int, boolean)}
+     * @return the greatest value of the column over all the stripes
+     */
+    protected final long highest(int column, boolean reset) {
+        long max = Long.MIN_VALUE;
+        for (AtomicLongArray stripe : stripes) {
+            max = Math.max(max, read(stripe, column, reset));
+        }
+        return max;
+    }
+
+    /**
+     * @param reset if true the value is cleared as a part of the same read
+     * @return an object representation of the aggregated value
+     * @see AggregationValue#getData()
+     */
+    abstract Object getData(boolean reset);
+
+    private long read(AtomicLongArray stripe, int column, boolean reset) {
+        int i = offset(stripe) + column;
+        return reset ? stripe.getAndSet(i, identity[column]) : stripe.get(i);
+    }
+
+    public void clear() {
+        for (AtomicLongArray stripe : stripes) {
+            int offset = offset(stripe);
+            for (int i = 0; i < identity.length; i++) {
+                stripe.set(offset + i, identity[i]);
+            }
+        }
+    }
+
+    private AtomicLongArray newStripe(boolean padded) {
+        int offset = padded ? PAD : 0;
+        long[] init = new long[identity.length + 2 * offset];
+        System.arraycopy(identity, 0, init, offset, identity.length);
+        return new AtomicLongArray(init);
+    }
+
+    private int offset(AtomicLongArray stripe) {
+        return stripe.length() > identity.length ? PAD : 0;
+    }
+
+    private void contended(AtomicLongArray[] s) {
+        if (s.length < MAX_STRIPES && s == stripes && BUSY.compareAndSet(this, 0, 1)) {
+            try {
+                if (s == stripes) {
+                    // existing stripes are kept so no concurrent update gets lost
+                    AtomicLongArray[] n = Arrays.copyOf(s, s.length << 1);
+                    for (int i = s.length; i < n.length; i++) {
+                        n[i] = newStripe(true);
+                    }
+                    stripes = n;
+                }
+            } finally {
+                busy = 0;
+            }
+        }
+    }
+
+    static int index(int length) {
+        long id = Thread.currentThread().getId();
+        // thread ids are sequential; spread them over the stripes
+        int h = (int)(id ^ (id >>> 32)) * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & (length - 1);
+    }
+}
@@ -24,33 +24,37 @@
  */
 package com.sun.btrace.aggregation;
 
-import java.util.concurrent.atomic.AtomicLong;
-
 /**
  * Aggregation function for computing the sum of values.
  * <p>
  * 
  * @author Christian Glencross
  */
-class Sum implements AggregationValue {
+class Sum extends Striped {
 
-    AtomicLong value = new AtomicLong();
+    Sum() {
+        super(0L);
+    }
 
     @Override
-    public void clear() {
-        value.set(0);
+    public void add(long delta) {
+        addTo(0, delta);
     }
 
     @Override
-    public void add(long delta) {
-        value.addAndGet(delta);
+    public void add(long delta, long weight) {
+        addTo(0, delta * weight);
     }
 
     public long getValue() {
-        return value.get();
+        return sum(0);
     }
 
     public Object getData() {
-        return Long.valueOf(getValue());
+        return getData(false);
+    }
+
+    Object getData(boolean reset) {
+        return Long.valueOf(sum(0, reset));
     }
 }
@@ -46,4 +46,11 @@ public @interface BTrace {
     public String description() default "";
     // having "unsafe" set to true the script will be run in unsafe mode
     public boolean unsafe() default false;
+    // clock source for the time stamps of @Duration parameters
+    public ClockSource clock() default ClockSource.DEFAULT;
+    // overhead budget of the probe handlers: handler time in ms per
+    // second and handler runs per second; 0 for none and -1 for the
+    // one given to the agent (probeCpuBudget and probeEventBudget)
+    public long probeCpuBudget() default -1L;
+    public long probeEventBudget() default -1L;
 }
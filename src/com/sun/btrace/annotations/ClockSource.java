@@ -0,0 +1,63 @@
+/*
+ * Copyright 2008-2010 Sun Microsystems, Inc.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Sun designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Sun in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Sun Microsystems, Inc., 4150 Network Circle, Santa Clara,
+ * CA 95054 USA or visit www.sun.com if you need additional information or
+ * have any questions.
+ */
+
+package com.sun.btrace.annotations;
+
+/**
+ * This enum is specified in the BTrace annotation
+ * to choose the clock the time stamps of @Duration
+ * parameters are taken from.
+ */
+public enum ClockSource {
+    /**
+     * The agent wide default - given by the "btrace.clock"
+     * system property ("precise", "coarse" or "batched");
+     * PRECISE if not set.
+     */
+    DEFAULT,
+
+    /**
+     * System.nanoTime() read at each probe point
+     */
+    PRECISE,
+
+    /**
+     * A cached time stamp refreshed from System.nanoTime()
+     * by a background thread (every millisecond by default,
+     * see "btrace.clock.coarse.resolution"). Reading it costs
+     * a memory load; durations are accurate to the refresh
+     * period and do not drift.
+     */
+    COARSE,
+
+    /**
+     * System.nanoTime() read only once in a batch of time
+     * stamps taken by a thread ("btrace.clock.batch", 16 by
+     * default); the time stamps in between repeat the last
+     * one read by the thread, moved up to the COARSE clock
+     * when that is ahead. No CPU time stamp counter is read.
+     */
+    BATCHED
+}
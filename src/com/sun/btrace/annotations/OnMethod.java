@@ -77,5 +77,11 @@ public @interface OnMethod {
      */
     Location location() default @Location();
 
+    /**
+     * Samples the calls of the probed location instead of
+     * invoking the action method for every one of them.
+     */
+    Sampled sampled() default @Sampled();
+
     boolean follow() default false;
 }
@@ -44,4 +44,12 @@ public @interface OnTimer {
      * Time period of the timer in milliseconds.
      */
     long value();
+
+    /**
+     * If true, the runs start at multiples of the period from the
+     * first run; a run that would start while the previous one is
+     * still executing is skipped. Otherwise (the default) each run
+     * starts one period after the previous run has finished.
+     */
+    boolean fixedRate() default false;
 }
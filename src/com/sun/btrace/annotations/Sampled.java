@@ -0,0 +1,67 @@
+/*
+ * Copyright 2008-2010 Sun Microsystems, Inc.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Sun designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Sun in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Sun Microsystems, Inc., 4150 Network Circle, Santa Clara,
+ * CA 95054 USA or visit www.sun.com if you need additional information or
+ * have any questions.
+ */
+
+package com.sun.btrace.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * This annotation specifies that only a sample of the calls
+ * of a probed location invoke the BTrace action method. The
+ * check is made before anything else is done for the action,
+ * so the calls left out cost a per-thread countdown only: no
+ * argument is boxed and no time stamp is taken for them.
+ * <p>
+ * Each sampled call stands for the calls left out since the
+ * previous one; the aggregations the action method adds to
+ * count it that many times, so the counts and sums come out
+ * as if every call was probed.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Sampled {
+    /**
+     * How the calls are sampled.
+     *
+     * @see Sampler
+     */
+    Sampler kind() default Sampler.NONE;
+
+    /**
+     * The mean number of calls per probed call, for the
+     * {@linkplain Sampler#CONST} and {@linkplain Sampler#RANDOM}
+     * samplers.
+     */
+    int mean() default 1;
+
+    /**
+     * The number of probed calls per second the
+     * {@linkplain Sampler#ADAPTIVE} sampler aims at.
+     */
+    int rate() default 1000;
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2008-2010 Sun Microsystems, Inc.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Sun designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Sun in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Sun Microsystems, Inc., 4150 Network Circle, Santa Clara,
+ * CA 95054 USA or visit www.sun.com if you need additional information or
+ * have any questions.
+ */
+
+package com.sun.btrace.annotations;
+
+/**
+ * This enum is specified in the Sampled annotation
+ * to specify how the calls of a probed location are
+ * sampled.
+ */
+public enum Sampler {
+    /**
+     * every call is probed
+     */
+    NONE,
+
+    /**
+     * every N-th call is probed, N being the mean
+     */
+    CONST,
+
+    /**
+     * the probed calls are picked at random intervals;
+     * the intervals average to the mean
+     */
+    RANDOM,
+
+    /**
+     * the interval between the probed calls is adjusted
+     * to probe about the given number of calls per second
+     */
+    ADAPTIVE
+}
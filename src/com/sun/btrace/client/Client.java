@@ -41,11 +41,14 @@ import com.sun.btrace.CommandListener;
 import com.sun.btrace.compiler.Compiler;
 import com.sun.btrace.annotations.DTrace;
 import com.sun.btrace.annotations.DTraceRef;
+import com.sun.btrace.comm.BinaryWireReader;
 import com.sun.btrace.comm.Command;
 import com.sun.btrace.comm.EventCommand;
 import com.sun.btrace.comm.ExitCommand;
 import com.sun.btrace.comm.InstrumentCommand;
 import com.sun.btrace.comm.MessageCommand;
+import com.sun.btrace.comm.MetricsCommand;
+import com.sun.btrace.comm.ProtocolCommand;
 import com.sun.btrace.comm.WireIO;
 import com.sun.btrace.org.objectweb.asm.*;
 import com.sun.tools.attach.VirtualMachine;
@@ -117,6 +120,13 @@ public class Client {
     private volatile Socket sock;
     private volatile ObjectInputStream ois;
     private volatile ObjectOutputStream oos;
+    // set when the agent accepted the binary wire protocol
+    private volatile BinaryWireReader binaryIn;
+
+    // wire protocol requested from the agent; "object" disables the binary protocol
+    private static final boolean BINARY_WIRE = !"object".equals(System.getProperty("btrace.wire"));
+    // how long to wait for the agent to answer the protocol negotiation
+    private static final int NEGOTIATION_TIMEOUT = 5000;
 
     public Client(int port) {
         this(port, ".", false, false, false, false, null);
@@ -336,7 +346,38 @@ public class Client {
                 debugPrint("opening socket to " + port);
             }
             //һض˿socketͨ
-            sock = new Socket("localhost", port);
+            if (!connect(code, args, BINARY_WIRE)) {
+                // the agent did not answer the negotiation - probably an older one
+                if (debug) {
+                    debugPrint("falling back to the object stream wire protocol");
+                }
+                // the agent may have closed the connection already;
+                // flushing the streams on close could fail
+                try {
+                    sock.close();
+                } catch (IOException ignored) {
+                }
+                reset();
+                connect(code, args, false);
+            }
+            if (debug) {
+                debugPrint("entering into command loop");
+            }
+            commandLoop(listener);
+        } catch (UnknownHostException uhe) {
+            throw new IOException(uhe);
+        }
+    }
+
+    /**
+     * Opens the connection to the agent and sends the BTrace program.
+     * @return <code>false</code> if the agent did not answer the wire
+     *         protocol negotiation with a protocol reply in time; an older
+     *         agent may also reject the request and close the connection
+     */
+    private boolean connect(byte[] code, String[] args, boolean binary) throws IOException {
+        sock = new Socket("localhost", port);
+        if (!binary) {
             oos = new ObjectOutputStream(sock.getOutputStream());
             if (debug) {
                 debugPrint("sending instrument command");
@@ -345,13 +386,44 @@ public class Client {
             WireIO.write(oos, new InstrumentCommand(code, args));
             //ȡ˷ص
             ois = new ObjectInputStream(sock.getInputStream());
+            return true;
+        }
+        try {
+            oos = new ObjectOutputStream(sock.getOutputStream());
             if (debug) {
-                debugPrint("entering into command loop");
+                debugPrint("requesting wire protocol version " + ProtocolCommand.LATEST);
             }
-            commandLoop(listener);
-        } catch (UnknownHostException uhe) {
-            throw new IOException(uhe);
+            WireIO.write(oos, new ProtocolCommand(ProtocolCommand.LATEST));
+            if (debug) {
+                debugPrint("sending instrument command");
+            }
+            WireIO.write(oos, new InstrumentCommand(code, args));
+            sock.setSoTimeout(NEGOTIATION_TIMEOUT);
+            ois = new ObjectInputStream(sock.getInputStream());
+            Command reply = WireIO.read(ois);
+            if (reply.getType() != Command.PROTOCOL) {
+                if (debug) {
+                    debugPrint("unexpected reply to protocol negotiation: " + reply);
+                }
+                return false;
+            }
+            int version = ((ProtocolCommand)reply).getVersion();
+            if (debug) {
+                debugPrint("using wire protocol version " + version);
+            }
+            if (version >= ProtocolCommand.BINARY_V1) {
+                binaryIn = new BinaryWireReader(ois);
+            }
+            sock.setSoTimeout(0);
+        } catch (IOException ioe) {
+            // timeout, EOF or "invalid command" from an agent
+            // which does not know the negotiation
+            if (debug) {
+                debugPrint("protocol negotiation failed: " + ioe);
+            }
+            return false;
         }
+        return true;
     }
 
     /**
@@ -393,6 +465,15 @@ public class Client {
         send(new EventCommand(name));
     }
 
+    /**
+     * Asks the traced JVM for the probe metrics of the script. A positive
+     * period (in milliseconds) streams them at that interval, zero sends
+     * them once and a negative period stops the stream.
+     */
+    public void sendMetricsRequest(long period) throws IOException {
+        send(new MetricsCommand(period));
+    }
+
     /**
      * Closes all connection state to the traced JVM.
      */
@@ -416,6 +497,7 @@ public class Client {
         sock = null;
         ois = null;
         oos = null;
+        binaryIn = null;
     }
 
     //-- Internals only below this point
@@ -456,7 +538,7 @@ public class Client {
         final AtomicBoolean exited = new AtomicBoolean(false);
         while (true) {
             try {
-                Command cmd = WireIO.read(ois);
+                Command cmd = binaryIn != null ? binaryIn.read() : WireIO.read(ois);
                 if (debug) {
                     debugPrint("received " + cmd);
                 }
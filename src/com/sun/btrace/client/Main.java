@@ -193,6 +193,12 @@ public final class Main {
                     if (cause != null) {
                         cause.printStackTrace();
                     }
+                } else if (type == Command.QUEUE_OVERFLOW ||
+                           type == Command.PROBE_THROTTLE) {
+                    System.err.println("WARNING: " + cmd);
+                } else if (type == Command.RETRANSFORMATION_END ||
+                           type == Command.RETRANSFORMATION_PROGRESS) {
+                    System.err.println(cmd);
                 }
             }
         };
@@ -224,6 +230,7 @@ public final class Main {
                     try {
                         con.printf("Please enter your option:\n");
                         con.printf("\t1. exit\n\t2. send an event\n\t3. send a named event\n");
+                        con.printf("\t4. print probe metrics\n\t5. stream probe metrics\n");
                         con.flush();
                         String option = con.readLine();
                         option = option.trim();
@@ -242,6 +249,21 @@ public final class Main {
                                 if (isDebug()) debugPrint("sending event command");
                                 client.sendEvent(name);
                             }
+                        } else if (option.equals("4")) {
+                            if (isDebug()) debugPrint("sending metrics command");
+                            client.sendMetricsRequest(0);
+                        } else if (option.equals("5")) {
+                            con.printf("Please enter the period in seconds (0 stops): ");
+                            String period = con.readLine();
+                            if (period != null) {
+                                try {
+                                    long secs = Long.parseLong(period.trim());
+                                    if (isDebug()) debugPrint("sending metrics command");
+                                    client.sendMetricsRequest(secs > 0 ? secs * 1000 : -1);
+                                } catch (NumberFormatException nfe) {
+                                    con.printf("invalid period!\n");
+                                }
+                            }
                         } else {
                             con.printf("invalid option!\n");
                         }
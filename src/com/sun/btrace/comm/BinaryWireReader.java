@@ -0,0 +1,211 @@
+/*
+ * Copyright 2008-2010 Sun Microsystems, Inc.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Sun designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Sun in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Sun Microsystems, Inc., 4150 Network Circle, Santa Clara,
+ * CA 95054 USA or visit www.sun.com if you need additional information or
+ * have any questions.
+ */
+
+package com.sun.btrace.comm;
+
+import com.sun.btrace.aggregation.HistogramData;
+import com.sun.btrace.aggregation.PercentileData;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectInputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads commands written by {@linkplain BinaryWireWriter}.
+ * The reader is not thread safe.
+ */
+public final class BinaryWireReader {
+    private final ObjectInput in;
+    private final List<String> strings = new ArrayList<String>();
+    private byte[] frameBytes = new byte[8192];
+    private DataInputStream frame;
+    private int frameRemaining;
+
+    public BinaryWireReader(ObjectInput in) {
+        this.in = in;
+    }
+
+    public Command read() throws IOException {
+        if (frameRemaining == 0) {
+            byte type = in.readByte();
+            if (type != BinaryWireWriter.FRAME) {
+                return WireIO.read(in, type);
+            }
+            readFrame();
+        }
+        frameRemaining--;
+        return decode();
+    }
+
+    private void readFrame() throws IOException {
+        int len = in.readInt();
+        int count = in.readInt();
+        len -= 4;
+        if (frameBytes.length < len) {
+            frameBytes = new byte[len];
+        }
+        in.readFully(frameBytes, 0, len);
+        frame = new DataInputStream(new ByteArrayInputStream(frameBytes, 0, len));
+        frameRemaining = count;
+    }
+
+    private Command decode() throws IOException {
+        byte type = frame.readByte();
+        switch (type) {
+            case Command.MESSAGE: {
+                long time = frame.readLong();
+                return new MessageCommand(time, readString());
+            }
+            case Command.NUMBER: {
+                String name = readString();
+                return new NumberDataCommand(name, (Number)readCell());
+            }
+            case Command.NUMBER_MAP: {
+                String name = readString();
+                int size = frame.readInt();
+                Map<String, Number> data = new HashMap<String, Number>(size * 2);
+                for (int i = 0; i < size; i++) {
+                    String key = readString();
+                    data.put(key, (Number)readCell());
+                }
+                return new NumberMapDataCommand(name, data);
+            }
+            case Command.STRING_MAP: {
+                String name = readString();
+                int size = frame.readInt();
+                Map<String, String> data = new HashMap<String, String>(size * 2);
+                for (int i = 0; i < size; i++) {
+                    String key = readString();
+                    data.put(key, readString());
+                }
+                return new StringMapDataCommand(name, data);
+            }
+            case Command.GRID_DATA: {
+                String name = readString();
+                String format = readString();
+                int rows = frame.readInt();
+                List<Object[]> data = new ArrayList<Object[]>(rows);
+                for (int i = 0; i < rows; i++) {
+                    Object[] row = new Object[frame.readInt()];
+                    for (int j = 0; j < row.length; j++) {
+                        row[j] = readCell();
+                    }
+                    data.add(row);
+                }
+                return new GridDataCommand(name, data, format);
+            }
+            default:
+                throw new IOException("invalid binary command: " + type);
+        }
+    }
+
+    private String readString() throws IOException {
+        byte tag = frame.readByte();
+        switch (tag) {
+            case BinaryWireWriter.S_NULL:
+                return null;
+            case BinaryWireWriter.S_REF:
+                return strings.get(frame.readInt());
+            case BinaryWireWriter.S_NEW: {
+                String str = frame.readUTF();
+                strings.add(str);
+                return str;
+            }
+            case BinaryWireWriter.S_LITERAL:
+                return frame.readUTF();
+            case BinaryWireWriter.S_LONG_LITERAL: {
+                byte[] bytes = new byte[frame.readInt()];
+                frame.readFully(bytes);
+                return new String(bytes, "UTF-8");
+            }
+            default:
+                throw new IOException("invalid string tag: " + tag);
+        }
+    }
+
+    private Object readCell() throws IOException {
+        byte tag = frame.readByte();
+        switch (tag) {
+            case BinaryWireWriter.C_NULL:
+                return null;
+            case BinaryWireWriter.C_INT:
+                return frame.readInt();
+            case BinaryWireWriter.C_LONG:
+                return frame.readLong();
+            case BinaryWireWriter.C_STRING:
+                return readString();
+            case BinaryWireWriter.C_HISTOGRAM: {
+                int len = frame.readInt();
+                long[] values = new long[len];
+                long[] counts = new long[len];
+                for (int i = 0; i < len; i++) {
+                    values[i] = frame.readLong();
+                    counts[i] = frame.readLong();
+                }
+                return new HistogramData(values, counts);
+            }
+            case BinaryWireWriter.C_PERCENTILES: {
+                int digits = frame.readByte();
+                long min = frame.readLong();
+                long max = frame.readLong();
+                int len = frame.readInt();
+                int[] indexes = new int[len];
+                long[] counts = new long[len];
+                for (int i = 0; i < len; i++) {
+                    indexes[i] = frame.readInt();
+                    counts[i] = frame.readLong();
+                }
+                return new PercentileData(digits, min, max, indexes, counts);
+            }
+            case BinaryWireWriter.C_DOUBLE:
+                return frame.readDouble();
+            case BinaryWireWriter.C_FLOAT:
+                return frame.readFloat();
+            case BinaryWireWriter.C_SHORT:
+                return frame.readShort();
+            case BinaryWireWriter.C_BYTE:
+                return frame.readByte();
+            case BinaryWireWriter.C_OBJECT: {
+                byte[] bytes = new byte[frame.readInt()];
+                frame.readFully(bytes);
+                ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes));
+                try {
+                    return ois.readObject();
+                } catch (ClassNotFoundException cnfe) {
+                    throw new IOException(cnfe);
+                } finally {
+                    ois.close();
+                }
+            }
+            default:
+                throw new IOException("invalid cell tag: " + tag);
+        }
+    }
+}
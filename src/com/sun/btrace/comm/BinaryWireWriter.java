@@ -0,0 +1,309 @@
+/*
+ * Copyright 2008-2010 Sun Microsystems, Inc.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Sun designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Sun in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Sun Microsystems, Inc., 4150 Network Circle, Santa Clara,
+ * CA 95054 USA or visit www.sun.com if you need additional information or
+ * have any questions.
+ */
+
+package com.sun.btrace.comm;
+
+import com.sun.btrace.aggregation.HistogramData;
+import com.sun.btrace.aggregation.PercentileData;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes commands using the {@linkplain ProtocolCommand#BINARY_V1} protocol.
+ * <p>
+ * Data commands are not serialized one by one. They are encoded with
+ * primitive typed cells into a frame buffer which goes out as one length
+ * prefixed frame when {@linkplain #flush()} is called (or the frame grows
+ * too big). Names, formats and keys are interned - each of them crosses
+ * the wire only once per connection. Other commands are written using
+ * the object stream protocol in between the frames.
+ * <pre>
+ * frame   := FRAME length:int count:int record*
+ * record  := type:byte body   (body per command type)
+ * string  := S_NULL | S_REF id:int | S_NEW utf | S_LITERAL utf | S_LONG_LITERAL length:int utf8
+ * cell    := C_NULL | C_INT int | C_LONG long | C_STRING string | C_HISTOGRAM ...
+ * </pre>
+ * The writer is not thread safe.
+ */
+public final class BinaryWireWriter {
+    // frame marker; never used as a command type
+    static final byte FRAME = 127;
+
+    static final byte S_NULL = 0;
+    static final byte S_REF = 1;
+    static final byte S_NEW = 2;
+    static final byte S_LITERAL = 3;
+    static final byte S_LONG_LITERAL = 4;
+
+    static final byte C_NULL = 0;
+    static final byte C_INT = 1;
+    static final byte C_LONG = 2;
+    static final byte C_STRING = 3;
+    static final byte C_HISTOGRAM = 4;
+    static final byte C_DOUBLE = 5;
+    static final byte C_FLOAT = 6;
+    static final byte C_SHORT = 7;
+    static final byte C_BYTE = 8;
+    static final byte C_OBJECT = 9;
+    static final byte C_PERCENTILES = 10;
+
+    // longer strings are sent as literals
+    static final int MAX_INTERNED_LENGTH = 256;
+    // strings of this length always fit into DataOutput.writeUTF limits
+    private static final int MAX_UTF_LENGTH = 65535 / 3;
+    static final int MAX_INTERNED_STRINGS = 65536;
+    // frames bigger than this are sent out without waiting for flush()
+    private static final int MAX_FRAME_SIZE = 64 * 1024;
+
+    private final ObjectOutput out;
+    private final ByteArrayOutputStream frameBuffer = new ByteArrayOutputStream(8192);
+    private final DataOutputStream frame = new DataOutputStream(frameBuffer);
+    private int frameCount;
+    private final Map<String, Integer> strings = new HashMap<String, Integer>();
+
+    public BinaryWireWriter(ObjectOutput out) {
+        this.out = out;
+    }
+
+    /**
+     * Adds the command to the current frame. Commands which have no binary
+     * encoding are written right away, after the pending frame.
+     */
+    public void write(Command cmd) throws IOException {
+        if (!encode(cmd)) {
+            writeFrame();
+            WireIO.write(out, cmd, false);
+            return;
+        }
+        frameCount++;
+        if (frameBuffer.size() > MAX_FRAME_SIZE) {
+            writeFrame();
+        }
+    }
+
+    /**
+     * Sends out the pending frame and flushes the underlying stream
+     */
+    public void flush() throws IOException {
+        writeFrame();
+        out.flush();
+    }
+
+    private void writeFrame() throws IOException {
+        if (frameCount == 0) {
+            return;
+        }
+        out.writeByte(FRAME);
+        out.writeInt(frameBuffer.size() + 4);
+        out.writeInt(frameCount);
+        frameBuffer.writeTo(new ObjectOutputAdapter(out));
+        frameBuffer.reset();
+        frameCount = 0;
+    }
+
+    private boolean encode(Command cmd) throws IOException {
+        switch (cmd.getType()) {
+            case Command.MESSAGE: {
+                MessageCommand mc = (MessageCommand)cmd;
+                frame.writeByte(Command.MESSAGE);
+                frame.writeLong(mc.getTime());
+                writeString(mc.getMessage(), false);
+                return true;
+            }
+            case Command.NUMBER: {
+                NumberDataCommand nc = (NumberDataCommand)cmd;
+                frame.writeByte(Command.NUMBER);
+                writeString(nc.getName(), true);
+                writeCell(nc.getValue());
+                return true;
+            }
+            case Command.NUMBER_MAP: {
+                NumberMapDataCommand nmc = (NumberMapDataCommand)cmd;
+                Map<String, ? extends Number> data = nmc.getData();
+                frame.writeByte(Command.NUMBER_MAP);
+                writeString(nmc.getName(), true);
+                frame.writeInt(data != null ? data.size() : 0);
+                if (data != null) {
+                    for (Map.Entry<String, ? extends Number> e : data.entrySet()) {
+                        writeString(e.getKey(), true);
+                        writeCell(e.getValue());
+                    }
+                }
+                return true;
+            }
+            case Command.STRING_MAP: {
+                StringMapDataCommand smc = (StringMapDataCommand)cmd;
+                Map<String, String> data = smc.getData();
+                frame.writeByte(Command.STRING_MAP);
+                writeString(smc.getName(), true);
+                frame.writeInt(data != null ? data.size() : 0);
+                if (data != null) {
+                    for (Map.Entry<String, String> e : data.entrySet()) {
+                        writeString(e.getKey(), true);
+                        writeString(e.getValue(), true);
+                    }
+                }
+                return true;
+            }
+            case Command.GRID_DATA: {
+                GridDataCommand gdc = (GridDataCommand)cmd;
+                List<Object[]> data = gdc.getData();
+                frame.writeByte(Command.GRID_DATA);
+                writeString(gdc.getName(), true);
+                writeString(gdc.getFormat(), true);
+                frame.writeInt(data != null ? data.size() : 0);
+                if (data != null) {
+                    for (Object[] row : data) {
+                        frame.writeInt(row.length);
+                        for (Object cell : row) {
+                            writeCell(cell);
+                        }
+                    }
+                }
+                return true;
+            }
+            default:
+                return false;
+        }
+    }
+
+    private void writeString(String str, boolean intern) throws IOException {
+        if (str == null) {
+            frame.writeByte(S_NULL);
+            return;
+        }
+        if (intern && str.length() <= MAX_INTERNED_LENGTH) {
+            Integer id = strings.get(str);
+            if (id != null) {
+                frame.writeByte(S_REF);
+                frame.writeInt(id.intValue());
+                return;
+            }
+            if (strings.size() < MAX_INTERNED_STRINGS) {
+                strings.put(str, strings.size());
+                frame.writeByte(S_NEW);
+                frame.writeUTF(str);
+                return;
+            }
+        }
+        if (str.length() <= MAX_UTF_LENGTH) {
+            frame.writeByte(S_LITERAL);
+            frame.writeUTF(str);
+        } else {
+            // DataOutput.writeUTF is limited to 64k
+            byte[] bytes = str.getBytes("UTF-8");
+            frame.writeByte(S_LONG_LITERAL);
+            frame.writeInt(bytes.length);
+            frame.write(bytes);
+        }
+    }
+
+    private void writeCell(Object cell) throws IOException {
+        if (cell == null) {
+            frame.writeByte(C_NULL);
+        } else if (cell instanceof Integer) {
+            frame.writeByte(C_INT);
+            frame.writeInt(((Integer)cell).intValue());
+        } else if (cell instanceof Long) {
+            frame.writeByte(C_LONG);
+            frame.writeLong(((Long)cell).longValue());
+        } else if (cell instanceof String) {
+            frame.writeByte(C_STRING);
+            writeString((String)cell, true);
+        } else if (cell instanceof HistogramData) {
+            HistogramData hd = (HistogramData)cell;
+            long[] values = hd.getValues();
+            long[] counts = hd.getCounts();
+            frame.writeByte(C_HISTOGRAM);
+            frame.writeInt(values.length);
+            for (int i = 0; i < values.length; i++) {
+                frame.writeLong(values[i]);
+                frame.writeLong(counts[i]);
+            }
+        } else if (cell instanceof PercentileData) {
+            PercentileData pd = (PercentileData)cell;
+            int[] indexes = pd.getIndexes();
+            long[] counts = pd.getCounts();
+            frame.writeByte(C_PERCENTILES);
+            frame.writeByte(pd.getSignificantDigits());
+            frame.writeLong(pd.getMin());
+            frame.writeLong(pd.getMax());
+            frame.writeInt(indexes.length);
+            for (int i = 0; i < indexes.length; i++) {
+                frame.writeInt(indexes[i]);
+                frame.writeLong(counts[i]);
+            }
+        } else if (cell instanceof Double) {
+            frame.writeByte(C_DOUBLE);
+            frame.writeDouble(((Double)cell).doubleValue());
+        } else if (cell instanceof Float) {
+            frame.writeByte(C_FLOAT);
+            frame.writeFloat(((Float)cell).floatValue());
+        } else if (cell instanceof Short) {
+            frame.writeByte(C_SHORT);
+            frame.writeShort(((Short)cell).shortValue());
+        } else if (cell instanceof Byte) {
+            frame.writeByte(C_BYTE);
+            frame.writeByte(((Byte)cell).byteValue());
+        } else {
+            // anything else (eg. BigDecimal) goes through the java serialization
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            ObjectOutputStream oos = new ObjectOutputStream(bos);
+            oos.writeObject(cell);
+            oos.close();
+            frame.writeByte(C_OBJECT);
+            frame.writeInt(bos.size());
+            bos.writeTo(frame);
+        }
+    }
+
+    /**
+     * Lets {@linkplain ByteArrayOutputStream#writeTo(java.io.OutputStream)}
+     * copy the frame straight into the {@linkplain ObjectOutput}
+     */
+    private static final class ObjectOutputAdapter extends java.io.OutputStream {
+        private final ObjectOutput out;
+
+        ObjectOutputAdapter(ObjectOutput out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+    }
+}
@@ -44,9 +44,15 @@ public abstract class Command implements Serializable {
     public static final byte GRID_DATA  = 10;
     public static final byte RETRANSFORMATION_START = 11;
     public static final byte RETRANSFORM_CLASS = 12;
+    public static final byte QUEUE_OVERFLOW = 13;
+    public static final byte PROTOCOL = 14;
+    public static final byte METRICS = 15;
+    public static final byte PROBE_THROTTLE = 16;
+    public static final byte RETRANSFORMATION_END = 17;
+    public static final byte RETRANSFORMATION_PROGRESS = 18;
     
     public static final byte FIRST_COMMAND = ERROR;
-    public static final byte LAST_COMMAND = RETRANSFORM_CLASS;
+    public static final byte LAST_COMMAND = RETRANSFORMATION_PROGRESS;
 
     protected byte type;
     protected Command(byte type) {
@@ -42,7 +42,7 @@ import java.util.regex.Pattern;
 /**
  * A data command that holds tabular data.
  * 
- * The elements contained within the grid must be of type Number, String or HistogramData.
+ * The elements contained within the grid must be of type Number, String, HistogramData or PercentileData.
  * 
  * @author Christian Glencross
  */
@@ -88,6 +88,10 @@ public class GridDataCommand extends DataCommand {
         return data;
     }
 
+    public String getFormat() {
+        return format;
+    }
+
     public void print(PrintWriter out) {
         if (data != null) {
             if (name != null && !name.equals("")) {
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2008-2010 Sun Microsystems, Inc.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Sun designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Sun in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Sun Microsystems, Inc., 4150 Network Circle, Santa Clara,
+ * CA 95054 USA or visit www.sun.com if you need additional information or
+ * have any questions.
+ */
+
+package com.sun.btrace.comm;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.PrintWriter;
+
+/**
+ * The self-metrics of a BTrace program. Sent by the client it asks the
+ * agent for the metrics - once, or every <i>period</i> milliseconds until
+ * a request with a negative period arrives; sent by the agent it carries
+ * a snapshot of them: the statistics of every probe handler and the
+ * program wide ones, indexed by the constants below.
+ */
+public class MetricsCommand extends DataCommand {
+    private static final long serialVersionUID = 1L;
+
+    // per probe statistics
+    public static final int INVOCATIONS = 0;
+    public static final int SKIPS = 1;
+    public static final int EXCEPTIONS = 2;
+    public static final int TIMED = 3;
+    public static final int AVERAGE_NANOS = 4;
+    public static final int MAX_NANOS = 5;
+    public static final int ESTIMATED_NANOS = 6;
+    public static final int THROTTLE_INTERVAL = 7;
+    public static final int THROTTLED = 8;
+    public static final int PROBE_STATS = 9;
+
+    // program wide statistics
+    public static final int SAMPLE_INTERVAL = 0;
+    public static final int QUEUE_DEPTH = 1;
+    public static final int DROPPED_COMMANDS = 2;
+    public static final int TRANSFORMED_CLASSES = 3;
+    public static final int TRANSFORM_NANOS = 4;
+    public static final int SCRIPT_EXCEPTIONS = 5;
+    public static final int SCRIPT_STATS = 6;
+
+    private long period;
+    private String[] probes = new String[0];
+    private long[][] probeStats = new long[0][];
+    private long[] scriptStats = new long[SCRIPT_STATS];
+
+    public MetricsCommand() {
+        this(0L);
+    }
+
+    /**
+     * Creates a request for the metrics
+     *
+     * @param period 0 to get the metrics once, a positive value to get them
+     *        every <i>period</i> milliseconds, a negative one to stop that
+     */
+    public MetricsCommand(long period) {
+        super(METRICS, null);
+        this.period = period;
+    }
+
+    public MetricsCommand(String name, String[] probes, long[][] probeStats, long[] scriptStats) {
+        super(METRICS, name);
+        this.probes = probes;
+        this.probeStats = probeStats;
+        this.scriptStats = scriptStats;
+    }
+
+    public long getPeriod() {
+        return period;
+    }
+
+    public int getProbeCount() {
+        return probes.length;
+    }
+
+    public String getProbeName(int probe) {
+        return probes[probe];
+    }
+
+    public long getProbeStat(int probe, int stat) {
+        return probeStats[probe][stat];
+    }
+
+    public long getScriptStat(int stat) {
+        return scriptStats[stat];
+    }
+
+    protected void write(ObjectOutput out) throws IOException {
+        out.writeLong(period);
+        out.writeUTF(name != null ? name : "");
+        out.writeInt(probes.length);
+        for (int i = 0; i < probes.length; i++) {
+            out.writeUTF(probes[i]);
+            for (int j = 0; j < PROBE_STATS; j++) {
+                out.writeLong(probeStats[i][j]);
+            }
+        }
+        for (int j = 0; j < SCRIPT_STATS; j++) {
+            out.writeLong(scriptStats[j]);
+        }
+    }
+
+    protected void read(ObjectInput in) throws IOException, ClassNotFoundException {
+        period = in.readLong();
+        name = in.readUTF();
+        int count = in.readInt();
+        probes = new String[count];
+        probeStats = new long[count][PROBE_STATS];
+        for (int i = 0; i < count; i++) {
+            probes[i] = in.readUTF();
+            for (int j = 0; j < PROBE_STATS; j++) {
+                probeStats[i][j] = in.readLong();
+            }
+        }
+        scriptStats = new long[SCRIPT_STATS];
+        for (int j = 0; j < SCRIPT_STATS; j++) {
+            scriptStats[j] = in.readLong();
+        }
+    }
+
+    public void print(PrintWriter out) {
+        out.println("BTrace metrics of " + name);
+        out.println("probe\tinvocations\tskipped\texceptions\ttimed\tavg [ns]\tmax [ns]\testimated [ms]\t" +
+                    "runs 1 in\tthrottled");
+        for (int i = 0; i < probes.length; i++) {
+            long[] stats = probeStats[i];
+            out.println(probes[i] + "\t" + stats[INVOCATIONS] + "\t" + stats[SKIPS] + "\t" +
+                        stats[EXCEPTIONS] + "\t" + stats[TIMED] + "\t" + stats[AVERAGE_NANOS] + "\t" +
+                        stats[MAX_NANOS] + "\t" + stats[ESTIMATED_NANOS] / 1000000 + "\t" +
+                        (stats[THROTTLE_INTERVAL] != 0 ? String.valueOf(stats[THROTTLE_INTERVAL]) : "off") +
+                        "\t" + stats[THROTTLED]);
+        }
+        out.println("sample interval: " + scriptStats[SAMPLE_INTERVAL] +
+                    ", exceptions: " + scriptStats[SCRIPT_EXCEPTIONS] +
+                    ", queued commands: " + scriptStats[QUEUE_DEPTH] +
+                    ", dropped commands: " + scriptStats[DROPPED_COMMANDS] +
+                    ", transformed classes: " + scriptStats[TRANSFORMED_CLASSES] +
+                    " in " + scriptStats[TRANSFORM_NANOS] / 1000000 + " ms");
+    }
+
+    @Override
+    public String toString() {
+        return "MetricsCommand(" + (name != null ? name : "period " + period) + ")";
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2008-2010 Sun Microsystems, Inc.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Sun designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Sun in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Sun Microsystems, Inc., 4150 Network Circle, Santa Clara,
+ * CA 95054 USA or visit www.sun.com if you need additional information or
+ * have any questions.
+ */
+
+package com.sun.btrace.comm;
+
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.IOException;
+
+/**
+ * This command is sent out when the agent throttled a probe handler
+ * because the BTrace program went over its overhead budget, or let it
+ * run more often again once the program was well within the budget.
+ * It carries the handler, every how many invocations it runs now
+ * (0 when it is disabled), the load measured when the decision was
+ * taken and the budget.
+ */
+public class ProbeThrottleNotification extends Command {
+    private static final long serialVersionUID = 1L;
+
+    private String probe;
+    private long interval;
+    private long cpuNanos;
+    private long events;
+    private long cpuBudget;
+    private long eventBudget;
+
+    public ProbeThrottleNotification() {
+        super(PROBE_THROTTLE);
+    }
+
+    /**
+     * @param probe the name of the probe handler
+     * @param interval every how many invocations the handler runs, 0 if never
+     * @param cpuNanos the handler time of the program per second
+     * @param events the handler runs of the program per second
+     * @param cpuBudget the budget of handler time per second, 0 if none
+     * @param eventBudget the budget of handler runs per second, 0 if none
+     */
+    public ProbeThrottleNotification(String probe, long interval, long cpuNanos,
+                                     long events, long cpuBudget, long eventBudget) {
+        super(PROBE_THROTTLE);
+        this.probe = probe;
+        this.interval = interval;
+        this.cpuNanos = cpuNanos;
+        this.events = events;
+        this.cpuBudget = cpuBudget;
+        this.eventBudget = eventBudget;
+    }
+
+    protected void write(ObjectOutput out) throws IOException {
+        out.writeUTF(probe);
+        out.writeLong(interval);
+        out.writeLong(cpuNanos);
+        out.writeLong(events);
+        out.writeLong(cpuBudget);
+        out.writeLong(eventBudget);
+    }
+
+    protected void read(ObjectInput in)
+        throws IOException, ClassNotFoundException {
+        probe = in.readUTF();
+        interval = in.readLong();
+        cpuNanos = in.readLong();
+        events = in.readLong();
+        cpuBudget = in.readLong();
+        eventBudget = in.readLong();
+    }
+
+    public String getProbe() {
+        return probe;
+    }
+
+    public long getInterval() {
+        return interval;
+    }
+
+    public boolean isDisabled() {
+        return interval == 0;
+    }
+
+    public long getCpuNanos() {
+        return cpuNanos;
+    }
+
+    public long getEvents() {
+        return events;
+    }
+
+    public long getCpuBudget() {
+        return cpuBudget;
+    }
+
+    public long getEventBudget() {
+        return eventBudget;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder buf = new StringBuilder("BTrace probe ");
+        buf.append(probe);
+        if (interval == 0) {
+            buf.append(" disabled");
+        } else if (interval == 1) {
+            buf.append(" runs for every invocation again");
+        } else {
+            buf.append(" runs for 1 in ").append(interval).append(" invocations");
+        }
+        buf.append(" (handler time ").append(cpuNanos / 1000).append(" us/s");
+        if (cpuBudget > 0) {
+            buf.append(" of ").append(cpuBudget / 1000);
+        }
+        buf.append(", ").append(events).append(" runs/s");
+        if (eventBudget > 0) {
+            buf.append(" of ").append(eventBudget);
+        }
+        return buf.append(')').toString();
+    }
+}
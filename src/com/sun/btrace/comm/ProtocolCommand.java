@@ -0,0 +1,71 @@
+/*
+ * Copyright 2008-2010 Sun Microsystems, Inc.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Sun designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Sun in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Sun Microsystems, Inc., 4150 Network Circle, Santa Clara,
+ * CA 95054 USA or visit www.sun.com if you need additional information or
+ * have any questions.
+ */
+
+package com.sun.btrace.comm;
+
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.IOException;
+
+/**
+ * Negotiates the wire protocol version. A client wishing to use
+ * anything else than the plain object stream protocol sends this command
+ * right before the {@linkplain InstrumentCommand}; the agent replies with
+ * the version it is going to use for the rest of the session.
+ * Clients not sending this command get the object stream protocol.
+ */
+public class ProtocolCommand extends Command {
+    private static final long serialVersionUID = 1L;
+
+    /** one command per {@linkplain WireIO#write(java.io.ObjectOutput, com.sun.btrace.comm.Command)} */
+    public static final int OBJECT_STREAM = 0;
+    /** data commands are sent in batches of binary frames; see {@linkplain BinaryWireWriter} */
+    public static final int BINARY_V1 = 1;
+
+    public static final int LATEST = BINARY_V1;
+
+    private int version;
+
+    public ProtocolCommand(int version) {
+        super(PROTOCOL);
+        this.version = version;
+    }
+
+    protected ProtocolCommand() {
+        this(OBJECT_STREAM);
+    }
+
+    protected void write(ObjectOutput out) throws IOException {
+        out.writeInt(version);
+    }
+
+    protected void read(ObjectInput in) throws IOException {
+        version = in.readInt();
+    }
+
+    public int getVersion() {
+        return version;
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2008-2010 Sun Microsystems, Inc.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Sun designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Sun in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Sun Microsystems, Inc., 4150 Network Circle, Santa Clara,
+ * CA 95054 USA or visit www.sun.com if you need additional information or
+ * have any questions.
+ */
+
+package com.sun.btrace.comm;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This command is sent out when the BTrace engine has retransformed
+ * the classes announced by {@linkplain RetransformationStartNotification},
+ * right before the {@linkplain OkayCommand}. It carries the time spent
+ * filtering the loaded classes, transforming the candidates and
+ * redefining them.
+ */
+public class RetransformationEndNotification extends Command {
+    private static final long serialVersionUID = 1L;
+
+    private int numClasses;
+    private long filterNanos;
+    private long transformNanos;
+    private long redefineNanos;
+
+    public RetransformationEndNotification() {
+        super(RETRANSFORMATION_END);
+    }
+
+    /**
+     * @param numClasses the number of classes retransformed
+     * @param filterNanos the time spent finding the candidate classes
+     * @param transformNanos the time spent in the class file transformer
+     * @param redefineNanos the time spent by the VM redefining the classes
+     */
+    public RetransformationEndNotification(int numClasses, long filterNanos,
+                                           long transformNanos, long redefineNanos) {
+        super(RETRANSFORMATION_END);
+        this.numClasses = numClasses;
+        this.filterNanos = filterNanos;
+        this.transformNanos = transformNanos;
+        this.redefineNanos = redefineNanos;
+    }
+
+    protected void write(ObjectOutput out) throws IOException {
+        out.writeInt(numClasses);
+        out.writeLong(filterNanos);
+        out.writeLong(transformNanos);
+        out.writeLong(redefineNanos);
+    }
+
+    protected void read(ObjectInput in)
+        throws IOException, ClassNotFoundException {
+        numClasses = in.readInt();
+        filterNanos = in.readLong();
+        transformNanos = in.readLong();
+        redefineNanos = in.readLong();
+    }
+
+    public int getNumClasses() {
+        return numClasses;
+    }
+
+    public long getFilterNanos() {
+        return filterNanos;
+    }
+
+    public long getTransformNanos() {
+        return transformNanos;
+    }
+
+    public long getRedefineNanos() {
+        return redefineNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "retransformed " + numClasses + " classes: filter " +
+               TimeUnit.NANOSECONDS.toMillis(filterNanos) + " ms, transform " +
+               TimeUnit.NANOSECONDS.toMillis(transformNanos) + " ms, redefine " +
+               TimeUnit.NANOSECONDS.toMillis(redefineNanos) + " ms";
+    }
+}
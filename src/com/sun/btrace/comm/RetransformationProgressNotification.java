@@ -0,0 +1,92 @@
+/*
+ * Copyright 2008-2010 Sun Microsystems, Inc.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Sun designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Sun in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Sun Microsystems, Inc., 4150 Network Circle, Santa Clara,
+ * CA 95054 USA or visit www.sun.com if you need additional information or
+ * have any questions.
+ */
+
+package com.sun.btrace.comm;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This command is sent out after each batch of the classes announced by
+ * {@linkplain RetransformationStartNotification} has been retransformed.
+ * It carries the number of classes retransformed so far, out of all the
+ * announced ones, and the time spent retransforming them.
+ */
+public class RetransformationProgressNotification extends Command {
+    private static final long serialVersionUID = 1L;
+
+    private int doneClasses;
+    private int numClasses;
+    private long elapsedNanos;
+
+    public RetransformationProgressNotification() {
+        super(RETRANSFORMATION_PROGRESS);
+    }
+
+    /**
+     * @param doneClasses the number of classes retransformed so far
+     * @param numClasses the number of classes to be retransformed
+     * @param elapsedNanos the time spent retransforming so far
+     */
+    public RetransformationProgressNotification(int doneClasses, int numClasses,
+                                                long elapsedNanos) {
+        super(RETRANSFORMATION_PROGRESS);
+        this.doneClasses = doneClasses;
+        this.numClasses = numClasses;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    protected void write(ObjectOutput out) throws IOException {
+        out.writeInt(doneClasses);
+        out.writeInt(numClasses);
+        out.writeLong(elapsedNanos);
+    }
+
+    protected void read(ObjectInput in)
+        throws IOException, ClassNotFoundException {
+        doneClasses = in.readInt();
+        numClasses = in.readInt();
+        elapsedNanos = in.readLong();
+    }
+
+    public int getDoneClasses() {
+        return doneClasses;
+    }
+
+    public int getNumClasses() {
+        return numClasses;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "retransformed " + doneClasses + " of " + numClasses + " classes (" +
+               TimeUnit.NANOSECONDS.toMillis(elapsedNanos) + " ms)";
+    }
+}
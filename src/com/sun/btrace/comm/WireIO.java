@@ -34,7 +34,13 @@ public class WireIO {
     }
 
     public static Command read(ObjectInput in) throws IOException {
-        byte type = in.readByte();
+        return read(in, in.readByte());
+    }
+
+    /**
+     * Reads the body of a command whose type byte has already been consumed
+     */
+    static Command read(ObjectInput in, byte type) throws IOException {
         Command cmd;
         switch (type) {
             case Command.ERROR:
@@ -76,6 +82,24 @@ public class WireIO {
             case Command.RETRANSFORM_CLASS:
                 cmd = new RetransformClassNotification();
                 break;
+            case Command.QUEUE_OVERFLOW:
+                cmd = new QueueOverflowNotification();
+                break;
+            case Command.PROTOCOL:
+                cmd = new ProtocolCommand();
+                break;
+            case Command.METRICS:
+                cmd = new MetricsCommand();
+                break;
+            case Command.PROBE_THROTTLE:
+                cmd = new ProbeThrottleNotification();
+                break;
+            case Command.RETRANSFORMATION_END:
+                cmd = new RetransformationEndNotification();
+                break;
+            case Command.RETRANSFORMATION_PROGRESS:
+                cmd = new RetransformationProgressNotification();
+                break;
            default:
                 throw new RuntimeException("invalid command: " + type);
         }
@@ -89,8 +113,19 @@ public class WireIO {
 
     public static void write(ObjectOutput out, Command cmd)
             throws IOException {
+        write(out, cmd, true);
+    }
+
+    /**
+     * Writes the given command; the stream is flushed only if requested
+     * so that a batch of commands can go out with a single flush.
+     */
+    public static void write(ObjectOutput out, Command cmd, boolean flush)
+            throws IOException {
         out.writeByte(cmd.getType());
         cmd.write(out);
-        out.flush();
+        if (flush) {
+            out.flush();
+        }
     }
 }
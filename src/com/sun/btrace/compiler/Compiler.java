@@ -26,6 +26,8 @@ package com.sun.btrace.compiler;
 
 import com.sun.btrace.org.objectweb.asm.ClassReader;
 import com.sun.btrace.org.objectweb.asm.ClassWriter;
+import com.sun.btrace.runtime.ClassHierarchy;
+import com.sun.btrace.runtime.InstrumentUtils;
 import javax.annotation.processing.Processor;
 import com.sun.source.util.JavacTask;
 import com.sun.btrace.util.Messages;
@@ -273,11 +275,19 @@ public class Compiler {
             Map<String, byte[]> classBytes = manager.getClassBytes();
             List<String> classNames = btraceVerifier.getClassNames();
             Map<String, byte[]> result = new HashMap<String, byte[]>();
+            // the frames are computed from the class files, without loading
+            // the classes; the compiled classes are known only by their bytes
+            ClassHierarchy hierarchy = new ClassHierarchy(Compiler.class.getClassLoader(),
+                                                          ClassHierarchy.DEFAULT_MAX_CLASSES);
+            for (byte[] code : classBytes.values()) {
+                hierarchy.register(code);
+            }
             for (String name : classNames) {
                 if (classBytes.containsKey(name)) {
                     dump(name + "_before", classBytes.get(name));
                     ClassReader cr = new ClassReader(classBytes.get(name));
-                    ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
+                    ClassWriter cw = InstrumentUtils.newClassWriter(null, ClassWriter.COMPUTE_FRAMES,
+                                                                    hierarchy);
                     cr.accept(new Postprocessor(cw), ClassReader.EXPAND_FRAMES + ClassReader.SKIP_DEBUG);
                     result.put(name, cw.toByteArray());
                     dump(name + "_after", cw.toByteArray());
@@ -26,271 +26,461 @@
 package com.sun.btrace.profiling;
 
 import com.sun.btrace.Profiler;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Implementation of {@linkplain Profiler}
+ * <p>
+ * Each recording thread gets its own recorder. The recorders are kept in
+ * a lock-free list and looked up through an open-addressed table keyed by
+ * the thread id; a thread registers itself with a couple of CAS operations.
+ * Block names are interned to int ids so the per-thread call stack is a
+ * preallocated <code>long[]</code> and the collected data live in primitive
+ * arrays indexed by the block id - once a thread has seen all its blocks
+ * neither {@linkplain #recordEntry(java.lang.String)} nor
+ * {@linkplain #recordExit(java.lang.String, long)} lock or allocate.
+ * <p>
+ * {@linkplain #snapshot(boolean)} swaps the data array of each recorder
+ * for an empty one and folds the detached data into a global accumulator,
+ * waiting at most for the single update the owner thread might have in
+ * flight. Recorders of terminated threads are folded into the same
+ * accumulator and dropped, either on snapshot or when new threads register.
  * @author Jaroslav Bachorik
  */
 public class MethodInvocationProfiler extends Profiler implements Profiler.MBeanValueProvider {
-    private static class MethodInvocationRecorder {
-        private int stackSize = 200;
-        private int stackPtr = -1;
-        private int stackBndr = 150;
-        private Record[] stackArr = new Record[stackSize];
+    // layout of the per-block statistics in the data arrays
+    private static final int INVOCATIONS = 0;
+    private static final int SELF_TIME = 1;
+    private static final int SELF_TIME_MIN = 2;
+    private static final int SELF_TIME_MAX = 3;
+    private static final int WALL_TIME = 4;
+    private static final int WALL_TIME_MIN = 5;
+    private static final int WALL_TIME_MAX = 6;
+    private static final int STRIDE = 7;
+
+    // a stack frame is the block id followed by the accumulated time of its callees
+    private static final int FRAME = 2;
+    private static final int INITIAL_STACK_DEPTH = 64;
+
+    private static final int INITIAL_TABLE_SIZE = 64;
+    // longest probe sequence tolerated before the table gets rebuilt
+    private static final int MAX_PROBES = 8;
+    // try reclaiming the recorders of terminated threads every N registrations
+    private static final int SWEEP_INTERVAL = 64;
+
+    /**
+     * The statistics recorded by a thread since the last snapshot.
+     * Only the owner thread writes to it; <code>seq</code> is odd while
+     * an update is in progress.
+     */
+    private static final class Data {
+        volatile int seq;
+        volatile long[] stats;
+
+        Data(int blocks) {
+            stats = newStats(blocks);
+        }
+    }
+
+    private static final class MethodInvocationRecorder {
+        final Thread thread;
+        final long threadId;
+        volatile MethodInvocationRecorder next;
 
-        private int measuredSize = 0;
-        private int measuredPtr = 0;
-        private Record[] measured = new Record[0];
+        // the data currently being recorded; replaced on snapshot
+        volatile Data data;
+        // recycled data instance; guarded by the profiler's sweep lock
+        Data spare;
 
+        // owner thread only
+        private long[] stack = new long[INITIAL_STACK_DEPTH * FRAME];
+        private int stackPtr = 0;
+        private int[] active;
         private long carryOver = 0L;
-        private int defaultBufferSize;
 
-        public MethodInvocationRecorder(int expectedBlockCnt) {
-            defaultBufferSize = expectedBlockCnt * 10;
-            measuredSize = defaultBufferSize;
-            measured = new Record[measuredSize];
+        MethodInvocationRecorder(Thread thread, int expectedBlockCnt) {
+            this.thread = thread;
+            this.threadId = thread.getId();
+            this.data = new Data(expectedBlockCnt);
+            this.spare = new Data(expectedBlockCnt);
+            this.active = new int[expectedBlockCnt];
         }
-        
-        private synchronized void recordEntry(String blockName) {
-            Record r = new Record(blockName);
-            addMeasured(r);
-            push(r);
-            carryOver = 0L; // clear the carryOver; not 2 subsequent calls to recordExit
-        }
-
-        private synchronized void recordExit(String blockName, long duration) {
-            Record r = pop();
-            if (r == null) {
-                r = new Record(blockName);
-                addMeasured(r);
-            }
-            r.wallTime = duration;
-            r.selfTime += duration - carryOver;
 
-            for(int i=0;i<stackPtr;i++) {
-                if (stackArr[i].blockName.equals(blockName)) {
-                    r.wallTime = 0;
-                    break;
-                }
+        void recordEntry(int blockId) {
+            if (stackPtr == stack.length) {
+                stack = Arrays.copyOf(stack, stack.length * 2);
             }
-            r.selfTimeMin = r.selfTimeMax = r.selfTime;
-            r.wallTimeMin = r.wallTimeMax = r.wallTime;
-
-            Record parent = peek();
-            if (parent != null) {
-                parent.selfTime -= duration;
-            } else {
-                carryOver = duration;
+            stack[stackPtr] = blockId;
+            stack[stackPtr + 1] = 0L;
+            stackPtr += FRAME;
+            if (blockId >= active.length) {
+                active = Arrays.copyOf(active, Math.max(blockId + 1, active.length * 2));
             }
+            active[blockId]++;
         }
 
-        private Record[] getRecords(boolean reset) {
-            Record[] recs = null;
-            synchronized(this) {
-                // compact the collected data
-                int stopPtr = compactMeasured();
-                recs = new Record[stopPtr];
-                // copy the record array
-                System.arraycopy(measured, 0, recs, 0, stopPtr);
-                // call reset if requested
-                if (reset) reset();
-
-                // detach the real records so they don't change as the measuring goes on
-                for(int i=0;i<recs.length;i++) {
-                    recs[i] = recs[i].duplicate();
-                }
-                return recs;
+        /**
+         * @param blockId The id of the exiting block, used only when there
+         *                is no matching entry on the stack
+         */
+        void recordExit(int blockId, long duration) {
+            long callees;
+            if (stackPtr > 0) {
+                stackPtr -= FRAME;
+                blockId = (int)stack[stackPtr];
+                callees = stack[stackPtr + 1];
+                active[blockId]--;
+            } else {
+                // the entry has not been recorded; the completed top level
+                // blocks must have been called from this one
+                callees = carryOver;
+                carryOver = 0L;
             }
-        }
+            long selfTime = duration - callees;
+            // a recursive invocation is accounted in the outermost wall time only
+            long wallTime = blockId < active.length && active[blockId] > 0 ? 0L : duration;
 
-        private void push(Record r) {
-            if (stackPtr > stackBndr) {
-                stackSize *= 1.5;
-                stackBndr *= 1.5;
-                Record[] newStack = new Record[stackSize];
-                System.arraycopy(stackArr, 0, newStack, 0, stackPtr + 1);
-                stackArr = newStack;
+            if (stackPtr > 0) {
+                stack[stackPtr - 1] += duration;
+            } else {
+                carryOver += duration;
             }
-            stackArr[++stackPtr] = r;
-            r.onStack = true;
-        }
 
-        private Record pop() {
-            Record r = stackPtr > -1 ? stackArr[stackPtr--] : null;
-            if (r != null) {
-                r.onStack = false;
+            Data d = acquire();
+            long[] s = d.stats;
+            int base = blockId * STRIDE;
+            if (base >= s.length) {
+                s = grow(s, blockId + 1);
+                d.stats = s;
             }
-            return r;
-        }
-
-        private Record peek() {
-            return stackPtr > -1 ? stackArr[stackPtr] : null;
+            s[base + INVOCATIONS]++;
+            s[base + SELF_TIME] += selfTime;
+            if (selfTime < s[base + SELF_TIME_MIN]) s[base + SELF_TIME_MIN] = selfTime;
+            if (selfTime > s[base + SELF_TIME_MAX]) s[base + SELF_TIME_MAX] = selfTime;
+            s[base + WALL_TIME] += wallTime;
+            if (wallTime < s[base + WALL_TIME_MIN]) s[base + WALL_TIME_MIN] = wallTime;
+            if (wallTime > s[base + WALL_TIME_MAX]) s[base + WALL_TIME_MAX] = wallTime;
+            d.seq++;
         }
 
-        private void addMeasured(Record r) {
-            if (measuredPtr == measuredSize) {
-                compactMeasured();
+        /**
+         * Marks the current data as being updated. The data reference is
+         * re-checked after the mark so that a concurrent {@linkplain #detach()}
+         * either sees the update in progress or the owner sees the new data.
+         */
+        private Data acquire() {
+            while (true) {
+                Data d = data;
+                d.seq++;
+                if (d == data) {
+                    return d;
+                }
+                d.seq++;
             }
-            measured[measuredPtr++] = r;
         }
 
-        private synchronized void reset() {
-            Record[] newMeasured = new Record[defaultBufferSize + stackPtr + 1];
-            if (stackPtr > -1) {
-                System.arraycopy(stackArr, 0, newMeasured, 0, stackPtr + 1);
+        /**
+         * Replaces the current data with the spare instance and returns
+         * the detached one once the owner thread is done updating it.
+         * Must be called with the sweep lock held.
+         */
+        long[] detach() {
+            Data d = data;
+            data = spare;
+            while ((d.seq & 1) != 0) {
+                Thread.yield();
             }
-            measuredPtr = stackPtr + 1;
-            measured = newMeasured;
-            measuredSize = measured.length;
-        }
-
-        private int compactMeasured() {
-            Map<String, Integer> indexMap = new HashMap<String, Integer>();
-            int lastIndex = 0;
-            for(int i=0;i<measuredPtr;i++) {
-                Record m = measured[i];
-                if (!m.onStack) {
-                    Integer newIndex = indexMap.get(m.blockName);
-                    if (newIndex == null) {
-                        newIndex = lastIndex++;
-                        indexMap.put(m.blockName, newIndex);
-                        measured[newIndex] = m;
-                    } else {
-                        Record mr = measured[newIndex];
-                        mr.selfTime += m.selfTime;
-                        mr.wallTime += m.wallTime;
-                        mr.invocations++;
-                        mr.selfTimeMax = m.selfTime > mr.selfTimeMax ? m.selfTime : mr.selfTimeMax;
-                        mr.selfTimeMin = m.selfTime < mr.selfTimeMin ? m.selfTime : mr.selfTimeMin;
-                        mr.wallTimeMax = m.wallTime > mr.wallTimeMax ? m.wallTime : mr.wallTimeMax;
-                        mr.wallTimeMin = m.wallTime < mr.wallTimeMin ? m.wallTime : mr.wallTimeMin;
-                        for(int j=0;j<stackPtr;j++) {
-                            if (stackArr[j] == m) { // if the old ref is kept on stack
-                                stackArr[j] = mr; // replace it with the compacted ref
-                            }
-                        }
-                    }
-                }
-            }
-            if ((lastIndex + stackPtr + 1) == measuredSize) {
-                int newMeasuredSize = (int)(measuredSize * 1.25) + (stackPtr + 1); // make room for the methods on the stack
-                if (newMeasuredSize == measuredSize) {
-                    newMeasuredSize = measuredSize * 2 + (stackPtr + 1); // make room for the methods on the stack
-                }
-                Record[] newMeasured = new Record[newMeasuredSize];
-                System.arraycopy(measured, 0, newMeasured, 0, lastIndex); // copy the compacted values
-                measured = newMeasured;
-                measuredSize = newMeasuredSize;
-            }
-            System.arraycopy(stackArr, 0, measured, lastIndex, stackPtr + 1); // add the not processed methods on the stack
-            measuredPtr = lastIndex + stackPtr + 1; // move the pointer behind the methods on the stack
-            
-            return lastIndex;
+            spare = d;
+            return d.stats;
         }
     }
 
-    final private Map<Thread, MethodInvocationRecorder> recorders = new HashMap<Thread, MethodInvocationRecorder>(128);
+    // all the registered recorders; pushed lock-free, unlinked under sweepLock
+    final private AtomicReference<MethodInvocationRecorder> recorders = new AtomicReference<MethodInvocationRecorder>();
+    // thread id keyed lookup table; rebuilt from the recorder list when crowded
+    volatile private AtomicReferenceArray<MethodInvocationRecorder> table =
+            new AtomicReferenceArray<MethodInvocationRecorder>(INITIAL_TABLE_SIZE);
+    final private AtomicInteger registrations = new AtomicInteger();
+
+    final private ReentrantLock sweepLock = new ReentrantLock();
+    // data of terminated threads and of the previous snapshots; guarded by sweepLock
+    private long[] accumulated;
 
+    final private ConcurrentHashMap<String, Integer> blockIds;
+    // guarded by blockIds
+    private String[] blockNames;
+    private int blockCnt = 0;
 
     volatile private Snapshot lastValidSnapshot = null;
 
     private int expectedBlockCnt;
 
     public MethodInvocationProfiler(int expectedMethodCnt) {
-        this.expectedBlockCnt = expectedMethodCnt;
+        this.expectedBlockCnt = Math.max(expectedMethodCnt, 1);
+        this.accumulated = newStats(expectedBlockCnt);
+        this.blockIds = new ConcurrentHashMap<String, Integer>(expectedBlockCnt * 2);
+        this.blockNames = new String[expectedBlockCnt];
     }
 
     public void recordEntry(String blockName) {
-        getThreadSampler().recordEntry(blockName);
+        getThreadSampler().recordEntry(getBlockId(blockName));
     }
 
     public void recordExit(String blockName, long duration) {
-        getThreadSampler().recordExit(blockName, duration);
+        getThreadSampler().recordExit(getBlockId(blockName), duration);
     }
 
     public void reset() {
-        synchronized(recorders) {
-            for(MethodInvocationRecorder r : recorders.values()) {
-                r.reset();
+        sweepLock.lock();
+        try {
+            sweep();
+            for(MethodInvocationRecorder r = recorders.get(); r != null; r = r.next) {
+                clear(r.detach());
             }
+            clear(accumulated);
+        } finally {
+            sweepLock.unlock();
         }
     }
 
     private long lastTs = START_TIME;
 
     public Snapshot snapshot(boolean reset) {
-        synchronized(recorders) {
-            Map<String, Integer> idMap = new HashMap<String, Integer>();
-
-            Record[] mergedRecords = null;
-            int mergedEntries = 0, mergedCapacity = 0;
-            for(Map.Entry<Thread, MethodInvocationRecorder> sEntry : recorders.entrySet()) {
-                final Record[] records = sEntry.getValue().getRecords(reset);
-                if (records == null || records.length == 0) continue; // just skip the empty data
-
-                if (mergedRecords == null) {
-                    mergedRecords = records;
-                    mergedCapacity = mergedRecords.length;
-                    for(int i=0;i<records.length;i++) {
-                        if (records[i] != null) {
-                            mergedEntries = i + 1;
-                        }
-                        idMap.put(records[i].blockName, i);
-                    }
-                    continue;
-                }
+        sweepLock.lock();
+        try {
+            sweep();
+            for(MethodInvocationRecorder r = recorders.get(); r != null; r = r.next) {
+                long[] stats = r.detach();
+                accumulated = merge(accumulated, stats);
+                clear(stats);
+            }
 
-                for(int i=0;i<records.length;i++) {
-                    Record r = records[i];
-                    Integer id = idMap.get(r.blockName);
-                    if (id == null) {
-                        id = mergedEntries++;
-                        if (mergedEntries > mergedCapacity) {
-                            mergedCapacity = (int)((mergedEntries + 1) * 1.25);
-                            Record[] newRecs = new Record[mergedCapacity];
-                            System.arraycopy(mergedRecords, 0, newRecs, 0, mergedEntries - 1);
-                            mergedRecords = newRecs;
-                        }
-                        idMap.put(r.blockName, id);
-                        mergedRecords[id] = r;
-                    } else {
-                        Record merged = mergedRecords[id];
-                        merged.invocations += r.invocations;
-                        merged.selfTime += r.selfTime;
-                        merged.wallTime += r.wallTime;
-                    }
-                }
+            String[] names;
+            synchronized(blockIds) {
+                names = blockNames;
             }
-            Record[] rslt = new Record[mergedEntries];
-            if (mergedRecords != null) {
-                System.arraycopy(mergedRecords, 0, rslt, 0, mergedEntries);
+            long[] s = accumulated;
+            int entries = 0;
+            Record[] records = new Record[s.length / STRIDE];
+            for(int id = 0, base = 0; base < s.length; id++, base += STRIDE) {
+                if (s[base + INVOCATIONS] == 0) continue;
+                Record r = new Record(names[id]);
+                r.invocations = s[base + INVOCATIONS];
+                r.selfTime = s[base + SELF_TIME];
+                r.selfTimeMin = s[base + SELF_TIME_MIN];
+                r.selfTimeMax = s[base + SELF_TIME_MAX];
+                r.wallTime = s[base + WALL_TIME];
+                r.wallTimeMin = s[base + WALL_TIME_MIN];
+                r.wallTimeMax = s[base + WALL_TIME_MAX];
+                records[entries++] = r;
+            }
+            if (reset) {
+                clear(accumulated);
             }
 
             long curTs = System.currentTimeMillis();
-            Snapshot snp = new Snapshot(rslt, lastTs, curTs);
+            Snapshot snp = new Snapshot(Arrays.copyOf(records, entries), lastTs, curTs);
             lastTs = curTs;
             lastValidSnapshot = snp;
             return snp;
+        } finally {
+            sweepLock.unlock();
         }
     }
 
     public Snapshot getMBeanValue() {
         return lastValidSnapshot;
     }
-    
+
+    private int getBlockId(String blockName) {
+        Integer id = blockIds.get(blockName);
+        return id != null ? id : newBlockId(blockName);
+    }
+
+    private int newBlockId(String blockName) {
+        synchronized(blockIds) {
+            Integer id = blockIds.get(blockName);
+            if (id == null) {
+                if (blockCnt == blockNames.length) {
+                    blockNames = Arrays.copyOf(blockNames, blockCnt * 2);
+                }
+                blockNames[blockCnt] = blockName;
+                id = blockCnt++;
+                blockIds.put(blockName, id);
+            }
+            return id;
+        }
+    }
+
     private MethodInvocationRecorder getThreadSampler() {
         Thread t = Thread.currentThread();
-        MethodInvocationRecorder s = recorders.get(t);
-        if (s == null) {
-            synchronized(recorders) {
-                if (!recorders.containsKey(t)) {
-                    s = new MethodInvocationRecorder(expectedBlockCnt);
-                    recorders.put(t, s);
+        AtomicReferenceArray<MethodInvocationRecorder> tab = table;
+        int mask = tab.length() - 1;
+        int idx = hash(t.getId()) & mask;
+        MethodInvocationRecorder r;
+        while ((r = tab.get(idx)) != null) {
+            if (r.thread == t) {
+                return r;
+            }
+            idx = (idx + 1) & mask;
+        }
+        return register(t);
+    }
+
+    /**
+     * Only the current thread ever creates its own recorder so the lock-free
+     * push can not produce duplicates. A recorder missing from the table
+     * (eg. lost in a concurrent rebuild) is found in the list and re-inserted.
+     */
+    private MethodInvocationRecorder register(Thread t) {
+        MethodInvocationRecorder r = null;
+        for(MethodInvocationRecorder x = recorders.get(); x != null; x = x.next) {
+            if (x.thread == t) {
+                r = x;
+                break;
+            }
+        }
+        if (r == null) {
+            r = new MethodInvocationRecorder(t, expectedBlockCnt);
+            MethodInvocationRecorder head;
+            do {
+                head = recorders.get();
+                r.next = head;
+            } while (!recorders.compareAndSet(head, r));
+
+            if (registrations.incrementAndGet() % SWEEP_INTERVAL == 0 && sweepLock.tryLock()) {
+                try {
+                    sweep();
+                } finally {
+                    sweepLock.unlock();
+                }
+            }
+        }
+        if (!insert(table, r)) {
+            rebuildTable();
+        }
+        return r;
+    }
+
+    /**
+     * Folds the data of terminated threads into the accumulator, unlinks
+     * their recorders and rebuilds the lookup table without them.
+     * Must be called with the sweep lock held.
+     */
+    private void sweep() {
+        boolean swept = false;
+        MethodInvocationRecorder prev = null;
+        MethodInvocationRecorder r = recorders.get();
+        while (r != null) {
+            MethodInvocationRecorder next = r.next;
+            // Thread.isAlive() returning false makes all the thread's writes visible
+            if (!r.thread.isAlive()) {
+                accumulated = merge(accumulated, r.data.stats);
+                if (prev != null) {
+                    prev.next = next;
+                } else if (!recorders.compareAndSet(r, next)) {
+                    // new recorders have been pushed in front of this one
+                    prev = recorders.get();
+                    while (prev.next != r) {
+                        prev = prev.next;
+                    }
+                    prev.next = next;
                 }
+                swept = true;
+            } else {
+                prev = r;
             }
+            r = next;
+        }
+        if (swept) {
+            rebuildTable();
         }
+    }
+
+    private void rebuildTable() {
+        int live = 0;
+        for(MethodInvocationRecorder r = recorders.get(); r != null; r = r.next) {
+            live++;
+        }
+        int capacity = INITIAL_TABLE_SIZE;
+        while (live * 4 > capacity) {
+            capacity <<= 1;
+        }
+        AtomicReferenceArray<MethodInvocationRecorder> tab = new AtomicReferenceArray<MethodInvocationRecorder>(capacity);
+        for(MethodInvocationRecorder r = recorders.get(); r != null; r = r.next) {
+            if (r.thread.isAlive() && !insert(tab, r)) {
+                // pathological clustering; grow and start over
+                capacity <<= 1;
+                tab = new AtomicReferenceArray<MethodInvocationRecorder>(capacity);
+                r = recorders.get();
+                insert(tab, r);
+            }
+        }
+        table = tab;
+    }
+
+    private static boolean insert(AtomicReferenceArray<MethodInvocationRecorder> tab, MethodInvocationRecorder r) {
+        int mask = tab.length() - 1;
+        int idx = hash(r.threadId) & mask;
+        for(int i = 0; i < MAX_PROBES && i <= mask; i++) {
+            MethodInvocationRecorder x = tab.get(idx);
+            if (x == r || (x == null && tab.compareAndSet(idx, null, r))) {
+                return true;
+            }
+            if (tab.get(idx) == r) {
+                return true;
+            }
+            idx = (idx + 1) & mask;
+        }
+        return false;
+    }
+
+    private static int hash(long threadId) {
+        // thread ids are sequential; spread them over the table
+        int h = (int)(threadId ^ (threadId >>> 32)) * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static long[] newStats(int blocks) {
+        long[] s = new long[blocks * STRIDE];
+        clear(s);
         return s;
     }
+
+    private static void clear(long[] s) {
+        Arrays.fill(s, 0L);
+        for(int base = 0; base < s.length; base += STRIDE) {
+            s[base + SELF_TIME_MIN] = Long.MAX_VALUE;
+            s[base + WALL_TIME_MIN] = Long.MAX_VALUE;
+        }
+    }
+
+    private static long[] grow(long[] s, int blocks) {
+        int newBlocks = Math.max(blocks, (s.length / STRIDE) * 2);
+        long[] n = newStats(newBlocks);
+        System.arraycopy(s, 0, n, 0, s.length);
+        return n;
+    }
+
+    private static long[] merge(long[] to, long[] from) {
+        if (to.length < from.length) {
+            to = grow(to, from.length / STRIDE);
+        }
+        for(int base = 0; base < from.length; base += STRIDE) {
+            if (from[base + INVOCATIONS] == 0) continue;
+            to[base + INVOCATIONS] += from[base + INVOCATIONS];
+            to[base + SELF_TIME] += from[base + SELF_TIME];
+            to[base + SELF_TIME_MIN] = Math.min(to[base + SELF_TIME_MIN], from[base + SELF_TIME_MIN]);
+            to[base + SELF_TIME_MAX] = Math.max(to[base + SELF_TIME_MAX], from[base + SELF_TIME_MAX]);
+            to[base + WALL_TIME] += from[base + WALL_TIME];
+            to[base + WALL_TIME_MIN] = Math.min(to[base + WALL_TIME_MIN], from[base + WALL_TIME_MIN]);
+            to[base + WALL_TIME_MAX] = Math.max(to[base + WALL_TIME_MAX], from[base + WALL_TIME_MAX]);
+        }
+        return to;
+    }
 }
@@ -0,0 +1,579 @@
+/*
+ * Copyright 2008-2010 Sun Microsystems, Inc.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Sun designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Sun in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Sun Microsystems, Inc., 4150 Network Circle, Santa Clara,
+ * CA 95054 USA or visit www.sun.com if you need additional information or
+ * have any questions.
+ */
+package com.sun.btrace.recording;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A binary trace recording. Every event is a fixed-layout record - the
+ * timestamp, the id of the recording thread, the probe name and up to four
+ * arguments - appended to a memory-mapped segment file; nothing is formatted
+ * or copied in the traced thread. Strings (probe names and string arguments)
+ * are interned into a dictionary of the recording and the records only keep
+ * their ids.
+ * <p>
+ * A recording is a sequence of segment files named
+ * <code>&lt;name&gt;-&lt;start millis&gt;.&lt;index&gt;.btrec</code>. Once a
+ * segment is full the next one is opened and the full one is sealed: the
+ * number of records and the dictionary, as known at that time, are written
+ * after its record area and referenced from its header. String ids never
+ * change within a recording, so the dictionary of the last sealed segment
+ * covers all the earlier ones. A segment is not sealed until it is full or
+ * the recording is closed, so each string is also written to the record
+ * area of the current segment as a dictionary entry when it is interned,
+ * before any record refers to it; the segment still being written (or left
+ * by a crashed JVM) is decoded from these. The segments are read back by
+ * {@linkplain RecordingReader}.
+ * <p>
+ * The segment layout (all values big-endian):
+ * <pre>
+ * header (64 bytes)
+ *   0 int magic "BTRC"       4 short version       6 short record size
+ *   8 int record capacity   12 int segment index
+ *  16 long start nanoTime   24 long start currentTimeMillis
+ *  32 int record count      36 int dictionary offset (0 until sealed)
+ *  40 int dictionary size   44 int dictionary length in bytes
+ *  48 long dropped strings  56 long dropped records
+ * records (56 bytes each)
+ *   0 long nanoTime          8 long thread id
+ *  16 int probe id + 1 (0 for a slot never written)
+ *  20 int argument kinds, 2 bits per argument
+ *  24 4 x long arguments (long, double bits or string id)
+ * dictionary entry records, one or more consecutive ones per string
+ *   0 int string id          4 int offset of the chunk in the string bytes
+ *   8 int string length in bytes   12 int chunk length
+ *  16 int -1 (in place of the probe id)
+ *  20 chunk of the modified UTF-8 bytes of the string (up to 36 bytes)
+ * dictionary
+ *   modified UTF-8 strings in id order, as written by DataOutput.writeUTF
+ * </pre>
+ * The dictionary is bounded; strings beyond the limit are recorded as
+ * dropped, and so are the events of a probe whose name could not be interned.
+ */
+public final class Recording {
+    static final int MAGIC = 0x42545243;
+    static final short VERSION = 2;
+    static final int HEADER_SIZE = 64;
+    static final int RECORD_SIZE = 56;
+    static final int MAX_ARGS = 4;
+    static final String SUFFIX = ".btrec";
+
+    // header field offsets
+    static final int HEADER_VERSION = 4;
+    static final int HEADER_RECORD_SIZE = 6;
+    static final int HEADER_CAPACITY = 8;
+    static final int HEADER_INDEX = 12;
+    static final int HEADER_START_NANOS = 16;
+    static final int HEADER_START_MILLIS = 24;
+    static final int HEADER_COUNT = 32;
+    static final int HEADER_DICT_OFFSET = 36;
+    static final int HEADER_DICT_SIZE = 40;
+    static final int HEADER_DICT_LENGTH = 44;
+    static final int HEADER_DROPPED_STRINGS = 48;
+    static final int HEADER_DROPPED_RECORDS = 56;
+
+    // record field offsets
+    static final int RECORD_NANOS = 0;
+    static final int RECORD_THREAD = 8;
+    static final int RECORD_PROBE = 16;
+    static final int RECORD_KINDS = 20;
+    static final int RECORD_ARGS = 24;
+
+    // dictionary entry record field offsets
+    static final int ENTRY_ID = 0;
+    static final int ENTRY_OFFSET = 4;
+    static final int ENTRY_LENGTH = 8;
+    static final int ENTRY_CHUNK = 12;
+    static final int ENTRY_DATA = 20;
+    static final int ENTRY_DATA_SIZE = RECORD_SIZE - ENTRY_DATA;
+    // the probe field of a dictionary entry record
+    static final int DICTIONARY_ENTRY = -1;
+
+    // argument kinds
+    static final int KIND_NONE = 0;
+    static final int KIND_LONG = 1;
+    static final int KIND_DOUBLE = 2;
+    static final int KIND_STRING = 3;
+
+    // string ids that are not dictionary entries
+    static final int NULL_STRING = -1;
+    static final int DROPPED_STRING = -2;
+
+    private static final int MAX_STRINGS = 65536;
+    private static final int MAX_STRING_LENGTH = 1024;
+    private static final long MAX_SEGMENT_SIZE = 1L << 30;
+    private static final int MIN_CAPACITY = 1024;
+    // how long sealing waits for the records still being written
+    private static final long SEAL_WAIT_NANOS = 1000000000L;
+
+    private static volatile File defaultDirectory = new File(".");
+    private static volatile long defaultSegmentSize = 16L << 20;
+    private static volatile int defaultMaxSegments;
+
+    private final File directory;
+    private final String prefix;
+    private final int capacity;
+    private final int maxSegments;
+    private final long startNanos;
+    private final long startMillis;
+
+    private final ConcurrentHashMap<String, Integer> stringIds =
+        new ConcurrentHashMap<String, Integer>();
+    private final Object stringLock = new Object();
+    // string id -> string; grown under stringLock
+    private volatile String[] strings = new String[256];
+    private int stringCount;
+    private final AtomicLong droppedStrings = new AtomicLong();
+    private final AtomicLong droppedRecords = new AtomicLong();
+
+    private volatile Segment current;
+    private boolean closed;
+    private final Thread exitHook;
+
+    private static final class Segment {
+        final int index;
+        final RandomAccessFile raf;
+        final MappedByteBuffer buffer;
+        final int capacity;
+        // slots handed out; anything at or over the capacity means full
+        final AtomicInteger reserved = new AtomicInteger();
+        // slots completely written
+        final AtomicInteger committed = new AtomicInteger();
+
+        Segment(int index, RandomAccessFile raf, MappedByteBuffer buffer, int capacity) {
+            this.index = index;
+            this.raf = raf;
+            this.buffer = buffer;
+            this.capacity = capacity;
+        }
+    }
+
+    /**
+     * Sets the directory, the segment size and the number of retained
+     * segments used by the recordings created by {@linkplain #Recording(String)}.
+     * Called by the agent from its command line arguments.
+     *
+     * @param directory the directory of the segment files
+     * @param segmentSize the size of a segment file in bytes
+     * @param maxSegments the number of most recent segments kept per
+     *        recording; 0 keeps all of them
+     */
+    public static void setDefaults(File directory, long segmentSize, int maxSegments) {
+        defaultDirectory = directory;
+        defaultSegmentSize = segmentSize;
+        defaultMaxSegments = maxSegments;
+    }
+
+    /**
+     * Creates a recording with the default directory and segment size.
+     *
+     * @param name the name of the recording, used in the segment file names
+     * @throws IOException if the first segment can not be created
+     */
+    public Recording(String name) throws IOException {
+        this(defaultDirectory, name, defaultSegmentSize, defaultMaxSegments);
+    }
+
+    /**
+     * Creates a recording and opens its first segment.
+     *
+     * @param directory the directory of the segment files
+     * @param name the name of the recording, used in the segment file names
+     * @param segmentSize the size of a segment file in bytes
+     * @param maxSegments the number of most recent segments kept;
+     *        0 keeps all of them
+     * @throws IOException if the first segment can not be created
+     */
+    public Recording(File directory, String name, long segmentSize, int maxSegments) throws IOException {
+        this.directory = directory;
+        this.startNanos = System.nanoTime();
+        this.startMillis = System.currentTimeMillis();
+        this.prefix = fileName(name) + "-" + startMillis;
+        long size = Math.min(segmentSize, MAX_SEGMENT_SIZE);
+        this.capacity = (int) Math.max((size - HEADER_SIZE) / RECORD_SIZE, MIN_CAPACITY);
+        this.maxSegments = maxSegments;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("can not create recording directory " + directory);
+        }
+        current = openSegment(0);
+        exitHook = new Thread(new Runnable() {
+            public void run() {
+                close();
+            }
+        }, "BTrace Recording Closer");
+        Runtime.getRuntime().addShutdownHook(exitHook);
+    }
+
+    /**
+     * Returns the segment file prefix of this recording; the segments are
+     * the files <code>&lt;prefix&gt;.&lt;index&gt;.btrec</code> in the
+     * recording directory.
+     */
+    public String getPrefix() {
+        return prefix;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public long getDroppedStrings() {
+        return droppedStrings.get();
+    }
+
+    public long getDroppedRecords() {
+        return droppedRecords.get();
+    }
+
+    public void record(String probe) {
+        append(probe, KIND_NONE, 0L, 0L, 0L, 0L);
+    }
+
+    public void record(String probe, long a0) {
+        append(probe, KIND_LONG, a0, 0L, 0L, 0L);
+    }
+
+    public void record(String probe, double a0) {
+        append(probe, KIND_DOUBLE, Double.doubleToRawLongBits(a0), 0L, 0L, 0L);
+    }
+
+    public void record(String probe, String a0) {
+        append(probe, KIND_STRING, intern(a0), 0L, 0L, 0L);
+    }
+
+    public void record(String probe, long a0, long a1) {
+        append(probe, KIND_LONG | KIND_LONG << 2, a0, a1, 0L, 0L);
+    }
+
+    public void record(String probe, String a0, long a1) {
+        append(probe, KIND_STRING | KIND_LONG << 2, intern(a0), a1, 0L, 0L);
+    }
+
+    public void record(String probe, String a0, double a1) {
+        append(probe, KIND_STRING | KIND_DOUBLE << 2, intern(a0),
+               Double.doubleToRawLongBits(a1), 0L, 0L);
+    }
+
+    public void record(String probe, String a0, String a1) {
+        append(probe, KIND_STRING | KIND_STRING << 2, intern(a0), intern(a1), 0L, 0L);
+    }
+
+    public void record(String probe, String a0, long a1, long a2) {
+        append(probe, KIND_STRING | KIND_LONG << 2 | KIND_LONG << 4,
+               intern(a0), a1, a2, 0L);
+    }
+
+    public void record(String probe, String a0, String a1, long a2) {
+        append(probe, KIND_STRING | KIND_STRING << 2 | KIND_LONG << 4,
+               intern(a0), intern(a1), a2, 0L);
+    }
+
+    public void record(String probe, String a0, long a1, long a2, long a3) {
+        append(probe, KIND_STRING | KIND_LONG << 2 | KIND_LONG << 4 | KIND_LONG << 6,
+               intern(a0), a1, a2, a3);
+    }
+
+    /**
+     * Seals the current segment and stops the recording; the events
+     * recorded afterwards are ignored.
+     */
+    public void close() {
+        Segment seg;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            seg = current;
+            current = null;
+        }
+        if (seg != null) {
+            seal(seg);
+        }
+        if (Thread.currentThread() != exitHook) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(exitHook);
+            } catch (IllegalStateException e) {
+                // already shutting down
+            }
+        }
+    }
+
+    private void append(String probe, int kinds, long a0, long a1, long a2, long a3) {
+        long nanos = System.nanoTime();
+        Segment seg = current;
+        if (seg == null) {
+            return;
+        }
+        int probeId = intern(probe != null ? probe : "null");
+        if (probeId < 0) {
+            droppedRecords.incrementAndGet();
+            return;
+        }
+        while (true) {
+            int slot = seg.reserved.getAndIncrement();
+            if (slot < seg.capacity) {
+                try {
+                    int pos = HEADER_SIZE + slot * RECORD_SIZE;
+                    MappedByteBuffer b = seg.buffer;
+                    b.putLong(pos + RECORD_NANOS, nanos);
+                    b.putLong(pos + RECORD_THREAD, Thread.currentThread().getId());
+                    b.putInt(pos + RECORD_KINDS, kinds);
+                    b.putLong(pos + RECORD_ARGS, a0);
+                    b.putLong(pos + RECORD_ARGS + 8, a1);
+                    b.putLong(pos + RECORD_ARGS + 16, a2);
+                    b.putLong(pos + RECORD_ARGS + 24, a3);
+                    // written last; a slot with the probe id set is complete
+                    b.putInt(pos + RECORD_PROBE, probeId + 1);
+                } finally {
+                    seg.committed.incrementAndGet();
+                }
+                return;
+            }
+            seg = rollover(seg);
+            if (seg == null) {
+                droppedRecords.incrementAndGet();
+                return;
+            }
+        }
+    }
+
+    private int intern(String str) {
+        if (str == null) {
+            return NULL_STRING;
+        }
+        Integer id = stringIds.get(str);
+        if (id != null) {
+            return id.intValue();
+        }
+        synchronized (stringLock) {
+            id = stringIds.get(str);
+            if (id != null) {
+                return id.intValue();
+            }
+            if (stringCount >= MAX_STRINGS) {
+                droppedStrings.incrementAndGet();
+                return DROPPED_STRING;
+            }
+            String[] table = strings;
+            if (stringCount == table.length) {
+                String[] grown = new String[table.length * 2];
+                System.arraycopy(table, 0, grown, 0, table.length);
+                table = grown;
+            }
+            String value = str.length() > MAX_STRING_LENGTH ?
+                str.substring(0, MAX_STRING_LENGTH) : str;
+            table[stringCount] = value;
+            strings = table;
+            int newId = stringCount++;
+            // written before the id is published; no record refers to it yet
+            writeEntry(newId, value);
+            // keyed by the original string so that long strings are found again
+            stringIds.put(str, Integer.valueOf(newId));
+            return newId;
+        }
+    }
+
+    /**
+     * Writes a dictionary entry to consecutive slots of the current segment.
+     * An entry which does not fit is only found in the sealed dictionaries.
+     */
+    private void writeEntry(int id, String str) {
+        byte[] utf = utf(str);
+        int n = Math.max((utf.length + ENTRY_DATA_SIZE - 1) / ENTRY_DATA_SIZE, 1);
+        Segment seg = current;
+        while (seg != null && n <= seg.capacity) {
+            int slot = seg.reserved.getAndAdd(n);
+            if (slot + n <= seg.capacity) {
+                try {
+                    MappedByteBuffer b = seg.buffer;
+                    for (int i = 0; i < n; i++) {
+                        int pos = HEADER_SIZE + (slot + i) * RECORD_SIZE;
+                        int offset = i * ENTRY_DATA_SIZE;
+                        int chunk = Math.min(utf.length - offset, ENTRY_DATA_SIZE);
+                        b.putInt(pos + ENTRY_ID, id);
+                        b.putInt(pos + ENTRY_OFFSET, offset);
+                        b.putInt(pos + ENTRY_LENGTH, utf.length);
+                        b.putInt(pos + ENTRY_CHUNK, chunk);
+                        for (int j = 0; j < chunk; j++) {
+                            b.put(pos + ENTRY_DATA + j, utf[offset + j]);
+                        }
+                        // written last, as the probe id of an event
+                        b.putInt(pos + RECORD_PROBE, DICTIONARY_ENTRY);
+                    }
+                } finally {
+                    seg.committed.addAndGet(n);
+                }
+                return;
+            }
+            if (slot < seg.capacity) {
+                // the slots left at the end of the segment stay empty
+                seg.committed.addAndGet(seg.capacity - slot);
+            }
+            seg = rollover(seg);
+        }
+    }
+
+    // the modified UTF-8 bytes of the string, without the length
+    private static byte[] utf(String str) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(str.length() + 2);
+        try {
+            new DataOutputStream(bytes).writeUTF(str);
+        } catch (IOException e) {
+            throw new InternalError(e.toString());
+        }
+        byte[] utf = bytes.toByteArray();
+        byte[] data = new byte[utf.length - 2];
+        System.arraycopy(utf, 2, data, 0, data.length);
+        return data;
+    }
+
+    /**
+     * Replaces the full segment by the next one and seals it. Returns the
+     * segment to retry the append with or null if the recording is closed.
+     */
+    private Segment rollover(Segment full) {
+        Segment next;
+        synchronized (this) {
+            if (current != full) {
+                return current;
+            }
+            try {
+                next = openSegment(full.index + 1);
+            } catch (IOException e) {
+                // nothing more can be recorded; keep what we have
+                closed = true;
+                next = null;
+            }
+            current = next;
+        }
+        seal(full);
+        if (next != null && maxSegments > 0 && next.index >= maxSegments) {
+            segmentFile(next.index - maxSegments).delete();
+        }
+        return next;
+    }
+
+    private Segment openSegment(int index) throws IOException {
+        File file = segmentFile(index);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                HEADER_SIZE + (long) capacity * RECORD_SIZE);
+            buffer.putInt(0, MAGIC);
+            buffer.putShort(HEADER_VERSION, VERSION);
+            buffer.putShort(HEADER_RECORD_SIZE, (short) RECORD_SIZE);
+            buffer.putInt(HEADER_CAPACITY, capacity);
+            buffer.putInt(HEADER_INDEX, index);
+            buffer.putLong(HEADER_START_NANOS, startNanos);
+            buffer.putLong(HEADER_START_MILLIS, startMillis);
+            return new Segment(index, raf, buffer, capacity);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Blocks further appends to the segment, waits for the records being
+     * written and writes the record count and the dictionary.
+     */
+    private void seal(Segment seg) {
+        int count = Math.min(seg.reserved.getAndSet(seg.capacity), seg.capacity);
+        long deadline = System.nanoTime() + SEAL_WAIT_NANOS;
+        while (seg.committed.get() < count && System.nanoTime() < deadline) {
+            Thread.yield();
+        }
+        String[] table;
+        int size;
+        synchronized (stringLock) {
+            table = strings;
+            size = stringCount;
+        }
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            for (int i = 0; i < size; i++) {
+                out.writeUTF(table[i]);
+            }
+            out.flush();
+            int offset = HEADER_SIZE + seg.capacity * RECORD_SIZE;
+            FileChannel channel = seg.raf.getChannel();
+            ByteBuffer dict = ByteBuffer.wrap(bytes.toByteArray());
+            long pos = offset;
+            while (dict.hasRemaining()) {
+                pos += channel.write(dict, pos);
+            }
+            MappedByteBuffer b = seg.buffer;
+            b.putInt(HEADER_COUNT, count);
+            b.putInt(HEADER_DICT_SIZE, size);
+            b.putInt(HEADER_DICT_LENGTH, bytes.size());
+            b.putLong(HEADER_DROPPED_STRINGS, droppedStrings.get());
+            b.putLong(HEADER_DROPPED_RECORDS, droppedRecords.get());
+            // the offset marks the segment as sealed
+            b.putInt(HEADER_DICT_OFFSET, offset);
+            b.force();
+        } catch (IOException e) {
+            // the records stay readable with the dictionary of another segment
+        } finally {
+            try {
+                seg.raf.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private File segmentFile(int index) {
+        String idx = Integer.toString(index);
+        StringBuilder name = new StringBuilder(prefix).append('.');
+        for (int i = idx.length(); i < 6; i++) {
+            name.append('0');
+        }
+        return new File(directory, name.append(idx).append(SUFFIX).toString());
+    }
+
+    private static String fileName(String name) {
+        StringBuilder buf = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            char ch = name.charAt(i);
+            if (Character.isLetterOrDigit(ch) || ch == '_' || ch == '-') {
+                buf.append(ch);
+            } else {
+                buf.append('_');
+            }
+        }
+        return buf.length() > 0 ? buf.toString() : "recording";
+    }
+}
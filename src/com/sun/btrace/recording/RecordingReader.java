@@ -0,0 +1,568 @@
+/*
+ * Copyright 2008-2010 Sun Microsystems, Inc.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Sun designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Sun in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Sun Microsystems, Inc., 4150 Network Circle, Santa Clara,
+ * CA 95054 USA or visit www.sun.com if you need additional information or
+ * have any questions.
+ */
+package com.sun.btrace.recording;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Reads the segment files written by a {@linkplain Recording}. The events
+ * of the segments are passed to a {@linkplain Handler} in segment order;
+ * the segments without a dictionary (the one still being written or the
+ * last one of a recording that was not closed properly) are decoded with
+ * the dictionary of the most recently sealed segment and the dictionary
+ * entries found in their records, and their slots are scanned up to the
+ * segment capacity.
+ * <p>
+ * Run as a program it converts recordings to text or CSV, or prints an
+ * aggregated report:
+ * <code>RecordingReader [-text | -csv | -report] &lt;segment file or directory&gt;...</code>.
+ * The report groups the events by probe and first string argument (the
+ * query of a JDBC probe, for example) and shows the count of each group
+ * and the minimum, maximum, average and sum of its first numeric argument.
+ */
+public final class RecordingReader {
+    /**
+     * An event read from a recording. The reader reuses the same instance
+     * for all the events it passes to a handler.
+     */
+    public static final class Event {
+        private long timeMillis;
+        private long nanos;
+        private long threadId;
+        private String probe;
+        private int argCount;
+        private final Object[] args = new Object[Recording.MAX_ARGS];
+
+        /**
+         * The wall clock time of the event in milliseconds, derived from
+         * the start of the recording.
+         */
+        public long getTimeMillis() {
+            return timeMillis;
+        }
+
+        /**
+         * The <code>System.nanoTime()</code> value of the event.
+         */
+        public long getNanos() {
+            return nanos;
+        }
+
+        public long getThreadId() {
+            return threadId;
+        }
+
+        public String getProbe() {
+            return probe;
+        }
+
+        public int getArgCount() {
+            return argCount;
+        }
+
+        /**
+         * Returns the argument as a <code>Long</code>, a <code>Double</code>
+         * or a <code>String</code>; a string that did not fit in the
+         * dictionary is returned as "?".
+         */
+        public Object getArg(int index) {
+            return args[index];
+        }
+    }
+
+    /**
+     * Receives the events of a recording.
+     */
+    public interface Handler {
+        void event(Event event);
+    }
+
+    private final String name;
+    private final List<File> segments;
+    private long droppedStrings;
+    private long droppedRecords;
+
+    /**
+     * Creates a reader of the given segments of one recording.
+     *
+     * @param name the name shown for the recording
+     * @param segments the segment files, in any order
+     */
+    public RecordingReader(String name, List<File> segments) {
+        this.name = name;
+        this.segments = new ArrayList<File>(segments);
+        Collections.sort(this.segments, new Comparator<File>() {
+            public int compare(File f1, File f2) {
+                return f1.getName().compareTo(f2.getName());
+            }
+        });
+    }
+
+    /**
+     * Groups the segment files found in the given files and directories
+     * by recording.
+     *
+     * @return the segment files keyed by the recording prefix
+     */
+    public static Map<String, List<File>> findRecordings(List<File> paths) {
+        Map<String, List<File>> recordings = new TreeMap<String, List<File>>();
+        for (File path : paths) {
+            File[] files = path.isDirectory() ? path.listFiles() : new File[] { path };
+            if (files == null) {
+                continue;
+            }
+            for (File file : files) {
+                String fileName = file.getName();
+                if (!fileName.endsWith(Recording.SUFFIX)) {
+                    continue;
+                }
+                String base = fileName.substring(0, fileName.length() - Recording.SUFFIX.length());
+                int dot = base.lastIndexOf('.');
+                String prefix = dot > 0 ? base.substring(0, dot) : base;
+                List<File> list = recordings.get(prefix);
+                if (list == null) {
+                    list = new ArrayList<File>();
+                    recordings.put(prefix, list);
+                }
+                list.add(file);
+            }
+        }
+        return recordings;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * The number of strings that did not fit in the dictionary, as of the
+     * last sealed segment read.
+     */
+    public long getDroppedStrings() {
+        return droppedStrings;
+    }
+
+    /**
+     * The number of events that could not be recorded, as of the last
+     * sealed segment read.
+     */
+    public long getDroppedRecords() {
+        return droppedRecords;
+    }
+
+    /**
+     * Reads all the events of the recording.
+     *
+     * @param handler the handler receiving the events
+     * @throws IOException if a segment can not be read or is not a
+     *         recording segment
+     */
+    public void read(Handler handler) throws IOException {
+        List<MappedByteBuffer> buffers = new ArrayList<MappedByteBuffer>(segments.size());
+        String[] dictionary = new String[0];
+        Map<Integer, Entry> entries = new HashMap<Integer, Entry>();
+        for (File file : segments) {
+            MappedByteBuffer buffer = map(file);
+            buffers.add(buffer);
+            if (buffer.getInt(Recording.HEADER_DICT_OFFSET) == 0) {
+                readEntries(buffer, entries);
+            } else if (buffer.getInt(Recording.HEADER_DICT_SIZE) >= dictionary.length) {
+                // string ids are stable, the latest dictionary covers the earlier ones
+                dictionary = readDictionary(buffer);
+                droppedStrings = buffer.getLong(Recording.HEADER_DROPPED_STRINGS);
+                droppedRecords = buffer.getLong(Recording.HEADER_DROPPED_RECORDS);
+            }
+        }
+        dictionary = addEntries(dictionary, entries);
+        Event event = new Event();
+        for (MappedByteBuffer buffer : buffers) {
+            long startNanos = buffer.getLong(Recording.HEADER_START_NANOS);
+            long startMillis = buffer.getLong(Recording.HEADER_START_MILLIS);
+            int count = buffer.getInt(Recording.HEADER_DICT_OFFSET) != 0 ?
+                buffer.getInt(Recording.HEADER_COUNT) : buffer.getInt(Recording.HEADER_CAPACITY);
+            for (int i = 0; i < count; i++) {
+                int pos = Recording.HEADER_SIZE + i * Recording.RECORD_SIZE;
+                int probe = buffer.getInt(pos + Recording.RECORD_PROBE);
+                if (probe == 0 || probe == Recording.DICTIONARY_ENTRY) {
+                    // reserved but never written, or not an event
+                    continue;
+                }
+                event.nanos = buffer.getLong(pos + Recording.RECORD_NANOS);
+                event.timeMillis = startMillis + (event.nanos - startNanos) / 1000000L;
+                event.threadId = buffer.getLong(pos + Recording.RECORD_THREAD);
+                event.probe = string(dictionary, probe - 1);
+                int kinds = buffer.getInt(pos + Recording.RECORD_KINDS);
+                int argCount = 0;
+                for (int j = 0; j < Recording.MAX_ARGS; j++) {
+                    int kind = (kinds >>> (j * 2)) & 3;
+                    if (kind == Recording.KIND_NONE) {
+                        break;
+                    }
+                    long value = buffer.getLong(pos + Recording.RECORD_ARGS + j * 8);
+                    switch (kind) {
+                        case Recording.KIND_LONG:
+                            event.args[j] = Long.valueOf(value);
+                            break;
+                        case Recording.KIND_DOUBLE:
+                            event.args[j] = Double.valueOf(Double.longBitsToDouble(value));
+                            break;
+                        default:
+                            event.args[j] = string(dictionary, (int) value);
+                    }
+                    argCount++;
+                }
+                event.argCount = argCount;
+                handler.event(event);
+            }
+        }
+    }
+
+    private static MappedByteBuffer map(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            if (buffer.capacity() < Recording.HEADER_SIZE || buffer.getInt(0) != Recording.MAGIC) {
+                throw new IOException(file + " is not a recording segment");
+            }
+            // version 1 segments have no dictionary entry records
+            short version = buffer.getShort(Recording.HEADER_VERSION);
+            if (version < 1 || version > Recording.VERSION ||
+                buffer.getShort(Recording.HEADER_RECORD_SIZE) != Recording.RECORD_SIZE) {
+                throw new IOException(file + " has an unsupported segment version");
+            }
+            return buffer;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static String[] readDictionary(MappedByteBuffer buffer) throws IOException {
+        int size = buffer.getInt(Recording.HEADER_DICT_SIZE);
+        byte[] bytes = new byte[buffer.getInt(Recording.HEADER_DICT_LENGTH)];
+        ByteBuffer dict = buffer.duplicate();
+        dict.position(buffer.getInt(Recording.HEADER_DICT_OFFSET));
+        dict.get(bytes);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        String[] strings = new String[size];
+        for (int i = 0; i < size; i++) {
+            strings[i] = in.readUTF();
+        }
+        return strings;
+    }
+
+    /**
+     * A dictionary entry being assembled from its records
+     */
+    private static final class Entry {
+        final byte[] bytes;
+        int read;
+
+        Entry(int length) {
+            this.bytes = new byte[length];
+        }
+    }
+
+    // collects the dictionary entry records of a segment that was not sealed
+    private static void readEntries(MappedByteBuffer buffer, Map<Integer, Entry> entries) {
+        int capacity = buffer.getInt(Recording.HEADER_CAPACITY);
+        for (int i = 0; i < capacity; i++) {
+            int pos = Recording.HEADER_SIZE + i * Recording.RECORD_SIZE;
+            if (buffer.getInt(pos + Recording.RECORD_PROBE) != Recording.DICTIONARY_ENTRY) {
+                continue;
+            }
+            Integer id = Integer.valueOf(buffer.getInt(pos + Recording.ENTRY_ID));
+            int offset = buffer.getInt(pos + Recording.ENTRY_OFFSET);
+            int length = buffer.getInt(pos + Recording.ENTRY_LENGTH);
+            int chunk = buffer.getInt(pos + Recording.ENTRY_CHUNK);
+            if (length < 0 || length > 0xFFFF || offset < 0 || chunk < 0 ||
+                chunk > Recording.ENTRY_DATA_SIZE || offset + chunk > length) {
+                continue;
+            }
+            Entry entry = entries.get(id);
+            if (entry == null) {
+                entry = new Entry(length);
+                entries.put(id, entry);
+            } else if (entry.bytes.length != length) {
+                continue;
+            }
+            for (int j = 0; j < chunk; j++) {
+                entry.bytes[offset + j] = buffer.get(pos + Recording.ENTRY_DATA + j);
+            }
+            entry.read += chunk;
+        }
+    }
+
+    // adds the complete entries not known to the dictionary
+    private static String[] addEntries(String[] dictionary, Map<Integer, Entry> entries) throws IOException {
+        int size = dictionary.length;
+        for (Map.Entry<Integer, Entry> e : entries.entrySet()) {
+            int id = e.getKey().intValue();
+            if (id >= size && e.getValue().read >= e.getValue().bytes.length) {
+                size = id + 1;
+            }
+        }
+        if (size == dictionary.length) {
+            return dictionary;
+        }
+        String[] strings = new String[size];
+        System.arraycopy(dictionary, 0, strings, 0, dictionary.length);
+        for (Map.Entry<Integer, Entry> e : entries.entrySet()) {
+            int id = e.getKey().intValue();
+            Entry entry = e.getValue();
+            if (id >= dictionary.length && id < size && entry.read >= entry.bytes.length) {
+                byte[] utf = new byte[entry.bytes.length + 2];
+                utf[0] = (byte) (entry.bytes.length >>> 8);
+                utf[1] = (byte) entry.bytes.length;
+                System.arraycopy(entry.bytes, 0, utf, 2, entry.bytes.length);
+                strings[id] = new DataInputStream(new ByteArrayInputStream(utf)).readUTF();
+            }
+        }
+        return strings;
+    }
+
+    private static String string(String[] dictionary, int id) {
+        if (id == Recording.NULL_STRING) {
+            return null;
+        }
+        if (id >= 0 && id < dictionary.length && dictionary[id] != null) {
+            return dictionary[id];
+        }
+        // dropped or only known to a dictionary that was never written
+        return id == Recording.DROPPED_STRING ? "?" : "#" + id;
+    }
+
+    private static final class Stats {
+        final String probe;
+        final String key;
+        long count;
+        long values;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        double sum;
+
+        Stats(String probe, String key) {
+            this.probe = probe;
+            this.key = key;
+        }
+    }
+
+    private static void printText(RecordingReader reader, final PrintStream out) throws IOException {
+        final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        final Date date = new Date();
+        final StringBuilder line = new StringBuilder();
+        reader.read(new Handler() {
+            public void event(Event event) {
+                date.setTime(event.getTimeMillis());
+                line.setLength(0);
+                line.append(format.format(date)).append(" [").append(event.getThreadId())
+                    .append("] ").append(event.getProbe());
+                for (int i = 0; i < event.getArgCount(); i++) {
+                    line.append(' ').append(event.getArg(i));
+                }
+                out.println(line);
+            }
+        });
+    }
+
+    private static void printCsv(RecordingReader reader, final PrintStream out) throws IOException {
+        final StringBuilder line = new StringBuilder();
+        reader.read(new Handler() {
+            public void event(Event event) {
+                line.setLength(0);
+                line.append(event.getTimeMillis()).append(',').append(event.getNanos())
+                    .append(',').append(event.getThreadId()).append(',');
+                csv(line, event.getProbe());
+                for (int i = 0; i < Recording.MAX_ARGS; i++) {
+                    line.append(',');
+                    if (i < event.getArgCount()) {
+                        Object arg = event.getArg(i);
+                        if (arg instanceof String) {
+                            csv(line, (String) arg);
+                        } else {
+                            line.append(arg);
+                        }
+                    }
+                }
+                out.println(line);
+            }
+        });
+    }
+
+    private static void csv(StringBuilder line, String value) {
+        if (value == null) {
+            return;
+        }
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char ch = value.charAt(i);
+            quote = ch == ',' || ch == '"' || ch == '\n' || ch == '\r';
+        }
+        if (!quote) {
+            line.append(value);
+            return;
+        }
+        line.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char ch = value.charAt(i);
+            if (ch == '"') {
+                line.append('"');
+            }
+            line.append(ch);
+        }
+        line.append('"');
+    }
+
+    private static void printReport(RecordingReader reader, PrintStream out) throws IOException {
+        final Map<String, Map<String, Stats>> probes = new TreeMap<String, Map<String, Stats>>();
+        reader.read(new Handler() {
+            public void event(Event event) {
+                String key = null;
+                Object value = null;
+                for (int i = 0; i < event.getArgCount(); i++) {
+                    Object arg = event.getArg(i);
+                    if (arg instanceof String) {
+                        if (key == null) {
+                            key = (String) arg;
+                        }
+                    } else if (value == null) {
+                        value = arg;
+                    }
+                }
+                Map<String, Stats> groups = probes.get(event.getProbe());
+                if (groups == null) {
+                    groups = new HashMap<String, Stats>();
+                    probes.put(event.getProbe(), groups);
+                }
+                Stats stats = groups.get(key);
+                if (stats == null) {
+                    stats = new Stats(event.getProbe(), key);
+                    groups.put(key, stats);
+                }
+                stats.count++;
+                if (value != null) {
+                    double v = ((Number) value).doubleValue();
+                    stats.values++;
+                    stats.min = Math.min(stats.min, v);
+                    stats.max = Math.max(stats.max, v);
+                    stats.sum += v;
+                }
+            }
+        });
+        out.println("probe\tcount\tmin\tmax\tavg\tsum\tkey");
+        for (Map<String, Stats> groups : probes.values()) {
+            List<Stats> sorted = new ArrayList<Stats>(groups.values());
+            Collections.sort(sorted, new Comparator<Stats>() {
+                public int compare(Stats s1, Stats s2) {
+                    return s1.count < s2.count ? 1 : (s1.count == s2.count ? 0 : -1);
+                }
+            });
+            for (Stats s : sorted) {
+                StringBuilder line = new StringBuilder();
+                line.append(s.probe).append('\t').append(s.count);
+                if (s.values > 0) {
+                    line.append('\t').append(number(s.min)).append('\t').append(number(s.max))
+                        .append('\t').append(number(s.sum / s.values)).append('\t').append(number(s.sum));
+                } else {
+                    line.append("\t\t\t\t");
+                }
+                line.append('\t').append(s.key != null ? s.key : "");
+                out.println(line);
+            }
+        }
+    }
+
+    private static String number(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return String.format("%.3f", value);
+    }
+
+    private static void usage() {
+        System.err.println("Usage: RecordingReader [-text | -csv | -report] <segment file or directory>...");
+        System.exit(1);
+    }
+
+    public static void main(String[] args) throws IOException {
+        String mode = "-text";
+        List<File> paths = new ArrayList<File>();
+        for (String arg : args) {
+            if (arg.equals("-text") || arg.equals("-csv") || arg.equals("-report")) {
+                mode = arg;
+            } else if (arg.startsWith("-")) {
+                usage();
+            } else {
+                paths.add(new File(arg));
+            }
+        }
+        if (paths.isEmpty()) {
+            usage();
+        }
+        Map<String, List<File>> recordings = findRecordings(paths);
+        if (recordings.isEmpty()) {
+            System.err.println("no recording segments found");
+            System.exit(1);
+        }
+        PrintStream out = System.out;
+        if (mode.equals("-csv")) {
+            out.println("time,nanos,thread,probe,arg0,arg1,arg2,arg3");
+        }
+        for (Map.Entry<String, List<File>> e : recordings.entrySet()) {
+            RecordingReader reader = new RecordingReader(e.getKey(), e.getValue());
+            if (recordings.size() > 1 && !mode.equals("-csv")) {
+                out.println("# " + reader.getName());
+            }
+            if (mode.equals("-csv")) {
+                printCsv(reader, out);
+            } else if (mode.equals("-report")) {
+                printReport(reader, out);
+            } else {
+                printText(reader, out);
+            }
+            if (reader.getDroppedStrings() > 0 || reader.getDroppedRecords() > 0) {
+                System.err.println(reader.getName() + ": " + reader.getDroppedRecords() +
+                                   " events and " + reader.getDroppedStrings() + " strings dropped");
+            }
+        }
+        out.flush();
+    }
+}
@@ -25,9 +25,9 @@
 package com.sun.btrace.runtime;
 
 import java.lang.annotation.Annotation;
-import java.util.ArrayList;
 import java.util.List;
-import java.util.regex.Pattern;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
 import static com.sun.btrace.org.objectweb.asm.Opcodes.ACC_INTERFACE;
 import static com.sun.btrace.runtime.Constants.*;
 import com.sun.btrace.org.objectweb.asm.AnnotationVisitor;
@@ -36,10 +36,8 @@ import com.sun.btrace.org.objectweb.asm.ClassReader;
 import com.sun.btrace.org.objectweb.asm.ClassVisitor;
 import com.sun.btrace.org.objectweb.asm.FieldVisitor;
 import com.sun.btrace.org.objectweb.asm.MethodVisitor;
-import com.sun.btrace.org.objectweb.asm.Type;
 import com.sun.btrace.annotations.BTrace;
 import com.sun.btrace.org.objectweb.asm.Opcodes;
-import java.util.regex.PatternSyntaxException;
 
 /**
  * This class checks whether a given target class
@@ -50,14 +48,12 @@ import java.util.regex.PatternSyntaxException;
  */
 public class ClassFilter {
 
-    private String[] sourceClasses;
-    private Pattern[] sourceClassPatterns;
-    private String[] annotationClasses;
-    private Pattern[] annotationClassPatterns;
+    private final ClassNameMatcher sourceMatcher;
+    private final ClassNameMatcher annotationMatcher;
     // +foo type class pattern in any @OnMethod.
-    private String[] superTypes;
+    private final Set<String> superTypes;
     // same as above but stored in internal name form ('/' instead of '.')
-    private String[] superTypesInternal;
+    private final Set<String> superTypesInternal;
 
     static {
         CheckingVisitor.class.getClass();
@@ -69,10 +65,31 @@ public class ClassFilter {
     }
 
     public ClassFilter(List<OnMethod> onMethods) {
-        init(onMethods);
+        this(new OnMethodMatchers(onMethods));
+    }
+
+    /**
+     * Creates a filter using the class name matchers compiled
+     * for the given probes.
+     */
+    public ClassFilter(OnMethodMatchers matchers) {
+        sourceMatcher = matchers.getSourceMatcher();
+        annotationMatcher = matchers.getAnnotationMatcher();
+        superTypes = matchers.getSuperTypes();
+        superTypesInternal = matchers.getSuperTypesInternal();
     }
 
     public boolean isCandidate(Class target) {
+        return isCandidate(target, null);
+    }
+
+    /**
+     * Same as {@link #isCandidate(Class)}, but the results of the
+     * super type checks are remembered in the given cache (if not
+     * null). Scanning many classes that share super types then
+     * walks each type of the hierarchy only once.
+     */
+    public boolean isCandidate(Class target, ConcurrentMap<Class, Boolean> superTypeCache) {
         if (target.isInterface() || target.isPrimitive() || target.isArray()) {
             return false;
         }
@@ -84,43 +101,20 @@ public class ClassFilter {
         }
 
         String className = target.getName();
-        for (String name : sourceClasses) {
-            if (name.equals(className)) {
-                return true;
-            }
-        }
-        //ƥ
-        for (Pattern pat : sourceClassPatterns) {
-            if (pat.matcher(className).matches()) {
-                return true;
-            }
-        }
-
-        for (String st : superTypes) {
-            if (isSubTypeOf(target, st)) {
-                return true;
-            }
+        if (sourceMatcher.matches(className)) {
+            return true;
         }
 
-        Annotation[] annotations = target.getAnnotations();
-        String[] annoTypes = new String[annotations.length];
-        for (int i = 0; i < annotations.length; i++) {
-            annoTypes[i] = annotations[i].annotationType().getName();
+        if (!superTypes.isEmpty() && isSubTypeOfAny(target, superTypeCache)) {
+            return true;
         }
 
-        for (String name : annotationClasses) {
-            for (int i = 0; i < annoTypes.length; i++) {
-                if (name.equals(annoTypes[i])) {
-                    return true;
-                }
-            }
+        if (annotationMatcher.isEmpty()) {
+            return false;
         }
-
-        for (Pattern pat : annotationClassPatterns) {
-            for (int i = 0; i < annoTypes.length; i++) {
-                if (pat.matcher(annoTypes[i]).matches()) {
-                    return true;
-                }
+        for (Annotation annotation : target.getAnnotations()) {
+            if (annotationMatcher.matches(annotation.annotationType().getName())) {
+                return true;
             }
         }
 
@@ -157,6 +151,35 @@ public class ClassFilter {
         }
     }
 
+    // whether the given Class is subtype of any of the +foo types
+    private boolean isSubTypeOfAny(Class clazz, ConcurrentMap<Class, Boolean> cache) {
+        if (clazz == null) {
+            return false;
+        }
+        if (cache != null) {
+            Boolean known = cache.get(clazz);
+            if (known != null) {
+                return known.booleanValue();
+            }
+        }
+        boolean result = superTypes.contains(clazz.getName());
+        if (!result) {
+            for (Class iface : clazz.getInterfaces()) {
+                if (isSubTypeOfAny(iface, cache)) {
+                    result = true;
+                    break;
+                }
+            }
+        }
+        if (!result) {
+            result = isSubTypeOfAny(clazz.getSuperclass(), cache);
+        }
+        if (cache != null) {
+            cache.put(clazz, Boolean.valueOf(result));
+        }
+        return result;
+    }
+
     private class CheckingVisitor extends ClassVisitor {
 
         private boolean isInterface;
@@ -178,28 +201,18 @@ public class ClassFilter {
                 isCandidate = false;
                 return;
             }
-            name = name.replace('/', '.');
-            for (String className : sourceClasses) {
-                if (className.equals(name)) {
-                    isCandidate = true;
-                    return;
-                }
-            }
-
-            for (Pattern pat : sourceClassPatterns) {
-                if (pat.matcher(name).matches()) {
-                    isCandidate = true;
-                    return;
-                }
+            if (sourceMatcher.matchesInternal(name)) {
+                isCandidate = true;
+                return;
             }
 
-            for (String st : superTypesInternal) {
-                if (superName.equals(st)) {
+            if (!superTypesInternal.isEmpty()) {
+                if (superName != null && superTypesInternal.contains(superName)) {
                     isCandidate = true;
                     return;
                 }
                 for (String iface : interfaces) {
-                    if (iface.equals(st)) {
+                    if (superTypesInternal.contains(iface)) {
                         isCandidate = true;
                         return;
                     }
@@ -219,19 +232,10 @@ public class ClassFilter {
                 return nullAnnotationVisitor;
             }
 
-            if (!isCandidate) {
-                String annoName = Type.getType(desc).getClassName();
-                for (String name : annotationClasses) {
-                    if (annoName.equals(name)) {
-                        isCandidate = true;
-                        return nullAnnotationVisitor;
-                    }
-                }
-                for (Pattern pat : annotationClassPatterns) {
-                    if (pat.matcher(annoName).matches()) {
-                        isCandidate = true;
-                        return nullAnnotationVisitor;
-                    }
+            if (!isCandidate && !annotationMatcher.isEmpty()) {
+                // desc is of the form Lname;
+                if (annotationMatcher.matchesInternal(desc.substring(1, desc.length() - 1))) {
+                    isCandidate = true;
                 }
             }
 
@@ -264,63 +268,4 @@ public class ClassFilter {
         public void visitSource(String source, String debug) {
         }
     }
-
-    private void init(List<OnMethod> onMethods) {
-        List<String> strSrcList = new ArrayList<String>();
-        List<Pattern> patSrcList = new ArrayList<Pattern>();
-        List<String> superTypesList = new ArrayList<String>();
-        List<String> superTypesInternalList = new ArrayList<String>();
-        List<String> strAnoList = new ArrayList<String>();
-        List<Pattern> patAnoList = new ArrayList<Pattern>();
-
-        for (OnMethod om : onMethods) {
-            String className = om.getClazz();
-            if (className.length() == 0) {
-                continue;
-            }
-            char firstCh = className.charAt(0);
-            if (firstCh == '/' &&
-                    REGEX_SPECIFIER.matcher(className).matches()) {
-                try {
-                    Pattern p = Pattern.compile(className.substring(1,
-                            className.length() - 1));
-                    patSrcList.add(p);
-                } catch (PatternSyntaxException pse) {
-                    System.err.println("btrace ERROR: invalid regex pattern - " + className.substring(1, className.length() - 1));
-                }
-            } else if (firstCh == '@') {
-                className = className.substring(1);
-                if (REGEX_SPECIFIER.matcher(className).matches()) {
-                    try {
-                        Pattern p = Pattern.compile(
-                                className.substring(1, className.length() - 1));
-                        patAnoList.add(p);
-                    } catch (PatternSyntaxException pse) {
-                        System.err.println("btrace ERROR: invalid regex pattern - " + className.substring(1, className.length() - 1));
-                    }
-                } else {
-                    strAnoList.add(className);
-                }
-            } else if (firstCh == '+') {
-                String superType = className.substring(1);
-                superTypesList.add(superType);
-                superTypesInternalList.add(superType.replace('.', '/'));
-            } else {
-                strSrcList.add(className);
-            }
-        }
-
-        sourceClasses = new String[strSrcList.size()];
-        strSrcList.toArray(sourceClasses);
-        sourceClassPatterns = new Pattern[patSrcList.size()];
-        patSrcList.toArray(sourceClassPatterns);
-        superTypes = new String[superTypesList.size()];
-        superTypesList.toArray(superTypes);
-        superTypesInternal = new String[superTypesInternalList.size()];
-        superTypesInternalList.toArray(superTypesInternal);
-        annotationClasses = new String[strAnoList.size()];
-        strAnoList.toArray(annotationClasses);
-        annotationClassPatterns = new Pattern[patAnoList.size()];
-        patAnoList.toArray(annotationClassPatterns);
-    }
 }
@@ -0,0 +1,378 @@
+/*
+ * Copyright 2008-2010 Sun Microsystems, Inc.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Sun designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Sun in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Sun Microsystems, Inc., 4150 Network Circle, Santa Clara,
+ * CA 95054 USA or visit www.sun.com if you need additional information or
+ * have any questions.
+ */
+
+package com.sun.btrace.runtime;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.ref.WeakReference;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import static com.sun.btrace.org.objectweb.asm.Opcodes.ACC_INTERFACE;
+import static com.sun.btrace.runtime.Constants.JAVA_LANG_OBJECT;
+
+/**
+ * Resolves the super class and the interfaces of the classes visible to
+ * a class loader by reading the class file headers - either the bytes
+ * already seen by the instrumentation or the ".class" resources of the
+ * loader. Unlike {@link Class#forName(String, boolean, ClassLoader)} this
+ * does not load (nor link) any class, and so it is safe to use from a
+ * class file transformer.
+ * <p>
+ * The resolved headers are kept in a bounded LRU cache per class loader.
+ * The classes of the "java." packages can only be defined by the bootstrap
+ * loader and are shared by all the loaders.
+ */
+public final class ClassHierarchy {
+    /**
+     * Default number of class headers kept per class loader
+     */
+    public static final int DEFAULT_MAX_CLASSES = 4096;
+
+    private static final String CLASS_SUFFIX = ".class";
+    private static final String JAVA_PREFIX = "java/";
+
+    private static final ClassHierarchy bootstrap = new ClassHierarchy(null, DEFAULT_MAX_CLASSES);
+    // finds the resources of the bootstrap loader only, unlike the
+    // system class loader which also searches the application class path
+    private static final ClassLoader bootstrapResources = new ClassLoader(null) {};
+    private static final Map<ClassLoader, ClassHierarchy> hierarchies =
+        new WeakHashMap<ClassLoader, ClassHierarchy>();
+
+    // the hierarchy is the value of a weak map keyed by the loader
+    private final WeakReference<ClassLoader> loader;
+    private final boolean bootstrapLoader;
+    private final Map<String, ClassInfo> infos;
+
+    /**
+     * Creates a hierarchy which is not shared with the other users of
+     * the same class loader - eg. for classes which are about to be
+     * defined but must not be visible to the rest of the instrumentation.
+     */
+    public ClassHierarchy(ClassLoader loader, final int maxClasses) {
+        this.loader = new WeakReference<ClassLoader>(loader);
+        this.bootstrapLoader = loader == null;
+        this.infos = new LinkedHashMap<String, ClassInfo>(64, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<String, ClassInfo> eldest) {
+                return size() > maxClasses;
+            }
+        };
+    }
+
+    /**
+     * Returns the shared hierarchy of the given class loader.
+     * <code>null</code> stands for the bootstrap loader.
+     */
+    public static ClassHierarchy forLoader(ClassLoader loader) {
+        if (loader == null) {
+            return bootstrap;
+        }
+        synchronized (hierarchies) {
+            ClassHierarchy h = hierarchies.get(loader);
+            if (h == null) {
+                h = new ClassHierarchy(loader, DEFAULT_MAX_CLASSES);
+                hierarchies.put(loader, h);
+            }
+            return h;
+        }
+    }
+
+    /**
+     * Remembers the header of a class whose bytes are at hand - eg. the
+     * class being transformed, which may not be available as a resource.
+     */
+    public void register(byte[] code) {
+        ClassInfo info = parse(code);
+        if (info != null) {
+            put(info.name, info);
+        }
+    }
+
+    /**
+     * Returns the common super class of the given types the way
+     * {@link com.sun.btrace.org.objectweb.asm.ClassWriter#getCommonSuperClass(String, String)}
+     * does, or <code>null</code> if one of the hierarchies can not be resolved.
+     *
+     * @param type1 internal name of the first type
+     * @param type2 internal name of the second type
+     */
+    public String getCommonSuperClass(String type1, String type2) {
+        if (type1.equals(type2)) {
+            return type1;
+        }
+        ClassInfo info1 = getInfo(type1);
+        ClassInfo info2 = getInfo(type2);
+        if (info1 == null || info2 == null) {
+            return null;
+        }
+        Boolean assignable = isSubtype(info2, type1);
+        if (assignable == null) {
+            return null;
+        }
+        if (assignable.booleanValue()) {
+            return type1;
+        }
+        assignable = isSubtype(info1, type2);
+        if (assignable == null) {
+            return null;
+        }
+        if (assignable.booleanValue()) {
+            return type2;
+        }
+        if (info1.isInterface || info2.isInterface) {
+            return JAVA_LANG_OBJECT;
+        }
+        // both super class chains have been resolved by isSubtype
+        Set<String> supers2 = new HashSet<String>();
+        for (ClassInfo i = info2; i != null; i = getInfo(i.superName)) {
+            supers2.add(i.name);
+        }
+        for (ClassInfo i = info1; i != null; i = getInfo(i.superName)) {
+            if (supers2.contains(i.name)) {
+                return i.name;
+            }
+        }
+        return JAVA_LANG_OBJECT;
+    }
+
+    /*
+     * Checks whether the class described by the info is a subtype of the
+     * given type; returns null if a part of the hierarchy can not be resolved.
+     */
+    private Boolean isSubtype(ClassInfo info, String type) {
+        if (info.name.equals(type)) {
+            return Boolean.TRUE;
+        }
+        if (info.superName != null) {
+            ClassInfo sup = getInfo(info.superName);
+            if (sup == null) {
+                return null;
+            }
+            Boolean b = isSubtype(sup, type);
+            if (b == null || b.booleanValue()) {
+                return b;
+            }
+        }
+        for (String itf : info.interfaces) {
+            ClassInfo sup = getInfo(itf);
+            if (sup == null) {
+                return null;
+            }
+            Boolean b = isSubtype(sup, type);
+            if (b == null || b.booleanValue()) {
+                return b;
+            }
+        }
+        return Boolean.FALSE;
+    }
+
+    private ClassInfo getInfo(String name) {
+        if (name == null) {
+            return null;
+        }
+        if (!bootstrapLoader && name.startsWith(JAVA_PREFIX)) {
+            return bootstrap.getInfo(name);
+        }
+        ClassInfo info = get(name);
+        if (info == null) {
+            info = parse(readClass(name));
+            if (info != null && info.name.equals(name)) {
+                put(name, info);
+            } else {
+                info = null;
+            }
+        }
+        return info;
+    }
+
+    private ClassInfo get(String name) {
+        synchronized (infos) {
+            return infos.get(name);
+        }
+    }
+
+    private void put(String name, ClassInfo info) {
+        synchronized (infos) {
+            infos.put(name, info);
+        }
+    }
+
+    private byte[] readClass(String name) {
+        String resource = name + CLASS_SUFFIX;
+        InputStream in;
+        if (bootstrapLoader) {
+            in = bootstrapResources.getResourceAsStream(resource);
+        } else {
+            ClassLoader cl = loader.get();
+            in = cl != null ? cl.getResourceAsStream(resource) : null;
+        }
+        if (in == null) {
+            return null;
+        }
+        try {
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+                byte[] buf = new byte[4096];
+                int read;
+                while ((read = in.read(buf)) > 0) {
+                    out.write(buf, 0, read);
+                }
+                return out.toByteArray();
+            } finally {
+                in.close();
+            }
+        } catch (IOException exp) {
+            return null;
+        }
+    }
+
+    /*
+     * Reads the class name, the super class name and the interfaces from
+     * the class file header. The constant pool is walked by hand because
+     * the bundled ClassReader refuses the class file versions it does not
+     * know, while only the header is needed here.
+     */
+    private static ClassInfo parse(byte[] code) {
+        if (code == null || code.length < 10 || readInt(code, 0) != 0xCAFEBABE) {
+            return null;
+        }
+        try {
+            int count = readUnsignedShort(code, 8);
+            int[] offsets = new int[count];
+            int off = 10;
+            for (int i = 1; i < count; i++) {
+                offsets[i] = off + 1;
+                switch (code[off]) {
+                    case 1: // Utf8
+                        off += 3 + readUnsignedShort(code, off + 1);
+                        break;
+                    case 3: // Integer
+                    case 4: // Float
+                    case 9: // Fieldref
+                    case 10: // Methodref
+                    case 11: // InterfaceMethodref
+                    case 12: // NameAndType
+                    case 17: // Dynamic
+                    case 18: // InvokeDynamic
+                        off += 5;
+                        break;
+                    case 5: // Long
+                    case 6: // Double
+                        off += 9;
+                        i++;
+                        break;
+                    case 15: // MethodHandle
+                        off += 4;
+                        break;
+                    case 7: // Class
+                    case 8: // String
+                    case 16: // MethodType
+                    case 19: // Module
+                    case 20: // Package
+                        off += 3;
+                        break;
+                    default:
+                        return null;
+                }
+            }
+            int access = readUnsignedShort(code, off);
+            String name = readClassName(code, offsets, readUnsignedShort(code, off + 2));
+            String superName = readClassName(code, offsets, readUnsignedShort(code, off + 4));
+            String[] interfaces = new String[readUnsignedShort(code, off + 6)];
+            off += 8;
+            for (int i = 0; i < interfaces.length; i++, off += 2) {
+                interfaces[i] = readClassName(code, offsets, readUnsignedShort(code, off));
+            }
+            return new ClassInfo(name, superName, interfaces,
+                                 (access & ACC_INTERFACE) != 0);
+        } catch (ArrayIndexOutOfBoundsException exp) {
+            return null;
+        }
+    }
+
+    private static String readClassName(byte[] code, int[] offsets, int index) {
+        if (index == 0) {
+            return null;
+        }
+        int utf = offsets[readUnsignedShort(code, offsets[index])];
+        int len = readUnsignedShort(code, utf);
+        for (int i = 0; i < len; i++) {
+            if (code[utf + 2 + i] < 0) {
+                return readModifiedUTF(code, utf + 2, len);
+            }
+        }
+        try {
+            return new String(code, utf + 2, len, "ISO-8859-1");
+        } catch (UnsupportedEncodingException exp) {
+            throw new InternalError();
+        }
+    }
+
+    private static String readModifiedUTF(byte[] code, int off, int len) {
+        StringBuilder buf = new StringBuilder(len);
+        int end = off + len;
+        while (off < end) {
+            int c = code[off++] & 0xFF;
+            if (c < 0x80) {
+                buf.append((char) c);
+            } else if (c < 0xE0) {
+                buf.append((char) (((c & 0x1F) << 6) | (code[off++] & 0x3F)));
+            } else {
+                buf.append((char) (((c & 0x0F) << 12) | ((code[off++] & 0x3F) << 6) |
+                                   (code[off++] & 0x3F)));
+            }
+        }
+        return buf.toString();
+    }
+
+    private static int readUnsignedShort(byte[] code, int off) {
+        return ((code[off] & 0xFF) << 8) | (code[off + 1] & 0xFF);
+    }
+
+    private static int readInt(byte[] code, int off) {
+        return (readUnsignedShort(code, off) << 16) | readUnsignedShort(code, off + 2);
+    }
+
+    private static final class ClassInfo {
+        final String name;
+        final String superName;
+        final String[] interfaces;
+        final boolean isInterface;
+
+        ClassInfo(String name, String superName, String[] interfaces, boolean isInterface) {
+            this.name = name;
+            this.superName = superName;
+            this.interfaces = interfaces;
+            this.isInterface = isInterface;
+        }
+    }
+}
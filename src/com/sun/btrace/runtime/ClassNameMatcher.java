@@ -0,0 +1,230 @@
+/*
+ * Copyright 2008-2010 Sun Microsystems, Inc.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Sun designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Sun in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Sun Microsystems, Inc., 4150 Network Circle, Santa Clara,
+ * CA 95054 USA or visit www.sun.com if you need additional information or
+ * have any questions.
+ */
+
+package com.sun.btrace.runtime;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Matches class names against a set of exact names and regular
+ * expressions, as given in the "clazz" attribute of @OnMethod.
+ * The specs are compiled once:
+ * <ul>
+ *   <li>exact names and regexes without any wildcard go to a hash set</li>
+ *   <li>regexes of the form <code>literal.*</code> (eg. <code>java\.net\..*</code>)
+ *       go to a prefix trie</li>
+ *   <li>all the other regexes are combined into a single pattern</li>
+ * </ul>
+ * The exact names and prefixes are matched against internal names
+ * ('/' separated) directly, without converting them.
+ */
+public final class ClassNameMatcher {
+    private final Set<String> names = new HashSet<String>();
+    private final Set<String> internalNames = new HashSet<String>();
+    private final TrieNode prefixes = new TrieNode();
+    private boolean hasPrefixes;
+    // the regexes that are neither exact names nor prefixes
+    private final Pattern combined;
+    // regexes using back references can not be combined
+    private final Pattern[] separate;
+
+    /**
+     * @param names   exact class names (in '.' separated form)
+     * @param regexes regular expressions to be matched against
+     *                '.' separated class names
+     */
+    public ClassNameMatcher(Collection<String> names, Collection<String> regexes) {
+        for (String name : names) {
+            addName(name);
+        }
+        StringBuilder buf = new StringBuilder();
+        List<Pattern> others = new ArrayList<Pattern>();
+        for (String regex : regexes) {
+            StringBuilder literal = new StringBuilder();
+            int kind = parseLiteral(regex, literal);
+            if (kind == EXACT) {
+                addName(literal.toString());
+            } else if (kind == PREFIX) {
+                addPrefix(literal.toString());
+            } else if (BACK_REFERENCE.matcher(regex).find()) {
+                others.add(Pattern.compile(regex));
+            } else {
+                if (buf.length() > 0) {
+                    buf.append('|');
+                }
+                buf.append("(?:").append(regex).append(')');
+            }
+        }
+        combined = buf.length() > 0? Pattern.compile(buf.toString()) : null;
+        separate = others.toArray(new Pattern[others.size()]);
+    }
+
+    public boolean isEmpty() {
+        return names.isEmpty() && !hasPrefixes && combined == null && separate.length == 0;
+    }
+
+    /**
+     * Returns whether the given '.' separated class name matches.
+     */
+    public boolean matches(String className) {
+        if (names.contains(className) || matchesPrefix(className)) {
+            return true;
+        }
+        return matchesPattern(className);
+    }
+
+    /**
+     * Returns whether the given internal ('/' separated) class name matches.
+     */
+    public boolean matchesInternal(String internalName) {
+        if (internalNames.contains(internalName) || matchesPrefix(internalName)) {
+            return true;
+        }
+        if (combined == null && separate.length == 0) {
+            return false;
+        }
+        return matchesPattern(internalName.replace('/', '.'));
+    }
+
+    private boolean matchesPattern(String className) {
+        if (combined != null && combined.matcher(className).matches()) {
+            return true;
+        }
+        for (Pattern p : separate) {
+            if (p.matcher(className).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // '/' is walked as '.' so that internal names need no conversion
+    private boolean matchesPrefix(String name) {
+        if (!hasPrefixes) {
+            return false;
+        }
+        TrieNode node = prefixes;
+        for (int i = 0, len = name.length(); i < len; i++) {
+            if (node.terminal) {
+                return true;
+            }
+            char c = name.charAt(i);
+            node = node.child(c == '/'? '.' : c);
+            if (node == null) {
+                return false;
+            }
+        }
+        return node.terminal;
+    }
+
+    private void addName(String name) {
+        names.add(name);
+        internalNames.add(name.replace('.', '/'));
+    }
+
+    private void addPrefix(String prefix) {
+        TrieNode node = prefixes;
+        for (int i = 0; i < prefix.length(); i++) {
+            node = node.add(prefix.charAt(i));
+        }
+        node.terminal = true;
+        hasPrefixes = true;
+    }
+
+    private static final int EXACT = 0;
+    private static final int PREFIX = 1;
+    private static final int OTHER = 2;
+    private static final String META_CHARS = ".[]{}()*+?^$|";
+    private static final Pattern BACK_REFERENCE = Pattern.compile("\\\\[1-9]|\\\\k<");
+
+    /*
+     * Unescapes the literal part of the regex into the given buffer
+     * and tells whether the regex is a literal, a literal followed
+     * by ".*" or something else.
+     */
+    private static int parseLiteral(String regex, StringBuilder literal) {
+        int len = regex.length();
+        int i = 0;
+        while (i < len) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                if (i + 1 == len) {
+                    return OTHER;
+                }
+                char next = regex.charAt(i + 1);
+                if (Character.isLetterOrDigit(next)) {
+                    // character classes, quoting etc.
+                    return OTHER;
+                }
+                literal.append(next);
+                i += 2;
+            } else if (META_CHARS.indexOf(c) != -1) {
+                return (i == len - 2 && regex.endsWith(".*"))? PREFIX : OTHER;
+            } else {
+                literal.append(c);
+                i++;
+            }
+        }
+        return EXACT;
+    }
+
+    private static final class TrieNode {
+        private char[] labels = new char[0];
+        private TrieNode[] children = new TrieNode[0];
+        boolean terminal;
+
+        TrieNode child(char c) {
+            char[] l = labels;
+            for (int i = 0; i < l.length; i++) {
+                if (l[i] == c) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        TrieNode add(char c) {
+            TrieNode node = child(c);
+            if (node == null) {
+                int n = labels.length;
+                char[] l = new char[n + 1];
+                TrieNode[] ch = new TrieNode[n + 1];
+                System.arraycopy(labels, 0, l, 0, n);
+                System.arraycopy(children, 0, ch, 0, n);
+                node = new TrieNode();
+                l[n] = c;
+                ch[n] = node;
+                labels = l;
+                children = ch;
+            }
+            return node;
+        }
+    }
+}
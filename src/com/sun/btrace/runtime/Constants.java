@@ -31,6 +31,8 @@ import com.sun.btrace.annotations.Kind;
 import com.sun.btrace.annotations.Location;
 import com.sun.btrace.annotations.OnMethod;
 import com.sun.btrace.annotations.OnProbe;
+import com.sun.btrace.annotations.Sampled;
+import com.sun.btrace.annotations.Sampler;
 import com.sun.btrace.annotations.Where;
 import com.sun.btrace.AnyType;
 import com.sun.btrace.BTraceUtils;
@@ -77,6 +79,12 @@ public abstract class Constants {
     public static final String KIND_DESC =
         Type.getDescriptor(Kind.class);
 
+    public static final String SAMPLED_DESC =
+        Type.getDescriptor(Sampled.class);
+
+    public static final String SAMPLER_DESC =
+        Type.getDescriptor(Sampler.class);
+
     // class name pattern is specified with this pattern
     public static final Pattern REGEX_SPECIFIER = Pattern.compile("/.+/");
 }
@@ -25,6 +25,7 @@
 
 package com.sun.btrace.runtime;
 
+import java.util.List;
 import com.sun.btrace.org.objectweb.asm.ClassReader;
 import com.sun.btrace.org.objectweb.asm.ClassVisitor;
 import com.sun.btrace.org.objectweb.asm.ClassWriter;
@@ -80,46 +81,110 @@ public class InstrumentUtils {
     }
 
     public static ClassWriter newClassWriter(byte[] code) {
+        return newClassWriter(code, defaultHierarchy());
+    }
+
+    /**
+     * Creates a writer for the given class whose stack frames are computed
+     * from the class files of the given hierarchy - the one of the class
+     * loader defining the class - without loading any class.
+     */
+    public static ClassWriter newClassWriter(byte[] code, ClassHierarchy hierarchy) {
+        return newClassWriter(null, flagsFor(code), hierarchy);
+    }
+
+    /**
+     * Creates a writer for the class read by the given reader which copies
+     * the methods left untouched by the adapters verbatim from the original
+     * bytes - the stack frames and maxs are computed only for the methods
+     * whose code is rewritten. The reader must be the one accepting the
+     * adapter chain.
+     */
+    public static ClassWriter newClassWriter(ClassReader reader, byte[] code,
+                                             ClassHierarchy hierarchy) {
+        return newClassWriter(reader, flagsFor(code), hierarchy);
+    }
+
+    /**
+     * Like {@linkplain #newClassWriter(ClassReader, byte[], ClassHierarchy)}
+     * but each common super class resolved while computing the stack frames
+     * is appended to the given list as three entries - the two types and
+     * their common super class, <code>null</code> if the hierarchy could
+     * not resolve it.
+     */
+    public static ClassWriter newClassWriter(ClassReader reader, byte[] code,
+                                             ClassHierarchy hierarchy, List<String> resolved) {
+        return new HierarchyClassWriter(reader, flagsFor(code), hierarchy, resolved);
+    }
+
+    private static int flagsFor(byte[] code) {
         int flags = ClassWriter.COMPUTE_MAXS;
         if (isJDK16OrAbove(code)) {
             flags |= ClassWriter.COMPUTE_FRAMES;
         }
-        return newClassWriter(null, flags);
+        return flags;
     }
     
     public static ClassWriter newClassWriter(ClassReader reader, int flags) {
-        // FIXME: getCommonSuperClass is called by ClassWriter to merge two types
-        // - persumably to compute stack frame attribute. We get LinkageError
-        // when one of the types is the one being written/prepared by this ClassWriter
-        // itself! So, I catch LinkageError and return "java/lang/Object" in such cases.
-        // Revisit this for a possible better solution.
+        return newClassWriter(reader, flags, defaultHierarchy());
+    }
 
-        ClassWriter cw = null;
+    public static ClassWriter newClassWriter(ClassReader reader, int flags, ClassHierarchy hierarchy) {
         if (reader != null) {
-            cw = new ClassWriter(reader, flags) {
-                protected String getCommonSuperClass(String type1, String type2) {
-                    try {
-                        return super.getCommonSuperClass(type1, type2);                   
-                    } catch (LinkageError le) {
-                        return JAVA_LANG_OBJECT;
-                    } catch (RuntimeException re) {
-                        return JAVA_LANG_OBJECT;
-                    }
-                }
-            };
+            return new HierarchyClassWriter(reader, flags, hierarchy, null);
         } else {
-            cw = new ClassWriter(flags) {
-                protected String getCommonSuperClass(String type1, String type2) {
-                    try {
-                        return super.getCommonSuperClass(type1, type2);
-                    } catch (LinkageError le) {
-                        return JAVA_LANG_OBJECT;
-                    } catch (RuntimeException re) {
-                        return JAVA_LANG_OBJECT;
-                    }
-                }
-            };
+            return new HierarchyClassWriter(flags, hierarchy);
+        }
+    }
+
+    /*
+     * The default ClassWriter resolves the types with Class.forName in its own
+     * class loader, which loads classes as a side effect of the transformation
+     * and does not see the classes of the application loaders.
+     */
+    private static ClassHierarchy defaultHierarchy() {
+        return ClassHierarchy.forLoader(InstrumentUtils.class.getClassLoader());
+    }
+
+    private static final class HierarchyClassWriter extends ClassWriter {
+        private final ClassHierarchy hierarchy;
+        // may be null
+        private final List<String> resolved;
+
+        HierarchyClassWriter(int flags, ClassHierarchy hierarchy) {
+            super(flags);
+            this.hierarchy = hierarchy;
+            this.resolved = null;
+        }
+
+        HierarchyClassWriter(ClassReader reader, int flags, ClassHierarchy hierarchy,
+                             List<String> resolved) {
+            super(reader, flags);
+            this.hierarchy = hierarchy;
+            this.resolved = resolved;
+        }
+
+        protected String getCommonSuperClass(String type1, String type2) {
+            String common = hierarchy.getCommonSuperClass(type1, type2);
+            if (resolved != null) {
+                resolved.add(type1);
+                resolved.add(type2);
+                resolved.add(common);
+            }
+            if (common != null) {
+                return common;
+            }
+            // no class file available (eg. a generated class); fall back
+            // to reflection. We get LinkageError when one of the types is
+            // the one being written/prepared by this ClassWriter itself!
+            // So, LinkageError is caught and "java/lang/Object" returned.
+            try {
+                return super.getCommonSuperClass(type1, type2);
+            } catch (LinkageError le) {
+                return JAVA_LANG_OBJECT;
+            } catch (RuntimeException re) {
+                return JAVA_LANG_OBJECT;
+            }
         }
-        return cw;
     }
 } 
\ No newline at end of file
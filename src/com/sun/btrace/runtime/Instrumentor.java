@@ -26,11 +26,13 @@
 package com.sun.btrace.runtime;
 
 import com.sun.btrace.AnyType;
+import com.sun.btrace.Clocks;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Set;
 import java.util.HashSet;
 import static com.sun.btrace.org.objectweb.asm.Opcodes.*;
+import com.sun.btrace.annotations.ClockSource;
 import com.sun.btrace.annotations.Kind;
 import com.sun.btrace.annotations.ProbeClassName;
 import com.sun.btrace.annotations.ProbeMethodName;
@@ -48,7 +50,6 @@ import com.sun.btrace.org.objectweb.asm.Type;
 import com.sun.btrace.util.LocalVariablesSorter;
 import com.sun.btrace.util.TimeStampGenerator;
 import com.sun.btrace.util.TimeStampHelper;
-import java.util.regex.PatternSyntaxException;
 import static com.sun.btrace.runtime.Constants.*;
 
 /**
@@ -60,25 +61,41 @@ import static com.sun.btrace.runtime.Constants.*;
 public class Instrumentor extends ClassVisitor {
     private String btraceClassName;
     private ClassReader btraceClass;
-    private List<OnMethod> onMethods;
-    private List<OnMethod> applicableOnMethods;
+    private OnMethodMatchers matchers;
+    // indexed by the probe ordinal
+    private boolean[] applicable;
+    private boolean anyApplicable;
     private Set<OnMethod> calledOnMethods;
     private String className, superName;
     private Class clazz;
 
     private boolean usesTimeStamp = false;
     private boolean timeStampExisting = false;
+    private final ClockSource clock;
 
 
     public Instrumentor(Class clazz,
             String btraceClassName, ClassReader btraceClass,
             List<OnMethod> onMethods, ClassVisitor cv) {
+        this(clazz, btraceClassName, btraceClass, onMethods, cv, ClockSource.PRECISE);
+    }
+
+    public Instrumentor(Class clazz,
+            String btraceClassName, ClassReader btraceClass,
+            List<OnMethod> onMethods, ClassVisitor cv, ClockSource clock) {
+        this(clazz, btraceClassName, btraceClass, new OnMethodMatchers(onMethods), cv, clock);
+    }
+
+    public Instrumentor(Class clazz,
+            String btraceClassName, ClassReader btraceClass,
+            OnMethodMatchers matchers, ClassVisitor cv, ClockSource clock) {
         super(ASM4, cv);
+        this.clock = Clocks.resolve(clock);
         this.clazz = clazz;
         this.btraceClassName = btraceClassName.replace('.', '/');
         this.btraceClass = btraceClass;
-        this.onMethods = onMethods;
-        this.applicableOnMethods = new ArrayList<OnMethod>();
+        this.matchers = matchers;
+        this.applicable = new boolean[matchers.size()];
         this.calledOnMethods = new HashSet<OnMethod>();
     }
 
@@ -88,6 +105,18 @@ public class Instrumentor extends ClassVisitor {
         this(clazz, btraceClassName, new ClassReader(btraceCode), onMethods, cv);
     }
 
+    public Instrumentor(Class clazz,
+            String btraceClassName, byte[] btraceCode,
+            List<OnMethod> onMethods, ClassVisitor cv, ClockSource clock) {
+        this(clazz, btraceClassName, new ClassReader(btraceCode), onMethods, cv, clock);
+    }
+
+    public Instrumentor(Class clazz,
+            String btraceClassName, byte[] btraceCode,
+            OnMethodMatchers matchers, ClassVisitor cv, ClockSource clock) {
+        this(clazz, btraceClassName, new ClassReader(btraceCode), matchers, cv, clock);
+    }
+
     final public boolean hasMatch() {
         return !calledOnMethods.isEmpty();
     }
@@ -99,46 +128,11 @@ public class Instrumentor extends ClassVisitor {
         //ת
         className = name;
         this.superName = superName;
-        // we filter the probe methods applicable for this particular
-        // class by brute force walking. FIXME: should I optimize?
+        // the probe class patterns are compiled in OnMethodMatchers
         String externalName = name.replace('/', '.');
-        for (OnMethod om : onMethods) {
-            //ȡҪ̽
-            String probeClazz = om.getClazz();
-            if (probeClazz.length() == 0) {
-                continue;
-            }
-            char firstChar = probeClazz.charAt(0);
-            //ʼƥ
-            if (firstChar == '/' &&
-                REGEX_SPECIFIER.matcher(probeClazz).matches()) {
-                probeClazz = probeClazz.substring(1, probeClazz.length() - 1);
-                try {
-                    if (externalName.matches(probeClazz)) {
-                        applicableOnMethods.add(om);
-                    }
-                } catch (PatternSyntaxException pse) {
-                    reportPatternSyntaxException(probeClazz);
-                }
-            } else if (firstChar == '+') {
-                // super type being matched.
-                String superType = probeClazz.substring(1);
-                // internal name of super type.
-                String superTypeInternal = superType.replace('.', '/');
-                /*
-                 * If we are redefining a class, then we have a Class object
-                 * of it and we can walk through it's hierarchy to match for
-                 * specified super type. But, if we are loading it a fresh, then
-                 * we can not walk through super hierarchy. We just check the
-                 * immediate super class and directly implemented interfaces
-                 */
-                if (ClassFilter.isSubTypeOf(this.clazz, superType) ||
-                    superName.equals(superTypeInternal) ||
-                    isInArray(interfaces, superTypeInternal)) {
-                    applicableOnMethods.add(om);
-                }
-            } else if (probeClazz.equals(externalName)) {
-                applicableOnMethods.add(om);
+        for (int i = 0; i < applicable.length; i++) {
+            if (matchers.get(i).matchesClass(this.clazz, externalName, superName, interfaces)) {
+                markApplicable(i);
             }
         }
         super.visit(version, access, name, signature, superName, interfaces);
@@ -148,25 +142,9 @@ public class Instrumentor extends ClassVisitor {
     public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
         AnnotationVisitor av = super.visitAnnotation(desc, visible);
         String extName = Type.getType(desc).getClassName();
-        for (OnMethod om : onMethods) {
-            String probeClazz = om.getClazz();
-            if (probeClazz.length() > 0 && probeClazz.charAt(0) == '@') {
-                probeClazz = probeClazz.substring(1);
-                if (probeClazz.length() == 0) {
-                    continue;
-                }
-                if (REGEX_SPECIFIER.matcher(probeClazz).matches()) {
-                    probeClazz = probeClazz.substring(1, probeClazz.length() - 1);
-                    try {
-                        if (extName.matches(probeClazz)) {
-                            applicableOnMethods.add(om);
-                        }
-                    } catch (PatternSyntaxException pse) {
-                        reportPatternSyntaxException(probeClazz);
-                    }
-                } else if (probeClazz.equals(extName)) {
-                    applicableOnMethods.add(om);
-                }
+        for (int i = 0; i < applicable.length; i++) {
+            if (matchers.get(i).matchesClassAnnotation(extName)) {
+                markApplicable(i);
             }
         }
         return av;
@@ -177,16 +155,46 @@ public class Instrumentor extends ClassVisitor {
         final String desc, String signature, String[] exceptions) {
         MethodVisitor methodVisitor = super.visitMethod(access, name, desc,
                 signature, exceptions);
+        //Ѿʱ
+        // (possibly added by another BTrace client's instrumentor)
+        if (name.equals(TimeStampHelper.TIME_STAMP_NAME)) {
+            timeStampExisting = true;
+            return methodVisitor;
+        }
         //˲ķ󡢱غbtraceķ
-        if (applicableOnMethods.isEmpty() ||
+        if (!anyApplicable ||
             (access & ACC_ABSTRACT) != 0    ||
             (access & ACC_NATIVE) != 0      ||
             name.startsWith(BTRACE_METHOD_PREFIX)) {
             return methodVisitor;
         }
-        //Ѿʱ
-        if (name.equals(TimeStampHelper.TIME_STAMP_NAME)) {
-            timeStampExisting = true;
+
+        //ѭűб̽ķ
+        List<OnMethodMatcher> matching = null;
+        for (int ordinal : matchers.getMethodCandidates(name)) {
+            if (!applicable[ordinal]) {
+                continue;
+            }
+            OnMethodMatcher m = matchers.get(ordinal);
+            //ʵԴк
+            if (m.isLine() || m.matchesMethod(name, desc)) {
+                if (matching == null) {
+                    matching = new ArrayList<OnMethodMatcher>(2);
+                }
+                matching.add(m);
+            }
+        }
+        boolean annotationProbes = false;
+        for (int ordinal : matchers.getMethodAnnotationCandidates()) {
+            if (applicable[ordinal]) {
+                annotationProbes = true;
+                break;
+            }
+        }
+        // the methods no probe applies to are handed over unwrapped; when
+        // the ClassWriter was created from the ClassReader it copies them
+        // verbatim, without recomputing their stack frames
+        if (matching == null && !annotationProbes) {
             return methodVisitor;
         }
 
@@ -199,59 +207,25 @@ public class Instrumentor extends ClassVisitor {
         methodVisitor = lvs;
 
         final int[] tsIndex = new int[]{-1, -1};
-        //ѭűб̽ķ
-        for (OnMethod om : applicableOnMethods) {
-            //ʵԴк
-            if (om.getLocation().getValue() == Kind.LINE) {
-                methodVisitor = instrumentorFor(om, methodVisitor, lvs, tsIndex, access, name, desc);
-            } else {
-                String methodName = om.getMethod();
-                if (methodName.equals("")) {
-                    methodName = om.getTargetName();
-                }
-                //ƥƥ
-                if (methodName.equals(name) &&
-                    typeMatches(om.getType(), desc)) {
-                    methodVisitor = instrumentorFor(om, methodVisitor, lvs, tsIndex, access, name, desc);
-                } else if (methodName.charAt(0) == '/' &&
-                           REGEX_SPECIFIER.matcher(methodName).matches()) {
-                    methodName = methodName.substring(1, methodName.length() - 1);
-                    try {
-                        if (name.matches(methodName) &&
-                            typeMatches(om.getType(), desc)) {
-                            methodVisitor = instrumentorFor(om, methodVisitor, lvs, tsIndex, access, name, desc);
-                        }
-                    } catch (PatternSyntaxException pse) {
-                        reportPatternSyntaxException(name);
-                    }
-                }
-//                lvs[0] = new LocalVariablesSorter(access, desc, methodVisitor, externalState);
+        if (matching != null) {
+            for (OnMethodMatcher m : matching) {
+                methodVisitor = instrumentorFor(m, methodVisitor, lvs, tsIndex, access, name, desc);
             }
         }
+        if (!annotationProbes) {
+            return methodVisitor;
+        }
 
         return new MethodVisitor(ASM4,
                     methodVisitor) {
             public AnnotationVisitor visitAnnotation(String annoDesc,
                                   boolean visible) {
-                for (OnMethod om : applicableOnMethods) {
-                    String extAnnoName = Type.getType(annoDesc).getClassName();
-                    String annoName = om.getMethod();
-                    if (annoName.length() > 0 && annoName.charAt(0) == '@') {
-                        annoName = annoName.substring(1);
-                        if (annoName.length() == 0) {
-                            continue;
-                        }
-                        if (REGEX_SPECIFIER.matcher(annoName).matches()) {
-                            annoName = annoName.substring(1, annoName.length() - 1);
-                            try {
-                                if (extAnnoName.matches(annoName)) {
-                                    mv = instrumentorFor(om, mv, lvs, tsIndex, access, name, desc);
-                                }
-                            } catch (PatternSyntaxException pse) {
-                                reportPatternSyntaxException(extAnnoName);
-                            }
-                        } else if (annoName.equals(extAnnoName)) {
-                            mv = instrumentorFor(om, mv, lvs, tsIndex, access, name, desc);
+                String extAnnoName = Type.getType(annoDesc).getClassName();
+                for (int ordinal : matchers.getMethodAnnotationCandidates()) {
+                    if (applicable[ordinal]) {
+                        OnMethodMatcher m = matchers.get(ordinal);
+                        if (m.matchesMethodAnnotation(extAnnoName)) {
+                            mv = instrumentorFor(m, mv, lvs, tsIndex, access, name, desc);
                         }
                     }
                 }
@@ -262,7 +236,7 @@ public class Instrumentor extends ClassVisitor {
 
     /**
      * 
-     * @param om
+     * @param m
      * @param mv 
      * @param lvs ر
      * @param tsIndex
@@ -272,8 +246,36 @@ public class Instrumentor extends ClassVisitor {
      * @return
      */
     private MethodVisitor instrumentorFor(
-        final OnMethod om, MethodVisitor mv, final LocalVariablesSorter lvs,
+        OnMethodMatcher m, MethodVisitor mv, LocalVariablesSorter lvs,
+        int[] tsIndex, int access, String name, String desc) {
+        OnMethod om = m.getOnMethod();
+        if (!om.isSampled()) {
+            return locationInstrumentorFor(m, mv, lvs, tsIndex, access, name, desc);
+        }
+        // the time stamps of a sampled probe are taken for the sampled calls
+        // only, so they can not be shared with the other probes
+        int[] sampleIndex = null;
+        if (om.getDurationParameter() != -1) {
+            tsIndex = new int[]{-1, -1};
+            sampleIndex = new int[]{-1};
+        }
+        MethodVisitor imv = locationInstrumentorFor(m, mv, lvs, tsIndex, access, name, desc);
+        MethodInstrumentor mi = null;
+        if (imv instanceof TimeStampGenerator) {
+            mi = ((TimeStampGenerator)imv).getInstrumentor();
+        } else if (imv instanceof MethodInstrumentor) {
+            mi = (MethodInstrumentor)imv;
+        }
+        if (mi != null) {
+            mi.setSampler(btraceClassName, om.getProbeIndex(), sampleIndex);
+        }
+        return imv;
+    }
+
+    private MethodVisitor locationInstrumentorFor(
+        final OnMethodMatcher m, MethodVisitor mv, final LocalVariablesSorter lvs,
         final int[] tsIndex, int access, String name, final String desc) {
+        final OnMethod om = m.getOnMethod();
         //ȡ̽λ
         final Location loc = om.getLocation();
         //̽ʱ
@@ -447,10 +449,6 @@ public class Instrumentor extends ClassVisitor {
                 // <editor-fold defaultstate="collapsed" desc="Method Call Instrumentor">
                 //ִзʱ
                 return new MethodCallInstrumentor(mv, className, superName, access, name, desc) {
-                    //÷
-                    private String localClassName = loc.getClazz();
-                    //õķ
-                    private String localMethodName = loc.getMethod();
                     //ֵ
                     private int returnVarIndex = -1;
                     int[] backupArgsIndexes;
@@ -496,9 +494,9 @@ public class Instrumentor extends ClassVisitor {
                         if (isStatic() && om.getSelfParameter() > -1) {
                             return; // invalid combination; a static method can not provide *this*
                         }
-                        if (matches(localClassName, owner.replace('/', '.'))
-                                && matches(localMethodName, name)
-                                && typeMatches(loc.getType(), desc)) {
+                        if (m.getLocationClass().matches(owner.replace('/', '.'))
+                                && m.getLocationMethod().matches(name)
+                                && m.matchesLocationType(desc)) {
                             //ơƥɹ
                             String method = (om.isTargetMethodOrFieldFqn() ? (owner + ".") : "") + name + (om.isTargetMethodOrFieldFqn() ? desc : "");
                             Type[] calledMethodArgs = Type.getArgumentTypes(desc);
@@ -543,9 +541,9 @@ public class Instrumentor extends ClassVisitor {
                             return;
                         }
                         if (where == Where.AFTER
-                                && matches(localClassName, owner.replace('/', '.'))
-                                && matches(localMethodName, name)
-                                && typeMatches(loc.getType(), desc)) {
+                                && m.getLocationClass().matches(owner.replace('/', '.'))
+                                && m.getLocationMethod().matches(name)
+                                && m.matchesLocationType(desc)) {
                             Type returnType = Type.getReturnType(desc);
                             Type[] calledMethodArgs = Type.getArgumentTypes(desc);
                             addExtraTypeInfo(om.getSelfParameter(), Type.getObjectType(className));
@@ -729,7 +727,12 @@ public class Instrumentor extends ClassVisitor {
                                     usesTimeStamp = true;
                                     // TODO: this is a nasty hack; should be in TimeStampGenerator but can't fit it there, no way :(
                                     if (tsIndex[1] == -1) {
-                                        TimeStampHelper.generateTimeStampAccess(this, className);
+                                        int[] sampleIndex = getSampleIndex();
+                                        if (sampleIndex != null && sampleIndex[0] != -1) {
+                                            TimeStampHelper.generateSampledTimeStampAccess(this, sampleIndex[0], className, clock);
+                                        } else {
+                                            TimeStampHelper.generateTimeStampAccess(this, className, clock);
+                                        }
                                         tsIndex[1] = lvs.newLocal(Type.LONG_TYPE);
                                     }
                                 }
@@ -769,7 +772,7 @@ public class Instrumentor extends ClassVisitor {
                     }
                 };
                 if (om.getDurationParameter() != -1) {
-                    return new TimeStampGenerator(lvs, tsIndex, className, superName, access, name, desc, eri, new int[0]);
+                    return new TimeStampGenerator(lvs, tsIndex, className, superName, access, name, desc, eri, new int[0], clock);
                 } else {
                     return eri;
                 }// </editor-fold>
@@ -788,8 +791,8 @@ public class Instrumentor extends ClassVisitor {
                         if (om.getTargetInstanceParameter() != -1 && isStaticAccess) {
                             return;
                         }
-                        if (matches(targetClassName, owner.replace('/', '.'))
-                                && matches(targetFieldName, name)) {
+                        if (m.getLocationClass().matches(owner.replace('/', '.'))
+                                && m.getLocationField().matches(name)) {
 
                             Type fldType = Type.getType(desc);
                             addExtraTypeInfo(om.getSelfParameter(), Type.getObjectType(className));
@@ -828,8 +831,8 @@ public class Instrumentor extends ClassVisitor {
                             return;
                         }
                         if (where == Where.AFTER
-                                && matches(targetClassName, owner.replace('/', '.'))
-                                && matches(targetFieldName, name)) {
+                                && m.getLocationClass().matches(owner.replace('/', '.'))
+                                && m.getLocationField().matches(name)) {
                             Type fldType = Type.getType(desc);
 
                             addExtraTypeInfo(om.getSelfParameter(), Type.getObjectType(className));
@@ -875,8 +878,8 @@ public class Instrumentor extends ClassVisitor {
                         if (om.getTargetInstanceParameter() != -1 && isStaticAccess) {
                             return;
                         }
-                        if (matches(targetClassName, owner.replace('/', '.'))
-                                && matches(targetFieldName, name)) {
+                        if (m.getLocationClass().matches(owner.replace('/', '.'))
+                                && m.getLocationField().matches(name)) {
 
                             Type fieldType = Type.getType(desc);
 
@@ -924,8 +927,8 @@ public class Instrumentor extends ClassVisitor {
 
                         }
                         if (where == Where.AFTER
-                                && matches(targetClassName, owner.replace('/', '.'))
-                                && matches(targetFieldName, name)) {
+                                && m.getLocationClass().matches(owner.replace('/', '.'))
+                                && m.getLocationField().matches(name)) {
                             Type fieldType = Type.getType(desc);
 
                             addExtraTypeInfo(om.getSelfParameter(), Type.getObjectType(className));
@@ -1052,7 +1055,7 @@ public class Instrumentor extends ClassVisitor {
                             //
                             String extName = desc.replace('/', '.');
                             //ָ̽ĶƥĻ
-                            if (matches(loc.getClazz(), extName)) {
+                            if (m.getLocationClass().matches(extName)) {
                                 //@Self
                                 addExtraTypeInfo(om.getSelfParameter(), Type.getObjectType(className));
                                 //ű֤
@@ -1081,7 +1084,7 @@ public class Instrumentor extends ClassVisitor {
                     protected void afterObjectNew(String desc) {
                         if (loc.getWhere() == Where.AFTER) {
                             String extName = desc.replace('/', '.');
-                            if (matches(loc.getClazz(), extName)) {
+                            if (m.getLocationClass().matches(extName)) {
                                 Type instType = Type.getObjectType(desc);
 
                                 addExtraTypeInfo(om.getSelfParameter(), Type.getObjectType(className));
@@ -1120,8 +1123,7 @@ public class Instrumentor extends ClassVisitor {
                     protected void onBeforeArrayNew(String desc, int dims) {
                         if (where == Where.BEFORE) {
                             String extName = TypeUtils.getJavaType(desc);
-                            String type = TypeUtils.objectOrArrayType(loc.getClazz());
-                            if (matches(type, desc)) {
+                            if (m.getLocationArrayType().matches(desc)) {
                                 addExtraTypeInfo(om.getSelfParameter(), Type.getObjectType(className));
                                 ValidationResult vr = validateArguments(om, isStatic(), actionArgTypes, new Type[]{TypeUtils.stringType, Type.INT_TYPE});
                                 if (vr.isValid()) {
@@ -1147,8 +1149,7 @@ public class Instrumentor extends ClassVisitor {
                     protected void onAfterArrayNew(String desc, int dims) {
                         if (where == Where.AFTER) {
                             String extName = TypeUtils.getJavaType(desc);
-                            String type = TypeUtils.objectOrArrayType(loc.getClazz());
-                            if (matches(type, desc)) {
+                            if (m.getLocationArrayType().matches(desc)) {
                                 StringBuilder arrayType = new StringBuilder();
                                 for (int i = 0; i < dims; i++) {
                                     arrayType.append("[");
@@ -1264,7 +1265,7 @@ public class Instrumentor extends ClassVisitor {
                     }
                 };
                 if (om.getDurationParameter() != -1) {
-                    return new TimeStampGenerator(lvs, tsIndex, className, superName, access, name, desc, mri, new int[]{RETURN, IRETURN, FRETURN, DRETURN, LRETURN, ARETURN});
+                    return new TimeStampGenerator(lvs, tsIndex, className, superName, access, name, desc, mri, new int[]{RETURN, IRETURN, FRETURN, DRETURN, LRETURN, ARETURN}, clock);
                 } else {
                     return mri;
                 }// </editor-fold>
@@ -1404,13 +1405,14 @@ public class Instrumentor extends ClassVisitor {
     }
 
     private void introduceTimeStampHelper() {
-        if (usesTimeStamp && !timeStampExisting) {
+        // only the precise clock is read through the generated getter
+        if (usesTimeStamp && !timeStampExisting && clock == ClockSource.PRECISE) {
             TimeStampHelper.generateTimeStampGetter(this);
         }
     }
     //ѽűӵת
     public void visitEnd() {
-        int size = applicableOnMethods.size();
+        int size = calledOnMethods.size();
         List<MethodCopier.MethodInfo> mi = new ArrayList<MethodCopier.MethodInfo>(size);
         for (OnMethod om : calledOnMethods) {
             //Ϣ
@@ -1450,8 +1452,9 @@ public class Instrumentor extends ClassVisitor {
         fis.read(buf);
         fis.close();
         ClassWriter writer = InstrumentUtils.newClassWriter();
-        Verifier verifier = new Verifier(new Preprocessor(writer));
-        InstrumentUtils.accept(new ClassReader(buf), verifier);
+        ClassReader btraceReader = new ClassReader(buf);
+        Verifier verifier = new Verifier(new Preprocessor(writer, btraceReader));
+        InstrumentUtils.accept(btraceReader, verifier);
         buf = writer.toByteArray();
         FileOutputStream fos = new FileOutputStream(className);
         fos.write(buf);
@@ -1462,7 +1465,7 @@ public class Instrumentor extends ClassVisitor {
         ClassReader reader = new ClassReader(fis);
         InstrumentUtils.accept(reader, new Instrumentor(null,
                     verifier.getClassName(), buf,
-                    verifier.getOnMethods(), writer));
+                    verifier.getOnMethods(), writer, verifier.getClockSource()));
         fos = new FileOutputStream(targetClass);
         fos.write(writer.toByteArray());
     }
@@ -1473,52 +1476,16 @@ public class Instrumentor extends ClassVisitor {
     }
 
     private void invokeBTraceAction(MethodInstrumentor mv, OnMethod om) {
+        mv.beginSampled();
         //ýű~,űѾcopy˱ת
         mv.invokeStatic(className, getActionMethodName(om.getTargetName()),
             om.getTargetDescriptor().replace(ANYTYPE_DESC, OBJECT_DESC));
+        mv.endSampled();
         calledOnMethods.add(om);
     }
 
-    private boolean matches(String pattern, String input) {
-        if (pattern.length() == 0) {
-            return false;
-        }
-        if (pattern.charAt(0) == '/' &&
-            REGEX_SPECIFIER.matcher(pattern).matches()) {
-            try {
-                return input.matches(pattern.substring(1, pattern.length() - 1));
-            } catch (PatternSyntaxException pse) {
-                reportPatternSyntaxException(pattern.substring(1, pattern.length() - 1));
-                return false;
-            }
-        } else {
-            return pattern.equals(input);
-        }
-    }
-
-    private boolean typeMatches(String decl, String desc) {
-        // empty type declaration matches any method signature
-        if (decl.isEmpty()) {
-            return true;
-        } else {
-            String d = TypeUtils.declarationToDescriptor(decl);
-            Type[] args1 = Type.getArgumentTypes(d);
-            Type[] args2 = Type.getArgumentTypes(desc);
-            return TypeUtils.isCompatible(args1, args2);
-        }
-    }
-
-    private static boolean isInArray(String[] candidates, String given) {
-        for (String c : candidates) {
-            if (c.equals(given)) {
-                return true;
-            }
-        }
-        return false;
-    }
-
-    private static void reportPatternSyntaxException(String pattern) {
-        System.err.println("btrace ERROR: invalid regex pattern - " + pattern);
+    private void markApplicable(int ordinal) {
+        applicable[ordinal] = true;
+        anyApplicable = true;
     }
 }
-
@@ -0,0 +1,478 @@
+/*
+ * Copyright 2008-2010 Sun Microsystems, Inc.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Sun designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Sun in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Sun Microsystems, Inc., 4150 Network Circle, Santa Clara,
+ * CA 95054 USA or visit www.sun.com if you need additional information or
+ * have any questions.
+ */
+
+package com.sun.btrace.runtime;
+
+import java.util.ArrayList;
+import java.util.List;
+import com.sun.btrace.BTraceUtils;
+import com.sun.btrace.LazyMessage;
+import com.sun.btrace.org.objectweb.asm.ClassVisitor;
+import com.sun.btrace.org.objectweb.asm.Handle;
+import com.sun.btrace.org.objectweb.asm.Label;
+import com.sun.btrace.org.objectweb.asm.MethodVisitor;
+import com.sun.btrace.org.objectweb.asm.Type;
+import static com.sun.btrace.org.objectweb.asm.Opcodes.*;
+import static com.sun.btrace.runtime.Constants.*;
+
+/**
+ * This adapter rewrites the print/println calls of a BTrace
+ * program so that the message text is not built by the traced
+ * thread. For a call like
+ *
+ * <pre>
+ *     println(strcat(strcat("took ", str(time)), " ns"));
+ * </pre>
+ *
+ * the literal parts are registered once as a {@link LazyMessage}
+ * template and the call is replaced by
+ *
+ * <pre>
+ *     LazyMessage.arg(time);
+ *     LazyMessage.end(templateId);
+ * </pre>
+ *
+ * Only straight-line argument expressions are rewritten; the
+ * operands are evaluated in the original order and anything that
+ * is not understood here is left alone.
+ */
+public class LazyMessageRewriter extends ClassVisitor {
+    private static final String LAZY_MESSAGE =
+        Type.getInternalName(LazyMessage.class);
+    private static final String BTRACE_STRINGS =
+        Type.getInternalName(BTraceUtils.Strings.class);
+    private static final String STRING_DESC = "Ljava/lang/String;";
+    private static final String CONCAT_DESC =
+        "(" + STRING_DESC + STRING_DESC + ")" + STRING_DESC;
+    private static final String LINE_SEPARATOR =
+        System.getProperty("line.separator");
+
+    // templates registered for this class, to be released on unload
+    private final List<Integer> templateIds = new ArrayList<Integer>();
+
+    public LazyMessageRewriter(ClassVisitor cv) {
+        super(ASM4, cv);
+    }
+
+    /**
+     * Returns the ids of the templates registered while rewriting the
+     * class; see {@link LazyMessage#releaseTemplates(int[])}
+     */
+    public int[] getTemplateIds() {
+        int[] ids = new int[templateIds.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = templateIds.get(i);
+        }
+        return ids;
+    }
+
+    @Override
+    public MethodVisitor visitMethod(int access, String name, String desc,
+            String signature, String[] exceptions) {
+        MethodVisitor mv = super.visitMethod(access, name, desc, signature, exceptions);
+        return mv != null? new Rewriter(mv) : null;
+    }
+
+    /**
+     * A buffered instruction that leaves exactly one value on
+     * the operand stack after consuming <code>pops</code> values.
+     */
+    private static final class Insn {
+        static final int SIMPLE = 0, INT = 1, VAR = 2, TYPE = 3,
+                         FIELD = 4, METHOD = 5, LDC = 6;
+
+        final int kind;
+        final int opcode;
+        final int operand;
+        final String owner, name, desc;
+        final Object cst;
+        final int pops;
+
+        Insn(int kind, int opcode, int operand, String owner,
+             String name, String desc, Object cst, int pops) {
+            this.kind = kind;
+            this.opcode = opcode;
+            this.operand = operand;
+            this.owner = owner;
+            this.name = name;
+            this.desc = desc;
+            this.cst = cst;
+            this.pops = pops;
+        }
+
+        void accept(MethodVisitor mv) {
+            switch (kind) {
+                case SIMPLE: mv.visitInsn(opcode); break;
+                case INT: mv.visitIntInsn(opcode, operand); break;
+                case VAR: mv.visitVarInsn(opcode, operand); break;
+                case TYPE: mv.visitTypeInsn(opcode, owner); break;
+                case FIELD: mv.visitFieldInsn(opcode, owner, name, desc); break;
+                case METHOD: mv.visitMethodInsn(opcode, owner, name, desc); break;
+                default: mv.visitLdcInsn(cst); break;
+            }
+        }
+
+        boolean isLiteral() {
+            return kind == LDC && cst instanceof String;
+        }
+
+        boolean isConcat() {
+            return opcode == INVOKESTATIC && isStringsOwner(owner) &&
+                   ("strcat".equals(name) || "concat".equals(name)) &&
+                   CONCAT_DESC.equals(desc);
+        }
+
+        // argument type of a str(..) call, or null
+        Type strArgument() {
+            if (opcode != INVOKESTATIC || !isStringsOwner(owner) ||
+                !"str".equals(name) || !Type.getReturnType(desc).getDescriptor().equals(STRING_DESC)) {
+                return null;
+            }
+            Type[] args = Type.getArgumentTypes(desc);
+            if (args.length != 1) {
+                return null;
+            }
+            String argDesc = args[0].getDescriptor();
+            if (args[0].getSort() != Type.OBJECT || OBJECT_DESC.equals(argDesc)) {
+                return args[0];
+            }
+            return null;
+        }
+
+        private static boolean isStringsOwner(String owner) {
+            return BTRACE_UTILS.equals(owner) || BTRACE_STRINGS.equals(owner);
+        }
+    }
+
+    /**
+     * A node of the argument expression tree; covers the buffered
+     * instructions from <code>start</code> to <code>end</code>.
+     */
+    private static final class Node {
+        final int start, end;
+        final Node[] children;
+
+        Node(int start, int end, Node[] children) {
+            this.start = start;
+            this.end = end;
+            this.children = children;
+        }
+    }
+
+    private class Rewriter extends MethodVisitor {
+        private final List<Insn> buffer = new ArrayList<Insn>();
+
+        // state used while a message is being flattened
+        private StringBuilder literal;
+        private List<String> literals;
+
+        Rewriter(MethodVisitor mv) {
+            super(ASM4, mv);
+        }
+
+        private void flush() {
+            emit(0, buffer.size());
+            buffer.clear();
+        }
+
+        private void emit(int from, int to) {
+            for (int i = from; i < to; i++) {
+                buffer.get(i).accept(mv);
+            }
+        }
+
+        private void push(Insn insn) {
+            buffer.add(insn);
+        }
+
+        // builds the expression tree ending at index end; null if it
+        // does not start inside the buffer
+        private Node parse(int end) {
+            if (end < 0) {
+                return null;
+            }
+            Insn insn = buffer.get(end);
+            Node[] children = new Node[insn.pops];
+            int start = end;
+            for (int i = children.length - 1; i >= 0; i--) {
+                Node child = parse(start - 1);
+                if (child == null) {
+                    return null;
+                }
+                children[i] = child;
+                start = child.start;
+            }
+            return new Node(start, end, children);
+        }
+
+        // whether rewriting saves any string building: some
+        // concatenation or primitive formatting is involved
+        private boolean hasWork(Node node) {
+            Insn insn = buffer.get(node.end);
+            if (insn.isConcat()) {
+                return true;
+            }
+            Type arg = insn.strArgument();
+            return arg != null && arg.getSort() != Type.OBJECT;
+        }
+
+        private void flatten(Node node) {
+            Insn insn = buffer.get(node.end);
+            if (insn.isLiteral()) {
+                literal.append((String) insn.cst);
+            } else if (insn.isConcat()) {
+                flatten(node.children[0]);
+                flatten(node.children[1]);
+            } else {
+                Type arg = insn.strArgument();
+                if (arg != null && arg.getSort() != Type.OBJECT) {
+                    Node child = node.children[0];
+                    emit(child.start, child.end + 1);
+                    capture(arg);
+                } else {
+                    // object str(..) calls stay in the traced thread so
+                    // that the text reflects the object state right now
+                    emit(node.start, node.end + 1);
+                    capture(Type.getType(OBJECT_DESC));
+                }
+            }
+        }
+
+        private void capture(Type type) {
+            literals.add(literal.toString());
+            literal.setLength(0);
+            String desc = type.getSort() == Type.OBJECT || type.getSort() == Type.ARRAY?
+                OBJECT_DESC : type.getDescriptor();
+            if (type.getSort() == Type.BYTE || type.getSort() == Type.SHORT) {
+                desc = "I";
+            }
+            mv.visitMethodInsn(INVOKESTATIC, LAZY_MESSAGE, "arg", "(" + desc + ")V");
+        }
+
+        private boolean isPrint(int opcode, String owner, String name, String desc) {
+            if (opcode != INVOKESTATIC || !BTRACE_UTILS.equals(owner) ||
+                !("print".equals(name) || "println".equals(name))) {
+                return false;
+            }
+            Type[] args = Type.getArgumentTypes(desc);
+            if (args.length != 1 || Type.getReturnType(desc) != Type.VOID_TYPE) {
+                return false;
+            }
+            return args[0].getSort() != Type.OBJECT || OBJECT_DESC.equals(args[0].getDescriptor());
+        }
+
+        private boolean rewritePrint(String name, String desc) {
+            Node root = parse(buffer.size() - 1);
+            if (root == null) {
+                return false;
+            }
+            Type argType = Type.getArgumentTypes(desc)[0];
+            boolean primitive = argType.getSort() != Type.OBJECT;
+            if (!primitive && !hasWork(root)) {
+                return false;
+            }
+            emit(0, root.start);
+            literal = new StringBuilder();
+            literals = new ArrayList<String>();
+            if (primitive) {
+                emit(root.start, root.end + 1);
+                capture(argType);
+            } else {
+                flatten(root);
+            }
+            if ("println".equals(name)) {
+                literal.append(LINE_SEPARATOR);
+            }
+            literals.add(literal.toString());
+            int id = LazyMessage.registerTemplate(literals.toArray(new String[literals.size()]));
+            templateIds.add(id);
+            literal = null;
+            literals = null;
+            buffer.clear();
+            mv.visitLdcInsn(id);
+            mv.visitMethodInsn(INVOKESTATIC, LAZY_MESSAGE, "end", "(I)V");
+            return true;
+        }
+
+        @Override
+        public void visitInsn(int opcode) {
+            int pops = -1;
+            if (opcode >= ACONST_NULL && opcode <= DCONST_1) {
+                pops = 0;
+            } else if (opcode >= IALOAD && opcode <= SALOAD) {
+                pops = 2;
+            } else if (opcode >= IADD && opcode <= DREM) {
+                pops = 2;
+            } else if (opcode >= INEG && opcode <= DNEG) {
+                pops = 1;
+            } else if (opcode >= ISHL && opcode <= LXOR) {
+                pops = 2;
+            } else if (opcode >= I2L && opcode <= I2S) {
+                pops = 1;
+            } else if (opcode >= LCMP && opcode <= DCMPG) {
+                pops = 2;
+            } else if (opcode == ARRAYLENGTH) {
+                pops = 1;
+            }
+            if (pops >= 0) {
+                push(new Insn(Insn.SIMPLE, opcode, 0, null, null, null, null, pops));
+            } else {
+                flush();
+                super.visitInsn(opcode);
+            }
+        }
+
+        @Override
+        public void visitIntInsn(int opcode, int operand) {
+            push(new Insn(Insn.INT, opcode, operand, null, null, null, null,
+                          opcode == NEWARRAY? 1 : 0));
+        }
+
+        @Override
+        public void visitVarInsn(int opcode, int var) {
+            if (opcode >= ILOAD && opcode <= ALOAD) {
+                push(new Insn(Insn.VAR, opcode, var, null, null, null, null, 0));
+            } else {
+                flush();
+                super.visitVarInsn(opcode, var);
+            }
+        }
+
+        @Override
+        public void visitTypeInsn(int opcode, String type) {
+            if (opcode == NEW) {
+                flush();
+                super.visitTypeInsn(opcode, type);
+            } else {
+                push(new Insn(Insn.TYPE, opcode, 0, type, null, null, null, 1));
+            }
+        }
+
+        @Override
+        public void visitFieldInsn(int opcode, String owner, String name, String desc) {
+            if (opcode == GETSTATIC || opcode == GETFIELD) {
+                push(new Insn(Insn.FIELD, opcode, 0, owner, name, desc, null,
+                              opcode == GETFIELD? 1 : 0));
+            } else {
+                flush();
+                super.visitFieldInsn(opcode, owner, name, desc);
+            }
+        }
+
+        @Override
+        public void visitMethodInsn(int opcode, String owner, String name, String desc) {
+            if (isPrint(opcode, owner, name, desc) && rewritePrint(name, desc)) {
+                return;
+            }
+            if (Type.getReturnType(desc) != Type.VOID_TYPE && !CONSTRUCTOR.equals(name)) {
+                int pops = Type.getArgumentTypes(desc).length;
+                if (opcode != INVOKESTATIC) {
+                    pops++;
+                }
+                push(new Insn(Insn.METHOD, opcode, 0, owner, name, desc, null, pops));
+            } else {
+                flush();
+                super.visitMethodInsn(opcode, owner, name, desc);
+            }
+        }
+
+        @Override
+        public void visitLdcInsn(Object cst) {
+            push(new Insn(Insn.LDC, LDC, 0, null, null, null, cst, 0));
+        }
+
+        @Override
+        public void visitInvokeDynamicInsn(String name, String desc, Handle bsm, Object... bsmArgs) {
+            flush();
+            super.visitInvokeDynamicInsn(name, desc, bsm, bsmArgs);
+        }
+
+        @Override
+        public void visitJumpInsn(int opcode, Label label) {
+            flush();
+            super.visitJumpInsn(opcode, label);
+        }
+
+        @Override
+        public void visitLabel(Label label) {
+            flush();
+            super.visitLabel(label);
+        }
+
+        @Override
+        public void visitFrame(int type, int nLocal, Object[] local, int nStack, Object[] stack) {
+            flush();
+            super.visitFrame(type, nLocal, local, nStack, stack);
+        }
+
+        @Override
+        public void visitIincInsn(int var, int increment) {
+            flush();
+            super.visitIincInsn(var, increment);
+        }
+
+        @Override
+        public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
+            flush();
+            super.visitTableSwitchInsn(min, max, dflt, labels);
+        }
+
+        @Override
+        public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+            flush();
+            super.visitLookupSwitchInsn(dflt, keys, labels);
+        }
+
+        @Override
+        public void visitMultiANewArrayInsn(String desc, int dims) {
+            flush();
+            super.visitMultiANewArrayInsn(desc, dims);
+        }
+
+        @Override
+        public void visitTryCatchBlock(Label start, Label end, Label handler, String type) {
+            flush();
+            super.visitTryCatchBlock(start, end, handler, type);
+        }
+
+        @Override
+        public void visitLineNumber(int line, Label start) {
+            flush();
+            super.visitLineNumber(line, start);
+        }
+
+        @Override
+        public void visitMaxs(int maxStack, int maxLocals) {
+            flush();
+            super.visitMaxs(maxStack, maxLocals);
+        }
+
+        @Override
+        public void visitEnd() {
+            flush();
+            super.visitEnd();
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2008-2010 Sun Microsystems, Inc.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Sun designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Sun in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Sun Microsystems, Inc., 4150 Network Circle, Santa Clara,
+ * CA 95054 USA or visit www.sun.com if you need additional information or
+ * have any questions.
+ */
+
+package com.sun.btrace.runtime;
+
+import com.sun.btrace.org.objectweb.asm.ClassReader;
+import com.sun.btrace.org.objectweb.asm.ClassVisitor;
+import com.sun.btrace.org.objectweb.asm.MethodVisitor;
+import static com.sun.btrace.org.objectweb.asm.Opcodes.ASM4;
+
+/**
+ * Counts the methods of a transformed class which are copied verbatim
+ * from the original class bytes and the ones which are rewritten.
+ * Copying requires the ClassWriter to be created from the ClassReader
+ * (see {@linkplain InstrumentUtils#newClassWriter(ClassReader, byte[], ClassHierarchy)}),
+ * otherwise the "copied" methods are only the untouched ones.
+ * <p>
+ * A ClassWriter created from the ClassReader copies a method as is when
+ * the MethodVisitor given back to the reader is the writer's own one -
+ * ie. no adapter in the chain wrapped it. This visitor sits right above
+ * the writer and remembers its method visitors; the visitor returned by
+ * {@linkplain #top(ClassVisitor)} is put on top of the chain and checks
+ * what the reader actually gets.
+ */
+public final class MethodCopyCounter extends ClassVisitor {
+    private MethodVisitor written;
+    private int copied;
+    private int rewritten;
+
+    public MethodCopyCounter(ClassVisitor writer) {
+        super(ASM4, writer);
+    }
+
+    public MethodVisitor visitMethod(int access, String name, String desc,
+                                     String signature, String[] exceptions) {
+        written = super.visitMethod(access, name, desc, signature, exceptions);
+        return written;
+    }
+
+    /**
+     * Returns the visitor to be accepted by the ClassReader in place of
+     * the given top of the adapter chain.
+     */
+    public ClassVisitor top(ClassVisitor chain) {
+        return new ClassVisitor(ASM4, chain) {
+            public MethodVisitor visitMethod(int access, String name, String desc,
+                                             String signature, String[] exceptions) {
+                written = null;
+                MethodVisitor mv = super.visitMethod(access, name, desc, signature, exceptions);
+                if (mv != null && mv == written) {
+                    copied++;
+                } else {
+                    rewritten++;
+                }
+                return mv;
+            }
+        };
+    }
+
+    /**
+     * @return the number of original methods copied verbatim
+     */
+    public int getCopiedMethods() {
+        return copied;
+    }
+
+    /**
+     * @return the number of original methods whose code was rewritten
+     */
+    public int getRewrittenMethods() {
+        return rewritten;
+    }
+}
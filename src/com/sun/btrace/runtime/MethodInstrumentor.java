@@ -25,6 +25,7 @@
 
 package com.sun.btrace.runtime;
 
+import com.sun.btrace.org.objectweb.asm.Label;
 import com.sun.btrace.org.objectweb.asm.MethodVisitor;
 import com.sun.btrace.org.objectweb.asm.Type;
 import com.sun.btrace.util.LocalVariablesSorter;
@@ -265,6 +266,11 @@ public class MethodInstrumentor extends MethodVisitor {
     private Type returnType;
     private Type[] argumentTypes;
     private Map<Integer, Type> extraTypes;
+    // the BTrace class and handler index of a sampled probe, see setSampler
+    private String btraceClassName;
+    private int probeIndex = -1;
+    private int[] sampleIndex;
+    private Label notSampled;
 
     public MethodInstrumentor(MethodVisitor mv, String parentClz, String superClz,
         int access, String name, String desc) {
@@ -305,7 +311,74 @@ public class MethodInstrumentor extends MethodVisitor {
         }
     }
 
+    /**
+     * Makes the injected handler calls of a sampled probe run only for the
+     * calls picked by the sampler of the handler with the given index.
+     * @param sampleIndex holds the long local with the sample drawn at
+     *        the method entry by {@linkplain #drawSample()}, -1 while there
+     *        is none; null if the sample is drawn where the probe fires
+     */
+    public void setSampler(String btraceClassName, int probeIndex, int[] sampleIndex) {
+        this.btraceClassName = btraceClassName;
+        this.probeIndex = probeIndex;
+        this.sampleIndex = sampleIndex;
+    }
+
+    public int[] getSampleIndex() {
+        return sampleIndex;
+    }
+
+    /**
+     * Pushes the weight of a sample drawn ahead of the probe; 0 if the
+     * call is not sampled.
+     */
+    public void drawSample() {
+        super.visitFieldInsn(GETSTATIC, btraceClassName,
+                Preprocessor.BTRACE_RUNTIME_FIELD_NAME, Preprocessor.BTRACE_RUNTIME_DESC);
+        push(probeIndex);
+        invokeStatic(Preprocessor.BTRACE_RUNTIME, Preprocessor.BTRACE_RUNTIME_NEXT_SAMPLE,
+                Preprocessor.BTRACE_RUNTIME_NEXT_SAMPLE_DESC);
+    }
+
+    /**
+     * Starts the code skipped for the calls a sampled probe leaves out;
+     * a no-op for the other probes or if already started. Must be called
+     * before anything is pushed for the handler call. The local with the
+     * sample drawn at the method entry is loaded as is, so the local
+     * variables sorter is to be frozen.
+     */
+    protected void beginSampled() {
+        if (btraceClassName == null || notSampled != null) {
+            return;
+        }
+        notSampled = new Label();
+        if (sampleIndex != null && sampleIndex[0] != -1) {
+            loadLocal(Type.LONG_TYPE, sampleIndex[0]);
+            invokeStatic(Preprocessor.BTRACE_RUNTIME, Preprocessor.BTRACE_RUNTIME_SAMPLED,
+                    Preprocessor.BTRACE_RUNTIME_SAMPLED_DESC);
+        } else {
+            super.visitFieldInsn(GETSTATIC, btraceClassName,
+                    Preprocessor.BTRACE_RUNTIME_FIELD_NAME, Preprocessor.BTRACE_RUNTIME_DESC);
+            push(probeIndex);
+            invokeStatic(Preprocessor.BTRACE_RUNTIME, Preprocessor.BTRACE_RUNTIME_SAMPLE,
+                    Preprocessor.BTRACE_RUNTIME_SAMPLE_DESC);
+        }
+        super.visitJumpInsn(IFEQ, notSampled);
+    }
+
+    /**
+     * Ends the code started by {@linkplain #beginSampled()}, right after
+     * the handler call.
+     */
+    protected void endSampled() {
+        if (notSampled != null) {
+            super.visitLabel(notSampled);
+            notSampled = null;
+        }
+    }
+
     protected void loadArguments(ArgumentProvider ... argumentProviders) {
+        beginSampled();
         //
         Arrays.sort(argumentProviders, new Comparator<ArgumentProvider>() {
             public int compare(ArgumentProvider o1, ArgumentProvider o2) {
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2008-2010 Sun Microsystems, Inc.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Sun designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Sun in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Sun Microsystems, Inc., 4150 Network Circle, Santa Clara,
+ * CA 95054 USA or visit www.sun.com if you need additional information or
+ * have any questions.
+ */
+package com.sun.btrace.runtime;
+
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import static com.sun.btrace.runtime.Constants.REGEX_SPECIFIER;
+
+/**
+ * A compiled BTrace name specification - either an exact name or a
+ * regular expression enclosed in slashes (eg. <code>/java\.io\..*&#47;</code>).
+ * An empty specification or an invalid regular expression matches nothing.
+ */
+public final class NameMatcher {
+    /**
+     * Matches nothing
+     */
+    public static final NameMatcher NONE = new NameMatcher(null, null);
+
+    private final String name;
+    private final Pattern pattern;
+
+    private NameMatcher(String name, Pattern pattern) {
+        this.name = name;
+        this.pattern = pattern;
+    }
+
+    public static NameMatcher compile(String spec) {
+        if (spec == null || spec.length() == 0) {
+            return NONE;
+        }
+        if (spec.charAt(0) == '/' && REGEX_SPECIFIER.matcher(spec).matches()) {
+            String regex = spec.substring(1, spec.length() - 1);
+            try {
+                return new NameMatcher(null, Pattern.compile(regex));
+            } catch (PatternSyntaxException pse) {
+                System.err.println("btrace ERROR: invalid regex pattern - " + regex);
+                return NONE;
+            }
+        }
+        return new NameMatcher(spec, null);
+    }
+
+    public boolean matches(String input) {
+        if (name != null) {
+            return name.equals(input);
+        }
+        return pattern != null && pattern.matcher(input).matches();
+    }
+
+    /**
+     * @return the exact name or null if this is a regular expression
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the regular expression or null if this is an exact name
+     */
+    public String getRegex() {
+        return pattern != null? pattern.pattern() : null;
+    }
+}
@@ -25,6 +25,8 @@
 
 package com.sun.btrace.runtime;
 
+import com.sun.btrace.annotations.Sampler;
+
 /**
  * This class is used to store data of the annotation
  * com.sun.btrace.annotations.OnMethod. We can not read the
@@ -55,6 +57,12 @@ public class OnMethod {
     private int durationParameter = -1;
     private boolean methodFqn = false;
     private boolean targetMethodFqn = false;
+    private Sampler sampler = Sampler.NONE;
+    private int samplerMean = 1;
+    private int samplerRate = 1000;
+    // number of the action method among the probe handlers
+    // of the preprocessed BTrace class
+    private int probeIndex = -1;
     
     public OnMethod() {
     }
@@ -186,5 +194,44 @@ public class OnMethod {
         this.durationParameter = durationParameter;
     }
 
+    public Sampler getSampler() {
+        return sampler;
+    }
+
+    public void setSampler(Sampler sampler) {
+        this.sampler = sampler;
+    }
+
+    public int getSamplerMean() {
+        return samplerMean;
+    }
+
+    public void setSamplerMean(int samplerMean) {
+        this.samplerMean = samplerMean;
+    }
+
+    public int getSamplerRate() {
+        return samplerRate;
+    }
+
+    public void setSamplerRate(int samplerRate) {
+        this.samplerRate = samplerRate;
+    }
+
+    /**
+     * Tells whether the calls of the probed location are sampled; that
+     * takes the action method to have been numbered by the preprocessor.
+     */
+    public boolean isSampled() {
+        return sampler != Sampler.NONE && probeIndex != -1;
+    }
+
+    public int getProbeIndex() {
+        return probeIndex;
+    }
+
+    public void setProbeIndex(int probeIndex) {
+        this.probeIndex = probeIndex;
+    }
 
 }
@@ -0,0 +1,288 @@
+/*
+ * Copyright 2008-2010 Sun Microsystems, Inc.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Sun designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Sun in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Sun Microsystems, Inc., 4150 Network Circle, Santa Clara,
+ * CA 95054 USA or visit www.sun.com if you need additional information or
+ * have any questions.
+ */
+package com.sun.btrace.runtime;
+
+import com.sun.btrace.annotations.Kind;
+import com.sun.btrace.org.objectweb.asm.Type;
+
+/**
+ * The compiled form of an {@linkplain OnMethod}. All the name patterns
+ * and type declarations of the probe are parsed once, when the BTrace
+ * class is loaded; matching a class or a method against the probe
+ * then does not compile any regular expression nor parse any type
+ * declaration.
+ */
+public final class OnMethodMatcher {
+    static final int CLASS_NONE = 0;
+    static final int CLASS_NAME = 1;
+    static final int CLASS_SUBTYPE = 2;
+    static final int CLASS_ANNOTATION = 3;
+
+    private final OnMethod om;
+    private final int ordinal;
+
+    private final int classKind;
+    private final NameMatcher classMatcher;
+    private final String superType;
+    private final String superTypeInternal;
+
+    private final boolean line;
+    // "method" is @annotation
+    private final boolean methodAnnotation;
+    private final NameMatcher methodMatcher;
+    // null if any signature matches
+    private final Type[] argTypes;
+    private final boolean validType;
+
+    private final NameMatcher locationClass;
+    private final NameMatcher locationMethod;
+    private final NameMatcher locationField;
+    private final NameMatcher locationArrayType;
+    private final Type[] locationArgTypes;
+    private final boolean validLocationType;
+
+    OnMethodMatcher(OnMethod om, int ordinal) {
+        this.om = om;
+        this.ordinal = ordinal;
+
+        String clazz = om.getClazz();
+        String st = null;
+        NameMatcher cm = NameMatcher.NONE;
+        int ck = CLASS_NONE;
+        if (clazz != null && clazz.length() > 0) {
+            char firstCh = clazz.charAt(0);
+            if (firstCh == '+') {
+                ck = CLASS_SUBTYPE;
+                st = clazz.substring(1);
+            } else if (firstCh == '@') {
+                ck = CLASS_ANNOTATION;
+                cm = NameMatcher.compile(clazz.substring(1));
+            } else {
+                ck = CLASS_NAME;
+                cm = NameMatcher.compile(clazz);
+            }
+        }
+        classKind = ck;
+        classMatcher = cm;
+        superType = st;
+        superTypeInternal = st != null? st.replace('.', '/') : null;
+
+        Location loc = om.getLocation();
+        line = loc.getValue() == Kind.LINE;
+        String methodName = om.getMethod();
+        if (methodName.equals("")) {
+            methodName = om.getTargetName();
+        }
+        if (methodName != null && methodName.length() > 0 && methodName.charAt(0) == '@') {
+            methodAnnotation = true;
+            methodMatcher = NameMatcher.compile(methodName.substring(1));
+        } else {
+            methodAnnotation = false;
+            methodMatcher = NameMatcher.compile(methodName);
+        }
+        Type[] args = null;
+        boolean valid = true;
+        try {
+            args = parseArgumentTypes(om.getType());
+        } catch (IllegalArgumentException e) {
+            reportInvalidType(om.getType());
+            valid = false;
+        }
+        argTypes = args;
+        validType = valid;
+
+        locationClass = NameMatcher.compile(loc.getClazz());
+        locationMethod = NameMatcher.compile(loc.getMethod());
+        locationField = NameMatcher.compile(
+            (om.isTargetMethodOrFieldFqn() ? loc.getClazz() + "." : "") + loc.getField());
+        locationArrayType = NameMatcher.compile(TypeUtils.objectOrArrayType(loc.getClazz()));
+        args = null;
+        valid = true;
+        try {
+            args = parseArgumentTypes(loc.getType());
+        } catch (IllegalArgumentException e) {
+            reportInvalidType(loc.getType());
+            valid = false;
+        }
+        locationArgTypes = args;
+        validLocationType = valid;
+    }
+
+    public OnMethod getOnMethod() {
+        return om;
+    }
+
+    /**
+     * @return the position of the probe in the BTrace class
+     */
+    public int getOrdinal() {
+        return ordinal;
+    }
+
+    int getClassKind() {
+        return classKind;
+    }
+
+    NameMatcher getClassMatcher() {
+        return classMatcher;
+    }
+
+    String getSuperType() {
+        return superType;
+    }
+
+    String getSuperTypeInternal() {
+        return superTypeInternal;
+    }
+
+    /**
+     * Returns whether the class being loaded or redefined matches the
+     * "clazz" of the probe. The annotated class probes are matched by
+     * {@linkplain #matchesClassAnnotation(String)} instead.
+     *
+     * @param clazz the class being redefined or null
+     * @param externalName the '.' separated name of the class
+     * @param superName the internal name of the super class
+     * @param interfaces the internal names of the directly implemented interfaces
+     */
+    public boolean matchesClass(Class clazz, String externalName,
+                                String superName, String[] interfaces) {
+        switch (classKind) {
+            case CLASS_NAME:
+                return classMatcher.matches(externalName);
+            case CLASS_SUBTYPE:
+                /*
+                 * If we are redefining a class, then we have a Class object
+                 * of it and we can walk through it's hierarchy to match for
+                 * specified super type. But, if we are loading it a fresh, then
+                 * we can not walk through super hierarchy. We just check the
+                 * immediate super class and directly implemented interfaces
+                 */
+                return ClassFilter.isSubTypeOf(clazz, superType) ||
+                       superTypeInternal.equals(superName) ||
+                       isInArray(interfaces, superTypeInternal);
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @param externalName the '.' separated name of an annotation of the class
+     */
+    public boolean matchesClassAnnotation(String externalName) {
+        return classKind == CLASS_ANNOTATION && classMatcher.matches(externalName);
+    }
+
+    /**
+     * @return whether this is a line number probe, applied to every
+     *         method of the matching classes
+     */
+    public boolean isLine() {
+        return line;
+    }
+
+    public boolean isMethodAnnotation() {
+        return methodAnnotation;
+    }
+
+    /**
+     * @return the exact method name or null for regex and annotation probes
+     */
+    String getMethodName() {
+        return methodAnnotation? null : methodMatcher.getName();
+    }
+
+    public boolean matchesMethod(String name, String desc) {
+        return !methodAnnotation && methodMatcher.matches(name) && matchesType(desc);
+    }
+
+    /**
+     * @param externalName the '.' separated name of an annotation of the method
+     */
+    public boolean matchesMethodAnnotation(String externalName) {
+        return methodAnnotation && methodMatcher.matches(externalName);
+    }
+
+    public boolean matchesType(String desc) {
+        return validType && argsMatch(argTypes, desc);
+    }
+
+    // location matchers, used while walking the method code
+
+    public NameMatcher getLocationClass() {
+        return locationClass;
+    }
+
+    public NameMatcher getLocationMethod() {
+        return locationMethod;
+    }
+
+    /**
+     * @return the matcher of the location field name, qualified by the
+     *         location class name when the field is reported as FQN
+     */
+    public NameMatcher getLocationField() {
+        return locationField;
+    }
+
+    /**
+     * @return the matcher of the location class as a type descriptor
+     */
+    public NameMatcher getLocationArrayType() {
+        return locationArrayType;
+    }
+
+    public boolean matchesLocationType(String desc) {
+        return validLocationType && argsMatch(locationArgTypes, desc);
+    }
+
+    // empty type declaration matches any method signature
+    private static Type[] parseArgumentTypes(String decl) {
+        if (decl == null || decl.length() == 0) {
+            return null;
+        }
+        return Type.getArgumentTypes(TypeUtils.declarationToDescriptor(decl));
+    }
+
+    private static boolean argsMatch(Type[] args, String desc) {
+        return args == null || TypeUtils.isCompatible(args, Type.getArgumentTypes(desc));
+    }
+
+    private static boolean isInArray(String[] candidates, String given) {
+        if (candidates == null) {
+            return false;
+        }
+        for (String c : candidates) {
+            if (c.equals(given)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void reportInvalidType(String decl) {
+        System.err.println("btrace ERROR: invalid type declaration - " + decl);
+    }
+}
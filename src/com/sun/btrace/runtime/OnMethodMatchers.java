@@ -0,0 +1,200 @@
+/*
+ * Copyright 2008-2010 Sun Microsystems, Inc.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Sun designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Sun in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Sun Microsystems, Inc., 4150 Network Circle, Santa Clara,
+ * CA 95054 USA or visit www.sun.com if you need additional information or
+ * have any questions.
+ */
+package com.sun.btrace.runtime;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The compiled {@linkplain OnMethod} probes of a BTrace class. It is
+ * created once, when the BTrace class is loaded, and shared by the
+ * {@linkplain ClassFilter} and all the {@linkplain Instrumentor}s of
+ * the class. Besides the per-probe {@linkplain OnMethodMatcher}s it
+ * keeps:
+ * <ul>
+ *   <li>the class name matchers used by the class filter</li>
+ *   <li>an index of the probes by the exact method name, so that
+ *       a visited method is checked only against the probes that
+ *       may match it</li>
+ * </ul>
+ * Instances are immutable.
+ */
+public final class OnMethodMatchers {
+    private static final int[] NO_PROBES = new int[0];
+
+    private final List<OnMethod> onMethods;
+    private final OnMethodMatcher[] matchers;
+
+    // method name -> ordinals of the probes which may match the method
+    private final Map<String, int[]> byMethodName;
+    // the probes which may match a method of any name
+    private final int[] anyMethod;
+    // the probes on annotated methods
+    private final int[] methodAnnotations;
+
+    private final ClassNameMatcher sourceMatcher;
+    private final ClassNameMatcher annotationMatcher;
+    // +foo type class pattern in any @OnMethod.
+    private final Set<String> superTypes;
+    // same as above but stored in internal name form ('/' instead of '.')
+    private final Set<String> superTypesInternal;
+
+    public OnMethodMatchers(List<OnMethod> onMethods) {
+        this.onMethods = Collections.unmodifiableList(new ArrayList<OnMethod>(onMethods));
+        int size = onMethods.size();
+        matchers = new OnMethodMatcher[size];
+
+        List<String> strSrcList = new ArrayList<String>();
+        List<String> patSrcList = new ArrayList<String>();
+        List<String> strAnoList = new ArrayList<String>();
+        List<String> patAnoList = new ArrayList<String>();
+        Set<String> superTypesSet = new HashSet<String>();
+        Set<String> superTypesInternalSet = new HashSet<String>();
+
+        Map<String, List<Integer>> named = new HashMap<String, List<Integer>>();
+        List<Integer> any = new ArrayList<Integer>();
+        List<Integer> annotated = new ArrayList<Integer>();
+
+        for (int i = 0; i < size; i++) {
+            OnMethodMatcher m = new OnMethodMatcher(onMethods.get(i), i);
+            matchers[i] = m;
+
+            NameMatcher cm = m.getClassMatcher();
+            switch (m.getClassKind()) {
+                case OnMethodMatcher.CLASS_NAME:
+                    addSpec(cm, strSrcList, patSrcList);
+                    break;
+                case OnMethodMatcher.CLASS_ANNOTATION:
+                    addSpec(cm, strAnoList, patAnoList);
+                    break;
+                case OnMethodMatcher.CLASS_SUBTYPE:
+                    superTypesSet.add(m.getSuperType());
+                    superTypesInternalSet.add(m.getSuperTypeInternal());
+                    break;
+            }
+
+            if (m.isMethodAnnotation()) {
+                annotated.add(i);
+            }
+            String methodName = m.getMethodName();
+            if (m.isLine() || (methodName == null && !m.isMethodAnnotation())) {
+                any.add(i);
+            } else if (methodName != null) {
+                List<Integer> list = named.get(methodName);
+                if (list == null) {
+                    list = new ArrayList<Integer>(2);
+                    named.put(methodName, list);
+                }
+                list.add(i);
+            }
+        }
+
+        anyMethod = toArray(any);
+        methodAnnotations = toArray(annotated);
+        byMethodName = new HashMap<String, int[]>();
+        for (Map.Entry<String, List<Integer>> e : named.entrySet()) {
+            // keep the probes in the declaration order
+            List<Integer> merged = new ArrayList<Integer>(e.getValue());
+            merged.addAll(any);
+            Collections.sort(merged);
+            byMethodName.put(e.getKey(), toArray(merged));
+        }
+
+        sourceMatcher = new ClassNameMatcher(strSrcList, patSrcList);
+        annotationMatcher = new ClassNameMatcher(strAnoList, patAnoList);
+        superTypes = superTypesSet;
+        superTypesInternal = superTypesInternalSet;
+    }
+
+    public List<OnMethod> getOnMethods() {
+        return onMethods;
+    }
+
+    public int size() {
+        return matchers.length;
+    }
+
+    public OnMethodMatcher get(int ordinal) {
+        return matchers[ordinal];
+    }
+
+    /**
+     * Returns the ordinals, in the declaration order, of the probes
+     * which may apply to a method of the given name. The returned
+     * array must not be modified.
+     */
+    public int[] getMethodCandidates(String name) {
+        int[] candidates = byMethodName.get(name);
+        return candidates != null? candidates : anyMethod;
+    }
+
+    /**
+     * Returns the ordinals of the probes on annotated methods.
+     * The returned array must not be modified.
+     */
+    public int[] getMethodAnnotationCandidates() {
+        return methodAnnotations;
+    }
+
+    ClassNameMatcher getSourceMatcher() {
+        return sourceMatcher;
+    }
+
+    ClassNameMatcher getAnnotationMatcher() {
+        return annotationMatcher;
+    }
+
+    Set<String> getSuperTypes() {
+        return superTypes;
+    }
+
+    Set<String> getSuperTypesInternal() {
+        return superTypesInternal;
+    }
+
+    private static void addSpec(NameMatcher m, List<String> names, List<String> regexes) {
+        if (m.getName() != null) {
+            names.add(m.getName());
+        } else if (m.getRegex() != null) {
+            regexes.add(m.getRegex());
+        }
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        if (list.isEmpty()) {
+            return NO_PROBES;
+        }
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i).intValue();
+        }
+        return array;
+    }
+}
@@ -28,11 +28,14 @@ package com.sun.btrace.runtime;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import static com.sun.btrace.org.objectweb.asm.Opcodes.*;
 import static com.sun.btrace.runtime.Constants.*;
 import com.sun.btrace.BTraceRuntime;
+import com.sun.btrace.ThreadLocalSlots;
 import com.sun.btrace.annotations.Export;
 import com.sun.btrace.annotations.TLS;
 import com.sun.btrace.annotations.Property;
@@ -45,6 +48,7 @@ import com.sun.btrace.org.objectweb.asm.ClassReader;
 import com.sun.btrace.org.objectweb.asm.ClassVisitor;
 import com.sun.btrace.org.objectweb.asm.ClassWriter;
 import com.sun.btrace.org.objectweb.asm.FieldVisitor;
+import com.sun.btrace.org.objectweb.asm.Handle;
 import com.sun.btrace.org.objectweb.asm.Label;
 import com.sun.btrace.org.objectweb.asm.MethodVisitor;
 import com.sun.btrace.org.objectweb.asm.Opcodes;
@@ -60,23 +64,40 @@ import com.sun.btrace.org.objectweb.asm.Type;
  *    1. add <clinit> method, if one not found
  *    2. replace @Export fields by perf counters
  *       and replace put/get by perf counter update/read
- *    3. replace @TLS fields by ThreadLocal fields
- *       and replace put/get by ThreadLocal set/get
- *    4. In <clinit> method, add ThreadLocal creation
- *       and perf counter creation calls (for @Export and
- *       @TLS fields respectively)
+ *       through the counter handle bound in <clinit>;
+ *       increments become a single atomic add
+ *    3. replace @TLS fields by slots of a ThreadLocalSlots
+ *       and replace put/get by slot write/read; each method
+ *       using a @TLS field fetches the slots of the current
+ *       thread on entry
+ *    4. In <clinit> method, add ThreadLocalSlots creation
+ *       and perf counter creation calls (for @TLS and
+ *       @Export fields respectively)
  *    5. Add a field to store BTraceRuntime object and
  *       initialize the same in <clinit> method
  *    6. add prolog and epilog in each BTrace action method
  *       to insert BTraceRuntime.enter/leave and also to call
  *       BTraceRuntime.handleException on exception catch
  *    7. add a field to store client's BTraceRuntime instance
+ *    8. number the probe handlers; their enter/leave and exception
+ *       handling calls pass the number on, so that the runtime can
+ *       count and time each handler. The handler names are listed
+ *       in a constant field, in the order of their numbers
  *
  * 
  * @author A. Sundararajan
  */
 public class Preprocessor extends ClassVisitor {
-    public static final String JAVA_LANG_THREAD_LOCAL_DESC = "Ljava/lang/ThreadLocal;";
+    public static final String THREAD_LOCAL_SLOTS =
+        Type.getInternalName(ThreadLocalSlots.class);
+    public static final String THREAD_LOCAL_SLOTS_DESC =
+        Type.getDescriptor(ThreadLocalSlots.class);
+    public static final String THREAD_LOCAL_SLOTS_GET = "get";
+    public static final String SLOTS =
+        Type.getInternalName(ThreadLocalSlots.Slots.class);
+    public static final String SLOTS_DESC =
+        Type.getDescriptor(ThreadLocalSlots.Slots.class);
+    public static final String THREAD_LOCAL_SLOTS_GET_DESC = "()" + SLOTS_DESC;
     // btrace specific stuff
     public static final String BTRACE_EXPORT_DESC =
         Type.getDescriptor(Export.class);
@@ -95,22 +116,35 @@ public class Preprocessor extends ClassVisitor {
         Type.getDescriptor(BTraceRuntime.class);
 
     public static final String BTRACE_RUNTIME_FIELD_NAME = "runtime";
+    public static final String BTRACE_TLS_FIELD_NAME = "tls";
+    public static final String BTRACE_PROBES_FIELD_NAME = BTraceRuntime.PROBES_FIELD_NAME;
     public static final String BTRACE_FIELD_PREFIX = "$";
 
     public static final String BTRACE_RUNTIME_HANDLE_EXCEPTION;
     public static final String BTRACE_RUNTIME_HANDLE_EXCEPTION_DESC;
+    public static final String BTRACE_RUNTIME_HANDLE_PROBE_EXCEPTION_DESC;
     public static final String BTRACE_RUNTIME_ENTER;
     public static final String BTRACE_RUNTIME_ENTER_DESC;
+    public static final String BTRACE_RUNTIME_ENTER_PROBE_DESC;
     public static final String BTRACE_RUNTIME_LEAVE;
     public static final String BTRACE_RUNTIME_LEAVE_DESC; 
+    public static final String BTRACE_RUNTIME_LEAVE_PROBE_DESC;
+    public static final String BTRACE_RUNTIME_SAMPLE;
+    public static final String BTRACE_RUNTIME_SAMPLE_DESC;
+    public static final String BTRACE_RUNTIME_NEXT_SAMPLE;
+    public static final String BTRACE_RUNTIME_NEXT_SAMPLE_DESC;
+    public static final String BTRACE_RUNTIME_SAMPLED;
+    public static final String BTRACE_RUNTIME_SAMPLED_DESC;
     public static final String BTRACE_RUNTIME_START;
     public static final String BTRACE_RUNTIME_START_DESC; 
     public static final String BTRACE_RUNTIME_FOR_CLASS;
     public static final String BTRACE_RUNTIME_FOR_CLASS_DESC;
-    public static final String BTRACE_RUNTIME_NEW_THREAD_LOCAL;
-    public static final String BTRACE_RUNTIME_NEW_THREAD_LOCAL_DESC;
+    public static final String BTRACE_RUNTIME_NEW_THREAD_LOCAL_SLOTS;
+    public static final String BTRACE_RUNTIME_NEW_THREAD_LOCAL_SLOTS_DESC;
     public static final String BTRACE_RUNTIME_NEW_PERFCOUNTER;
     public static final String BTRACE_RUNTIME_NEW_PERFCOUNTER_DESC;
+    public static final String BTRACE_RUNTIME_GET_PERFCOUNTER_HANDLE;
+    public static final String BTRACE_RUNTIME_GET_PERFCOUNTER_HANDLE_DESC;
     public static final String BTRACE_RUNTIME_GET_PERFSTRING;
     public static final String BTRACE_RUNTIME_GET_PERFSTRING_DESC;
     public static final String BTRACE_RUNTIME_GET_PERFINT;
@@ -131,6 +165,10 @@ public class Preprocessor extends ClassVisitor {
     public static final String BTRACE_RUNTIME_PUT_PERFFLOAT_DESC;
     public static final String BTRACE_RUNTIME_PUT_PERFDOUBLE;
     public static final String BTRACE_RUNTIME_PUT_PERFDOUBLE_DESC;
+    public static final String BTRACE_RUNTIME_ADD_PERFINT;
+    public static final String BTRACE_RUNTIME_ADD_PERFINT_DESC;
+    public static final String BTRACE_RUNTIME_ADD_PERFLONG;
+    public static final String BTRACE_RUNTIME_ADD_PERFLONG_DESC;
 
     static {     
        try {
@@ -142,6 +180,10 @@ public class Preprocessor extends ClassVisitor {
                        handleException.getName();
            BTRACE_RUNTIME_HANDLE_EXCEPTION_DESC = 
                        Type.getMethodDescriptor(handleException);
+           BTRACE_RUNTIME_HANDLE_PROBE_EXCEPTION_DESC =
+                       Type.getMethodDescriptor(BTraceRuntime.class.getMethod(
+                       "handleException",
+                       new Class[] { Throwable.class, int.class }));
 
            Method enter = BTraceRuntime.class.getMethod(
                        "enter",
@@ -149,6 +191,10 @@ public class Preprocessor extends ClassVisitor {
            BTRACE_RUNTIME_ENTER = enter.getName();
            BTRACE_RUNTIME_ENTER_DESC = 
                        Type.getMethodDescriptor(enter);
+           BTRACE_RUNTIME_ENTER_PROBE_DESC =
+                       Type.getMethodDescriptor(BTraceRuntime.class.getMethod(
+                       "enter",
+                       new Class[] { BTraceRuntime.class, int.class }));
 
            Method leave = BTraceRuntime.class.getMethod(
                        "leave",
@@ -156,6 +202,31 @@ public class Preprocessor extends ClassVisitor {
            BTRACE_RUNTIME_LEAVE = leave.getName();
            BTRACE_RUNTIME_LEAVE_DESC = 
                        Type.getMethodDescriptor(leave);
+           BTRACE_RUNTIME_LEAVE_PROBE_DESC =
+                       Type.getMethodDescriptor(BTraceRuntime.class.getMethod(
+                       "leave",
+                       new Class[] { BTraceRuntime.class, int.class }));
+
+           Method sample = BTraceRuntime.class.getMethod(
+                       "sample",
+                       new Class[] { BTraceRuntime.class, int.class });
+           BTRACE_RUNTIME_SAMPLE = sample.getName();
+           BTRACE_RUNTIME_SAMPLE_DESC =
+                       Type.getMethodDescriptor(sample);
+
+           Method nextSample = BTraceRuntime.class.getMethod(
+                       "nextSample",
+                       new Class[] { BTraceRuntime.class, int.class });
+           BTRACE_RUNTIME_NEXT_SAMPLE = nextSample.getName();
+           BTRACE_RUNTIME_NEXT_SAMPLE_DESC =
+                       Type.getMethodDescriptor(nextSample);
+
+           Method sampled = BTraceRuntime.class.getMethod(
+                       "sampled",
+                       new Class[] { long.class });
+           BTRACE_RUNTIME_SAMPLED = sampled.getName();
+           BTRACE_RUNTIME_SAMPLED_DESC =
+                       Type.getMethodDescriptor(sampled);
 
            Method start = BTraceRuntime.class.getMethod(
                        "start",
@@ -171,12 +242,12 @@ public class Preprocessor extends ClassVisitor {
            BTRACE_RUNTIME_FOR_CLASS_DESC = 
                        Type.getMethodDescriptor(forClass);
 
-           Method newThreadLocal = BTraceRuntime.class.getMethod(
-                       "newThreadLocal",
-                       new Class[] { Object.class });
-           BTRACE_RUNTIME_NEW_THREAD_LOCAL = newThreadLocal.getName();
-           BTRACE_RUNTIME_NEW_THREAD_LOCAL_DESC = 
-                       Type.getMethodDescriptor(newThreadLocal);
+           Method newThreadLocalSlots = BTraceRuntime.class.getMethod(
+                       "newThreadLocalSlots",
+                       new Class[] { int.class, int.class });
+           BTRACE_RUNTIME_NEW_THREAD_LOCAL_SLOTS = newThreadLocalSlots.getName();
+           BTRACE_RUNTIME_NEW_THREAD_LOCAL_SLOTS_DESC = 
+                       Type.getMethodDescriptor(newThreadLocalSlots);
 
            Method newPerfCounter = BTraceRuntime.class.getMethod(
                        "newPerfCounter",
@@ -185,6 +256,13 @@ public class Preprocessor extends ClassVisitor {
            BTRACE_RUNTIME_NEW_PERFCOUNTER_DESC = 
                        Type.getMethodDescriptor(newPerfCounter);
 
+           Method getPerfCounterHandle = BTraceRuntime.class.getMethod(
+                       "getPerfCounterHandle",
+                       new Class[] { String.class });
+           BTRACE_RUNTIME_GET_PERFCOUNTER_HANDLE = getPerfCounterHandle.getName();
+           BTRACE_RUNTIME_GET_PERFCOUNTER_HANDLE_DESC = 
+                       Type.getMethodDescriptor(getPerfCounterHandle);
+
            Method getPerfString = BTraceRuntime.class.getMethod(
                        "getPerfString",
                        new Class[] { String.class });
@@ -194,28 +272,28 @@ public class Preprocessor extends ClassVisitor {
 
            Method getPerfInt = BTraceRuntime.class.getMethod(
                        "getPerfInt",
-                       new Class[] { String.class });
+                       new Class[] { int.class });
            BTRACE_RUNTIME_GET_PERFINT = getPerfInt.getName();
            BTRACE_RUNTIME_GET_PERFINT_DESC = 
                        Type.getMethodDescriptor(getPerfInt);
 
            Method getPerfLong = BTraceRuntime.class.getMethod(
                        "getPerfLong",
-                       new Class[] { String.class });
+                       new Class[] { int.class });
            BTRACE_RUNTIME_GET_PERFLONG = getPerfLong.getName();
            BTRACE_RUNTIME_GET_PERFLONG_DESC = 
                        Type.getMethodDescriptor(getPerfLong);
 
            Method getPerfFloat = BTraceRuntime.class.getMethod(
                        "getPerfFloat",
-                       new Class[] { String.class });
+                       new Class[] { int.class });
            BTRACE_RUNTIME_GET_PERFFLOAT = getPerfFloat.getName();
            BTRACE_RUNTIME_GET_PERFFLOAT_DESC = 
                        Type.getMethodDescriptor(getPerfFloat);
 
            Method getPerfDouble = BTraceRuntime.class.getMethod(
                        "getPerfDouble",
-                       new Class[] { String.class });
+                       new Class[] { int.class });
            BTRACE_RUNTIME_GET_PERFDOUBLE = getPerfDouble.getName();
            BTRACE_RUNTIME_GET_PERFDOUBLE_DESC = 
                        Type.getMethodDescriptor(getPerfDouble);
@@ -229,31 +307,45 @@ public class Preprocessor extends ClassVisitor {
 
            Method putPerfInt = BTraceRuntime.class.getMethod(
                        "putPerfInt",
-                       new Class[] { int.class, String.class });
+                       new Class[] { int.class, int.class });
            BTRACE_RUNTIME_PUT_PERFINT = putPerfInt.getName();
            BTRACE_RUNTIME_PUT_PERFINT_DESC = 
                        Type.getMethodDescriptor(putPerfInt);
 
            Method putPerfLong = BTraceRuntime.class.getMethod(
                        "putPerfLong",
-                       new Class[] { long.class, String.class });
+                       new Class[] { long.class, int.class });
            BTRACE_RUNTIME_PUT_PERFLONG = putPerfLong.getName();
            BTRACE_RUNTIME_PUT_PERFLONG_DESC = 
                        Type.getMethodDescriptor(putPerfLong);
 
            Method putPerfFloat = BTraceRuntime.class.getMethod(
                        "putPerfFloat",
-                       new Class[] { float.class, String.class });
+                       new Class[] { float.class, int.class });
            BTRACE_RUNTIME_PUT_PERFFLOAT = putPerfFloat.getName();
            BTRACE_RUNTIME_PUT_PERFFLOAT_DESC = 
                        Type.getMethodDescriptor(putPerfFloat);
 
            Method putPerfDouble = BTraceRuntime.class.getMethod(
                        "putPerfDouble",
-                       new Class[] { double.class, String.class });
+                       new Class[] { double.class, int.class });
            BTRACE_RUNTIME_PUT_PERFDOUBLE = putPerfDouble.getName();
            BTRACE_RUNTIME_PUT_PERFDOUBLE_DESC = 
-                       Type.getMethodDescriptor(putPerfDouble);           
+                       Type.getMethodDescriptor(putPerfDouble);
+
+           Method addPerfInt = BTraceRuntime.class.getMethod(
+                       "addPerfInt",
+                       new Class[] { int.class, int.class });
+           BTRACE_RUNTIME_ADD_PERFINT = addPerfInt.getName();
+           BTRACE_RUNTIME_ADD_PERFINT_DESC = 
+                       Type.getMethodDescriptor(addPerfInt);
+
+           Method addPerfLong = BTraceRuntime.class.getMethod(
+                       "addPerfLong",
+                       new Class[] { int.class, long.class });
+           BTRACE_RUNTIME_ADD_PERFLONG = addPerfLong.getName();
+           BTRACE_RUNTIME_ADD_PERFLONG_DESC = 
+                       Type.getMethodDescriptor(addPerfLong);
        } catch (RuntimeException re) {
            throw re;
        } catch (Exception exp) {
@@ -273,15 +365,80 @@ public class Preprocessor extends ClassVisitor {
     private List<FieldDescriptor> fields;
     private Map<String, FieldDescriptor> threadLocalFields;
     private Map<String, FieldDescriptor> exportFields;
+    // number of primitive and reference @TLS slots
+    private int tlsValues, tlsObjects;
 
     // flag to tell whether we have seen <clinit> or not
     private boolean classInitializerFound;
 
+    // names of the probe handlers, indexed by their numbers
+    private final List<String> probeNames = new ArrayList<String>();
+    // and their names with descriptors, to look the numbers up
+    private final List<String> probeKeys = new ArrayList<String>();
+
+    // static fields of the class accessed by each method, keyed by the
+    // method name and descriptor; null if the class was not scanned
+    private final Map<String, Set<String>> staticFieldAccesses;
+
+    /**
+     * Creates a preprocessor which gives every method the @TLS slots of
+     * the current thread, whether it uses a @TLS field or not.
+     */
     public Preprocessor(ClassVisitor cv) {
+        this(cv, null);
+    }
+
+    /**
+     * Creates a preprocessor for the class read by the given reader. The
+     * class is scanned beforehand so that only the methods accessing a
+     * @TLS field look the slots of the current thread up.
+     */
+    public Preprocessor(ClassVisitor cv, ClassReader reader) {
         super(Opcodes.ASM4, cv);
         fields = new ArrayList<FieldDescriptor>();
         threadLocalFields = new HashMap<String, FieldDescriptor>();
         exportFields = new HashMap<String, FieldDescriptor>();
+        staticFieldAccesses = reader != null? scanStaticFieldAccesses(reader) : null;
+    }
+
+    private static Map<String, Set<String>> scanStaticFieldAccesses(final ClassReader reader) {
+        final Map<String, Set<String>> accesses = new HashMap<String, Set<String>>();
+        reader.accept(new ClassVisitor(Opcodes.ASM4) {
+            public MethodVisitor visitMethod(int access, String name,
+                    String desc, String signature, String[] exceptions) {
+                final Set<String> fieldNames = new HashSet<String>();
+                accesses.put(name + desc, fieldNames);
+                return new MethodVisitor(Opcodes.ASM4) {
+                    public void visitFieldInsn(int opcode, String owner,
+                                               String name, String desc) {
+                        if ((opcode == GETSTATIC || opcode == PUTSTATIC) &&
+                            owner.equals(reader.getClassName())) {
+                            fieldNames.add(name);
+                        }
+                    }
+                };
+            }
+        }, ClassReader.SKIP_DEBUG + ClassReader.SKIP_FRAMES);
+        return accesses;
+    }
+
+    // whether the given method needs the @TLS slots of the current thread
+    private boolean usesThreadLocals(String name, String desc) {
+        if (threadLocalFields.isEmpty()) {
+            return false;
+        }
+        if (staticFieldAccesses == null) {
+            return true;
+        }
+        Set<String> fieldNames = staticFieldAccesses.get(name + desc);
+        if (fieldNames != null) {
+            for (String fieldName : fieldNames) {
+                if (threadLocalFields.containsKey(fieldName)) {
+                    return true;
+                }
+            }
+        }
+        return false;
     }
 
     public void visit(int version,
@@ -347,6 +504,67 @@ public class Preprocessor extends ClassVisitor {
         return BTRACE_COUNTER_PREFIX + externalClassName() + "." + fieldName;
     }
 
+    // Each numeric @Export field is bound to the runtime handle of its
+    // perf counter, stored in a static field named "perf$<field name>". User
+    // fields are renamed with BTRACE_FIELD_PREFIX, so this can't clash.
+    private static final String BTRACE_PERFCOUNTER_HANDLE_PREFIX = "perf$";
+    private static String perfCounterHandleField(String fieldName) {
+        return BTRACE_PERFCOUNTER_HANDLE_PREFIX + fieldName;
+    }
+
+    private static boolean isTLSObject(String desc) {
+        char c = desc.charAt(0);
+        return c == 'L' || c == '[';
+    }
+
+    // suffix of the ThreadLocalSlots accessors for the given field type
+    private static String slotKind(String desc) {
+        switch (desc.charAt(0)) {
+            case 'J':
+                return "Long";
+            case 'F':
+                return "Float";
+            case 'D':
+                return "Double";
+            case 'L':
+            case '[':
+                return "Object";
+            default:
+                return "Int";
+        }
+    }
+
+    private static String slotType(String desc) {
+        switch (desc.charAt(0)) {
+            case 'L':
+            case '[':
+                return "Ljava/lang/Object;";
+            case 'Z':
+            case 'C':
+            case 'B':
+            case 'S':
+                return "I";
+            default:
+                return desc;
+        }
+    }
+
+    private static boolean isNumericPerfCounter(String desc) {
+        switch (desc.charAt(0)) {
+            case 'Z':
+            case 'C':
+            case 'B':
+            case 'S':
+            case 'I':
+            case 'J':
+            case 'F':
+            case 'D':
+                return true;
+            default:
+                return false;
+        }
+    }
+
     // save interesting bits of each field
     private static class FieldDescriptor {
         int access;
@@ -359,6 +577,7 @@ public class Preprocessor extends ClassVisitor {
         String propertyName;
         String propertyDescription;
         int var = -1;
+        int slot = -1;
         boolean initialized;
 
         FieldDescriptor(int acc, String n, String d,
@@ -421,6 +640,7 @@ public class Preprocessor extends ClassVisitor {
                                     propName, propDescription);
                 fields.add(fd);
                 if (isThreadLocal) {         
+                    fd.slot = isTLSObject(desc)? tlsObjects++ : tlsValues++;
                     threadLocalFields.put(name, fd);
                 } else if (isExport) {
                     exportFields.put(name, fd);
@@ -443,23 +663,42 @@ public class Preprocessor extends ClassVisitor {
         super.visitEnd();
     }
 
+    /**
+     * Returns the number the given probe handler got, -1 if
+     * it is not one. Valid once the class has been visited.
+     */
+    public int getProbeIndex(String name, String desc) {
+        return probeKeys.indexOf(name + desc);
+    }
+
+    /**
+     * Returns the number of probe handlers of the class
+     */
+    public int getProbeCount() {
+        return probeKeys.size();
+    }
+
     private void addFields() {
         for (FieldDescriptor fd : fields) {
             String fieldName = fd.name;
+            if (fd.isThreadLocal) {
+                // lives in a ThreadLocalSlots slot
+                continue;
+            }
             if (fd.isExport) {
-                // no need to add a field for exported fields
+                // exported fields live in perf counters; numeric
+                // ones just need a field for the counter handle
+                if (isNumericPerfCounter(fd.desc)) {
+                    super.visitField(ACC_PUBLIC|ACC_STATIC,
+                                     perfCounterHandleField(fieldName),
+                                     "I", null, null).visitEnd();
+                }
                 continue;
             }
             int fieldAccess = fd.access;
             String fieldDesc = fd.desc;
             String fieldSignature = fd.signature;
             Object fieldValue = fd.value;
-            if (fd.isThreadLocal) {
-                fieldAccess &= ~ACC_FINAL;
-                fieldDesc = JAVA_LANG_THREAD_LOCAL_DESC;
-                fieldSignature = null;
-                fieldValue = null;
-            }
 
             fieldAccess &= ~ACC_PRIVATE;
             fieldAccess &= ~ACC_PROTECTED;
@@ -481,9 +720,25 @@ public class Preprocessor extends ClassVisitor {
             fv.visitEnd();
         }
 
+        if (! threadLocalFields.isEmpty()) {
+            super.visitField(ACC_PUBLIC|ACC_STATIC, BTRACE_TLS_FIELD_NAME,
+                       THREAD_LOCAL_SLOTS_DESC, null, null);
+        }
+
         // add a special field to store client's BTraceRuntime
         super.visitField(ACC_PUBLIC|ACC_STATIC, BTRACE_RUNTIME_FIELD_NAME,
                    BTRACE_RUNTIME_DESC, null, null);        
+
+        // and a constant listing the probe handlers
+        StringBuilder names = new StringBuilder();
+        for (String probe : probeNames) {
+            if (names.length() > 0) {
+                names.append(',');
+            }
+            names.append(probe);
+        }
+        super.visitField(ACC_PUBLIC|ACC_STATIC|ACC_FINAL, BTRACE_PROBES_FIELD_NAME,
+                   MethodInstrumentor.JAVA_LANG_STRING_DESC, null, names.toString());
     }
 
     public MethodVisitor visitMethod(int access, String name, 
@@ -509,6 +764,7 @@ public class Preprocessor extends ClassVisitor {
              *
              */
             final boolean isClassInitializer = name.equals(CLASS_INITIALIZER);
+            final boolean usesThreadLocals = !isClassInitializer && usesThreadLocals(name, desc);
             classInitializerFound = classInitializerFound || isClassInitializer;
 
             if (!isClassInitializer) {
@@ -520,12 +776,28 @@ public class Preprocessor extends ClassVisitor {
             
             MethodVisitor adaptee = super.visitMethod(access, name, desc, 
                                                     signature, exceptions);
+            if (! exportFields.isEmpty()) {
+                adaptee = new PerfCounterIncrements(adaptee);
+            }
+            final int argumentsSize = (Type.getArgumentsAndReturnSizes(desc) >> 2) -
+                                      ((access & ACC_STATIC) != 0? 1 : 0);
             
             return new MethodInstrumentor(adaptee, className, superName, access, name, desc) {
                 private boolean isBTraceHandler = false;
+                // number of the probe handler, passed to the runtime
+                private int probeIndex = -1;
                 private Label start = new Label();
                 private Label handler = new Label();
+                // user locals from firstVar on are moved up by nextVar
+                private int firstVar = 0;
                 private int nextVar = 0;
+                // local holding the @TLS slots of the current thread
+                private int slotsVar = -1;
+
+                private void loadPerfCounterHandle(String name) {
+                    super.visitFieldInsn(GETSTATIC, className,
+                                    perfCounterHandleField(name), "I");
+                }
 
                 private void generateExportGet(String name, String desc) {
                     int typeCode = desc.charAt(0);
@@ -535,7 +807,7 @@ public class Preprocessor extends ClassVisitor {
                             break;
                         case 'L':
                             if (desc.equals(JAVA_LANG_STRING_DESC)) {
-                                visitLdcInsn(name);
+                                visitLdcInsn(perfCounterName(name));
                                 visitMethodInsn(INVOKESTATIC, BTRACE_RUNTIME,
                                     BTRACE_RUNTIME_GET_PERFSTRING,
                                     BTRACE_RUNTIME_GET_PERFSTRING_DESC);
@@ -548,25 +820,25 @@ public class Preprocessor extends ClassVisitor {
                         case 'B':
                         case 'S':
                         case 'I':
-                            visitLdcInsn(name);
+                            loadPerfCounterHandle(name);
                             visitMethodInsn(INVOKESTATIC, BTRACE_RUNTIME,
                                     BTRACE_RUNTIME_GET_PERFINT,
                                     BTRACE_RUNTIME_GET_PERFINT_DESC);
                             break;
                         case 'J':
-                            visitLdcInsn(name);
+                            loadPerfCounterHandle(name);
                             visitMethodInsn(INVOKESTATIC, BTRACE_RUNTIME,
                                     BTRACE_RUNTIME_GET_PERFLONG,
                                     BTRACE_RUNTIME_GET_PERFLONG_DESC);
                             break;
                         case 'F':
-                            visitLdcInsn(name);
+                            loadPerfCounterHandle(name);
                             visitMethodInsn(INVOKESTATIC, BTRACE_RUNTIME,
                                     BTRACE_RUNTIME_GET_PERFFLOAT,
                                     BTRACE_RUNTIME_GET_PERFFLOAT_DESC);
                             break;
                         case 'D':
-                            visitLdcInsn(name);
+                            loadPerfCounterHandle(name);
                             visitMethodInsn(INVOKESTATIC, BTRACE_RUNTIME,
                                     BTRACE_RUNTIME_GET_PERFDOUBLE,
                                     BTRACE_RUNTIME_GET_PERFDOUBLE_DESC);
@@ -574,6 +846,7 @@ public class Preprocessor extends ClassVisitor {
                     }
                 }
 
+                // the value is on the stack, the handle goes after it
                 private void generateExportPut(String name, String desc) {
                     int typeCode = desc.charAt(0);
                     switch (typeCode) {
@@ -582,7 +855,7 @@ public class Preprocessor extends ClassVisitor {
                             break;
                         case 'L':
                             if (desc.equals(JAVA_LANG_STRING_DESC)) {
-                                visitLdcInsn(name);
+                                visitLdcInsn(perfCounterName(name));
                                 visitMethodInsn(INVOKESTATIC, BTRACE_RUNTIME,
                                     BTRACE_RUNTIME_PUT_PERFSTRING, 
                                     BTRACE_RUNTIME_PUT_PERFSTRING_DESC);
@@ -595,25 +868,25 @@ public class Preprocessor extends ClassVisitor {
                         case 'B':
                         case 'S':
                         case 'I':
-                            visitLdcInsn(name);
+                            loadPerfCounterHandle(name);
                             visitMethodInsn(INVOKESTATIC, BTRACE_RUNTIME,
                                     BTRACE_RUNTIME_PUT_PERFINT,
                                     BTRACE_RUNTIME_PUT_PERFINT_DESC);
                             break;
                         case 'J':
-                            visitLdcInsn(name);
+                            loadPerfCounterHandle(name);
                             visitMethodInsn(INVOKESTATIC, BTRACE_RUNTIME,
                                     BTRACE_RUNTIME_PUT_PERFLONG,
                                     BTRACE_RUNTIME_PUT_PERFLONG_DESC);
                             break;
                         case 'F':
-                            visitLdcInsn(name);
+                            loadPerfCounterHandle(name);
                             visitMethodInsn(INVOKESTATIC, BTRACE_RUNTIME,
                                     BTRACE_RUNTIME_PUT_PERFFLOAT,
                                     BTRACE_RUNTIME_PUT_PERFFLOAT_DESC);
                             break;
                         case 'D':
-                            visitLdcInsn(name);
+                            loadPerfCounterHandle(name);
                             visitMethodInsn(INVOKESTATIC, BTRACE_RUNTIME,
                                     BTRACE_RUNTIME_PUT_PERFDOUBLE,
                                     BTRACE_RUNTIME_PUT_PERFDOUBLE_DESC);
@@ -631,11 +904,14 @@ public class Preprocessor extends ClassVisitor {
                             defaultValue(fd.desc);
                         }
                     } else {
-                        String fieldName = BTRACE_FIELD_PREFIX + fd.name;
-                        super.visitFieldInsn(GETSTATIC, className, fieldName, JAVA_LANG_THREAD_LOCAL_DESC);
-                        visitMethodInsn(INVOKEVIRTUAL, JAVA_LANG_THREAD_LOCAL,
-                                     JAVA_LANG_THREAD_LOCAL_GET, JAVA_LANG_THREAD_LOCAL_GET_DESC);
-                        unbox(fd.desc);
+                        super.visitVarInsn(ALOAD, slotsVar);
+                        visitLdcInsn(fd.slot);
+                        visitMethodInsn(INVOKESTATIC, THREAD_LOCAL_SLOTS,
+                                     "get" + slotKind(fd.desc),
+                                     "(" + SLOTS_DESC + "I)" + slotType(fd.desc));
+                        if (isTLSObject(fd.desc) && !fd.desc.equals("Ljava/lang/Object;")) {
+                            visitTypeInsn(CHECKCAST, Type.getType(fd.desc).getInternalName());
+                        }
                     }
                 }
 
@@ -644,12 +920,11 @@ public class Preprocessor extends ClassVisitor {
                         super.visitVarInsn(Type.getType(fd.desc).getOpcode(Opcodes.ISTORE), fd.var);
                         fd.initialized = true;
                     } else {
-                        String fieldName = BTRACE_FIELD_PREFIX + fd.name;
-                        box(fd.desc);
-                        super.visitFieldInsn(GETSTATIC, className, fieldName, JAVA_LANG_THREAD_LOCAL_DESC);
-                        visitInsn(SWAP);
-                        visitMethodInsn(INVOKEVIRTUAL, JAVA_LANG_THREAD_LOCAL,
-                                    JAVA_LANG_THREAD_LOCAL_SET, JAVA_LANG_THREAD_LOCAL_SET_DESC);
+                        super.visitVarInsn(ALOAD, slotsVar);
+                        visitLdcInsn(fd.slot);
+                        visitMethodInsn(INVOKESTATIC, THREAD_LOCAL_SLOTS,
+                                    "put" + slotKind(fd.desc),
+                                    "(" + slotType(fd.desc) + SLOTS_DESC + "I)V");
                     }
                 }
 
@@ -682,9 +957,19 @@ public class Preprocessor extends ClassVisitor {
                         visitFieldInsn(GETSTATIC, className,
                                        BTRACE_RUNTIME_FIELD_NAME,
                                        BTRACE_RUNTIME_DESC);
-                        visitMethodInsn(INVOKESTATIC, BTRACE_RUNTIME,
+                        if (isClassInitializer) {
+                            visitMethodInsn(INVOKESTATIC, BTRACE_RUNTIME,
                                         BTRACE_RUNTIME_ENTER,
                                         BTRACE_RUNTIME_ENTER_DESC);
+                        } else {
+                            probeIndex = probeNames.size();
+                            probeNames.add(getName());
+                            probeKeys.add(getName() + getDescriptor());
+                            visitLdcInsn(probeIndex);
+                            visitMethodInsn(INVOKESTATIC, BTRACE_RUNTIME,
+                                        BTRACE_RUNTIME_ENTER,
+                                        BTRACE_RUNTIME_ENTER_PROBE_DESC);
+                        }
                         if (isClassInitializer) {
                              for (FieldDescriptor fd : threadLocalFields.values()) {
                                  fd.var = nextVar;
@@ -702,6 +987,14 @@ public class Preprocessor extends ClassVisitor {
                                  visitMethodInsn(INVOKESTATIC, BTRACE_RUNTIME,
                                         BTRACE_RUNTIME_NEW_PERFCOUNTER,
                                         BTRACE_RUNTIME_NEW_PERFCOUNTER_DESC);
+                                 if (isNumericPerfCounter(fd.desc)) {
+                                     visitLdcInsn(perfCounterName(fd.name));
+                                     visitMethodInsn(INVOKESTATIC, BTRACE_RUNTIME,
+                                        BTRACE_RUNTIME_GET_PERFCOUNTER_HANDLE,
+                                        BTRACE_RUNTIME_GET_PERFCOUNTER_HANDLE_DESC);
+                                     super.visitFieldInsn(PUTSTATIC, className,
+                                        perfCounterHandleField(fd.name), "I");
+                                 }
                              }
                         }
 
@@ -709,6 +1002,17 @@ public class Preprocessor extends ClassVisitor {
                         super.visitInsn(RETURN);
                         visitLabel(start);
                     }
+                    if (usesThreadLocals) {
+                        // fetch the @TLS slots once; the user locals move up by one
+                        firstVar = argumentsSize;
+                        slotsVar = argumentsSize;
+                        nextVar = 1;
+                        super.visitFieldInsn(GETSTATIC, className,
+                                        BTRACE_TLS_FIELD_NAME, THREAD_LOCAL_SLOTS_DESC);
+                        visitMethodInsn(INVOKEVIRTUAL, THREAD_LOCAL_SLOTS,
+                                        THREAD_LOCAL_SLOTS_GET, THREAD_LOCAL_SLOTS_GET_DESC);
+                        super.visitVarInsn(ASTORE, slotsVar);
+                    }
                     super.visitCode();
                 }
 
@@ -718,9 +1022,9 @@ public class Preprocessor extends ClassVisitor {
                     if (owner.equals(className)) {   
                         if (exportFields.get(name) != null) {
                             if (opcode == GETSTATIC) {
-                                generateExportGet(perfCounterName(name), desc);
+                                generateExportGet(name, desc);
                             } else {
-                                generateExportPut(perfCounterName(name), desc);
+                                generateExportPut(name, desc);
                             }
                             return;                       
                         }
@@ -743,30 +1047,52 @@ public class Preprocessor extends ClassVisitor {
                 }
 
                 public void visitVarInsn(int opcode, int var) {
-                    super.visitVarInsn(opcode, var + nextVar);
+                    super.visitVarInsn(opcode, var >= firstVar? var + nextVar : var);
+                }
+
+                public void visitIincInsn(int var, int increment) {
+                    super.visitIincInsn(var >= firstVar? var + nextVar : var, increment);
+                }
+
+                public void visitLocalVariable(String name, String desc, String signature,
+                                               Label start, Label end, int index) {
+                    super.visitLocalVariable(name, desc, signature, start, end,
+                                    index >= firstVar? index + nextVar : index);
                 }
 
                 public void visitInsn(int opcode) {
                     if (opcode == RETURN) {
                         if (isClassInitializer) {
-                            for (FieldDescriptor fd : threadLocalFields.values()) {
-                                generateThreadLocalGet(fd); // generates var load here
-                                box(fd.desc);
+                            if (! threadLocalFields.isEmpty()) {
+                                visitLdcInsn(tlsValues);
+                                visitLdcInsn(tlsObjects);
                                 visitMethodInsn(INVOKESTATIC, BTRACE_RUNTIME,
-                                        BTRACE_RUNTIME_NEW_THREAD_LOCAL,
-                                        BTRACE_RUNTIME_NEW_THREAD_LOCAL_DESC);
+                                        BTRACE_RUNTIME_NEW_THREAD_LOCAL_SLOTS,
+                                        BTRACE_RUNTIME_NEW_THREAD_LOCAL_SLOTS_DESC);
                                 super.visitFieldInsn(PUTSTATIC, className,
-                                        BTRACE_FIELD_PREFIX + fd.name,
-                                        JAVA_LANG_THREAD_LOCAL_DESC);
+                                        BTRACE_TLS_FIELD_NAME, THREAD_LOCAL_SLOTS_DESC);
+                            }
+                            for (FieldDescriptor fd : threadLocalFields.values()) {
+                                super.visitFieldInsn(GETSTATIC, className,
+                                        BTRACE_TLS_FIELD_NAME, THREAD_LOCAL_SLOTS_DESC);
+                                visitLdcInsn(fd.slot);
+                                generateThreadLocalGet(fd); // generates var load here
+                                visitMethodInsn(INVOKEVIRTUAL, THREAD_LOCAL_SLOTS,
+                                        "init" + slotKind(fd.desc),
+                                        "(I" + slotType(fd.desc) + ")V");
                             }
                             visitMethodInsn(INVOKESTATIC, BTRACE_RUNTIME,
                                 BTRACE_RUNTIME_START,
                                 BTRACE_RUNTIME_START_DESC);
                         } else {
                             if (isBTraceHandler) {
+                                visitFieldInsn(GETSTATIC, className,
+                                    BTRACE_RUNTIME_FIELD_NAME,
+                                    BTRACE_RUNTIME_DESC);
+                                visitLdcInsn(probeIndex);
                                 visitMethodInsn(INVOKESTATIC, BTRACE_RUNTIME,
                                     BTRACE_RUNTIME_LEAVE, 
-                                    BTRACE_RUNTIME_LEAVE_DESC);
+                                    BTRACE_RUNTIME_LEAVE_PROBE_DESC);
                             }
                         }
                     }
@@ -776,9 +1102,10 @@ public class Preprocessor extends ClassVisitor {
                 public void visitMaxs(int maxStack, int maxLocals) {
                     visitLabel(handler);
                     if (isBTraceHandler) {
+                        visitLdcInsn(probeIndex);
                         visitMethodInsn(INVOKESTATIC, BTRACE_RUNTIME,
                                         BTRACE_RUNTIME_HANDLE_EXCEPTION,
-                                        BTRACE_RUNTIME_HANDLE_EXCEPTION_DESC);
+                                        BTRACE_RUNTIME_HANDLE_PROBE_EXCEPTION_DESC);
                     }
                     super.visitInsn(RETURN);
                     super.visitMaxs(maxStack, maxLocals);
@@ -787,6 +1114,276 @@ public class Preprocessor extends ClassVisitor {
         }
     }
 
+    /**
+     * Turns the read-add-write sequence generated for <code>x++</code>,
+     * <code>x--</code>, <code>x += n</code> and <code>x -= n</code> on an
+     * int or long @Export field
+     *
+     * <pre>
+     *     getstatic perf$x; invokestatic getPerfLong(I)J
+     *     &lt;operand&gt;; ladd
+     *     getstatic perf$x; invokestatic putPerfLong(JI)V
+     * </pre>
+     *
+     * into a single atomic <code>addPerfLong(perf$x, operand)</code>.
+     * The operand may be a constant or a local variable. Everything
+     * else is passed through unchanged.
+     */
+    private static class PerfCounterIncrements extends MethodVisitor {
+        // matched prefix of the pattern above
+        private static final int IDLE = 0, HANDLE = 1, GET = 2,
+                                 OPERAND = 3, ARITH = 4, PUT_HANDLE = 5;
+
+        private int state = IDLE;
+        private String owner, field;
+        private String getDesc;
+        private boolean isLong;
+        // the operand: one of visitInsn, visitIntInsn, visitVarInsn, visitLdcInsn
+        private int operandOpcode;
+        private int operandValue;
+        private Object operandConstant;
+        // int operand of a long counter, needs (or got) an i2l
+        private boolean intOperand, widened;
+        private int arithOpcode;
+
+        PerfCounterIncrements(MethodVisitor mv) {
+            super(ASM4, mv);
+        }
+
+        private static boolean isHandleField(String name, String desc) {
+            return name.startsWith(BTRACE_PERFCOUNTER_HANDLE_PREFIX) && desc.equals("I");
+        }
+
+        private void emitOperand() {
+            if (operandConstant != null) {
+                super.visitLdcInsn(operandConstant);
+            } else if (operandOpcode == BIPUSH || operandOpcode == SIPUSH) {
+                super.visitIntInsn(operandOpcode, operandValue);
+            } else if (operandOpcode == ILOAD || operandOpcode == LLOAD) {
+                super.visitVarInsn(operandOpcode, operandValue);
+            } else {
+                super.visitInsn(operandOpcode);
+            }
+            if (widened) {
+                super.visitInsn(I2L);
+            }
+        }
+
+        // replays whatever part of the pattern has been matched so far
+        private void flush() {
+            if (state >= HANDLE) {
+                super.visitFieldInsn(GETSTATIC, owner, field, "I");
+            }
+            if (state >= GET) {
+                super.visitMethodInsn(INVOKESTATIC, BTRACE_RUNTIME,
+                    isLong? BTRACE_RUNTIME_GET_PERFLONG : BTRACE_RUNTIME_GET_PERFINT, getDesc);
+            }
+            if (state >= OPERAND) {
+                emitOperand();
+            }
+            if (state >= ARITH) {
+                super.visitInsn(arithOpcode);
+            }
+            if (state >= PUT_HANDLE) {
+                super.visitFieldInsn(GETSTATIC, owner, field, "I");
+            }
+            reset();
+        }
+
+        private void reset() {
+            state = IDLE;
+            operandConstant = null;
+            intOperand = false;
+            widened = false;
+        }
+
+        private boolean operand(int opcode) {
+            boolean isInt = (opcode >= ICONST_M1 && opcode <= ICONST_5) ||
+                   opcode == BIPUSH || opcode == SIPUSH || opcode == ILOAD;
+            intOperand = isLong && isInt;
+            return isInt || (isLong &&
+                   (opcode == LCONST_0 || opcode == LCONST_1 || opcode == LLOAD));
+        }
+
+        public void visitFieldInsn(int opcode, String owner, String name, String desc) {
+            if (opcode == GETSTATIC && isHandleField(name, desc)) {
+                if (state == ARITH && owner.equals(this.owner) && name.equals(field)) {
+                    state = PUT_HANDLE;
+                    return;
+                }
+                flush();
+                this.owner = owner;
+                this.field = name;
+                state = HANDLE;
+                return;
+            }
+            flush();
+            super.visitFieldInsn(opcode, owner, name, desc);
+        }
+
+        public void visitMethodInsn(int opcode, String owner, String name, String desc) {
+            if (opcode == INVOKESTATIC && owner.equals(BTRACE_RUNTIME)) {
+                if (state == HANDLE) {
+                    if (name.equals(BTRACE_RUNTIME_GET_PERFINT) &&
+                        desc.equals(BTRACE_RUNTIME_GET_PERFINT_DESC)) {
+                        isLong = false;
+                        getDesc = desc;
+                        state = GET;
+                        return;
+                    } else if (name.equals(BTRACE_RUNTIME_GET_PERFLONG) &&
+                        desc.equals(BTRACE_RUNTIME_GET_PERFLONG_DESC)) {
+                        isLong = true;
+                        getDesc = desc;
+                        state = GET;
+                        return;
+                    }
+                } else if (state == PUT_HANDLE) {
+                    boolean matched = isLong?
+                        name.equals(BTRACE_RUNTIME_PUT_PERFLONG) &&
+                            desc.equals(BTRACE_RUNTIME_PUT_PERFLONG_DESC) :
+                        name.equals(BTRACE_RUNTIME_PUT_PERFINT) &&
+                            desc.equals(BTRACE_RUNTIME_PUT_PERFINT_DESC);
+                    if (matched) {
+                        super.visitFieldInsn(GETSTATIC, this.owner, field, "I");
+                        emitOperand();
+                        if (arithOpcode == ISUB || arithOpcode == LSUB) {
+                            super.visitInsn(isLong? LNEG : INEG);
+                        }
+                        if (isLong) {
+                            super.visitMethodInsn(INVOKESTATIC, BTRACE_RUNTIME,
+                                BTRACE_RUNTIME_ADD_PERFLONG, BTRACE_RUNTIME_ADD_PERFLONG_DESC);
+                        } else {
+                            super.visitMethodInsn(INVOKESTATIC, BTRACE_RUNTIME,
+                                BTRACE_RUNTIME_ADD_PERFINT, BTRACE_RUNTIME_ADD_PERFINT_DESC);
+                        }
+                        reset();
+                        return;
+                    }
+                }
+            }
+            flush();
+            super.visitMethodInsn(opcode, owner, name, desc);
+        }
+
+        public void visitInsn(int opcode) {
+            if (state == GET && operand(opcode)) {
+                operandOpcode = opcode;
+                state = OPERAND;
+                return;
+            }
+            if (state == OPERAND && intOperand && !widened && opcode == I2L) {
+                widened = true;
+                return;
+            }
+            if (state == OPERAND && intOperand == widened &&
+                (isLong? (opcode == LADD || opcode == LSUB) : (opcode == IADD || opcode == ISUB))) {
+                arithOpcode = opcode;
+                state = ARITH;
+                return;
+            }
+            flush();
+            super.visitInsn(opcode);
+        }
+
+        public void visitIntInsn(int opcode, int operand) {
+            if (state == GET && operand(opcode)) {
+                operandOpcode = opcode;
+                operandValue = operand;
+                state = OPERAND;
+                return;
+            }
+            flush();
+            super.visitIntInsn(opcode, operand);
+        }
+
+        public void visitVarInsn(int opcode, int var) {
+            if (state == GET && operand(opcode)) {
+                operandOpcode = opcode;
+                operandValue = var;
+                state = OPERAND;
+                return;
+            }
+            flush();
+            super.visitVarInsn(opcode, var);
+        }
+
+        public void visitLdcInsn(Object cst) {
+            if (state == GET && (cst instanceof Integer || (isLong && cst instanceof Long))) {
+                operandConstant = cst;
+                intOperand = isLong && cst instanceof Integer;
+                state = OPERAND;
+                return;
+            }
+            flush();
+            super.visitLdcInsn(cst);
+        }
+
+        public void visitTypeInsn(int opcode, String type) {
+            flush();
+            super.visitTypeInsn(opcode, type);
+        }
+
+        public void visitInvokeDynamicInsn(String name, String desc, Handle bsm, Object... bsmArgs) {
+            flush();
+            super.visitInvokeDynamicInsn(name, desc, bsm, bsmArgs);
+        }
+
+        public void visitJumpInsn(int opcode, Label label) {
+            flush();
+            super.visitJumpInsn(opcode, label);
+        }
+
+        public void visitLabel(Label label) {
+            flush();
+            super.visitLabel(label);
+        }
+
+        public void visitIincInsn(int var, int increment) {
+            flush();
+            super.visitIincInsn(var, increment);
+        }
+
+        public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
+            flush();
+            super.visitTableSwitchInsn(min, max, dflt, labels);
+        }
+
+        public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+            flush();
+            super.visitLookupSwitchInsn(dflt, keys, labels);
+        }
+
+        public void visitMultiANewArrayInsn(String desc, int dims) {
+            flush();
+            super.visitMultiANewArrayInsn(desc, dims);
+        }
+
+        public void visitFrame(int type, int nLocal, Object[] local, int nStack, Object[] stack) {
+            flush();
+            super.visitFrame(type, nLocal, local, nStack, stack);
+        }
+
+        public void visitTryCatchBlock(Label start, Label end, Label handler, String type) {
+            flush();
+            super.visitTryCatchBlock(start, end, handler, type);
+        }
+
+        public void visitLineNumber(int line, Label start) {
+            flush();
+            super.visitLineNumber(line, start);
+        }
+
+        public void visitMaxs(int maxStack, int maxLocals) {
+            flush();
+            super.visitMaxs(maxStack, maxLocals);
+        }
+
+        public void visitEnd() {
+            flush();
+            super.visitEnd();
+        }
+    }
+
     public static void main(String[] args) throws Exception {
         if (args.length == 0 || args.length > 2) {
             System.err.println("Usage: java com.sun.btrace.runtime.Preprocessor <class> [<new-class-name>]");
@@ -805,9 +1402,9 @@ public class Preprocessor extends ClassVisitor {
         ClassWriter writer = InstrumentUtils.newClassWriter();  
         ClassVisitor cv;
         if (renamed) {
-            cv = new ClassRenamer(args[1], new Preprocessor(writer));
+            cv = new ClassRenamer(args[1], new Preprocessor(writer, reader));
         } else {
-            cv = new Preprocessor(writer);
+            cv = new Preprocessor(writer, reader);
         }
         InstrumentUtils.accept(reader, cv);
         fos.write(writer.toByteArray());
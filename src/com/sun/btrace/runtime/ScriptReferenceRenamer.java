@@ -0,0 +1,211 @@
+/*
+ * Copyright 2008-2010 Sun Microsystems, Inc.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Sun designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Sun in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Sun Microsystems, Inc., 4150 Network Circle, Santa Clara,
+ * CA 95054 USA or visit www.sun.com if you need additional information or
+ * have any questions.
+ */
+
+package com.sun.btrace.runtime;
+
+import java.util.Map;
+import com.sun.btrace.org.objectweb.asm.ClassReader;
+import com.sun.btrace.org.objectweb.asm.ClassVisitor;
+import com.sun.btrace.org.objectweb.asm.ClassWriter;
+import com.sun.btrace.org.objectweb.asm.FieldVisitor;
+import com.sun.btrace.org.objectweb.asm.Label;
+import com.sun.btrace.org.objectweb.asm.MethodVisitor;
+import com.sun.btrace.org.objectweb.asm.Type;
+import static com.sun.btrace.org.objectweb.asm.Opcodes.*;
+
+/**
+ * This adapter renames the references an instrumented class holds to
+ * the BTrace classes instrumenting it - the calls to the copied action
+ * methods, the accesses to the BTrace fields and the types in the
+ * descriptors. Unlike {@link ClassRenamer} the class itself keeps its
+ * name. This is used to reuse a class instrumented by a BTrace class
+ * submitted under the same name but renamed to make it unique.
+ */
+public class ScriptReferenceRenamer extends ClassVisitor {
+    private final String[] oldNames;
+    private final String[] newNames;
+    private final String[] oldDescs;
+    private final String[] newDescs;
+    private final String[] oldPrefixes;
+    private final String[] newPrefixes;
+
+    /**
+     * @param names the new internal names keyed by the old ones
+     */
+    public ScriptReferenceRenamer(Map<String, String> names, ClassVisitor visitor) {
+        super(ASM4, visitor);
+        int size = names.size();
+        oldNames = new String[size];
+        newNames = new String[size];
+        oldDescs = new String[size];
+        newDescs = new String[size];
+        oldPrefixes = new String[size];
+        newPrefixes = new String[size];
+        int i = 0;
+        for (Map.Entry<String, String> e : names.entrySet()) {
+            oldNames[i] = e.getKey();
+            newNames[i] = e.getValue();
+            oldDescs[i] = "L" + oldNames[i] + ";";
+            newDescs[i] = "L" + newNames[i] + ";";
+            oldPrefixes[i] = actionPrefix(oldNames[i]);
+            newPrefixes[i] = actionPrefix(newNames[i]);
+            i++;
+        }
+    }
+
+    /**
+     * Returns the given class with the references renamed. The stack
+     * frames and maxs are copied as they are.
+     */
+    public static byte[] rename(byte[] code, Map<String, String> names) {
+        if (names.isEmpty()) {
+            return code;
+        }
+        ClassReader reader = new ClassReader(code);
+        ClassWriter writer = new ClassWriter(0);
+        // the frames are kept; nothing is recomputed
+        InstrumentUtils.accept(reader, new ScriptReferenceRenamer(names, writer), 0);
+        return writer.toByteArray();
+    }
+
+    // see Instrumentor.getActionMethodName
+    private static String actionPrefix(String name) {
+        return Constants.BTRACE_METHOD_PREFIX + name.replace('/', '$') + "$";
+    }
+
+    private String mapName(String name) {
+        for (int i = 0; i < oldNames.length; i++) {
+            if (oldNames[i].equals(name)) {
+                return newNames[i];
+            }
+        }
+        return name;
+    }
+
+    private String mapDesc(String desc) {
+        if (desc == null) {
+            return null;
+        }
+        for (int i = 0; i < oldDescs.length; i++) {
+            desc = desc.replace(oldDescs[i], newDescs[i]);
+        }
+        return desc;
+    }
+
+    private String mapMethodName(String name) {
+        for (int i = 0; i < oldPrefixes.length; i++) {
+            if (name.startsWith(oldPrefixes[i])) {
+                return newPrefixes[i] + name.substring(oldPrefixes[i].length());
+            }
+        }
+        return name;
+    }
+
+    // a type instruction operand is an internal name or an array descriptor
+    private String mapType(String type) {
+        return type.startsWith("[") ? mapDesc(type) : mapName(type);
+    }
+
+    private Object mapConstant(Object cst) {
+        if (cst instanceof Type) {
+            Type t = (Type) cst;
+            if (t.getSort() == Type.OBJECT || t.getSort() == Type.ARRAY) {
+                return Type.getType(mapDesc(t.getDescriptor()));
+            }
+        }
+        return cst;
+    }
+
+    private Object[] mapFrameTypes(int n, Object[] types) {
+        if (types == null) {
+            return null;
+        }
+        Object[] mapped = null;
+        for (int i = 0; i < n; i++) {
+            if (types[i] instanceof String) {
+                String type = mapType((String) types[i]);
+                if (type != types[i]) {
+                    if (mapped == null) {
+                        mapped = types.clone();
+                    }
+                    mapped[i] = type;
+                }
+            }
+        }
+        return mapped != null ? mapped : types;
+    }
+
+    public FieldVisitor visitField(int access, String name,
+        String desc, String signature, Object value) {
+        return super.visitField(access, name, mapDesc(desc), mapDesc(signature), value);
+    }
+
+    public MethodVisitor visitMethod(int access, String name,
+            String desc, String signature, String[] exceptions) {
+        MethodVisitor adaptee = super.visitMethod(access, mapMethodName(name),
+                                   mapDesc(desc), mapDesc(signature), exceptions);
+        return new MethodVisitor(ASM4, adaptee) {
+            public void visitFieldInsn(int opcode, String owner,
+                          String name, String desc) {
+                super.visitFieldInsn(opcode, mapName(owner), name, mapDesc(desc));
+            }
+
+            public void visitMethodInsn(int opcode, String owner,
+                String name, String desc) {
+                super.visitMethodInsn(opcode, mapName(owner), mapMethodName(name), mapDesc(desc));
+            }
+
+            public void visitLdcInsn(Object cst) {
+                super.visitLdcInsn(mapConstant(cst));
+            }
+
+            public void visitTypeInsn(int opcode, String type) {
+                super.visitTypeInsn(opcode, mapType(type));
+            }
+
+            public void visitMultiANewArrayInsn(String desc, int dims) {
+                super.visitMultiANewArrayInsn(mapDesc(desc), dims);
+            }
+
+            public void visitTryCatchBlock(Label start, Label end,
+                        Label handler, String type) {
+                super.visitTryCatchBlock(start, end, handler, type != null? mapName(type) : null);
+            }
+
+            public void visitFrame(int type, int nLocal, Object[] local,
+                        int nStack, Object[] stack) {
+                super.visitFrame(type, nLocal, mapFrameTypes(nLocal, local),
+                                 nStack, mapFrameTypes(nStack, stack));
+            }
+
+            public void visitLocalVariable(String name,
+                        String desc,  String signature,
+                        Label start, Label end, int index) {
+                super.visitLocalVariable(name, mapDesc(desc), mapDesc(signature),
+                        start, end, index);
+            }
+        };
+    }
+}
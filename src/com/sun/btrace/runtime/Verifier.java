@@ -31,6 +31,7 @@ import java.io.BufferedInputStream;
 import java.util.ArrayList;
 import java.util.List;
 import com.sun.btrace.VerifierException;
+import com.sun.btrace.annotations.ClockSource;
 import com.sun.btrace.annotations.TargetInstance;
 import com.sun.btrace.annotations.TargetMethodOrField;
 import com.sun.btrace.annotations.Duration;
@@ -40,6 +41,7 @@ import com.sun.btrace.annotations.Kind;
 import com.sun.btrace.annotations.ProbeClassName;
 import com.sun.btrace.annotations.ProbeMethodName;
 import com.sun.btrace.annotations.Return;
+import com.sun.btrace.annotations.Sampler;
 import com.sun.btrace.annotations.Self;
 import com.sun.btrace.annotations.Where;
 import com.sun.btrace.util.Messages;
@@ -76,6 +78,7 @@ public class Verifier extends ClassVisitor {
     private List<OnMethod> onMethods;
     private List<OnProbe> onProbes;
     private boolean unsafeScript, unsafeAllowed;
+    private ClockSource clock = ClockSource.DEFAULT;
     private CycleDetector cycleDetector;
 
     public Verifier(ClassVisitor cv, boolean unsafe) {
@@ -103,6 +106,10 @@ public class Verifier extends ClassVisitor {
         return onProbes;
     }
 
+    public ClockSource getClockSource() {
+        return clock;
+    }
+
     @Override
     public void visitEnd() {
         //ѭ
@@ -153,6 +160,14 @@ public class Verifier extends ClassVisitor {
                     }
                     super.visit(name, value);
                 }
+
+                @Override
+                public void visitEnum(String name, String desc, String value) {
+                    if ("clock".equals(name)) {
+                        clock = ClockSource.valueOf(value);
+                    }
+                    super.visitEnum(name, desc, value);
+                }
             };
         }
         return delegate;
@@ -360,6 +375,30 @@ public class Verifier extends ClassVisitor {
                                         om.setLocation(loc);
                                     }
                                 };
+                            } else if (desc.equals(SAMPLED_DESC)) {
+                                return new AnnotationVisitor(Opcodes.ASM4) {
+                                    public void visitEnum(String name, String desc, String value) {
+                                        if (desc.equals(SAMPLER_DESC)) {
+                                            om.setSampler(Enum.valueOf(Sampler.class, value));
+                                        }
+                                    }
+
+                                    public void visit(String name, Object value) {
+                                        if (name.equals("mean")) {
+                                            int mean = ((Number)value).intValue();
+                                            if (mean < 1) {
+                                                reportError("sampler.invalid.mean", Integer.toString(mean));
+                                            }
+                                            om.setSamplerMean(mean);
+                                        } else if (name.equals("rate")) {
+                                            int rate = ((Number)value).intValue();
+                                            if (rate < 1) {
+                                                reportError("sampler.invalid.rate", Integer.toString(rate));
+                                            }
+                                            om.setSamplerRate(rate);
+                                        }
+                                    }
+                                };
                             }
 
                             return super.visitAnnotation(name, desc);
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2008-2010 Sun Microsystems, Inc.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Sun designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Sun in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Sun Microsystems, Inc., 4150 Network Circle, Santa Clara,
+ * CA 95054 USA or visit www.sun.com if you need additional information or
+ * have any questions.
+ */
+
+package com.sun.btrace.samples;
+
+import static com.sun.btrace.BTraceUtils.*;
+
+import com.sun.btrace.AnyType;
+import com.sun.btrace.annotations.*;
+import com.sun.btrace.recording.Recording;
+
+/**
+ * Records every executed JDBC statement with its execution time into
+ * a binary recording instead of printing it. The recording is written to
+ * the directory given by the "recordingDir" agent argument and is turned
+ * into a per-statement report afterwards with
+ * <pre>
+ * java -cp btrace-agent.jar com.sun.btrace.recording.RecordingReader -report &lt;recordingDir&gt;
+ * </pre>
+ */
+@BTrace
+public class JdbcRecording {
+    private static Recording queries = Recordings.newRecording("jdbc");
+
+    @TLS
+    private static String executingStatement;
+
+    @OnMethod(clazz = "+java.sql.Statement", method = "/execute($|Update|Query|Batch)/")
+    public static void onExecute(AnyType[] args) {
+        executingStatement = args.length == 0 ? "<prepared>" : str(args[0]);
+    }
+
+    @OnMethod(clazz = "+java.sql.Statement", method = "/execute($|Update|Query|Batch)/", location = @Location(Kind.RETURN))
+    public static void onExecuteReturn(@ProbeMethodName String method, @Duration long duration) {
+        if (executingStatement == null) {
+            return;
+        }
+        // the method and the statement go to the dictionary, the duration as it is
+        Recordings.record(queries, "execute", executingStatement, method, duration);
+        executingStatement = null;
+    }
+}
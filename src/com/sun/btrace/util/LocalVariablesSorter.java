@@ -300,6 +300,10 @@ public class LocalVariablesSorter extends MethodVisitor {
         frozen = false;
     }
 
+    public boolean isFrozen() {
+        return frozen;
+    }
+
     public int getFirstLocal() {
         return memento.firstLocal;
     }
@@ -25,6 +25,7 @@
 
 package com.sun.btrace.util;
 
+import com.sun.btrace.annotations.ClockSource;
 import com.sun.btrace.org.objectweb.asm.MethodVisitor;
 import com.sun.btrace.org.objectweb.asm.Opcodes;
 import static com.sun.btrace.org.objectweb.asm.Opcodes.*;
@@ -49,10 +50,16 @@ public class TimeStampGenerator extends MethodVisitor {
     private String className;
     private String superName;
     final private LocalVariablesSorter lvs;
+    final private ClockSource clock;
 
     public TimeStampGenerator(LocalVariablesSorter lvs, final int[] tsIndex, String className, String superName, int access, String name, String desc, MethodVisitor mv, int[] exitOpcodes) {
+        this(lvs, tsIndex, className, superName, access, name, desc, mv, exitOpcodes, ClockSource.PRECISE);
+    }
+
+    public TimeStampGenerator(LocalVariablesSorter lvs, final int[] tsIndex, String className, String superName, int access, String name, String desc, MethodVisitor mv, int[] exitOpcodes, ClockSource clock) {
         super(Opcodes.ASM4, mv);
         this.lvs = lvs;
+        this.clock = clock;
         this.methodName = name;
         this.className = className;
         this.superName = superName;
@@ -61,6 +68,13 @@ public class TimeStampGenerator extends MethodVisitor {
         System.arraycopy(exitOpcodes, 0, this.exitOpcodes, 0, exitOpcodes.length);
     }
 
+    /**
+     * Returns the method instrumentor the time stamps are generated for
+     */
+    public MethodInstrumentor getInstrumentor() {
+        return (MethodInstrumentor)mv;
+    }
+
     @Override
     public void visitCode() {
         entryCalled = false;
@@ -123,10 +137,30 @@ public class TimeStampGenerator extends MethodVisitor {
         if (tsIndex[index] > -1) return;
         try {
             generatingIndex = true;
-            TimeStampHelper.generateTimeStampAccess(this, className);
+            int[] sampleIndex = ((MethodInstrumentor)mv).getSampleIndex();
+            if (sampleIndex != null) {
+                // sampled probe; only the sampled calls get their time stamps
+                if (index == 0) {
+                    ((MethodInstrumentor)mv).drawSample();
+                    sampleIndex[0] = lvs.newLocal(Type.LONG_TYPE);
+                }
+                generateSampledTimeStamp(sampleIndex[0]);
+            } else {
+                TimeStampHelper.generateTimeStampAccess(this, className, clock);
+            }
             tsIndex[index] = lvs.newLocal(Type.LONG_TYPE);
         } finally {
             generatingIndex = false;
         }
     }
+
+    private void generateSampledTimeStamp(int sampleIndex) {
+        boolean frozen = lvs.isFrozen();
+        lvs.freeze();
+        try {
+            TimeStampHelper.generateSampledTimeStampAccess(this, sampleIndex, className, clock);
+        } finally {
+            if (!frozen) lvs.unfreeze();
+        }
+    }
 }
@@ -25,7 +25,9 @@
 
 package com.sun.btrace.util;
 
+import com.sun.btrace.annotations.ClockSource;
 import com.sun.btrace.org.objectweb.asm.ClassVisitor;
+import com.sun.btrace.org.objectweb.asm.Label;
 import com.sun.btrace.org.objectweb.asm.MethodVisitor;
 import static com.sun.btrace.org.objectweb.asm.Opcodes.*;
 
@@ -36,6 +38,7 @@ import static com.sun.btrace.org.objectweb.asm.Opcodes.*;
  */
 public class TimeStampHelper {
     final public static String TIME_STAMP_NAME = "$btrace$time$stamp";
+    final private static String CLOCKS = "com/sun/btrace/Clocks";
 
     public static void generateTimeStampGetter(ClassVisitor cv) {
         MethodVisitor timestamp = cv.visitMethod(ACC_STATIC + ACC_PRIVATE + ACC_FINAL, TIME_STAMP_NAME, "()J", null, new String[0]);
@@ -46,11 +49,41 @@ public class TimeStampHelper {
         timestamp.visitEnd();
     }
 
-    public static void generateTimeStampAccess(MethodVisitor mv, String className) {
-        if (Boolean.getBoolean("btrace.timer.sampled")) {
-            mv.visitFieldInsn(GETSTATIC, "com/sun/btrace/BTraceRuntime", "TIMESTAMP", "J");
-        } else {
-            mv.visitMethodInsn(INVOKESTATIC, className.replace(".", "/"), TIME_STAMP_NAME, "()J");
+    /**
+     * Pushes a time stamp taken from the given clock source; the
+     * precise clock needs the getter generated by
+     * {@linkplain #generateTimeStampGetter(ClassVisitor)}
+     */
+    public static void generateTimeStampAccess(MethodVisitor mv, String className, ClockSource clock) {
+        switch (clock) {
+            case COARSE:
+                mv.visitMethodInsn(INVOKESTATIC, CLOCKS, "coarseTime", "()J");
+                break;
+            case BATCHED:
+                mv.visitMethodInsn(INVOKESTATIC, CLOCKS, "batchedTime", "()J");
+                break;
+            default:
+                mv.visitMethodInsn(INVOKESTATIC, className.replace(".", "/"), TIME_STAMP_NAME, "()J");
         }
     }
+
+    /**
+     * Pushes a time stamp like {@linkplain #generateTimeStampAccess(MethodVisitor, String, ClockSource)}
+     * if the sample weight in the long local <code>sampleIndex</code> is
+     * not 0, ie. the call is sampled, and 0 otherwise. The local is loaded
+     * as is, so the local variables sorter is to be frozen.
+     */
+    public static void generateSampledTimeStampAccess(MethodVisitor mv, int sampleIndex, String className, ClockSource clock) {
+        Label notSampled = new Label();
+        Label done = new Label();
+        mv.visitVarInsn(LLOAD, sampleIndex);
+        mv.visitInsn(LCONST_0);
+        mv.visitInsn(LCMP);
+        mv.visitJumpInsn(IFEQ, notSampled);
+        generateTimeStampAccess(mv, className, clock);
+        mv.visitJumpInsn(GOTO, done);
+        mv.visitLabel(notSampled);
+        mv.visitInsn(LCONST_0);
+        mv.visitLabel(done);
+    }
 }
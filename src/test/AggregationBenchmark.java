@@ -0,0 +1,104 @@
+package test;
+
+import com.sun.btrace.aggregation.Aggregation;
+import com.sun.btrace.aggregation.AggregationFunction;
+import com.sun.btrace.aggregation.AggregationKey;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measures the {@linkplain Aggregation} add throughput with all the threads
+ * hitting a single hot key, comparing the allocation-free key paths with
+ * the {@linkplain AggregationKey} based one.
+ * Usage: <code>AggregationBenchmark [adds per thread] [threads...]</code>;
+ * by default 2M adds per thread with 1, 2, 4, 8, 16 and 32 threads.
+ */
+public class AggregationBenchmark {
+    private interface Adder {
+        void add(Aggregation aggregation, int i);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        int[] threadCounts = new int[]{1, 2, 4, 8, 16, 32};
+        if (args.length > 1) {
+            threadCounts = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++) {
+                threadCounts[i - 1] = Integer.parseInt(args[i]);
+            }
+        }
+
+        Adder[] adders = new Adder[]{
+            new Adder() {
+                public void add(Aggregation aggregation, int i) {
+                    aggregation.add("java.lang.String.indexOf", 42, i);
+                }
+                public String toString() {
+                    return "String+long key";
+                }
+            },
+            new Adder() {
+                public void add(Aggregation aggregation, int i) {
+                    aggregation.add(new AggregationKey(new Object[]{"java.lang.String.indexOf", Integer.valueOf(4200)}), i);
+                }
+                public String toString() {
+                    return "AggregationKey";
+                }
+            }
+        };
+        AggregationFunction[] functions = new AggregationFunction[]{
+            AggregationFunction.COUNT, AggregationFunction.SUM, AggregationFunction.AVERAGE,
+            AggregationFunction.MAXIMUM, AggregationFunction.QUANTIZE, AggregationFunction.HISTOGRAM
+        };
+
+        System.out.println("function\tkey\tthreads\ttime [ms]\tMadds/s");
+        for (AggregationFunction f : functions) {
+            for (Adder adder : adders) {
+                // warm up the add paths
+                runBenchmark(f, adder, 4, iterations / 10);
+                for (int threads : threadCounts) {
+                    long ops = (long)threads * iterations;
+                    long dur = runBenchmark(f, adder, threads, iterations);
+                    System.out.println(f + "\t" + adder + "\t" + threads + "\t" + (dur / 1000000) + "\t" +
+                                       ((double)ops * 1000 / dur));
+                }
+            }
+        }
+    }
+
+    private static long runBenchmark(AggregationFunction f, final Adder adder, int threads, final int iterations)
+            throws InterruptedException {
+        final Aggregation aggregation = new Aggregation(f);
+        final CountDownLatch ready = new CountDownLatch(threads);
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        ready.countDown();
+                        start.await();
+                        for (int i = 0; i < iterations; i++) {
+                            adder.add(aggregation, i);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, "AggregationBenchmark#" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+        ready.await();
+        long time = System.nanoTime();
+        start.countDown();
+        done.await();
+        time = System.nanoTime() - time;
+        if (f == AggregationFunction.COUNT &&
+            aggregation.getData().get(0)[2].equals(Long.valueOf((long)threads * iterations)) == false) {
+            throw new IllegalStateException("lost updates: " + aggregation.getData().get(0)[2]);
+        }
+        return time;
+    }
+}
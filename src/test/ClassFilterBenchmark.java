@@ -0,0 +1,103 @@
+package test;
+
+import com.sun.btrace.org.objectweb.asm.ClassWriter;
+import com.sun.btrace.org.objectweb.asm.Opcodes;
+import com.sun.btrace.runtime.ClassFilter;
+import com.sun.btrace.runtime.OnMethod;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures the class load filtering cost of {@linkplain ClassFilter}:
+ * a set of generated class files is checked against the filters of
+ * N attached scripts, the way the agent transformer does it.
+ * Usage: <code>ClassFilterBenchmark [classes] [rounds] [scripts...]</code>;
+ * by default 10k classes, 20 rounds with 1, 4, 12 and 24 scripts.
+ */
+public class ClassFilterBenchmark {
+    private static final String[] PACKAGES = new String[]{
+        "java/net/", "java/util/concurrent/", "javax/swing/plaf/", "sun/nio/ch/",
+        "com/acme/app/service/", "com/acme/app/dao/", "org/apache/catalina/core/",
+        "org/springframework/beans/factory/"
+    };
+
+    public static void main(String[] args) throws Exception {
+        int classCount = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        int[] scriptCounts = new int[]{1, 4, 12, 24};
+        if (args.length > 2) {
+            scriptCounts = new int[args.length - 2];
+            for (int i = 2; i < args.length; i++) {
+                scriptCounts[i - 2] = Integer.parseInt(args[i]);
+            }
+        }
+
+        byte[][] classes = new byte[classCount][];
+        for (int i = 0; i < classCount; i++) {
+            classes[i] = generateClass(i);
+        }
+
+        System.out.println("scripts\tcandidates\tns/class");
+        for (int scripts : scriptCounts) {
+            ClassFilter[] filters = new ClassFilter[scripts];
+            for (int i = 0; i < scripts; i++) {
+                filters[i] = new ClassFilter(scriptSpecs(i));
+            }
+            // warm up
+            runBenchmark(filters, classes, Math.max(1, rounds / 4));
+            long time = System.nanoTime();
+            int candidates = runBenchmark(filters, classes, rounds);
+            time = System.nanoTime() - time;
+            System.out.println(scripts + "\t" + (candidates / rounds) + "\t" +
+                               (time / ((long)rounds * classCount)));
+        }
+    }
+
+    private static int runBenchmark(ClassFilter[] filters, byte[][] classes, int rounds) {
+        int candidates = 0;
+        for (int r = 0; r < rounds; r++) {
+            for (byte[] code : classes) {
+                for (ClassFilter filter : filters) {
+                    if (filter.isCandidate(code)) {
+                        candidates++;
+                    }
+                }
+            }
+        }
+        return candidates;
+    }
+
+    // a mix of the class specs seen in real scripts
+    private static List<OnMethod> scriptSpecs(int script) {
+        String[] specs = new String[]{
+            "com.acme.app.service.Service" + (script * 7),
+            "/java\\.net\\..*/",
+            "/com\\.acme\\.app\\.dao\\.Dao" + script + ".*/",
+            "/.*\\.core\\.Standard[A-Z]\\w*" + script + "/",
+            "@com.acme.Traced" + (script % 3),
+            "+java.util.concurrent.Executor"
+        };
+        List<OnMethod> list = new ArrayList<OnMethod>();
+        for (String spec : specs) {
+            OnMethod om = new OnMethod();
+            om.setClazz(spec);
+            om.setMethod("/.*/");
+            list.add(om);
+        }
+        return list;
+    }
+
+    private static byte[] generateClass(int i) {
+        String pkg = PACKAGES[i % PACKAGES.length];
+        String[] kinds = new String[]{"Service", "Dao", "StandardWrapper", "Impl"};
+        String name = pkg + kinds[(i / PACKAGES.length) % kinds.length] + i;
+        String[] interfaces = i % 11 == 0 ? new String[]{"java/util/concurrent/Executor"} : null;
+        ClassWriter cw = new ClassWriter(0);
+        cw.visit(Opcodes.V1_6, Opcodes.ACC_PUBLIC, name, null, "java/lang/Object", interfaces);
+        if (i % 5 == 0) {
+            cw.visitAnnotation("Lcom/acme/Traced" + (i % 4) + ";", true).visitEnd();
+        }
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+}
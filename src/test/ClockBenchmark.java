@@ -0,0 +1,123 @@
+package test;
+
+import com.sun.btrace.Clocks;
+import com.sun.btrace.annotations.ClockSource;
+
+/**
+ * Compares the @Duration clock sources: the cost of the time stamp pair
+ * taken around a probed method and how far the measured durations are
+ * off from <code>System.nanoTime()</code> for methods running 1us to
+ * 10ms.
+ * Usage: <code>ClockBenchmark [iterations] [samples]</code>; by default
+ * 20M time stamp pairs and 200 samples per duration.
+ */
+public class ClockBenchmark {
+    private interface Clock {
+        long time();
+    }
+
+    private static final ClockSource[] SOURCES = new ClockSource[]{
+        ClockSource.PRECISE, ClockSource.COARSE, ClockSource.BATCHED
+    };
+
+    private static final long[] DURATIONS = new long[]{
+        1000L, 10000L, 100000L, 1000000L, 10000000L
+    };
+
+    private static volatile long sink;
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 20000000;
+        int samples = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+        for (ClockSource source : SOURCES) {
+            Clocks.acquire(source);
+        }
+        // let the coarse clock start ticking
+        Thread.sleep(50);
+
+        System.out.println("clock\tns/pair");
+        for (ClockSource source : SOURCES) {
+            Clock clock = clock(source);
+            runOverhead(clock, iterations / 10);
+            long time = System.nanoTime();
+            runOverhead(clock, iterations);
+            time = System.nanoTime() - time;
+            System.out.println(source + "\t" + ((double)time / iterations));
+        }
+
+        System.out.println();
+        StringBuilder header = new StringBuilder("clock");
+        for (long d : DURATIONS) {
+            header.append("\terr@").append(d / 1000).append("us");
+        }
+        System.out.println(header.append(" (mean absolute error [us])"));
+        for (ClockSource source : SOURCES) {
+            Clock clock = clock(source);
+            StringBuilder line = new StringBuilder(source.toString());
+            for (long d : DURATIONS) {
+                line.append('\t').append(meanError(clock, d, samples) / 1000.0);
+            }
+            System.out.println(line);
+        }
+
+        for (ClockSource source : SOURCES) {
+            Clocks.release(source);
+        }
+    }
+
+    private static Clock clock(ClockSource source) {
+        switch (source) {
+            case COARSE:
+                return new Clock() {
+                    public long time() {
+                        return Clocks.coarseTime();
+                    }
+                };
+            case BATCHED:
+                return new Clock() {
+                    public long time() {
+                        return Clocks.batchedTime();
+                    }
+                };
+            default:
+                return new Clock() {
+                    public long time() {
+                        return System.nanoTime();
+                    }
+                };
+        }
+    }
+
+    // an entry/return time stamp pair around an empty method
+    private static void runOverhead(Clock clock, int iterations) {
+        long sum = 0;
+        for (int i = 0; i < iterations; i++) {
+            long start = clock.time();
+            sum += clock.time() - start;
+        }
+        sink = sum;
+    }
+
+    private static long meanError(Clock clock, long duration, int samples) {
+        long error = 0;
+        for (int i = 0; i < samples; i++) {
+            long refStart = System.nanoTime();
+            long start = clock.time();
+            spin(duration);
+            long measured = clock.time() - start;
+            long actual = System.nanoTime() - refStart;
+            error += Math.abs(measured - actual);
+        }
+        return error / samples;
+    }
+
+    private static void spin(long nanos) {
+        long end = System.nanoTime() + nanos;
+        long x = 0;
+        while (System.nanoTime() < end) {
+            x++;
+        }
+        sink = x;
+    }
+}
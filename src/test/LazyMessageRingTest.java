@@ -0,0 +1,93 @@
+package test;
+
+import com.sun.btrace.BTraceRuntime;
+import com.sun.btrace.BTraceUtils;
+import com.sun.btrace.CommandListener;
+import com.sun.btrace.LazyMessage;
+import com.sun.btrace.comm.Command;
+import com.sun.btrace.comm.MessageCommand;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks that the per-thread records of lazy messages are reused when
+ * the messages never get rendered: dropped by the full output queue or
+ * thrown away with a discarded speculation. Each of these would keep a
+ * record of the 64 record ring busy for good if it was not released,
+ * and every later message would need a fresh one.
+ * Usage: <code>LazyMessageRingTest [messages]</code>; 2000 by default.
+ * Exits with status 1 on failure.
+ */
+public class LazyMessageRingTest {
+    // LazyMessage.RING_SIZE
+    private static final int RING_SIZE = 64;
+
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        System.setProperty("btrace.queue.size", "16");
+
+        final CountDownLatch open = new CountDownLatch(1);
+        final AtomicInteger delivered = new AtomicInteger();
+        final AtomicInteger malformed = new AtomicInteger();
+        CommandListener listener = new CommandListener() {
+            public void onCommand(Command cmd) throws IOException {
+                try {
+                    open.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                if (cmd instanceof MessageCommand) {
+                    if (!((MessageCommand) cmd).getMessage().startsWith("m ")) {
+                        malformed.incrementAndGet();
+                    }
+                    delivered.incrementAndGet();
+                }
+            }
+        };
+        BTraceRuntime runtime = new BTraceRuntime("LazyMessageRingTest",
+                                                  new String[0], listener, null);
+        BTraceRuntime.enter(runtime);
+        int template = LazyMessage.registerTemplate(new String[]{"m ", ""});
+        long before = LazyMessage.getAllocatedRecords();
+
+        // 1. the client is stuck; the queue overflows
+        for (int i = 0; i < messages; i++) {
+            LazyMessage.arg(i);
+            LazyMessage.end(template);
+        }
+        long dropped = runtime.getDroppedCommands();
+        open.countDown();
+
+        // 2. speculations of half a ring of messages each are thrown away
+        for (int i = 0; i < messages; i += RING_SIZE / 2) {
+            int id = BTraceUtils.speculation();
+            BTraceUtils.speculate(id);
+            for (int j = 0; j < RING_SIZE / 2; j++) {
+                LazyMessage.arg(j);
+                LazyMessage.end(template);
+            }
+            BTraceUtils.discard(id);
+        }
+
+        // 3. regular output, paced so that nothing is dropped
+        for (int i = 0; i < messages; i++) {
+            LazyMessage.arg(i);
+            LazyMessage.end(template);
+            if (i % 8 == 7) {
+                Thread.sleep(1);
+            }
+        }
+        Thread.sleep(1000);
+
+        long created = LazyMessage.getAllocatedRecords() - before;
+        System.out.println("dropped " + dropped + ", delivered " + delivered.get() +
+                           ", records created " + created);
+        if (dropped == 0 || created > RING_SIZE || malformed.get() > 0) {
+            System.out.println("FAILED");
+            System.exit(1);
+        }
+        System.out.println("OK");
+        System.exit(0);
+    }
+}
@@ -0,0 +1,160 @@
+package test;
+
+import com.sun.btrace.agent.TraceOutputWriter;
+import com.sun.btrace.recording.Recording;
+import com.sun.btrace.recording.RecordingReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the events per second of 1, 8 and 32 threads tracing a JDBC
+ * like event - a probe name, a query out of 100 and a duration - as
+ * formatted text lines printed to the asynchronous
+ * {@linkplain TraceOutputWriter}, and as records of a binary
+ * {@linkplain Recording} with 64MB segments. The recording is read back
+ * with the {@linkplain RecordingReader} and the number of events read is
+ * checked against the number of events recorded; the output sizes are
+ * printed too.
+ * Usage: <code>RecordingBenchmark [directory] [seconds]</code>; by
+ * default the temporary directory and 3 seconds per run.
+ */
+public class RecordingBenchmark {
+    private static final int[] THREADS = new int[]{1, 8, 32};
+    private static final String[] QUERIES = new String[100];
+    static {
+        for (int i = 0; i < QUERIES.length; i++) {
+            QUERIES[i] = "select * from orders o join customers c on o.customer = c.id where o.region = " + i;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        File dir = new File(args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir"),
+                            "btrace-recording-bench");
+        long seconds = args.length > 1 ? Long.parseLong(args[1]) : 3;
+        dir.mkdirs();
+
+        System.out.println("output\tthreads\tevents/s\tMB");
+        for (int threads : THREADS) {
+            File file = new File(dir, "out.btrace");
+            final PrintWriter out = new PrintWriter(new BufferedWriter(TraceOutputWriter.fileWriter(file)));
+            long[] result = run(new Tracer() {
+                public void trace(String query, long duration) {
+                    String line = "query " + query + " " + duration;
+                    synchronized (out) {
+                        out.println(line);
+                    }
+                }
+                public void close() {
+                    out.close();
+                }
+            }, threads, seconds);
+            System.out.println("text\t" + threads + "\t" + rate(result) + "\t" + size(dir));
+            clean(dir);
+        }
+        for (int threads : THREADS) {
+            final Recording recording = new Recording(dir, "bench", 64L << 20, 0);
+            long[] result = run(new Tracer() {
+                public void trace(String query, long duration) {
+                    recording.record("query", query, duration);
+                }
+                public void close() {
+                    recording.close();
+                }
+            }, threads, seconds);
+            System.out.println("recording\t" + threads + "\t" + rate(result) + "\t" + size(dir));
+            long read = read(dir);
+            if (read != result[0]) {
+                System.out.println("ERROR: " + result[0] + " events recorded, " + read + " read");
+            }
+            clean(dir);
+        }
+        dir.delete();
+    }
+
+    private interface Tracer {
+        void trace(String query, long duration);
+        void close();
+    }
+
+    // returns the number of events and the time taken in nanoseconds
+    private static long[] run(final Tracer tracer, int threads, final long seconds) throws Exception {
+        final AtomicLong events = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        final long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds) + 100000000L;
+        Thread[] producers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            producers[t] = new Thread() {
+                public void run() {
+                    long count = 0;
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (long i = 0; ; i++) {
+                        tracer.trace(QUERIES[(int) (i % QUERIES.length)], i & 1023);
+                        count++;
+                        if ((i & 255) == 0 && System.nanoTime() > end) {
+                            break;
+                        }
+                    }
+                    events.addAndGet(count);
+                }
+            };
+            producers[t].start();
+        }
+        Thread.sleep(100);
+        long time = System.nanoTime();
+        start.countDown();
+        for (Thread t : producers) {
+            t.join();
+        }
+        tracer.close();
+        time = System.nanoTime() - time;
+        return new long[]{events.get(), time};
+    }
+
+    private static long rate(long[] result) {
+        return (long) (result[0] / (result[1] / 1e9));
+    }
+
+    private static long read(File dir) throws Exception {
+        Map<String, List<File>> recordings = RecordingReader.findRecordings(Collections.singletonList(dir));
+        final long[] read = new long[1];
+        for (Map.Entry<String, List<File>> e : recordings.entrySet()) {
+            new RecordingReader(e.getKey(), e.getValue()).read(new RecordingReader.Handler() {
+                public void event(RecordingReader.Event event) {
+                    read[0]++;
+                }
+            });
+        }
+        return read[0];
+    }
+
+    private static long size(File dir) {
+        long size = 0;
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                size += f.length();
+            }
+        }
+        return size >> 20;
+    }
+
+    private static void clean(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package test;
+
+import com.sun.btrace.recording.Recording;
+import com.sun.btrace.recording.RecordingReader;
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads a recording back while it is still being written - its last
+ * segment not sealed, as after a crash - and checks that the probe names
+ * and the string arguments are decoded instead of showing up as "#id":
+ * first with a single segment, then after the oldest segments were rolled
+ * over and deleted, and once more after the recording was closed. Some of
+ * the strings take several dictionary entry records.
+ * Usage: <code>RecordingReaderTest [directory]</code>; the temporary
+ * directory by default. Exits with status 1 on failure.
+ */
+public class RecordingReaderTest {
+    private static final String LONG_QUERY;
+    static {
+        StringBuilder buf = new StringBuilder("select ");
+        while (buf.length() < 300) {
+            buf.append("c").append(buf.length()).append(", ");
+        }
+        LONG_QUERY = buf.append("\u00e9t\u00e9 from t").toString();
+    }
+
+    private static int failures;
+
+    public static void main(String[] args) throws Exception {
+        File dir = new File(args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir"),
+                            "btrace-recording-test");
+        clean(dir);
+        // 64KB segments hold the minimum of 1024 records; keep the last two
+        Recording recording = new Recording(dir, "reader-test", 64 * 1024, 2);
+
+        // 1. a single segment, not sealed
+        for (int i = 0; i < 500; i++) {
+            recording.record("query", i % 2 == 0 ? LONG_QUERY : "q" + (i % 10), (long) i);
+        }
+        check("unsealed", dir, 500);
+
+        // 2. the first segments sealed and deleted, new strings in the last one
+        for (int i = 0; i < 3000; i++) {
+            recording.record("probe" + (i % 7), "arg" + (i % 50), (long) i);
+        }
+        recording.record("late", "only in the last segment");
+        check("rolled over", dir, -1);
+
+        // 3. everything sealed
+        recording.close();
+        check("closed", dir, -1);
+
+        clean(dir);
+        if (failures > 0) {
+            System.out.println("FAILED");
+            System.exit(1);
+        }
+        System.out.println("OK");
+        System.exit(0);
+    }
+
+    private static void check(String phase, File dir, int expected) throws Exception {
+        Map<String, List<File>> recordings = RecordingReader.findRecordings(
+            Collections.singletonList(dir));
+        final AtomicInteger events = new AtomicInteger();
+        final AtomicInteger unresolved = new AtomicInteger();
+        final AtomicInteger wrong = new AtomicInteger();
+        for (Map.Entry<String, List<File>> e : recordings.entrySet()) {
+            new RecordingReader(e.getKey(), e.getValue()).read(new RecordingReader.Handler() {
+                public void event(RecordingReader.Event event) {
+                    events.incrementAndGet();
+                    String probe = event.getProbe();
+                    Object arg = event.getArg(0);
+                    if (probe.startsWith("#") || !(arg instanceof String) ||
+                        ((String) arg).startsWith("#")) {
+                        unresolved.incrementAndGet();
+                    } else if (probe.equals("query") && ((String) arg).startsWith("select") &&
+                               !arg.equals(LONG_QUERY)) {
+                        wrong.incrementAndGet();
+                    }
+                }
+            });
+        }
+        boolean ok = unresolved.get() == 0 && wrong.get() == 0 &&
+                     (expected < 0 ? events.get() > 0 : events.get() == expected);
+        System.out.println(phase + ": " + recordings.size() + " recording(s), " + events.get() +
+                           " events, " + unresolved.get() + " unresolved, " + wrong.get() +
+                           " garbled" + (ok ? "" : " - FAILED"));
+        if (!ok) {
+            failures++;
+        }
+    }
+
+    private static void clean(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+    }
+}
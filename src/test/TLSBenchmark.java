@@ -0,0 +1,137 @@
+package test;
+
+import com.sun.btrace.BTraceRuntime;
+import com.sun.btrace.ThreadLocalSlots;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Compares the @TLS storage schemes on an entry/return timing probe
+ * pair, the pattern of scripts keeping a <code>@TLS long start</code>
+ * and a <code>@TLS int depth</code>: the former per-field ThreadLocal
+ * holding boxed values and the per-thread {@linkplain ThreadLocalSlots}
+ * generated by the preprocessor now.
+ * Usage: <code>TLSBenchmark [iterations] [threads...]</code>; by default
+ * 10M entry/return pairs per thread with 1, 4 and 16 threads. Needs
+ * the BTrace classes on the boot class path.
+ */
+public class TLSBenchmark {
+    private interface Probes {
+        void entry();
+        long exit();
+    }
+
+    // what the preprocessor used to generate
+    private static final class ThreadLocalProbes implements Probes {
+        private final ThreadLocal<Long> start = new ThreadLocal<Long>() {
+            protected Long initialValue() {
+                return Long.valueOf(0L);
+            }
+        };
+        private final ThreadLocal<Integer> depth = new ThreadLocal<Integer>() {
+            protected Integer initialValue() {
+                return Integer.valueOf(0);
+            }
+        };
+
+        public void entry() {
+            depth.set(Integer.valueOf(depth.get().intValue() + 1));
+            start.set(Long.valueOf(System.nanoTime()));
+        }
+
+        public long exit() {
+            depth.set(Integer.valueOf(depth.get().intValue() - 1));
+            return System.nanoTime() - start.get().longValue();
+        }
+    }
+
+    // what the preprocessor generates now
+    private static final class SlotProbes implements Probes {
+        private final ThreadLocalSlots tls = BTraceRuntime.newThreadLocalSlots(2, 0);
+
+        public void entry() {
+            ThreadLocalSlots.Slots slots = tls.get();
+            ThreadLocalSlots.putInt(ThreadLocalSlots.getInt(slots, 1) + 1, slots, 1);
+            ThreadLocalSlots.putLong(System.nanoTime(), slots, 0);
+        }
+
+        public long exit() {
+            ThreadLocalSlots.Slots slots = tls.get();
+            ThreadLocalSlots.putInt(ThreadLocalSlots.getInt(slots, 1) - 1, slots, 1);
+            return System.nanoTime() - ThreadLocalSlots.getLong(slots, 0);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 10000000;
+        int[] threadCounts = new int[]{1, 4, 16};
+        if (args.length > 1) {
+            threadCounts = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++) {
+                threadCounts[i - 1] = Integer.parseInt(args[i]);
+            }
+        }
+
+        Probes[] schemes = new Probes[]{new ThreadLocalProbes(), new SlotProbes()};
+        String[] names = new String[]{"ThreadLocal", "slots"};
+
+        // warm up both schemes
+        for (Probes p : schemes) {
+            runBenchmark(p, 4, iterations / 10);
+        }
+
+        System.out.println("scheme\tthreads\tns/pair per thread\tyoung GCs");
+        for (int threads : threadCounts) {
+            for (int i = 0; i < schemes.length; i++) {
+                long gcs = gcCount();
+                long dur = runBenchmark(schemes[i], threads, iterations);
+                System.out.println(names[i] + "\t" + threads + "\t" +
+                                   ((double)dur / iterations) + "\t" + (gcCount() - gcs));
+            }
+        }
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (java.lang.management.GarbageCollectorMXBean gc :
+                java.lang.management.ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long runBenchmark(final Probes probes, int threads, final int iterations)
+            throws InterruptedException {
+        final CountDownLatch ready = new CountDownLatch(threads);
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final long[] sink = new long[threads * 16];
+        for (int i = 0; i < threads; i++) {
+            final int idx = i * 16;
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        ready.countDown();
+                        start.await();
+                        long sum = 0;
+                        for (int i = 0; i < iterations; i++) {
+                            probes.entry();
+                            sum += probes.exit();
+                        }
+                        sink[idx] = sum;
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, "TLSBenchmark#" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+        ready.await();
+        long time = System.nanoTime();
+        start.countDown();
+        done.await();
+        return System.nanoTime() - time;
+    }
+}
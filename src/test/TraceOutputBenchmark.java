@@ -0,0 +1,127 @@
+package test;
+
+import com.sun.btrace.agent.TraceOutputWriter;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the sustained script output throughput with 1, 8 and 32
+ * threads printing ~100 byte messages, each followed by a flush as the
+ * file client does after every batch of commands: the former plain
+ * buffered <code>FileWriter</code> against the asynchronous
+ * {@linkplain TraceOutputWriter}, also rolling every 64MB with and without
+ * gzip compression of the rolled chunks. The time includes closing the
+ * writer, ie. writing out everything still pending.
+ * Usage: <code>TraceOutputBenchmark [directory] [seconds]</code>; by
+ * default the temporary directory and 3 seconds per run.
+ */
+public class TraceOutputBenchmark {
+    private static final int[] THREADS = new int[]{1, 8, 32};
+    private static final String[] WRITERS = new String[]{
+        "FileWriter", "async", "async rolling", "async rolling gzip"
+    };
+
+    public static void main(String[] args) throws Exception {
+        File dir = new File(args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir"),
+                            "btrace-output-bench");
+        long seconds = args.length > 1 ? Long.parseLong(args[1]) : 3;
+        dir.mkdirs();
+
+        System.out.println("writer\tthreads\tMB/s");
+        for (String writer : WRITERS) {
+            for (int threads : THREADS) {
+                File file = new File(dir, "out.btrace");
+                double mbs = run(open(writer, file), threads, seconds);
+                System.out.println(writer + "\t" + threads + "\t" + String.format("%.1f", mbs));
+                clean(dir);
+            }
+        }
+        dir.delete();
+    }
+
+    private static Writer open(String writer, File file) throws IOException {
+        if (writer.equals("FileWriter")) {
+            return new BufferedWriter(new FileWriter(file));
+        } else if (writer.equals("async")) {
+            return new BufferedWriter(TraceOutputWriter.fileWriter(file));
+        } else {
+            return new BufferedWriter(TraceOutputWriter.rollingFileWriter(file, 100, 64L << 20, 0,
+                TimeUnit.MILLISECONDS, writer.endsWith("gzip")));
+        }
+    }
+
+    private static double run(Writer writer, int threads, final long seconds) throws Exception {
+        final PrintWriter out = new PrintWriter(writer);
+        final AtomicLong bytes = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        final long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds) + 100000000L;
+        Thread[] producers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final String prefix = "thread-" + t + ": probe fired in java.lang.String.indexOf with value ";
+            producers[t] = new Thread() {
+                public void run() {
+                    long written = 0;
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (long i = 0; ; i++) {
+                        String line = prefix + i;
+                        synchronized (out) {
+                            out.println(line);
+                            out.flush();
+                        }
+                        written += line.length() + 1;
+                        if ((i & 255) == 0 && System.nanoTime() > end) {
+                            break;
+                        }
+                    }
+                    bytes.addAndGet(written);
+                }
+            };
+            producers[t].start();
+        }
+        Thread.sleep(100);
+        long time = System.nanoTime();
+        start.countDown();
+        for (Thread t : producers) {
+            t.join();
+        }
+        out.close();
+        time = System.nanoTime() - time;
+        return (bytes.get() / (1024.0 * 1024.0)) / (time / 1e9);
+    }
+
+    private static void clean(File dir) throws InterruptedException {
+        // let the rolled chunks be compressed before they are removed
+        for (int i = 0; i < 600 && compressing(dir); i++) {
+            Thread.sleep(100);
+        }
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+    }
+
+    private static boolean compressing(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                if (f.getName().endsWith(".tmp")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
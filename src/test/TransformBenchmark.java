@@ -0,0 +1,186 @@
+package test;
+
+import com.sun.btrace.org.objectweb.asm.ClassReader;
+import com.sun.btrace.org.objectweb.asm.ClassWriter;
+import com.sun.btrace.runtime.ClassFilter;
+import com.sun.btrace.runtime.ClassHierarchy;
+import com.sun.btrace.runtime.InstrumentUtils;
+import com.sun.btrace.runtime.Instrumentor;
+import com.sun.btrace.runtime.MethodCopyCounter;
+import com.sun.btrace.runtime.OnMethodMatchers;
+import com.sun.btrace.runtime.Preprocessor;
+import com.sun.btrace.runtime.Verifier;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ClassLoadingMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Measures the class transformation cost of a BTrace script over the
+ * classes of a real jar: every class is checked by the {@linkplain ClassFilter}
+ * and the candidates are instrumented, the way the agent transformer
+ * does it on retransformation. The untouched methods are copied verbatim;
+ * for comparison the classes are also transformed with all the methods
+ * rewritten and without computing the stack frames at all.
+ * Usage: <code>TransformBenchmark &lt;btrace-class-file&gt; [jar] [rounds] [prefix]</code>;
+ * by default the rt.jar of the running JRE, 5 rounds and the classes of
+ * the "java/" packages. Try it with the compiled AllMethods or AllCalls2
+ * sample.
+ */
+public class TransformBenchmark {
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: TransformBenchmark <btrace-class-file> [jar] [rounds] [prefix]");
+            System.exit(1);
+        }
+        String jar = args.length > 1 ? args[1] :
+            System.getProperty("java.home") + File.separator + "lib" + File.separator + "rt.jar";
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        String prefix = args.length > 3 ? args[3] : "java/";
+
+        byte[] script = readFile(new File(args[0]));
+        ClassWriter writer = InstrumentUtils.newClassWriter();
+        ClassReader scriptReader = new ClassReader(script);
+        Verifier verifier = new Verifier(new Preprocessor(writer, scriptReader));
+        InstrumentUtils.accept(scriptReader, verifier);
+        byte[] btraceCode = writer.toByteArray();
+        String btraceClassName = verifier.getClassName();
+
+        List<byte[]> classes = readClasses(jar, prefix);
+        System.out.println("classes: " + classes.size());
+
+        // compiled once per script, as the agent does
+        OnMethodMatchers matchers = new OnMethodMatchers(verifier.getOnMethods());
+        ClassFilter filter = new ClassFilter(matchers);
+
+        ClassLoadingMXBean loading = ManagementFactory.getClassLoadingMXBean();
+        System.out.println("round\tcandidates\tinstrumented\tloaded\tcopied\trewritten\t" +
+                           "ms\tms (all rewritten)\tms (no frames)");
+        for (int r = 0; r < rounds; r++) {
+            long loaded = loading.getTotalLoadedClassCount();
+            long time = System.nanoTime();
+            int[] counts = transform(classes, filter, matchers, btraceClassName,
+                                     btraceCode, verifier, COPY_UNTOUCHED);
+            time = System.nanoTime() - time;
+            // classes loaded as a side effect of the frame computation
+            loaded = loading.getTotalLoadedClassCount() - loaded;
+            // every method rewritten and its frames recomputed
+            long full = System.nanoTime();
+            transform(classes, filter, matchers, btraceClassName,
+                      btraceCode, verifier, REWRITE_ALL);
+            full = System.nanoTime() - full;
+            // without the frame computation the probe matching shows up
+            long noFrames = System.nanoTime();
+            transform(classes, filter, matchers, btraceClassName,
+                      btraceCode, verifier, NO_FRAMES);
+            noFrames = System.nanoTime() - noFrames;
+            System.out.println(r + "\t" + counts[0] + "\t" + counts[1] + "\t" + loaded + "\t" +
+                               counts[2] + "\t" + counts[3] + "\t" + (time / 1000000) + "\t" +
+                               (full / 1000000) + "\t" + (noFrames / 1000000));
+        }
+    }
+
+    // the agent's way: the methods no probe touches are copied verbatim
+    private static final int COPY_UNTOUCHED = 0;
+    private static final int REWRITE_ALL = 1;
+    private static final int NO_FRAMES = 2;
+
+    private static int[] transform(List<byte[]> classes, ClassFilter filter,
+                                   OnMethodMatchers matchers, String btraceClassName,
+                                   byte[] btraceCode, Verifier verifier, int mode) {
+        int candidates = 0;
+        int instrumented = 0;
+        int copied = 0;
+        int rewritten = 0;
+        for (byte[] code : classes) {
+            ClassReader reader = new ClassReader(code);
+            if (!filter.isCandidate(reader)) {
+                continue;
+            }
+            candidates++;
+            ClassWriter cw;
+            switch (mode) {
+                case COPY_UNTOUCHED:
+                    cw = InstrumentUtils.newClassWriter(reader, code, ClassHierarchy.forLoader(null));
+                    break;
+                case REWRITE_ALL:
+                    cw = InstrumentUtils.newClassWriter(code, ClassHierarchy.forLoader(null));
+                    break;
+                default:
+                    cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+            }
+            MethodCopyCounter copies = new MethodCopyCounter(cw);
+            Instrumentor instrumentor = new Instrumentor(null, btraceClassName,
+                btraceCode, matchers, copies, verifier.getClockSource());
+            InstrumentUtils.accept(reader, copies.top(instrumentor));
+            cw.toByteArray();
+            if (instrumentor.hasMatch()) {
+                instrumented++;
+            }
+            copied += copies.getCopiedMethods();
+            rewritten += copies.getRewrittenMethods();
+        }
+        return new int[]{candidates, instrumented, copied, rewritten};
+    }
+
+    private static List<byte[]> readClasses(String jar, String prefix) throws IOException {
+        List<byte[]> classes = new ArrayList<byte[]>();
+        ZipFile zip = new ZipFile(jar);
+        try {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                String name = entry.getName();
+                if (!name.endsWith(".class") || !name.startsWith(prefix)) {
+                    continue;
+                }
+                InputStream in = zip.getInputStream(entry);
+                try {
+                    byte[] code = readFully(in);
+                    // the bundled ASM reads class files up to version 51;
+                    // newer JDK classes are read as if they were 51
+                    if (code[6] != 0 || code[7] > 51) {
+                        code[6] = 0;
+                        code[7] = 51;
+                    }
+                    classes.add(code);
+                } finally {
+                    in.close();
+                }
+            }
+        } finally {
+            zip.close();
+        }
+        return classes;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] buf = new byte[(int) file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readFully(buf);
+        } finally {
+            in.close();
+        }
+        return buf;
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int read;
+        while ((read = in.read(buf)) > 0) {
+            out.write(buf, 0, read);
+        }
+        return out.toByteArray();
+    }
+}
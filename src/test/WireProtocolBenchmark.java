@@ -0,0 +1,127 @@
+package test;
+
+import com.sun.btrace.aggregation.HistogramData;
+import com.sun.btrace.comm.BinaryWireReader;
+import com.sun.btrace.comm.BinaryWireWriter;
+import com.sun.btrace.comm.Command;
+import com.sun.btrace.comm.GridDataCommand;
+import com.sun.btrace.comm.MessageCommand;
+import com.sun.btrace.comm.NumberMapDataCommand;
+import com.sun.btrace.comm.WireIO;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares the throughput of the object stream and the binary wire protocol
+ * for streams of {@linkplain MessageCommand}, {@linkplain NumberMapDataCommand}
+ * and {@linkplain GridDataCommand}.
+ * Usage: <code>WireProtocolBenchmark [commands] [batch size]</code>
+ */
+public class WireProtocolBenchmark {
+    private interface CommandFactory {
+        Command create(int i);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int batch = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+
+        final Map<String, Integer> numbers = new HashMap<String, Integer>();
+        for (int i = 0; i < 16; i++) {
+            numbers.put("counter#" + i, i * 1000);
+        }
+        final List<Object[]> grid = new ArrayList<Object[]>();
+        for (int i = 0; i < 16; i++) {
+            grid.add(new Object[]{"java.lang.String.indexOf#" + i, Long.valueOf(i * 31L), Integer.valueOf(i),
+                                  new HistogramData(new long[]{1, 2, 4, 8}, new long[]{i, 2 * i, 3 * i, 4 * i})});
+        }
+
+        CommandFactory[] factories = new CommandFactory[]{
+            new CommandFactory() {
+                public Command create(int i) {
+                    return new MessageCommand("entered java.net.Socket.connect - request #" + i + "\n");
+                }
+                public String toString() {
+                    return "MessageCommand";
+                }
+            },
+            new CommandFactory() {
+                public Command create(int i) {
+                    return new NumberMapDataCommand("counters", numbers);
+                }
+                public String toString() {
+                    return "NumberMapDataCommand";
+                }
+            },
+            new CommandFactory() {
+                public Command create(int i) {
+                    return new GridDataCommand("aggregation", grid, null);
+                }
+                public String toString() {
+                    return "GridDataCommand";
+                }
+            }
+        };
+
+        System.out.println("command\tprotocol\twrite [cmd/s]\tread [cmd/s]\tbytes/cmd");
+        for (CommandFactory f : factories) {
+            // first round is a warm-up
+            for (int round = 0; round < 2; round++) {
+                Command[] cmds = new Command[count];
+                for (int i = 0; i < count; i++) {
+                    cmds[i] = f.create(i);
+                }
+                run(f + "\tobject", cmds, batch, false, round > 0);
+                run(f + "\tbinary", cmds, batch, true, round > 0);
+            }
+        }
+    }
+
+    private static void run(String label, Command[] cmds, int batch, boolean binary, boolean report) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(64 * 1024 * 1024);
+        ObjectOutputStream oos = new ObjectOutputStream(bos);
+        BinaryWireWriter writer = binary ? new BinaryWireWriter(oos) : null;
+
+        long start = System.nanoTime();
+        for (int i = 0; i < cmds.length; i++) {
+            if (binary) {
+                writer.write(cmds[i]);
+                if ((i + 1) % batch == 0) {
+                    oos.reset();
+                    writer.flush();
+                }
+            } else {
+                // mimics the per-command reset and flush of the object stream protocol
+                oos.reset();
+                WireIO.write(oos, cmds[i]);
+            }
+        }
+        if (binary) {
+            writer.flush();
+        }
+        long writeTime = System.nanoTime() - start;
+
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray()));
+        BinaryWireReader reader = binary ? new BinaryWireReader(ois) : null;
+        start = System.nanoTime();
+        for (int i = 0; i < cmds.length; i++) {
+            Command cmd = binary ? reader.read() : WireIO.read(ois);
+            if (cmd.getType() != cmds[i].getType()) {
+                throw new IllegalStateException("unexpected command " + cmd);
+            }
+        }
+        long readTime = System.nanoTime() - start;
+
+        if (report) {
+            System.out.println(label + "\t" + (long)(cmds.length * 1e9 / writeTime) + "\t" +
+                               (long)(cmds.length * 1e9 / readTime) + "\t" + (bos.size() / cmds.length));
+        }
+    }
+}